@@ -0,0 +1,240 @@
+package org.odinware.odinrunes;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The BpeTokenizer class counts the tokens of a text the way the GPT models see it, using byte pair encoding (BPE).
+ *
+ * <p>A text is first split into pieces with the pre-tokenization pattern of the encoding, for example a word with its
+ * leading space. The UTF-8 bytes of each piece are then merged pairwise, always merging the pair with the lowest rank,
+ * until no ranked pair is left. The ranks are read from a file in the tiktoken format, one Base64 encoded token and
+ * its rank per line, such as {@code cl100k_base.tiktoken} or {@code o200k_base.tiktoken}. These files are not shipped
+ * with Odin Runes. Without them, every piece is counted with an estimate that errs on the side of more tokens, so
+ * that budgets stay safe.
+ *
+ * <p>Counts are cached by text, so the unchanged history and context of a conversation are only tokenized once.
+ * A cached text is only compared character by character with a text of the same hash.
+ *
+ * Basic Usage:
+ * 1. Optionally put the tiktoken files into ODIN_RUNES_TOKENIZER_DIR (~/.odinrunes/tokenizers by default).
+ * 2. Use {@code forModel} to get the tokenizer of a model, and {@code count} to count the tokens of a text.
+ * 3. Use {@code isExact} to find out whether the counts are exact or estimated.
+ */
+public class BpeTokenizer {
+    private static final Logger logger = Logger.getLogger(BpeTokenizer.class.getName());
+
+    public static final String CL100K_BASE = "cl100k_base";
+    public static final String O200K_BASE = "o200k_base";
+
+    private static final String CL100K_PATTERN = "(?i:'s|'t|'re|'ve|'m|'ll|'d)|[^\\r\\n\\p{L}\\p{N}]?\\p{L}+|\\p{N}{1,3}"
+            + "| ?[^\\s\\p{L}\\p{N}]+[\\r\\n]*|\\s*[\\r\\n]+|\\s+(?!\\S)|\\s+";
+    private static final String O200K_PATTERN = "[^\\r\\n\\p{L}\\p{N}]?[\\p{Lu}\\p{Lt}\\p{Lm}\\p{Lo}\\p{M}]*[\\p{Ll}\\p{Lm}\\p{Lo}\\p{M}]+(?i:'s|'t|'re|'ve|'m|'ll|'d)?"
+            + "|[^\\r\\n\\p{L}\\p{N}]?[\\p{Lu}\\p{Lt}\\p{Lm}\\p{Lo}\\p{M}]+[\\p{Ll}\\p{Lm}\\p{Lo}\\p{M}]*(?i:'s|'t|'re|'ve|'m|'ll|'d)?"
+            + "|\\p{N}{1,3}| ?[^\\s\\p{L}\\p{N}]+[\\r\\n/]*|\\s*[\\r\\n]+|\\s+(?!\\S)|\\s+";
+    private static final int MAX_CACHED_COUNTS = 4096;
+
+    private static final Map<String, BpeTokenizer> tokenizers = new HashMap<>();
+
+    private final String encoding;
+    private final Pattern pattern;
+    // Ranks of the mergeable byte sequences, or null to estimate
+    private final Map<ByteSequence, Integer> ranks;
+    private final Map<String, Integer> counts = Collections.synchronizedMap(
+            new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                    return size() > MAX_CACHED_COUNTS;
+                }
+            });
+
+    /**
+     * Creates a tokenizer with the specified ranks.
+     *
+     * @param encoding The name of the encoding, which selects the pre-tokenization pattern.
+     * @param ranks The ranks of the mergeable byte sequences, or null to estimate the counts.
+     */
+    BpeTokenizer(String encoding, Map<ByteSequence, Integer> ranks) {
+        this.encoding = encoding;
+        this.pattern = Pattern.compile(O200K_BASE.equals(encoding) ? O200K_PATTERN : CL100K_PATTERN);
+        this.ranks = ranks;
+    }
+
+    /**
+     * Returns the tokenizer of the model. The GPT-4o family uses o200k_base, every other model cl100k_base, which is
+     * a close approximation for the models of other providers.
+     *
+     * @param model The model name, for example "gpt-4o-mini" or "gemini-pro".
+     * @return The tokenizer.
+     */
+    public static BpeTokenizer forModel(String model) {
+        return forEncoding(model != null && model.startsWith("gpt-4o") ? O200K_BASE : CL100K_BASE);
+    }
+
+    /**
+     * Returns the tokenizer of the encoding, loading its ranks on first use.
+     *
+     * @param encoding The name of the encoding.
+     * @return The tokenizer.
+     */
+    public static synchronized BpeTokenizer forEncoding(String encoding) {
+        BpeTokenizer tokenizer = tokenizers.get(encoding);
+        if (tokenizer == null) {
+            String directory = System.getenv("ODIN_RUNES_TOKENIZER_DIR");
+            if (directory == null || directory.trim().isEmpty()) {
+                directory = System.getProperty("user.home") + File.separator + ".odinrunes" + File.separator + "tokenizers";
+            }
+            tokenizer = load(encoding, new File(directory, encoding + ".tiktoken"));
+            tokenizers.put(encoding, tokenizer);
+        }
+        return tokenizer;
+    }
+
+    /**
+     * Creates a tokenizer from a rank file in the tiktoken format, estimating the counts if the file cannot be read.
+     *
+     * @param encoding The name of the encoding.
+     * @param rankFile The rank file.
+     * @return The tokenizer.
+     */
+    static BpeTokenizer load(String encoding, File rankFile) {
+        if (!rankFile.isFile()) {
+            logger.info("No ranks for " + encoding + " in " + rankFile + ", token counts are estimated.");
+            return new BpeTokenizer(encoding, null);
+        }
+        Map<ByteSequence, Integer> ranks = new HashMap<>(200_000);
+        try (BufferedReader reader = Files.newBufferedReader(rankFile.toPath(), StandardCharsets.US_ASCII)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int space = line.indexOf(' ');
+                if (space > 0) {
+                    ranks.put(new ByteSequence(Base64.getDecoder().decode(line.substring(0, space))),
+                            Integer.parseInt(line.substring(space + 1).trim()));
+                }
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            logger.log(Level.SEVERE, "An error occurred: ", e);
+            return new BpeTokenizer(encoding, null);
+        }
+        logger.info("Loaded " + ranks.size() + " ranks for " + encoding);
+        return new BpeTokenizer(encoding, ranks);
+    }
+
+    public String getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * Returns true if the ranks of the encoding are loaded, false if the counts are estimated.
+     *
+     * @return true for exact counts.
+     */
+    public boolean isExact() {
+        return ranks != null;
+    }
+
+    /**
+     * Counts the tokens of the text, answering from the cache for a text that was counted before.
+     *
+     * @param text The text.
+     * @return The number of tokens.
+     */
+    public int count(String text) {
+        if (text == null || text.isEmpty()) {
+            return 0;
+        }
+        Integer count = counts.get(text);
+        if (count == null) {
+            count = 0;
+            Matcher matcher = pattern.matcher(text);
+            while (matcher.find()) {
+                byte[] piece = matcher.group().getBytes(StandardCharsets.UTF_8);
+                count += ranks == null ? estimate(piece) : merge(piece);
+            }
+            counts.put(text, count);
+        }
+        return count;
+    }
+
+    /**
+     * Estimates the tokens of a piece: common words are a single token, longer ASCII pieces take about six bytes
+     * per token, and other scripts about three bytes, that is a character, per token.
+     */
+    private static int estimate(byte[] piece) {
+        for (byte b : piece) {
+            if (b < 0) {
+                return (piece.length + 2) / 3;
+            }
+        }
+        return 1 + (piece.length - 1) / 6;
+    }
+
+    /**
+     * Merges the bytes of a piece by rank and returns the number of tokens left.
+     */
+    private int merge(byte[] piece) {
+        if (ranks.containsKey(new ByteSequence(piece))) {
+            return 1;
+        }
+        // The start offsets of the current tokens, followed by the end of the piece
+        List<Integer> boundaries = new ArrayList<>(piece.length + 1);
+        for (int i = 0; i <= piece.length; i++) {
+            boundaries.add(i);
+        }
+        while (boundaries.size() > 2) {
+            int bestRank = Integer.MAX_VALUE;
+            int bestIndex = -1;
+            for (int i = 0; i < boundaries.size() - 2; i++) {
+                Integer rank = ranks.get(new ByteSequence(
+                        Arrays.copyOfRange(piece, boundaries.get(i), boundaries.get(i + 2))));
+                if (rank != null && rank < bestRank) {
+                    bestRank = rank;
+                    bestIndex = i;
+                }
+            }
+            if (bestIndex < 0) {
+                break;
+            }
+            boundaries.remove(bestIndex + 1);
+        }
+        return boundaries.size() - 1;
+    }
+
+    /**
+     * A byte sequence usable as a map key.
+     */
+    static final class ByteSequence {
+        private final byte[] bytes;
+        private final int hash;
+
+        ByteSequence(byte[] bytes) {
+            this.bytes = bytes;
+            this.hash = Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof ByteSequence && Arrays.equals(bytes, ((ByteSequence) other).bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
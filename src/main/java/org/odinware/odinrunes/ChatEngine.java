@@ -0,0 +1,105 @@
+package org.odinware.odinrunes;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The ChatEngine class runs chat turns on a managed pool of worker threads, so that streaming an answer
+ * never blocks the Swing Event Dispatch Thread.
+ *
+ * <p>Only one turn runs per conversation file at a time. Submitting a turn for a file that already has a
+ * running turn returns the running turn instead of starting a duplicate. Turns on different files run
+ * concurrently.
+ *
+ * <p>A turn works on a snapshot of the context taken when it is submitted, so that captures added or deleted on the
+ * Event Dispatch Thread while the turn runs neither disturb it nor change what its steps see.
+ *
+ * Basic Usage:
+ * 1. Use {@code submit} to start a turn and keep the returned {@code ChatTurn} to follow or cancel it.
+ * 2. Use {@code getActiveTurn} to find the running turn of a conversation file, if any.
+ */
+public class ChatEngine {
+    private static final Logger logger = Logger.getLogger(ChatEngine.class.getName());
+
+    private static final int MAX_CONCURRENT_TURNS = 4;
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static final ExecutorService executor = createExecutor();
+    private static final Map<String, ChatTurn> activeTurns = new ConcurrentHashMap<>();
+
+    private static ExecutorService createExecutor() {
+        ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(MAX_CONCURRENT_TURNS, MAX_CONCURRENT_TURNS,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), runnable -> {
+                    Thread thread = new Thread(runnable, "odin-chat-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        threadPoolExecutor.allowCoreThreadTimeOut(true);
+        return threadPoolExecutor;
+    }
+
+    /**
+     * Starts a chat turn on the conversation file of the TextHelper, unless one is already running on that file.
+     *
+     * @param odinSays The TextHelper object of the conversation file.
+     * @param context The Context object containing the captured data, copied before the turn starts.
+     * @param gptSettingsJsonObject The settings for the GPT provider.
+     * @return The new turn, or the turn that is already running on the same file.
+     */
+    public static ChatTurn submit(final TextHelper odinSays, Context context, final JSONObject gptSettingsJsonObject) {
+        final Context snapshot = context.snapshot();
+        final String key = keyFor(odinSays.getFilePath());
+        final ChatTurn chatTurn = new ChatTurn(odinSays.getFilePath());
+        ChatTurn runningTurn = activeTurns.putIfAbsent(key, chatTurn);
+        if (runningTurn != null) {
+            logger.info("A chat turn is already running on " + key);
+            return runningTurn;
+        }
+
+        executor.execute(new Runnable() {
+            public void run() {
+                Throwable failure = null;
+                long diskReadCount = LiveFileCache.getDefault().getDiskReadCount();
+                try {
+                    chatTurn.markStarted();
+                    if (!chatTurn.isCancelled()) {
+                        GptOpsHelper.streamResponse(odinSays, snapshot, gptSettingsJsonObject, chatTurn);
+                    }
+                } catch (RuntimeException | Error e) {
+                    failure = e;
+                    logger.log(Level.SEVERE, "An error occurred: ", e);
+                } finally {
+                    logger.info("Live files read from disk during the turn: "
+                            + (LiveFileCache.getDefault().getDiskReadCount() - diskReadCount) + ". " + LiveFileCache.getDefault().getStatistics());
+                    activeTurns.remove(key, chatTurn);
+                    chatTurn.markFinished(failure);
+                }
+            }
+        });
+        return chatTurn;
+    }
+
+    /**
+     * Returns the turn running on the specified conversation file.
+     *
+     * @param filePath the path to the conversation file
+     * @return The running turn, or null if there is none.
+     */
+    public static ChatTurn getActiveTurn(String filePath) {
+        return activeTurns.get(keyFor(filePath));
+    }
+
+    private static String keyFor(String filePath) {
+        return new File(filePath).getAbsoluteFile().toPath().normalize().toString();
+    }
+}
@@ -0,0 +1,123 @@
+package org.odinware.odinrunes;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * The ChatTurn class is the handle of a single chat turn started through the {@code ChatEngine}.
+ * It reports the progress of the turn, lets it be cancelled and completes when the turn is over.
+ *
+ * <p>The turn tags the HTTP requests it sends with itself, so that cancelling it also cancels its
+ * in-flight OkHttp calls. The transcript then gets an error marker, so the partial answer is not
+ * sent back to the GPT provider as part of the chat history.
+ */
+public class ChatTurn {
+    private static final Logger logger = Logger.getLogger(ChatTurn.class.getName());
+
+    private final String filePath;
+    private final CompletableFuture<Void> firstTokenFuture = new CompletableFuture<>();
+    private final CompletableFuture<Void> completionFuture = new CompletableFuture<>();
+    private final AtomicLong charactersReceived = new AtomicLong();
+    private volatile boolean cancelled;
+    private volatile boolean started;
+
+    /**
+     * Creates a handle for a chat turn on the specified conversation file.
+     *
+     * @param filePath the path to the conversation file
+     */
+    public ChatTurn(String filePath) {
+        this.filePath = filePath;
+    }
+
+    public String getFilePath() {
+        return filePath;
+    }
+
+    /**
+     * Cancels the turn. Its in-flight HTTP calls are cancelled and it stops reading the response.
+     *
+     * @return true if the turn was still running, false if it had already finished.
+     */
+    public boolean cancel() {
+        if (completionFuture.isDone()) {
+            return false;
+        }
+        cancelled = true;
+        HttpTransport.cancel(ChatTurn.class, this);
+        logger.info("Cancelled the chat turn on " + filePath);
+        return true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Returns true once the turn has started running, as opposed to waiting for a free worker.
+     *
+     * @return true if the turn has started.
+     */
+    public boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * Returns true once the turn has finished, whether it completed, failed or was cancelled.
+     *
+     * @return true if the turn is over.
+     */
+    public boolean isDone() {
+        return completionFuture.isDone();
+    }
+
+    /**
+     * Returns the number of characters of the answer received so far.
+     *
+     * @return the number of characters received.
+     */
+    public long getCharactersReceived() {
+        return charactersReceived.get();
+    }
+
+    /**
+     * Returns a future that completes when the first piece of the answer arrives.
+     * It is cancelled if the turn ends without receiving any text.
+     *
+     * @return the first token future.
+     */
+    public CompletableFuture<Void> getFirstTokenFuture() {
+        return firstTokenFuture;
+    }
+
+    /**
+     * Returns a future that completes when the turn is over. It is cancelled if the turn was cancelled,
+     * and completes exceptionally if the turn failed unexpectedly.
+     *
+     * @return the completion future.
+     */
+    public CompletableFuture<Void> getCompletionFuture() {
+        return completionFuture;
+    }
+
+    void markStarted() {
+        started = true;
+    }
+
+    void onTextReceived(int length) {
+        charactersReceived.addAndGet(length);
+        firstTokenFuture.complete(null);
+    }
+
+    void markFinished(Throwable failure) {
+        firstTokenFuture.cancel(false);
+        if (cancelled) {
+            completionFuture.cancel(false);
+        } else if (failure != null) {
+            completionFuture.completeExceptionally(failure);
+        } else {
+            completionFuture.complete(null);
+        }
+    }
+}
@@ -3,11 +3,6 @@ package org.odinware.odinrunes;
 import java.util.ArrayList;
 import java.util.List;
 import java.io.Serializable;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.nio.file.Files;
-import java.util.Base64;
 /**
  * The Context class represents the context in which the GPT request is made.
  * It contains captured data and user options that will be used to construct the request.
@@ -32,6 +27,15 @@ public class Context implements Serializable {
         capturedDataList.add(capturedData);
     }
 
+    /**
+     * Adds captured data, such as an entry loaded from a context file, to the context.
+     *
+     * @param capturedData The captured data to be added.
+     */
+    void addCapturedData(CapturedData capturedData) {
+        capturedDataList.add(capturedData);
+    }
+
     /**
      * Deletes the specified captured data from the context.
      *
@@ -50,6 +54,19 @@ public class Context implements Serializable {
         return capturedDataList;
     }
 
+    /**
+     * Returns a copy of the context with its own list of the same captured data, which does not change when captures
+     * are added to or deleted from this context.
+     *
+     * @return The copy of the context.
+     */
+    public Context snapshot() {
+        Context snapshot = new Context();
+        snapshot.capturedDataList.addAll(capturedDataList);
+        snapshot.setUserProfile(userProfile);
+        return snapshot;
+    }
+
     /**
      * Returns the user profile of the context.
      *
@@ -77,40 +94,104 @@ public class Context implements Serializable {
 
         private String capturedText;
         private String captureMethod;
+        // The text as stored in a loaded context file, decoded on first use
+        private transient ContextFile.Entry storedText;
 
         public CapturedData(String capturedText, String captureMethod) {
             this.capturedText = capturedText;
             this.captureMethod = captureMethod;
         }
 
-        public String getRawCapturedText(){
+        CapturedData(ContextFile.Entry storedText, String captureMethod) {
+            this.storedText = storedText;
+            this.captureMethod = captureMethod;
+        }
+
+        public synchronized String getRawCapturedText(){
+            if (storedText != null) {
+                capturedText = storedText.decode();
+                storedText = null;
+            }
             return capturedText;
         }
+
+        /**
+         * Returns the text as stored in the context file it was loaded from, if it was not decoded yet.
+         *
+         * @return The stored entry, or null.
+         */
+        synchronized ContextFile.Entry getStoredText() {
+            return storedText;
+        }
+
+        /**
+         * Replaces the stored entry, if it was not decoded in the meantime, with the same text stored elsewhere.
+         *
+         * @param oldStoredText The entry to be replaced.
+         * @param newStoredText The entry replacing it.
+         */
+        synchronized void replaceStoredText(ContextFile.Entry oldStoredText, ContextFile.Entry newStoredText) {
+            if (storedText == oldStoredText) {
+                storedText = newStoredText;
+            }
+        }
+
+        /**
+         * Returns the beginning of the captured text, without decoding a stored entry or reading a live file.
+         *
+         * @param maxLength The maximum length of the preview.
+         * @return The preview of the raw captured text.
+         */
+        public synchronized String getPreview(int maxLength) {
+            String text = storedText != null ? storedText.getPreview() : capturedText;
+            if (text == null) {
+                return "";
+            }
+            return text.length() > maxLength ? text.substring(0, maxLength) : text;
+        }
+
+        /**
+         * Returns the length of the raw captured text, without decoding a stored entry.
+         *
+         * @return The number of characters.
+         */
+        public synchronized int getRawLength() {
+            if (storedText != null) {
+                return storedText.getTextLength();
+            }
+            return capturedText == null ? 0 : capturedText.length();
+        }
+        /**
+         * Tells whether the captured text is the path of a live file, whose content is read when it is used.
+         *
+         * @return true for "File (Live)" and "Image File (Live)" captures.
+         */
+        public boolean isLive() {
+            return getCaptureMethod().equals("File (Live)") || getCaptureMethod().equals("Image File (Live)");
+        }
+
         public String getCapturedText() {
+            String capturedText = getRawCapturedText();
             if(getCaptureMethod().equals("File (Live)")){
-               String fileContent=TextHelper.readIntoString(capturedText);
+               // Served from memory until the file changes
+               String fileContent=LiveFileCache.getDefault().readText(capturedText);
                if(fileContent == null){
                    return "ERROR READING FROM FILE";
                } else return fileContent;
             } else if(getCaptureMethod().equals("Image File (Live)")){
-                try{
-                    File file = new File(capturedText);
-                    // Read the file into a byte array
-                    byte[] fileContent = Files.readAllBytes(file.toPath());
-
-                    // Encode the byte array into a Base64 string
-                    String encodedString = Base64.getEncoder().encodeToString(fileContent);
-                    return encodedString;
-                } catch (IOException e) {
-                        e.printStackTrace();
-                        return "";
-                    }
+                // Read the file and encode it into a Base64 string, once per change of the file
+                String encodedString = LiveFileCache.getDefault().readBase64(capturedText);
+                if (encodedString == null) {
+                    return "";
+                }
+                return encodedString;
             } else return capturedText;
 
         }
 
-        public void setCapturedText(String capturedText) {
+        public synchronized void setCapturedText(String capturedText) {
             this.capturedText = capturedText;
+            this.storedText = null;
         }
 
         public String getCaptureMethod() {
@@ -0,0 +1,152 @@
+package org.odinware.odinrunes;
+
+import org.json.JSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * The ContextBudget class decides, before a request is sent, how much of the conversation fits into the context
+ * window of the model.
+ *
+ * <p>The system message, the captured context and the new prompt are always sent, together with room for the answer.
+ * If they alone do not fit, the request is not sent at all, since the provider would reject it anyway. The remaining
+ * room is filled with the history, newest messages first. The oldest messages that do not fit are left out of the
+ * request, while the transcript itself keeps them. The kept history always starts with a user message, since some
+ * providers expect the turns to alternate.
+ *
+ * <p>Tokens are counted with the {@code BpeTokenizer} of the model, whose counts are cached, so the unchanged history
+ * and context are only tokenized once.
+ *
+ * Basic Usage:
+ * 1. Use {@code fit} to get the messages that fit into the context window of the model in the GPT settings.
+ * 2. Optionally set the "contextWindow" attribute of the GPT settings, for example for an Ollama model, and the
+ * "maxOutputTokens" attribute for the room kept for the answer (1024 by default).
+ */
+public class ContextBudget {
+    private static final Logger logger = Logger.getLogger(ContextBudget.class.getName());
+
+    private static final int DEFAULT_ANSWER_TOKENS = 1024;
+    // The tokens every message costs beyond its content, for the role and the separators
+    private static final int MESSAGE_OVERHEAD_TOKENS = 4;
+    private static final int SYSTEM_MESSAGE_TOKENS = 16;
+    private static final int IMAGE_TOKENS = 765;
+
+    // Context windows by model name prefix, longest prefix first
+    private static final Map<String, Integer> CONTEXT_WINDOWS = new LinkedHashMap<>();
+
+    static {
+        CONTEXT_WINDOWS.put("gpt-4o-mini", 128_000);
+        CONTEXT_WINDOWS.put("gpt-4o", 128_000);
+        CONTEXT_WINDOWS.put("gpt-3.5-turbo", 16_385);
+        // Long chat-bison conversations are sent to chat-bison-32k
+        CONTEXT_WINDOWS.put("chat-bison", 32_768);
+        CONTEXT_WINDOWS.put("gemini-1.5", 1_048_576);
+        CONTEXT_WINDOWS.put("gemini-pro", 32_760);
+    }
+
+    /**
+     * Returns the name of the model the GPT settings ask for.
+     *
+     * @param gptSettingsJsonObject The settings for the GPT provider.
+     * @return The model name.
+     */
+    public static String modelFor(JSONObject gptSettingsJsonObject) {
+        String gptProvider = gptSettingsJsonObject.getString("gptProvider");
+        switch (gptProvider) {
+            case "OpenAI (gpt-4o-mini)":
+                return "gpt-4o-mini";
+            case "OpenAI (gpt-3.5-turbo)":
+                return "gpt-3.5-turbo";
+            case "Google's VertexAI (chat-bison)":
+                return vertexModel("chat-bison");
+            case "Google's VertexAI (gemini-pro)":
+                return vertexModel("gemini-pro");
+            default:
+                return gptSettingsJsonObject.optString("model", gptProvider);
+        }
+    }
+
+    private static String vertexModel(String defaultModel) {
+        String model = System.getenv("VERTEXAI_MODEL_ID");
+        return model == null || model.isEmpty() ? defaultModel : model;
+    }
+
+    /**
+     * Returns the context window of the model, from the "contextWindow" attribute of the GPT settings if present.
+     *
+     * @param gptSettingsJsonObject The settings for the GPT provider.
+     * @param model The model name.
+     * @return The context window in tokens, or 0 if it is unknown.
+     */
+    public static int contextWindowFor(JSONObject gptSettingsJsonObject, String model) {
+        if (gptSettingsJsonObject.has("contextWindow")) {
+            return gptSettingsJsonObject.getInt("contextWindow");
+        }
+        for (Map.Entry<String, Integer> contextWindow : CONTEXT_WINDOWS.entrySet()) {
+            if (model.startsWith(contextWindow.getKey())) {
+                return contextWindow.getValue();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the messages that fit into the context window of the model, leaving out the oldest history if needed.
+     *
+     * @param context The Context object containing the captured data.
+     * @param odinMessages The messages of the conversation, ending with the new prompt.
+     * @param gptSettingsJsonObject The settings for the GPT provider.
+     * @return The messages to send.
+     * @throws Exception If the captured context and the prompt alone do not fit.
+     */
+    public static TranscriptMessages fit(Context context, TranscriptMessages odinMessages, JSONObject gptSettingsJsonObject) throws Exception {
+        String model = modelFor(gptSettingsJsonObject);
+        int contextWindow = contextWindowFor(gptSettingsJsonObject, model);
+        if (contextWindow <= 0) {
+            return odinMessages;
+        }
+        BpeTokenizer tokenizer = BpeTokenizer.forModel(model);
+        int budget = contextWindow - gptSettingsJsonObject.optInt("maxOutputTokens", DEFAULT_ANSWER_TOKENS);
+
+        int requiredTokens = SYSTEM_MESSAGE_TOKENS;
+        for (ContextRenderer.Segment segment : ContextRenderer.render(context)) {
+            requiredTokens += MESSAGE_OVERHEAD_TOKENS
+                    + (segment.isImage() ? IMAGE_TOKENS : tokenizer.count(segment.getText(ContextRenderer.Voice.ABOUT_USER)));
+        }
+        int[] historyTokens = new int[odinMessages.size()];
+        String[] historyRoles = new String[odinMessages.size()];
+        int historySize = 0;
+        for (TranscriptMessages.Message message : odinMessages) {
+            int tokens = MESSAGE_OVERHEAD_TOKENS + tokenizer.count(message.getContent());
+            if ("prompt".equals(message.getRole())) {
+                requiredTokens += tokens;
+            } else {
+                historyTokens[historySize] = tokens;
+                historyRoles[historySize] = message.getRole();
+                historySize++;
+            }
+        }
+        if (requiredTokens > budget) {
+            throw new Exception("The prompt and the captured context need about " + requiredTokens + " tokens, but "
+                    + model + " only has room for " + budget + " tokens besides its answer. Remove some of the captured context or shorten the prompt.");
+        }
+
+        int usedTokens = requiredTokens;
+        int firstKept = historySize;
+        while (firstKept > 0 && usedTokens + historyTokens[firstKept - 1] <= budget) {
+            firstKept--;
+            usedTokens += historyTokens[firstKept];
+        }
+        if (firstKept == 0) {
+            return odinMessages;
+        }
+        while (firstKept < historySize && !"user".equals(historyRoles[firstKept])) {
+            firstKept++;
+        }
+        logger.info("Leaving out the " + firstKept + " oldest messages to fit the context window of " + model
+                + " (" + contextWindow + " tokens" + (tokenizer.isExact() ? "" : ", estimated") + ")");
+        return odinMessages.dropOldest(firstKept);
+    }
+}
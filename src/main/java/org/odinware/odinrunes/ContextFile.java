@@ -0,0 +1,500 @@
+package org.odinware.odinrunes;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * The ContextFile class saves a context into a file of its own versioned binary format, and loads it back lazily.
+ *
+ * <p>A context file starts with a header: the magic bytes "ODNC", the format version, the number of entries and the
+ * user profile. A table follows with one row per captured data: its capture method, how its text is stored, the offset
+ * and length of the stored text, the length and CRC-32 of the text, and a short preview of it. The texts come last.
+ * Texts of {@code COMPRESS_THRESHOLD} bytes or more, such as long OCR captures, are stored deflated when that makes
+ * them smaller.
+ *
+ * <p>Loading reads the header and the table only, so that opening a context with many large captures does not depend
+ * on their size. The file is neither mapped nor kept open, so that it can be moved, replaced or deleted: the text of
+ * an entry is read from the file and decoded when it is first used, and checked against its CRC-32. An entry that was
+ * never used is copied as it is stored when the context is saved again.
+ *
+ * <p>Contexts saved with Java serialization by earlier versions are still loaded, restricted to the classes of a
+ * context, and are saved in the new format the next time.
+ *
+ * Basic Usage:
+ * 1. Use {@code write} to save a context into a file.
+ * 2. Use {@code read} to load a context from a file, in either format.
+ */
+public class ContextFile {
+    private static final Logger logger = Logger.getLogger(ContextFile.class.getName());
+
+    private static final byte[] MAGIC = {'O', 'D', 'N', 'C'};
+    private static final int VERSION = 1;
+    private static final int COMPRESS_THRESHOLD = 4096;
+    private static final int PREVIEW_LENGTH = 64;
+
+    private static final int STORED = 0;
+    private static final int DEFLATED = 1;
+    private static final int NULL_TEXT = 2;
+
+    // The first bytes of a Java serialization stream
+    private static final int SERIALIZATION_MAGIC = 0xACED;
+    private static final Set<String> SERIALIZED_CLASSES = new HashSet<>(Arrays.asList(
+            Context.class.getName(), Context.CapturedData.class.getName(), ArrayList.class.getName()));
+
+    private static final AtomicLong decodeCount = new AtomicLong();
+
+    /**
+     * Saves the context into the file, replacing it atomically.
+     *
+     * @param context The context to be saved.
+     * @param file The file.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void write(Context context, File file) throws IOException {
+        List<Context.CapturedData> capturedDataList = new ArrayList<>(context.getCapturedDataList());
+        List<Row> rows = new ArrayList<>(capturedDataList.size());
+        for (Context.CapturedData capturedData : capturedDataList) {
+            Entry entry = capturedData.getStoredText();
+            if (entry != null) {
+                // Never used since it was loaded, so it is copied as it is stored
+                rows.add(Row.of(entry, capturedData.getCaptureMethod()));
+            } else {
+                rows.add(Row.of(capturedData.getCaptureMethod(), capturedData.getRawCapturedText()));
+            }
+        }
+
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(headerBytes);
+        header.write(MAGIC);
+        header.writeShort(VERSION);
+        header.writeShort(0);
+        header.writeInt(rows.size());
+        writeString(header, context.getUserProfile());
+        long tableLength = 0;
+        for (Row row : rows) {
+            tableLength += row.tableLength();
+        }
+        long offset = headerBytes.size() + tableLength;
+
+        File temporaryFile = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)))) {
+            headerBytes.writeTo(out);
+            for (Row row : rows) {
+                writeString(out, row.captureMethod);
+                out.writeByte(row.compression);
+                out.writeLong(offset);
+                out.writeInt(row.stored.length);
+                out.writeInt(row.textLength);
+                out.writeInt((int) row.crc);
+                writeString(out, row.preview);
+                offset += row.stored.length;
+            }
+            for (Row row : rows) {
+                out.write(row.stored);
+            }
+        }
+        Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        // The unused entries loaded from the replaced file now read their texts from where they were just written
+        File absoluteFile = file.getAbsoluteFile();
+        offset = headerBytes.size() + tableLength;
+        for (int i = 0; i < rows.size(); i++) {
+            Row row = rows.get(i);
+            Entry entry = capturedDataList.get(i).getStoredText();
+            if (entry != null && absoluteFile.equals(entry.file)) {
+                capturedDataList.get(i).replaceStoredText(entry, new Entry(absoluteFile, offset, row.stored.length,
+                        row.compression, row.textLength, row.crc, row.preview, null));
+            }
+            offset += row.stored.length;
+        }
+    }
+
+    /**
+     * Loads a context from the file, reading only its header and table. Contexts saved with Java serialization are
+     * read as a whole.
+     *
+     * @param file The file.
+     * @return The context.
+     * @throws IOException If the file cannot be read, or is not a context file of a supported version.
+     */
+    public static Context read(File file) throws IOException {
+        File absoluteFile = file.getAbsoluteFile();
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(absoluteFile, "r")) {
+            TableReader reader = new TableReader(randomAccessFile.getChannel());
+            if (reader.size >= 2 && (reader.peekShort() & 0xFFFF) == SERIALIZATION_MAGIC) {
+                logger.info("Loading a context saved with Java serialization from " + file);
+                try (InputStream in = new FileInputStream(absoluteFile)) {
+                    return readSerialized(in);
+                }
+            }
+
+            byte[] magic = reader.readBytes(MAGIC.length);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a context file: " + file);
+            }
+            int version = reader.readShort() & 0xFFFF;
+            if (version > VERSION) {
+                throw new IOException("Unsupported version " + version + " of the context file " + file);
+            }
+            reader.readShort(); // Flags, none so far
+            int entryCount = reader.readInt();
+            Context context = new Context();
+            context.setUserProfile(reader.readString());
+            for (int i = 0; i < entryCount; i++) {
+                String captureMethod = reader.readString();
+                int compression = reader.readByte();
+                long offset = reader.readLong();
+                int storedLength = reader.readInt();
+                int textLength = reader.readInt();
+                long crc = reader.readInt() & 0xFFFFFFFFL;
+                String preview = reader.readString();
+                if (compression < STORED || compression > NULL_TEXT || storedLength < 0
+                        || offset < 0 || offset + storedLength > reader.size) {
+                    throw new IOException("Corrupt entry " + i + " in the context file " + file);
+                }
+                Entry entry = new Entry(absoluteFile, offset, storedLength, compression, textLength, crc, preview, null);
+                context.addCapturedData(new Context.CapturedData(entry, captureMethod));
+            }
+            return context;
+        } catch (EOFException e) {
+            throw new IOException("Corrupt context file " + file, e);
+        }
+    }
+
+    /**
+     * Reads the header and the table of a context file with positional reads, a block at a time.
+     */
+    private static final class TableReader {
+        private static final int BLOCK_SIZE = 8192;
+
+        private final FileChannel channel;
+        private final long size;
+        private ByteBuffer block = ByteBuffer.allocate(0);
+        // The position in the file of the first byte of the block
+        private long blockStart;
+
+        private TableReader(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+        }
+
+        /**
+         * Makes sure that the next bytes are in the block, reading them from the file if needed.
+         */
+        private void require(int length) throws IOException {
+            if (block.remaining() >= length) {
+                return;
+            }
+            long position = blockStart + block.position();
+            if (length < 0 || position + length > size) {
+                throw new EOFException("The context file ends before its table");
+            }
+            block = ByteBuffer.allocate((int) Math.min(size - position, Math.max(BLOCK_SIZE, length)));
+            blockStart = position;
+            while (block.hasRemaining()) {
+                if (channel.read(block, position + block.position()) < 0) {
+                    throw new EOFException("The context file ends before its table");
+                }
+            }
+            ((Buffer) block).flip();
+        }
+
+        short peekShort() throws IOException {
+            require(2);
+            return block.getShort(block.position());
+        }
+
+        byte readByte() throws IOException {
+            require(1);
+            return block.get();
+        }
+
+        short readShort() throws IOException {
+            require(2);
+            return block.getShort();
+        }
+
+        int readInt() throws IOException {
+            require(4);
+            return block.getInt();
+        }
+
+        long readLong() throws IOException {
+            require(8);
+            return block.getLong();
+        }
+
+        byte[] readBytes(int length) throws IOException {
+            require(length);
+            byte[] bytes = new byte[length];
+            block.get(bytes);
+            return bytes;
+        }
+
+        String readString() throws IOException {
+            int length = readInt();
+            if (length < 0) {
+                return null;
+            }
+            if (length > size - blockStart - block.position()) {
+                throw new IOException("Corrupt string in the context file");
+            }
+            return new String(readBytes(length), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Reads a context saved with Java serialization, accepting the classes of a context only.
+     *
+     * @param in The serialized context.
+     * @return The context.
+     * @throws IOException If the stream is not a serialized context.
+     */
+    static Context readSerialized(InputStream in) throws IOException {
+        ObjectInputStream objectIn = new ObjectInputStream(in) {
+            @Override
+            protected Class<?> resolveClass(ObjectStreamClass description) throws IOException, ClassNotFoundException {
+                if (!SERIALIZED_CLASSES.contains(description.getName())) {
+                    throw new InvalidClassException(description.getName(), "Not a class of a saved context");
+                }
+                return super.resolveClass(description);
+            }
+        };
+        try {
+            Object context = objectIn.readObject();
+            if (!(context instanceof Context)) {
+                throw new IOException("Not a serialized context");
+            }
+            return (Context) context;
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Returns how many entries have been decoded since startup.
+     *
+     * @return The number of decoded entries.
+     */
+    public static long getDecodeCount() {
+        return decodeCount.get();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static long crc(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return crc.getValue();
+    }
+
+    /**
+     * A row of the table, with the stored text it points to. The context library stores texts the same way.
+     */
+    static final class Row {
+        final String captureMethod;
+        final int compression;
+        final byte[] stored;
+        final int textLength;
+        final long crc;
+        final String preview;
+
+        private Row(String captureMethod, int compression, byte[] stored, int textLength, long crc, String preview) {
+            this.captureMethod = captureMethod;
+            this.compression = compression;
+            this.stored = stored;
+            this.textLength = textLength;
+            this.crc = crc;
+            this.preview = preview;
+        }
+
+        static Row of(Entry entry, String captureMethod) throws IOException {
+            return new Row(captureMethod, entry.compression, entry.storedBytes(), entry.textLength, entry.crc, entry.preview);
+        }
+
+        static Row of(String captureMethod, String text) throws IOException {
+            if (text == null) {
+                return new Row(captureMethod, NULL_TEXT, new byte[0], 0, 0, null);
+            }
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            String preview = text.length() > PREVIEW_LENGTH ? text.substring(0, PREVIEW_LENGTH) : text;
+            if (bytes.length >= COMPRESS_THRESHOLD) {
+                ByteArrayOutputStream deflated = new ByteArrayOutputStream(bytes.length / 4);
+                Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+                try (OutputStream out = new DeflaterOutputStream(deflated, deflater)) {
+                    out.write(bytes);
+                } finally {
+                    deflater.end();
+                }
+                if (deflated.size() < bytes.length) {
+                    return new Row(captureMethod, DEFLATED, deflated.toByteArray(), text.length(), crc(bytes), preview);
+                }
+            }
+            return new Row(captureMethod, STORED, bytes, text.length(), crc(bytes), preview);
+        }
+
+        boolean isNullText() {
+            return compression == NULL_TEXT;
+        }
+
+        long tableLength() {
+            return 4 + utf8Length(captureMethod) + 1 + 8 + 4 + 4 + 4 + 4 + utf8Length(preview);
+        }
+
+        private static int utf8Length(String value) {
+            return value == null ? 0 : value.getBytes(StandardCharsets.UTF_8).length;
+        }
+    }
+
+    /**
+     * The stored text of a captured data in a loaded context file or in the context library, decoded on demand.
+     */
+    static final class Entry {
+        // The context file, or the blob file of the context library
+        private final File file;
+        private final long offset;
+        private final int storedLength;
+        private final int compression;
+        private final int textLength;
+        private final long crc;
+        private final String preview;
+        // The key of the blob in the context library, or null
+        private final String blob;
+
+        private Entry(File file, long offset, int storedLength, int compression, int textLength, long crc, String preview,
+                      String blob) {
+            this.file = file;
+            this.offset = offset;
+            this.storedLength = storedLength;
+            this.compression = compression;
+            this.textLength = textLength;
+            this.crc = crc;
+            this.preview = preview;
+            this.blob = blob;
+        }
+
+        /**
+         * Creates an entry for a text stored as a blob file of the context library, which is read when it is used.
+         */
+        static Entry ofBlob(File file, String blob, int storedLength, int compression, int textLength, long crc, String preview) {
+            return new Entry(file, 0, storedLength, compression, textLength, crc, preview, blob);
+        }
+
+        String getPreview() {
+            return preview;
+        }
+
+        int getTextLength() {
+            return textLength;
+        }
+
+        String getBlob() {
+            return blob;
+        }
+
+        int getCompression() {
+            return compression;
+        }
+
+        int getStoredLength() {
+            return storedLength;
+        }
+
+        long getCrc() {
+            return crc;
+        }
+
+        byte[] storedBytes() throws IOException {
+            byte[] stored = new byte[storedLength];
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+                randomAccessFile.seek(offset);
+                randomAccessFile.readFully(stored);
+            }
+            return stored;
+        }
+
+        /**
+         * Decodes the text, checking it against its CRC-32.
+         *
+         * @return The text, or an error message in place of a corrupt text.
+         */
+        String decode() {
+            if (compression == NULL_TEXT) {
+                return null;
+            }
+            decodeCount.incrementAndGet();
+            byte[] bytes;
+            try {
+                bytes = storedBytes();
+                if (compression == DEFLATED) {
+                    bytes = inflate(bytes);
+                }
+                if (crc(bytes) != crc) {
+                    throw new IOException("The CRC-32 of the stored text does not match");
+                }
+            } catch (IOException | DataFormatException e) {
+                logger.log(Level.SEVERE, "An error occurred: ", e);
+                return "ERROR READING FROM CONTEXT FILE";
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private static byte[] inflate(byte[] deflated) throws DataFormatException {
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(deflated);
+                ByteArrayOutputStream inflated = new ByteArrayOutputStream(deflated.length * 4);
+                byte[] chunk = new byte[8192];
+                while (!inflater.finished()) {
+                    int length = inflater.inflate(chunk);
+                    if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new DataFormatException("Truncated deflated text");
+                    }
+                    inflated.write(chunk, 0, length);
+                }
+                return inflated.toByteArray();
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+}
@@ -0,0 +1,482 @@
+package org.odinware.odinrunes;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The ContextLibrary class keeps saved contexts in a local store where every captured text is stored once, no matter
+ * how many contexts share it.
+ *
+ * <p>Captured texts are stored as blobs named by the SHA-256 of their content, deflated when they are large, in the
+ * same way as {@code ContextFile} stores them. A saved context is a small JSON manifest listing its captures with the
+ * blob of each, together with the length and a short preview of the text. Listing and searching the library only
+ * reads the manifests, which are parsed once per change. Loading a context only reads its manifest; the blobs are
+ * read and decoded when the captured texts are first used.
+ *
+ * <p>Deleting a context only deletes its manifest. {@code collectGarbage} deletes the blobs that neither a manifest
+ * nor a loaded context whose captured texts were not decoded yet refers to.
+ *
+ * Basic Usage:
+ * 1. Use {@code getDefault} to get the library in ODIN_RUNES_CONTEXT_LIBRARY_DIR (~/.odinrunes/contexts by default).
+ * 2. Use {@code save} and {@code load} to save and load a context by name.
+ * 3. Use {@code list} or {@code search} to get the summaries of the saved contexts, newest first.
+ * 4. Use {@code delete}, {@code collectGarbage} and {@code getStatistics} to manage the library.
+ */
+public class ContextLibrary {
+    private static final Logger logger = Logger.getLogger(ContextLibrary.class.getName());
+
+    private static final String MANIFEST_SUFFIX = ".json";
+
+    private static ContextLibrary defaultLibrary;
+
+    private final File manifestDirectory;
+    private final File blobDirectory;
+    // Parsed manifests by file, with the modification time they were parsed at
+    private final Map<File, Summary> summaries = new HashMap<>();
+    // The stored texts of the loaded contexts, until they are decoded and dropped by their captured data
+    private final Map<ContextFile.Entry, Boolean> loadedEntries = new WeakHashMap<>();
+
+    /**
+     * Creates a library in the specified directory.
+     *
+     * @param directory The directory holding the manifests and the blobs.
+     */
+    public ContextLibrary(File directory) {
+        this.manifestDirectory = new File(directory, "manifests");
+        this.blobDirectory = new File(directory, "blobs");
+    }
+
+    /**
+     * Returns the application-wide library, in the directory of the ODIN_RUNES_CONTEXT_LIBRARY_DIR environment
+     * variable.
+     *
+     * @return The default library.
+     */
+    public static synchronized ContextLibrary getDefault() {
+        if (defaultLibrary == null) {
+            String directory = System.getenv("ODIN_RUNES_CONTEXT_LIBRARY_DIR");
+            if (directory == null || directory.trim().isEmpty()) {
+                directory = System.getProperty("user.home") + File.separator + ".odinrunes" + File.separator + "contexts";
+            }
+            defaultLibrary = new ContextLibrary(new File(directory));
+        }
+        return defaultLibrary;
+    }
+
+    /**
+     * Saves the context under the name, replacing a context saved under the same name. Only the captured texts that
+     * are not in the library yet are written.
+     *
+     * @param name The name of the context.
+     * @param context The context to be saved.
+     * @throws IOException If the library cannot be written.
+     */
+    public synchronized void save(String name, Context context) throws IOException {
+        if (name == null || name.trim().isEmpty()) {
+            throw new IOException("The name of a saved context cannot be empty");
+        }
+        createDirectory(manifestDirectory);
+        createDirectory(blobDirectory);
+
+        JSONArray entries = new JSONArray();
+        for (Context.CapturedData capturedData : new ArrayList<>(context.getCapturedDataList())) {
+            JSONObject entry = new JSONObject().put("captureMethod", capturedData.getCaptureMethod());
+            ContextFile.Entry storedText = capturedData.getStoredText();
+            if (storedText != null && storedText.getBlob() != null && blobFile(storedText.getBlob()).isFile()) {
+                // Loaded from the library and never used, so its blob is already there
+                entry.put("blob", storedText.getBlob())
+                        .put("compression", storedText.getCompression())
+                        .put("storedLength", storedText.getStoredLength())
+                        .put("textLength", storedText.getTextLength())
+                        .put("crc", storedText.getCrc())
+                        .put("preview", storedText.getPreview());
+            } else {
+                String text = capturedData.getRawCapturedText();
+                ContextFile.Row row = ContextFile.Row.of(capturedData.getCaptureMethod(), text);
+                if (!row.isNullText()) {
+                    String blob = sha256(text.getBytes(StandardCharsets.UTF_8));
+                    writeBlob(blob, row.stored);
+                    entry.put("blob", blob)
+                            .put("compression", row.compression)
+                            .put("storedLength", row.stored.length)
+                            .put("textLength", row.textLength)
+                            .put("crc", row.crc)
+                            .put("preview", row.preview);
+                }
+            }
+            entries.put(entry);
+        }
+        JSONObject manifest = new JSONObject()
+                .put("name", name)
+                .put("saved", System.currentTimeMillis())
+                .put("entries", entries);
+        if (context.getUserProfile() != null) {
+            manifest.put("userProfile", context.getUserProfile());
+        }
+        File file = manifestFile(name);
+        writeAtomically(file, manifest.toString().getBytes(StandardCharsets.UTF_8));
+        summaries.remove(file);
+        logger.info("Saved the context " + name + " with " + entries.length() + " captures into the library");
+    }
+
+    /**
+     * Loads the context saved under the name. The captured texts are read from their blobs when they are first used.
+     *
+     * @param name The name of the context.
+     * @return The context.
+     * @throws IOException If there is no such context, or its manifest cannot be read.
+     */
+    public Context load(String name) throws IOException {
+        JSONObject manifest = readManifest(manifestFile(name));
+        Context context = new Context();
+        context.setUserProfile(manifest.optString("userProfile", null));
+        try {
+            JSONArray entries = manifest.getJSONArray("entries");
+            for (int i = 0; i < entries.length(); i++) {
+                JSONObject entry = entries.getJSONObject(i);
+                String captureMethod = entry.getString("captureMethod");
+                if (!entry.has("blob")) {
+                    context.addCapturedData(null, captureMethod);
+                    continue;
+                }
+                String blob = entry.getString("blob");
+                if (!blob.matches("[0-9a-f]{64}")) {
+                    throw new IOException("Invalid blob " + blob + " in the manifest of the context " + name);
+                }
+                ContextFile.Entry storedText = ContextFile.Entry.ofBlob(blobFile(blob), blob,
+                        entry.getInt("storedLength"), entry.getInt("compression"), entry.getInt("textLength"),
+                        entry.getLong("crc"), entry.optString("preview", ""));
+                synchronized (this) {
+                    loadedEntries.put(storedText, Boolean.TRUE);
+                }
+                context.addCapturedData(new Context.CapturedData(storedText, captureMethod));
+            }
+        } catch (JSONException e) {
+            throw new IOException("Corrupt manifest of the context " + name, e);
+        }
+        return context;
+    }
+
+    /**
+     * Deletes the context saved under the name. Its blobs stay until {@code collectGarbage} is called.
+     *
+     * @param name The name of the context.
+     * @return true if the context was deleted.
+     */
+    public synchronized boolean delete(String name) {
+        File file = manifestFile(name);
+        summaries.remove(file);
+        return file.delete();
+    }
+
+    /**
+     * Returns the summaries of the saved contexts, newest first.
+     *
+     * @return The summaries.
+     */
+    public synchronized List<Summary> list() {
+        File[] files = manifestDirectory.listFiles();
+        List<Summary> list = new ArrayList<>();
+        if (files == null) {
+            return list;
+        }
+        Set<File> present = new HashSet<>();
+        for (File file : files) {
+            if (!file.getName().endsWith(MANIFEST_SUFFIX)) {
+                continue;
+            }
+            present.add(file);
+            Summary summary = summaries.get(file);
+            if (summary == null || summary.lastModified != file.lastModified()) {
+                try {
+                    summary = new Summary(readManifest(file), file.lastModified());
+                } catch (IOException | JSONException e) {
+                    logger.log(Level.SEVERE, "An error occurred: ", e);
+                    continue;
+                }
+                summaries.put(file, summary);
+            }
+            list.add(summary);
+        }
+        summaries.keySet().retainAll(present);
+        Collections.sort(list, new Comparator<Summary>() {
+            @Override
+            public int compare(Summary first, Summary second) {
+                return Long.compare(second.saved, first.saved);
+            }
+        });
+        return list;
+    }
+
+    /**
+     * Returns the summaries of the saved contexts matching every word of the query in their name, capture methods or
+     * previews, newest first.
+     *
+     * @param query The words to search for, in any case.
+     * @return The matching summaries.
+     */
+    public List<Summary> search(String query) {
+        String[] words = query == null ? new String[0] : query.toLowerCase(Locale.ROOT).trim().split("\\s+");
+        List<Summary> matches = new ArrayList<>();
+        for (Summary summary : list()) {
+            boolean matching = true;
+            for (String word : words) {
+                if (!word.isEmpty() && !summary.searchText.contains(word)) {
+                    matching = false;
+                    break;
+                }
+            }
+            if (matching) {
+                matches.add(summary);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Deletes the blobs that no saved context refers to, keeping the blobs that loaded contexts still read their
+     * captured texts from.
+     *
+     * @return The number of deleted blobs.
+     */
+    public synchronized int collectGarbage() {
+        Set<String> referenced = new HashSet<>();
+        for (Summary summary : list()) {
+            referenced.addAll(summary.blobs);
+        }
+        for (ContextFile.Entry storedText : loadedEntries.keySet()) {
+            referenced.add(storedText.getBlob());
+        }
+        int deleted = 0;
+        for (File blob : blobFiles()) {
+            if (!referenced.contains(blob.getName()) && blob.delete()) {
+                deleted++;
+            }
+        }
+        logger.info("Deleted " + deleted + " unreferenced blobs from the context library");
+        return deleted;
+    }
+
+    /**
+     * Returns the size of the library and how much the shared captures save.
+     *
+     * @return The statistics.
+     */
+    public synchronized Statistics getStatistics() {
+        List<Summary> list = list();
+        long referencedBytes = 0;
+        for (Summary summary : list) {
+            referencedBytes += summary.storedLength;
+        }
+        List<File> blobs = blobFiles();
+        long storedBytes = 0;
+        for (File blob : blobs) {
+            storedBytes += blob.length();
+        }
+        return new Statistics(list.size(), blobs.size(), storedBytes, referencedBytes);
+    }
+
+    private List<File> blobFiles() {
+        List<File> blobs = new ArrayList<>();
+        File[] prefixes = blobDirectory.listFiles();
+        if (prefixes == null) {
+            return blobs;
+        }
+        for (File prefix : prefixes) {
+            File[] files = prefix.listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                if (!file.getName().endsWith(".tmp")) {
+                    blobs.add(file);
+                }
+            }
+        }
+        return blobs;
+    }
+
+    private File blobFile(String blob) {
+        return new File(new File(blobDirectory, blob.substring(0, 2)), blob);
+    }
+
+    private File manifestFile(String name) {
+        // Readable, and unique per name
+        String readable = name.replaceAll("[^A-Za-z0-9._-]", "_");
+        if (readable.length() > 40) {
+            readable = readable.substring(0, 40);
+        }
+        return new File(manifestDirectory, readable + "-" + sha256(name.getBytes(StandardCharsets.UTF_8)).substring(0, 12) + MANIFEST_SUFFIX);
+    }
+
+    private void writeBlob(String blob, byte[] stored) throws IOException {
+        File file = blobFile(blob);
+        if (file.isFile() && file.length() == stored.length) {
+            return; // Already stored by another context
+        }
+        createDirectory(file.getParentFile());
+        writeAtomically(file, stored);
+    }
+
+    private static JSONObject readManifest(File file) throws IOException {
+        if (!file.isFile()) {
+            throw new IOException("No such saved context: " + file);
+        }
+        try {
+            return new JSONObject(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+        } catch (JSONException e) {
+            throw new IOException("Corrupt manifest " + file, e);
+        }
+    }
+
+    private static void writeAtomically(File file, byte[] bytes) throws IOException {
+        // Write to a temporary file first, so that a crash never leaves a partial file behind
+        File temporaryFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        Files.write(temporaryFile.toPath(), bytes);
+        Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void createDirectory(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create the directory " + directory);
+        }
+    }
+
+    private static String sha256(byte[] bytes) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The summary of a saved context, as shown in its listing.
+     */
+    public static final class Summary {
+        private final String name;
+        private final long saved;
+        private final int captureCount;
+        private final long textLength;
+        private final long storedLength;
+        private final long lastModified;
+        private final Set<String> blobs = new HashSet<>();
+        private final String searchText;
+
+        private Summary(JSONObject manifest, long lastModified) {
+            this.name = manifest.getString("name");
+            this.saved = manifest.getLong("saved");
+            this.lastModified = lastModified;
+            JSONArray entries = manifest.getJSONArray("entries");
+            this.captureCount = entries.length();
+            long length = 0;
+            long stored = 0;
+            StringBuilder search = new StringBuilder(name);
+            for (int i = 0; i < entries.length(); i++) {
+                JSONObject entry = entries.getJSONObject(i);
+                search.append('\n').append(entry.getString("captureMethod"));
+                if (entry.has("blob")) {
+                    length += entry.getLong("textLength");
+                    stored += entry.getLong("storedLength");
+                    blobs.add(entry.getString("blob"));
+                    search.append('\n').append(entry.optString("preview", ""));
+                }
+            }
+            this.textLength = length;
+            this.storedLength = stored;
+            this.searchText = search.toString().toLowerCase(Locale.ROOT);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSaved() {
+            return saved;
+        }
+
+        public int getCaptureCount() {
+            return captureCount;
+        }
+
+        public long getTextLength() {
+            return textLength;
+        }
+
+        @Override
+        public String toString() {
+            return name + " (" + captureCount + " captures, " + textLength + " characters)";
+        }
+    }
+
+    /**
+     * The size of the library: the stored blobs, against what the saved contexts would take without sharing them.
+     */
+    public static final class Statistics {
+        private final int contextCount;
+        private final int blobCount;
+        private final long storedBytes;
+        private final long referencedBytes;
+
+        private Statistics(int contextCount, int blobCount, long storedBytes, long referencedBytes) {
+            this.contextCount = contextCount;
+            this.blobCount = blobCount;
+            this.storedBytes = storedBytes;
+            this.referencedBytes = referencedBytes;
+        }
+
+        public int getContextCount() {
+            return contextCount;
+        }
+
+        public int getBlobCount() {
+            return blobCount;
+        }
+
+        public long getStoredBytes() {
+            return storedBytes;
+        }
+
+        /**
+         * Returns how many bytes the blobs of all the saved contexts would take if each context stored its own copy.
+         *
+         * @return The referenced bytes.
+         */
+        public long getReferencedBytes() {
+            return referencedBytes;
+        }
+
+        @Override
+        public String toString() {
+            long savedBytes = Math.max(0, referencedBytes - storedBytes);
+            return "Context library: " + contextCount + " contexts, " + blobCount + " blobs, " + storedBytes / 1024
+                    + " KB stored, " + savedBytes / 1024 + " KB saved by sharing captures";
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package org.odinware.odinrunes;
+
+import org.json.JSONObject;
+import org.json.JSONString;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * The ContextRenderer class turns the captured data of a context into rendered segments that all GPT providers share.
+ *
+ * <p>A segment holds the captured content together with the sentence introducing it, for example "The text content
+ * from a portion of the user's clipboard is as follows: ". Segments are memoized by a fingerprint of their content:
+ * the captured text for clipboard and OCR captures, and the path, size and modification time for live files. A
+ * capture that did not change since the previous turn is therefore neither read, nor rendered, nor serialized again.
+ * Providers only map segments into their wire format, and the JSON nodes they build from a segment are memoized with
+ * it, already serialized.
+ *
+ * Basic Usage:
+ * 1. Use {@code render} to get the segments of a context, in the order they were captured.
+ * 2. Use {@code getText} to get the rendered text of a segment, addressing the model or speaking for the user.
+ * 3. Use {@code toJson} to build a JSON node of a segment once, and add it to the request as a {@code JSONString}.
+ */
+public class ContextRenderer {
+    private static final Logger logger = Logger.getLogger(ContextRenderer.class.getName());
+
+    private static final int MAX_SEGMENTS = 256;
+
+    public static final String CLIPBOARD = "Clipboard";
+    public static final String REGIONSHOT = "Regionshot (OCR)";
+    public static final String SCROLLSHOT = "Scrollshot (OCR)";
+    public static final String TIMESHOT = "Timeshot (OCR)";
+    public static final String FILE = "File (Live)";
+    public static final String IMAGE_FILE = "Image File (Live)";
+
+    private static final Map<Fingerprint, Segment> segments = Collections.synchronizedMap(
+            new LinkedHashMap<Fingerprint, Segment>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Fingerprint, Segment> eldest) {
+                    return size() > MAX_SEGMENTS;
+                }
+            });
+    private static final AtomicLong renderCount = new AtomicLong();
+
+    /**
+     * The voice a segment is rendered in: addressing the model about the user, or speaking for the user.
+     */
+    public enum Voice {
+        ABOUT_USER, AS_USER
+    }
+
+    /**
+     * Returns the rendered segments of the context, rendering only the captures that changed.
+     *
+     * @param context The Context object containing the captured data.
+     * @return The segments, in the order of the captured data.
+     */
+    public static List<Segment> render(Context context) {
+        List<Context.CapturedData> capturedDataList = context.getCapturedDataList();
+        List<Segment> rendered = new ArrayList<>(capturedDataList.size());
+        for (Context.CapturedData capturedData : capturedDataList) {
+            Fingerprint fingerprint = Fingerprint.of(capturedData);
+            Segment segment = segments.get(fingerprint);
+            if (segment == null) {
+                if (IMAGE_FILE.equals(capturedData.getCaptureMethod())) {
+                    // Images are encoded when the request is sent, see JsonRequestBody
+                    segment = new Segment(capturedData.getCaptureMethod(), null, new File(capturedData.getRawCapturedText()));
+                } else {
+                    segment = new Segment(capturedData.getCaptureMethod(), capturedData.getCapturedText(), null);
+                }
+                segments.put(fingerprint, segment);
+                renderCount.incrementAndGet();
+            }
+            rendered.add(segment);
+        }
+        return rendered;
+    }
+
+    /**
+     * Returns how many segments have been rendered since startup, which does not grow for unchanged captures.
+     *
+     * @return The number of rendered segments.
+     */
+    public static long getRenderCount() {
+        return renderCount.get();
+    }
+
+    /**
+     * Identifies the content of a capture without reading live files.
+     */
+    private static final class Fingerprint {
+        private final String captureMethod;
+        private final String rawCapturedText;
+        private final long length;
+        private final long lastModified;
+
+        private Fingerprint(String captureMethod, String rawCapturedText, long length, long lastModified) {
+            this.captureMethod = captureMethod;
+            this.rawCapturedText = rawCapturedText;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        static Fingerprint of(Context.CapturedData capturedData) {
+            String captureMethod = capturedData.getCaptureMethod();
+            String rawCapturedText = capturedData.getRawCapturedText() == null ? "" : capturedData.getRawCapturedText();
+            if (FILE.equals(captureMethod) || IMAGE_FILE.equals(captureMethod)) {
+                // The raw text of a live capture is the path of the file
+                File file = new File(rawCapturedText);
+                return new Fingerprint(captureMethod, rawCapturedText, file.length(), file.lastModified());
+            }
+            return new Fingerprint(captureMethod, rawCapturedText, 0, 0);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Fingerprint)) {
+                return false;
+            }
+            Fingerprint fingerprint = (Fingerprint) other;
+            return length == fingerprint.length && lastModified == fingerprint.lastModified
+                    && captureMethod.equals(fingerprint.captureMethod)
+                    && rawCapturedText.equals(fingerprint.rawCapturedText);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = captureMethod.hashCode();
+            hash = 31 * hash + rawCapturedText.hashCode();
+            hash = 31 * hash + Long.hashCode(length);
+            return 31 * hash + Long.hashCode(lastModified);
+        }
+    }
+
+    /**
+     * The provider-neutral rendering of a single capture.
+     */
+    public static final class Segment {
+        private final String captureMethod;
+        private final String content;
+        // The live image file, or null for text
+        private final File file;
+        private String textAboutUser;
+        private String textAsUser;
+        private final Map<String, JSONString> jsonNodes = new LinkedHashMap<>();
+
+        private Segment(String captureMethod, String content, File file) {
+            this.captureMethod = captureMethod;
+            this.content = content;
+            this.file = file;
+        }
+
+        private static String introduction(String captureMethod, String owner) {
+            switch (captureMethod) {
+                case CLIPBOARD:
+                    return "The text content from a portion of " + owner + " clipboard is as follows: ";
+                case REGIONSHOT:
+                    return "The text content captured by OCR from a portion of " + owner + " screen is as follows: ";
+                case SCROLLSHOT:
+                    return "The text content captured by OCR from a portion of " + owner + " screen, stitched from the frames of a scrolled page, is included below. \n";
+                case TIMESHOT:
+                    return "The text content captured by OCR from a portion of " + owner + " screen over time is included below, as timestamped snapshots of its changes. \n";
+                case FILE:
+                    return "The content of a file is included below: \n";
+                default:
+                    return "Some additional information labeled as " + captureMethod + " is included below: \n";
+            }
+        }
+
+        public String getCaptureMethod() {
+            return captureMethod;
+        }
+
+        /**
+         * Returns the captured content without its introduction. For image files, this is the Base64 encoded image,
+         * which is read on every call, so request builders embed the file with {@code JsonRequestBody} instead.
+         *
+         * @return The captured content.
+         */
+        public String getContent() {
+            if (file != null) {
+                String encodedImage = LiveFileCache.getDefault().readBase64(file.getPath());
+                return encodedImage == null ? "" : encodedImage;
+            }
+            return content;
+        }
+
+        /**
+         * Returns the live image file of the segment.
+         *
+         * @return The file, or null if the segment is not an image.
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * Returns true for the text captures every provider understands: clipboard, OCR and live text files.
+         *
+         * @return true for a known text capture.
+         */
+        public boolean isKnownText() {
+            return CLIPBOARD.equals(captureMethod) || REGIONSHOT.equals(captureMethod)
+                    || SCROLLSHOT.equals(captureMethod) || TIMESHOT.equals(captureMethod) || FILE.equals(captureMethod);
+        }
+
+        public boolean isImage() {
+            return IMAGE_FILE.equals(captureMethod);
+        }
+
+        /**
+         * Returns the content together with the sentence introducing it.
+         *
+         * @param voice Whether the introduction talks about the user, or speaks for the user.
+         * @return The rendered text.
+         */
+        public synchronized String getText(Voice voice) {
+            if (voice == Voice.AS_USER) {
+                if (textAsUser == null) {
+                    textAsUser = introduction(captureMethod, "my") + getContent();
+                }
+                return textAsUser;
+            }
+            if (textAboutUser == null) {
+                textAboutUser = introduction(captureMethod, "the user's") + getContent();
+            }
+            return textAboutUser;
+        }
+
+        /**
+         * Returns the JSON node of the segment in the named wire format, building and serializing it on first use.
+         * The returned value is written verbatim when added to a {@code JSONObject} or {@code JSONArray}.
+         *
+         * @param format The name of the wire format, unique per shape of node.
+         * @param builder Builds the node from the segment.
+         * @return The serialized node.
+         */
+        public synchronized JSONString toJson(String format, Function<Segment, JSONObject> builder) {
+            JSONString node = jsonNodes.get(format);
+            if (node == null) {
+                final String json = builder.apply(this).toString();
+                node = new JSONString() {
+                    @Override
+                    public String toJSONString() {
+                        return json;
+                    }
+
+                    @Override
+                    public String toString() {
+                        return json;
+                    }
+                };
+                jsonNodes.put(format, node);
+                logger.fine("Serialized a " + captureMethod + " segment for " + format);
+            }
+            return node;
+        }
+    }
+}
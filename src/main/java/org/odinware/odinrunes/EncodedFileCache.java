@@ -0,0 +1,184 @@
+package org.odinware.odinrunes;
+
+import okio.BufferedSink;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * The EncodedFileCache class encodes in Base64 the files that requests embed, such as the images of the context, and
+ * keeps the encoded files in a cache.
+ *
+ * <p>A {@code JsonRequestBody} writes the encoded content of a file straight into the HTTP sink when the request is
+ * sent, see {@code writeEncoded}, so the encoded file never exists as a String. Where the request has to be
+ * identified without encoding its files, for example in the key of the {@code ResponseCache}, the file is stood for by
+ * its token, see {@code tokenFor}. The token is derived from the path, size and modification time of the file, so
+ * that it also identifies the content of the file.
+ *
+ * <p>The encoded files are cached by their token, so that an unchanged image is only read and encoded once across
+ * turns. The cache is bounded in size; a file too large for the cache is encoded from disk in a stream every time.
+ *
+ * Basic Usage:
+ * 1. Use {@code writeEncoded} to write the Base64 content of a file into the sink of a request body.
+ * 2. Use {@code cachedEncoding} to get the encoded content of a file if it is cached, and {@code tokenFor} to get the
+ * token standing for its content.
+ * 3. Optionally set ODIN_RUNES_EMBEDDED_FILE_CACHE_MB (32 by default) to size the cache of encoded files.
+ */
+public class EncodedFileCache {
+    private static final Logger logger = Logger.getLogger(EncodedFileCache.class.getName());
+
+    private static final String TOKEN_PREFIX = "odin-runes-embedded-file:";
+    private static final long DEFAULT_CACHE_MEGABYTES = 32;
+    private static final long MAX_CACHED_BYTES = cacheBytes();
+
+    // Encoded files by token, in least recently used order
+    private static final LinkedHashMap<String, byte[]> encodedFiles = new LinkedHashMap<>(16, 0.75f, true);
+    private static long cachedBytes = 0;
+    private static final AtomicLong encodeCount = new AtomicLong();
+    private static final AtomicLong hitCount = new AtomicLong();
+
+    private EncodedFileCache() {
+    }
+
+    private static long cacheBytes() {
+        String value = System.getenv("ODIN_RUNES_EMBEDDED_FILE_CACHE_MB");
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim()) * 1024 * 1024;
+            } catch (NumberFormatException e) {
+                logger.warning("Ignoring invalid value of ODIN_RUNES_EMBEDDED_FILE_CACHE_MB: " + value);
+            }
+        }
+        return DEFAULT_CACHE_MEGABYTES * 1024 * 1024;
+    }
+
+    /**
+     * Returns the token standing for the Base64 content of the file in the JSON of a request.
+     *
+     * @param file The file.
+     * @return The token, which changes with the path, the size and the modification time of the file.
+     */
+    public static String tokenFor(File file) {
+        File absoluteFile = file.getAbsoluteFile();
+        String identity = absoluteFile.getPath() + "\n" + absoluteFile.length() + "\n" + absoluteFile.lastModified();
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(identity.getBytes(StandardCharsets.UTF_8));
+            StringBuilder token = new StringBuilder(TOKEN_PREFIX);
+            for (int i = 0; i < 16; i++) {
+                token.append(Character.forDigit((digest[i] >> 4) & 0xF, 16)).append(Character.forDigit(digest[i] & 0xF, 16));
+            }
+            return token.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the encoded files and the cache hits since startup.
+     *
+     * @return A summary of the counters.
+     */
+    public static String getStatistics() {
+        synchronized (encodedFiles) {
+            return "EncodedFileCache{encodedFiles=" + encodeCount.get() + ", hits=" + hitCount.get()
+                    + ", cachedBytes=" + cachedBytes + "}";
+        }
+    }
+
+    /**
+     * Writes the Base64 content of the file into the sink, encoding it in a stream.
+     *
+     * @param file The file.
+     * @param sink The sink, which is left open.
+     * @throws IOException If the file cannot be read.
+     */
+    static void writeBase64(File file, BufferedSink sink) throws IOException {
+        OutputStream sinkStream = new FilterOutputStream(sink.outputStream()) {
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                out.write(bytes, offset, length);
+            }
+
+            @Override
+            public void close() throws IOException {
+                // The encoder closes its stream to write the padding, but the sink stays open
+                flush();
+            }
+        };
+        try (OutputStream encoder = Base64.getEncoder().wrap(sinkStream)) {
+            Files.copy(file.toPath(), encoder);
+        }
+    }
+
+    /**
+     * Writes the Base64 content of the file into the sink, from the cache of encoded files if it is there.
+     *
+     * @param file The file.
+     * @param sink The sink, which is left open.
+     * @throws IOException If the file cannot be read.
+     */
+    public static void writeEncoded(File file, BufferedSink sink) throws IOException {
+        String token = tokenFor(file);
+        byte[] encoded = cached(token);
+        if (encoded != null) {
+            hitCount.incrementAndGet();
+            sink.write(encoded);
+        } else {
+            writeEncoded(token, file, sink);
+        }
+    }
+
+    /**
+     * Encodes the file into the sink, caching the encoded content unless the file is too large.
+     */
+    private static void writeEncoded(String token, File file, BufferedSink sink) throws IOException {
+        encodeCount.incrementAndGet();
+        // A file taking more than a quarter of the cache once encoded is never cached
+        if (file.length() / 3 * 4 > MAX_CACHED_BYTES / 4) {
+            writeBase64(file, sink);
+            return;
+        }
+        byte[] encoded = Base64.getEncoder().encode(Files.readAllBytes(file.toPath()));
+        cache(token, encoded);
+        sink.write(encoded);
+    }
+
+    /**
+     * Returns the cached Base64 content of the file.
+     *
+     * @param file The file.
+     * @return The encoded content, or null if it is not cached.
+     */
+    static byte[] cachedEncoding(File file) {
+        return cached(tokenFor(file));
+    }
+
+    private static byte[] cached(String token) {
+        synchronized (encodedFiles) {
+            return encodedFiles.get(token);
+        }
+    }
+
+    private static void cache(String token, byte[] encoded) {
+        synchronized (encodedFiles) {
+            byte[] previous = encodedFiles.put(token, encoded);
+            cachedBytes += encoded.length - (previous == null ? 0 : previous.length);
+            Iterator<byte[]> iterator = encodedFiles.values().iterator();
+            while (cachedBytes > MAX_CACHED_BYTES && iterator.hasNext()) {
+                cachedBytes -= iterator.next().length;
+                iterator.remove();
+            }
+        }
+    }
+}
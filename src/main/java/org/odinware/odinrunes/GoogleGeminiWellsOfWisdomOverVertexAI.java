@@ -1,12 +1,17 @@
 package org.odinware.odinrunes;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
 import okhttp3.*;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
+import org.json.JSONString;
 
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -26,10 +31,41 @@ import java.io.IOException;
  */
 public class GoogleGeminiWellsOfWisdomOverVertexAI implements WellsOfWisdom {
     private static final Logger logger = Logger.getLogger(GoogleGeminiWellsOfWisdomOverVertexAI.class.getName());
-    private okhttp3.OkHttpClient OkHttpClient = new OkHttpClient();
 
     /**
-     * Constructs an HTTP request to the Google Gemini API via GCP's VertexAI using the provided context and messages.
+     * Picks the generated text of a streamed element: {@code candidates[0].content.parts[0].text}.
+     */
+    private static final Function<JsonNode, String> GEMINI_TEXT_EXTRACTOR = new Function<JsonNode, String>() {
+        public String apply(JsonNode element) {
+            return VertexStreamDecoder.textOf(element.path("candidates").path(0).path("content").path("parts").path(0).path("text"));
+        }
+    };
+
+    /**
+     * Builds the user turn holding the rendered text of a context segment. Gemini gets the context as the user's
+     * own words, each followed by the acknowledgement of the model.
+     */
+    private static final Function<ContextRenderer.Segment, JSONObject> GEMINI_USER_BUILDER = new Function<ContextRenderer.Segment, JSONObject>() {
+        public JSONObject apply(ContextRenderer.Segment segment) {
+            return new JSONObject()
+                    .put("role", "USER")
+                    .put("parts", new JSONObject().put("text", segment.getText(ContextRenderer.Voice.AS_USER)));
+        }
+    };
+
+    private static final JSONString GEMINI_ACKNOWLEDGEMENT = new JSONString() {
+        private final String json = new JSONObject()
+                .put("role", "MODEL")
+                .put("parts", new JSONObject().put("text", "Ok. got it."))
+                .toString();
+
+        public String toJSONString() {
+            return json;
+        }
+    };
+
+    /**
+     * Constructs an HTTP request from messages in the JSON format of {@code TextHelper.getMessages}.
      *
      * @param context The context containing captured data.
      * @param odinMessages The messages exchanged between the user and the assistant.
@@ -39,6 +75,20 @@ public class GoogleGeminiWellsOfWisdomOverVertexAI implements WellsOfWisdom {
      */
     @Override
     public Request buildRequest(Context context, JSONArray odinMessages, JSONObject gptSettingsJsonObject) throws Exception {
+        return buildRequest(context, TranscriptMessages.of(odinMessages), gptSettingsJsonObject);
+    }
+
+    /**
+     * Constructs an HTTP request to the Google Gemini API via GCP's VertexAI using the provided context and messages.
+     *
+     * @param context The context containing captured data.
+     * @param odinMessages The messages exchanged between the user and the assistant.
+     * @param gptSettingsJsonObject The settings for the GPT model.
+     * @return A built HTTP request object, or null if no new prompt is present.
+     * @throws Exception If there is an error while building the request.
+     */
+    @Override
+    public Request buildRequest(Context context, TranscriptMessages odinMessages, JSONObject gptSettingsJsonObject) throws Exception {
 
         String API_ENDPOINT = System.getenv("VERTEXAI_API_ENDPOINT");
         if (API_ENDPOINT == null || API_ENDPOINT.isEmpty()) {
@@ -57,141 +107,76 @@ public class GoogleGeminiWellsOfWisdomOverVertexAI implements WellsOfWisdom {
 
 
 
-        OkHttpClient client = new OkHttpClient();
-
-
-
-
         boolean hasNewPrompt = false;
         String model = MODEL_ID;
-        MediaType JSON = MediaType.parse("application/json; charset=utf-8");
-
-        JSONObject jsonBody = new JSONObject();
-
-        JSONArray contents = new JSONArray();
-
-        contents.put(new JSONObject()
-                .put("role", "USER")
-                .put("parts", new JSONObject().put("text", "You are a helpful assistant!")));
-        contents.put(new JSONObject()
-                .put("role", "MODEL")
-                .put("parts", new JSONObject().put("text", "Sure. How can I help?")));
-
-        // Add context
-        List<Context.CapturedData> capturedDataList = context.getCapturedDataList();
-        for (Context.CapturedData capturedData : capturedDataList) {
-            String captureMethod = capturedData.getCaptureMethod();
-            String capturedText = capturedData.getCapturedText();
-            if (captureMethod.equals("Clipboard")) {
-                contents.put(new JSONObject()
-                        .put("role", "USER")
-                        .put("parts", new JSONObject().put("text", "The text content from a portion of my clipboard is as follows: " + capturedText)));
-                contents.put(new JSONObject()
-                        .put("role", "MODEL")
-                        .put("parts", new JSONObject().put("text", "Ok. got it.")));
-            } else if (captureMethod.equals("Regionshot (OCR)")) {
-                contents.put(new JSONObject()
-                        .put("role", "USER")
-                        .put("parts", new JSONObject().put("text", "The text content captured by OCR from a portion of my screen is as follows: " + capturedText)));
-                contents.put(new JSONObject()
-                        .put("role", "MODEL")
-                        .put("parts", new JSONObject().put("text", "Ok. got it.")));
-            } else if (captureMethod.equals("Scrollshot (OCR)")) {
-                contents.put(new JSONObject()
-                        .put("role", "USER")
-                        .put("parts", new JSONObject().put("text", "The text content captured by OCR from a portion of my screen is included below. It might have some redundant lines. \n" + capturedText)));
-                contents.put(new JSONObject()
-                        .put("role", "MODEL")
-                        .put("parts", new JSONObject().put("text", "Ok. got it.")));
-            } else if (captureMethod.equals("File (Live)")) {
-                contents.put(new JSONObject()
-                        .put("role", "USER")
-                        .put("parts", new JSONObject().put("text", "The content of a file is included below: \n" + capturedText)));
-                contents.put(new JSONObject()
-                        .put("role", "MODEL")
-                        .put("parts", new JSONObject().put("text", "Ok. got it.")));
-            } else {
-                contents.put(new JSONObject()
-                        .put("role", "USER")
-                        .put("parts", new JSONObject().put("text", "Some additional information labeled as "+captureMethod+" is included below: \n" + capturedText)));
-                contents.put(new JSONObject()
-                        .put("role", "MODEL")
-                        .put("parts", new JSONObject().put("text", "Ok. got it.")));
-            }
-        }
 
-        // Add chat history
-
-        for (int i = 0; i < odinMessages.length(); i++) {
-            JSONObject message = odinMessages.getJSONObject(i);
-            String role = message.getString("role");
-            String content = message.getString("content");
+        // Check the chat history for a new prompt; the messages are written when the request is sent
+        for (TranscriptMessages.Message message : odinMessages) {
+            String role = message.getRole();
+            String content = message.getContent();
 
             if ("user".equals(role)) {
-                // Process user messages
                 logger.info("User: " + content);
-                contents.put(new JSONObject()
-                        .put("role", "USER")
-                        .put("parts", new JSONObject().put("text", content)));
             } else if ("assistant".equals(role)) {
-                // Process assistant messages
                 logger.info("Assistant: " + content);
-                contents.put(new JSONObject()
-                        .put("role", "MODEL")
-                        .put("parts", new JSONObject().put("text", content)));
             } else if ("prompt".equals(role)) {
-                // Process the prompt message
                 logger.info("Prompt: " + content);
-                contents.put(new JSONObject()
-                        .put("role", "USER")
-                        .put("parts", new JSONObject().put("text", content)));
                 hasNewPrompt = true;
             } else {
                 // Handle other roles if needed
                 logger.info("Unknown role: " + role);
             }
-
-            // If 'jsonInfo' field is present in the message, you can extract it like this:
-            if (message.has("jsonInfo")) {
-                String jsonInfo = message.getString("jsonInfo");
-                // Process jsonInfo if needed
-            }
         }
 
         if (!hasNewPrompt) {
             return null; // No new prompt to send
         }
 
+        // Context, rendered and serialized once per capture
+        final List<JSONString> contextContents = new ArrayList<>();
+        for (ContextRenderer.Segment segment : ContextRenderer.render(context)) {
+            contextContents.add(segment.toJson("gemini-user", GEMINI_USER_BUILDER));
+        }
 
+        final TranscriptMessages history = odinMessages;
+        final float temperature = (float) gptSettingsJsonObject.getDouble("temperature");
+
+        RequestBody body = JsonRequestBody.create(new JsonRequestBody.Writer() {
+            @Override
+            public void write(JsonRequestBody.Output output) throws IOException {
+                JsonGenerator generator = output.generator();
+                generator.writeStartObject();
+
+                generator.writeArrayFieldStart("contents");
+                writeContent(generator, "USER", "You are a helpful assistant!");
+                writeContent(generator, "MODEL", "Sure. How can I help?");
+                for (JSONString contextContent : contextContents) {
+                    output.writeJson(contextContent);
+                    output.writeJson(GEMINI_ACKNOWLEDGEMENT);
+                }
+                for (TranscriptMessages.Message message : history) {
+                    String role = message.getRole();
+                    if ("user".equals(role) || "prompt".equals(role)) {
+                        writeContent(generator, "USER", message.getContent());
+                    } else if ("assistant".equals(role)) {
+                        writeContent(generator, "MODEL", message.getContent());
+                    }
+                }
+                generator.writeEndArray();
 
+                // Add generation config
+                generator.writeObjectFieldStart("generation_config");
+                generator.writeNumberField("temperature", temperature);
+                generator.writeNumberField("topP", 0.8);
+                generator.writeNumberField("topK", 40);
+                generator.writeEndObject();
 
-        JSONObject parameters = new JSONObject();
-        double temperatureDouble = gptSettingsJsonObject.getDouble("temperature");
-        float temperatureFloat = (float) temperatureDouble;
-
-        jsonBody.put("contents", contents);
-
-
-        // Add generation config
-        JSONObject generationConfig = new JSONObject()
-                .put("temperature", temperatureFloat)
-                .put("topP", 0.8)
-                .put("topK", 40);
-
-        jsonBody.put("generation_config", generationConfig);
-
-
-
-
-
-
-
-
+                generator.writeEndObject();
+            }
+        });
 
         String accessToken = getAccessTokenFromEnv();
         if (accessToken != null) {
-            RequestBody body = RequestBody.create(jsonBody.toString(), JSON);
-
             Request request = new Request.Builder()
                     .url("https://" + API_ENDPOINT + "/v1/projects/" + PROJECT_ID + "/locations/us-central1/publishers/google/models/" + MODEL_ID + ":streamGenerateContent")
                     .post(body)
@@ -210,92 +195,48 @@ public class GoogleGeminiWellsOfWisdomOverVertexAI implements WellsOfWisdom {
     }
 
     /**
-     * Executes a HTTP request and returns the Response object.
+     * Writes a turn of the conversation with a role and a single text part.
+     *
+     * @param generator The generator of the request body.
+     * @param role The role of the turn, USER or MODEL.
+     * @param text The text of the turn.
+     * @throws IOException If writing fails.
+     */
+    private static void writeContent(JsonGenerator generator, String role, String text) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("role", role);
+        generator.writeObjectFieldStart("parts");
+        generator.writeStringField("text", text);
+        generator.writeEndObject();
+        generator.writeEndObject();
+    }
+
+    /**
+     * Executes a HTTP request over the shared HTTP transport and returns the Response object.
      *
      * @param request The HTTP request object.
      * @return A built HTTP response object, or null if no response.
      */
     @Override
     public Response executeRequest(Request request) {
-        try {
-            return OkHttpClient.newCall(request).execute();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        return HttpTransport.execute(HttpTransport.VERTEX_AI, request);
     }
 
     /**
-     * Reads from the Response object.
+     * Reads the streamed JSON array from the Response object and publishes the generated text to the listener,
+     * one element at a time as soon as it is complete.
      *
      * @param response The response object.
-     * @return A string generated by gemini-pro and read from the HTTP response object.
+     * @param listener The listener receiving the events.
+     * @throws IOException If reading from the response fails.
      */
     @Override
-    public String readFromResponseStream(Response response) {
-        JSONArray rootObject=null;
-        try {
-            ResponseBody responseBody = response.body();
-            if (responseBody != null) {
-                String chunk;
-                String bigChunk="";
-                while ((chunk = responseBody.source().readUtf8Line()) != null) {
-                    //System.out.println("BigChunk: " + bigChunk);
-                    try {
-                        try{
-                            rootObject = new JSONArray("["+bigChunk+chunk+"{}]");
-                        }catch (Exception e){
-                            // Let's do this better next time!
-                            rootObject = new JSONArray(bigChunk+chunk+"{}]");
-
-                        }
-                        logger.info("Root: " + rootObject.toString());
-
-
-                        if (rootObject.length() > 0) {
-                            JSONObject jsonObject = rootObject.getJSONObject(0);
-
-                            JSONObject candidates = jsonObject.getJSONArray("candidates").getJSONObject(0);
-                            JSONObject content = candidates.getJSONObject("content");
-                            JSONArray parts = content.getJSONArray("parts");
-                            JSONObject text = parts.getJSONObject(0);
-
-                            String contentStr = text.getString("text");
-                            System.out.println(contentStr);
-                            System.out.println(escapeSpecialCharacters(contentStr));
-
-                            if(jsonObject.has("usageMetadata")) {
-                                JSONObject usageMetadata = jsonObject.getJSONObject("usageMetadata");
-                                //int promptTokenCount = usageMetadata.getInt("promptTokenCount");
-                                //int candidatesTokenCount = usageMetadata.getInt("candidatesTokenCount");
-                                //int totalTokenCount = usageMetadata.getInt("totalTokenCount");
-                                // To Do
-                            }
-
-
-                            return WellsOfWisdom.finalStringFormatHelper("gemini-pro",contentStr);
-                        }
-
-
-
-                    }catch(Exception e){
-                        //e.printStackTrace();
-                        // Let's do this better next time!
-                    }finally {
-                        bigChunk += chunk;
-                    }
-
-
-                }
-
-
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-            return "";
+    public void streamEvents(Response response, WisdomEventListener listener) throws IOException {
+        ResponseBody responseBody = response.body();
+        if (responseBody == null) {
+            return;
         }
-        if(rootObject != null)
-            return "data: "+rootObject.toString();
-        else return null;
+        new VertexStreamDecoder("gemini-pro", GEMINI_TEXT_EXTRACTOR).stream(responseBody.source(), listener);
     }
 
     private static String getAccessTokenFromEnv() {
@@ -308,16 +249,6 @@ public class GoogleGeminiWellsOfWisdomOverVertexAI implements WellsOfWisdom {
 
         return null;
     }
-    private static String escapeSpecialCharacters(String input) {
-        // Escape special characters manually
-        input = input.replace("\\", "\\\\")
-                .replace("\"", "\\\"")
-                .replace("\n", "\\n")
-                .replace("\r", "\\r")
-                .replace("\t", "\\t");
-
-        return input;
-    }
 
 
 
@@ -1,12 +1,14 @@
 package org.odinware.odinrunes;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
 import okhttp3.*;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
 
 
-import java.util.List;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -27,7 +29,31 @@ import java.io.IOException;
  */
 public class GooglePalm2WellsOfWisdomOverVertexAI implements WellsOfWisdom {
     private static final Logger logger = Logger.getLogger(GooglePalm2WellsOfWisdomOverVertexAI.class.getName());
-    private OkHttpClient OkHttpClient = new OkHttpClient();
+    private static final int CHAT_BISON_CONTEXT_WINDOW = 8192;
+
+    /**
+     * Picks the generated text of a streamed element: the first {@code stringVal} of the first candidate of the first output.
+     */
+    private static final Function<JsonNode, String> PALM2_TEXT_EXTRACTOR = new Function<JsonNode, String>() {
+        public String apply(JsonNode element) {
+            return VertexStreamDecoder.textOf(element.path("outputs").path(0).path("structVal").path("candidates").path("listVal").path(0)
+                    .path("structVal").path("content").path("stringVal").path(0));
+        }
+    };
+
+    /**
+     * Constructs an HTTP request from messages in the JSON format of {@code TextHelper.getMessages}.
+     *
+     * @param context The context containing captured data.
+     * @param odinMessages The messages exchanged between the user and the assistant.
+     * @param gptSettingsJsonObject The settings for the GPT model.
+     * @return A built HTTP request object, or null if no new prompt is present.
+     * @throws Exception If there is an error while building the request.
+     */
+    @Override
+    public Request buildRequest(Context context, JSONArray odinMessages, JSONObject gptSettingsJsonObject) throws Exception {
+        return buildRequest(context, TranscriptMessages.of(odinMessages), gptSettingsJsonObject);
+    }
 
     /**
      * Constructs an HTTP request to the Google Palm2 API via GCP's VertexAI using the provided context and messages.
@@ -37,7 +63,7 @@ public class GooglePalm2WellsOfWisdomOverVertexAI implements WellsOfWisdom {
      * @return The constructed request object.
      */
     @Override
-    public Request buildRequest(Context context, JSONArray odinMessages, JSONObject gptSettingsJsonObject) throws Exception {
+    public Request buildRequest(Context context, TranscriptMessages odinMessages, JSONObject gptSettingsJsonObject) throws Exception {
 
         String API_ENDPOINT = System.getenv("VERTEXAI_API_ENDPOINT");
         if (API_ENDPOINT == null || API_ENDPOINT.isEmpty()) {
@@ -56,108 +82,103 @@ public class GooglePalm2WellsOfWisdomOverVertexAI implements WellsOfWisdom {
 
 
 
-        OkHttpClient client = new OkHttpClient();
-
-
-
-
         boolean hasNewPrompt = false;
         String model = MODEL_ID;
-        MediaType JSON = MediaType.parse("application/json; charset=utf-8");
 
-        JSONObject jsonBody = new JSONObject();
-
-        JSONArray messages = new JSONArray();
         JSONArray contextInfo = new JSONArray();
 
         contextInfo.put(new JSONObject().put("role", "system").put("content", "You are a helpful assistant."));
 
         // Add context
-        List<Context.CapturedData> capturedDataList = context.getCapturedDataList();
-        for (Context.CapturedData capturedData : capturedDataList) {
-            String captureMethod = capturedData.getCaptureMethod();
-            String capturedText = capturedData.getCapturedText();
-            if (captureMethod.equals("Clipboard")) {
-                contextInfo.put(new JSONObject().put("role", "system").put("content", "The text content from a portion of the user's clipboard is as follows: " + capturedText));
-            } else if (captureMethod.equals("Regionshot (OCR)")) {
-                contextInfo.put(new JSONObject().put("role", "system").put("content", "The text content captured by OCR from a portion of the user's screen is as follows: " + capturedText));
-            } else if (captureMethod.equals("Scrollshot (OCR)")) {
-                contextInfo.put(new JSONObject().put("role", "system").put("content", "The text content captured by OCR from a portion of the user's screen is included below. It might have some redundant lines. \n" + capturedText));
-            } else if (captureMethod.equals("File (Live)")) {
-                contextInfo.put(new JSONObject().put("role", "system").put("content", "The content of a file is included below: \n" + capturedText));
-            } else {
-                contextInfo.put(new JSONObject().put("role", "system").put("content", "Some additional information labeled as "+captureMethod+" is included below: \n" + capturedText));
-            }
+        for (ContextRenderer.Segment segment : ContextRenderer.render(context)) {
+            contextInfo.put(segment.toJson(OpenAIWellsOfWisdom.SYSTEM_MESSAGE, OpenAIWellsOfWisdom.SYSTEM_MESSAGE_BUILDER));
         }
 
-        // Add chat history
-
-        for (int i = 0; i < odinMessages.length(); i++) {
-            JSONObject message = odinMessages.getJSONObject(i);
-            String role = message.getString("role");
-            String content = message.getString("content");
+        // Check the chat history for a new prompt; the messages are written when the request is sent
+        BpeTokenizer tokenizer = BpeTokenizer.forModel(MODEL_ID);
+        int historyTokens = 0;
+        for (TranscriptMessages.Message message : odinMessages) {
+            String role = message.getRole();
+            String content = message.getContent();
+            historyTokens += tokenizer.count(content);
 
             if ("user".equals(role)) {
-                // Process user messages
                 logger.info("User: " + content);
-                messages.put( new JSONObject().put("struct_val", new JSONObject().put("author", new JSONObject().put("string_val", new JSONArray().put("user"))).put("content", new JSONObject().put("string_val", new JSONArray().put(content)))) );
             } else if ("assistant".equals(role)) {
-                // Process assistant messages
                 logger.info("Assistant: " + content);
-                messages.put( new JSONObject().put("struct_val", new JSONObject().put("author", new JSONObject().put("string_val", new JSONArray().put("assistant"))).put("content", new JSONObject().put("string_val", new JSONArray().put(content)))) );
             } else if ("prompt".equals(role)) {
-                // Process the prompt message
                 logger.info("Prompt: " + content);
-                messages.put( new JSONObject().put("struct_val", new JSONObject().put("author", new JSONObject().put("string_val", new JSONArray().put("user"))).put("content", new JSONObject().put("string_val", new JSONArray().put(content)))) );
                 hasNewPrompt = true;
             } else {
                 // Handle other roles if needed
                 logger.info("Unknown role: " + role);
             }
-
-            // If 'jsonInfo' field is present in the message, you can extract it like this:
-            if (message.has("jsonInfo")) {
-                String jsonInfo = message.getString("jsonInfo");
-                // Process jsonInfo if needed
-            }
         }
 
         if (!hasNewPrompt) {
             return null; // No new prompt to send
         }
 
-        if(GptOpsHelper.countWordsInJSONArray(messages) > 6000 && MODEL_ID.contains("chat-bison")){
+        // The context is sent as a single string value
+        final String contextString = contextInfo.toString();
+        if(MODEL_ID.contains("chat-bison") && historyTokens + tokenizer.count(contextString) > CHAT_BISON_CONTEXT_WINDOW - 1024){
             model = "chat-bison-32k";
         }
 
-
-
-        JSONObject parameters = new JSONObject();
-        double temperatureDouble = gptSettingsJsonObject.getDouble("temperature");
-        float temperatureFloat = (float) temperatureDouble;
-
-        JSONObject structVal = new JSONObject();
-        structVal.put("temperature", new JSONObject().put("float_val", temperatureFloat));
-        structVal.put("topP", new JSONObject().put("float_val", 0.8));
-        structVal.put("topK", new JSONObject().put("int_val", 40));
-        //structVal.put("maxOutputTokens", new JSONObject().put("int_val", 1024));
-
-        parameters.put("struct_val", structVal);
-
-        jsonBody.put("inputs", new JSONArray().put(new JSONObject().put("struct_val",new JSONObject().put("context",new JSONObject().put("string_val",new JSONArray().put(contextInfo.toString()))).put("messages", new JSONObject().put("list_val",messages)) )  )).put("parameters", parameters);
-
-
-
-
-
-
-
-
+        final TranscriptMessages history = odinMessages;
+        final float temperature = (float) gptSettingsJsonObject.getDouble("temperature");
+
+        RequestBody body = JsonRequestBody.create(new JsonRequestBody.Writer() {
+            @Override
+            public void write(JsonRequestBody.Output output) throws IOException {
+                JsonGenerator generator = output.generator();
+                generator.writeStartObject();
+
+                generator.writeArrayFieldStart("inputs");
+                generator.writeStartObject();
+                generator.writeObjectFieldStart("struct_val");
+                generator.writeObjectFieldStart("context");
+                generator.writeArrayFieldStart("string_val");
+                generator.writeString(contextString);
+                generator.writeEndArray();
+                generator.writeEndObject();
+                generator.writeObjectFieldStart("messages");
+                generator.writeArrayFieldStart("list_val");
+                for (TranscriptMessages.Message message : history) {
+                    String role = message.getRole();
+                    if ("user".equals(role) || "prompt".equals(role)) {
+                        writeMessage(generator, "user", message.getContent());
+                    } else if ("assistant".equals(role)) {
+                        writeMessage(generator, "assistant", message.getContent());
+                    }
+                }
+                generator.writeEndArray();
+                generator.writeEndObject();
+                generator.writeEndObject();
+                generator.writeEndObject();
+                generator.writeEndArray();
+
+                generator.writeObjectFieldStart("parameters");
+                generator.writeObjectFieldStart("struct_val");
+                generator.writeObjectFieldStart("temperature");
+                generator.writeNumberField("float_val", temperature);
+                generator.writeEndObject();
+                generator.writeObjectFieldStart("topP");
+                generator.writeNumberField("float_val", 0.8);
+                generator.writeEndObject();
+                generator.writeObjectFieldStart("topK");
+                generator.writeNumberField("int_val", 40);
+                generator.writeEndObject();
+                //maxOutputTokens: {"int_val": 1024}
+                generator.writeEndObject();
+                generator.writeEndObject();
+
+                generator.writeEndObject();
+            }
+        });
 
         String accessToken = getAccessTokenFromEnv();
         if (accessToken != null) {
-            RequestBody body = RequestBody.create(jsonBody.toString(), JSON);
-
             Request request = new Request.Builder()
                     .url("https://" + API_ENDPOINT + "/v1/projects/" + PROJECT_ID + "/locations/us-central1/publishers/google/models/" + MODEL_ID + ":serverStreamingPredict")
                     .post(body)
@@ -176,84 +197,56 @@ public class GooglePalm2WellsOfWisdomOverVertexAI implements WellsOfWisdom {
     }
 
     /**
-     * Executes a HTTP request and returns the Response object.
+     * Writes a message of the conversation as a struct value with an author and a content.
+     *
+     * @param generator The generator of the request body.
+     * @param author The author of the message, user or assistant.
+     * @param content The content of the message.
+     * @throws IOException If writing fails.
+     */
+    private static void writeMessage(JsonGenerator generator, String author, String content) throws IOException {
+        generator.writeStartObject();
+        generator.writeObjectFieldStart("struct_val");
+        generator.writeObjectFieldStart("author");
+        generator.writeArrayFieldStart("string_val");
+        generator.writeString(author);
+        generator.writeEndArray();
+        generator.writeEndObject();
+        generator.writeObjectFieldStart("content");
+        generator.writeArrayFieldStart("string_val");
+        generator.writeString(content);
+        generator.writeEndArray();
+        generator.writeEndObject();
+        generator.writeEndObject();
+        generator.writeEndObject();
+    }
+
+    /**
+     * Executes a HTTP request over the shared HTTP transport and returns the Response object.
      *
      * @param request The HTTP request object.
      * @return A built HTTP response object, or null if no response.
      */
     @Override
     public Response executeRequest(Request request) {
-        try {
-            return OkHttpClient.newCall(request).execute();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        return HttpTransport.execute(HttpTransport.VERTEX_AI, request);
     }
 
     /**
-     * Reads from the Response object.
+     * Reads the streamed JSON array from the Response object and publishes the generated text to the listener,
+     * one element at a time as soon as it is complete.
      *
      * @param response The response object.
-     * @return A string generated by Google Palm2 and read from the HTTP response object.
+     * @param listener The listener receiving the events.
+     * @throws IOException If reading from the response fails.
      */
     @Override
-    public String readFromResponseStream(Response response) {
-        JSONArray rootObject=null;
-        try {
-            ResponseBody responseBody = response.body();
-            if (responseBody != null) {
-                String chunk;
-                String bigChunk="";
-                while ((chunk = responseBody.source().readUtf8Line()) != null) {
-                    //System.out.println("BigChunk: " + bigChunk);
-                    try {
-                        try{
-                            rootObject = new JSONArray("["+bigChunk+chunk+"{}]");
-                        }catch (Exception e){
-                            // Let's do this better next time!
-                            rootObject = new JSONArray(bigChunk+chunk+"{}]");
-
-                        }
-                        logger.info("Roottt: " + rootObject.toString());
-
-
-                        if (rootObject.length() > 0) {
-                            JSONObject jsonObject = rootObject.getJSONObject(0);
-                            JSONObject outputs = jsonObject.getJSONArray("outputs").getJSONObject(0);
-                            JSONObject structVal = outputs.getJSONObject("structVal");
-                            JSONObject candidates = structVal.getJSONObject("candidates")
-                                    .getJSONArray("listVal").getJSONObject(0);
-                            JSONObject content = candidates.getJSONObject("structVal")
-                                    .getJSONObject("content");
-
-                            String contentStr = content.getJSONArray("stringVal").getString(0);
-                            System.out.println(contentStr);
-                            System.out.println(escapeSpecialCharacters(contentStr));
-
-                            return WellsOfWisdom.finalStringFormatHelper("chat-bison",contentStr);
-                        }
-
-
-
-                    }catch(Exception e){
-                        //e.printStackTrace();
-                        // Let's do this better next time!
-                    }finally {
-                        bigChunk += chunk;
-                    }
-
-
-                }
-
-
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-            return "";
+    public void streamEvents(Response response, WisdomEventListener listener) throws IOException {
+        ResponseBody responseBody = response.body();
+        if (responseBody == null) {
+            return;
         }
-        if(rootObject != null)
-            return "data: "+rootObject.toString();
-        else return null;
+        new VertexStreamDecoder("chat-bison", PALM2_TEXT_EXTRACTOR).stream(responseBody.source(), listener);
     }
 
     private static String getAccessTokenFromEnv() {
@@ -266,16 +259,6 @@ public class GooglePalm2WellsOfWisdomOverVertexAI implements WellsOfWisdom {
 
         return null;
     }
-    private static String escapeSpecialCharacters(String input) {
-        // Escape special characters manually
-        input = input.replace("\\", "\\\\")
-                .replace("\"", "\\\"")
-                .replace("\n", "\\n")
-                .replace("\r", "\\r")
-                .replace("\t", "\\t");
-
-        return input;
-    }
 
 
 
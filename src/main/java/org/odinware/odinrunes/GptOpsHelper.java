@@ -39,6 +39,45 @@ public class GptOpsHelper {
         return wellsOfWisdom.buildRequest(context, odinMessages, gptSettingsJsonObject);
     }
 
+    /**
+     * Builds and returns a custom Request object, taking the history of Odin's messages one at a time.
+     * When compaction is enabled, the older turns of a long history are replaced by their summary, see
+     * {@code HistoryCompactor}, and the request is tagged with the compaction. The oldest messages that still do not
+     * fit into the context window of the model are left out, see {@code ContextBudget}.
+     *
+     * @param wellsOfWisdom The RequestBuilder implementation to use for building the custom Request object.
+     * @param context The Context object containing the captured data and chat history.
+     * @param odinMessages The history of Odin's messages.
+     * @return A custom Request object based on the provided RequestBuilder implementation.
+     * @throws Exception If building the request fails, or the prompt and context do not fit into the context window.
+     */
+    public static Request buildCustomRequest(WellsOfWisdom wellsOfWisdom, Context context, TranscriptMessages odinMessages, JSONObject gptSettingsJsonObject) throws Exception {
+        return buildCustomRequest(wellsOfWisdom, context, odinMessages, gptSettingsJsonObject, null);
+    }
+
+    /**
+     * Builds and returns a custom Request object for a chat turn. The summary requests of the compaction belong to
+     * the turn, so that cancelling the turn also cancels them.
+     *
+     * @param wellsOfWisdom The RequestBuilder implementation to use for building the custom Request object.
+     * @param context The Context object containing the captured data and chat history.
+     * @param odinMessages The history of Odin's messages.
+     * @param chatTurn The turn the request is built for, or null.
+     * @return A custom Request object based on the provided RequestBuilder implementation.
+     * @throws Exception If building the request fails, or the turn was cancelled while the history was summarized.
+     */
+    static Request buildCustomRequest(WellsOfWisdom wellsOfWisdom, Context context, TranscriptMessages odinMessages,
+                                      JSONObject gptSettingsJsonObject, ChatTurn chatTurn) throws Exception {
+        HistoryCompactor.Compaction compaction = HistoryCompactor.getDefault().compact(wellsOfWisdom, odinMessages,
+                gptSettingsJsonObject, chatTurn);
+        Request request = wellsOfWisdom.buildRequest(context,
+                ContextBudget.fit(context, compaction.getMessages(), gptSettingsJsonObject), gptSettingsJsonObject);
+        if (compaction.isCompacted()) {
+            request = request.newBuilder().tag(HistoryCompactor.Compaction.class, compaction).build();
+        }
+        return request;
+    }
+
     /**
      * Streams the response from the GPT provider and processes the partial responses in real-time.
      * The response data is written to the specified TextHelper object to capture the conversation history.
@@ -48,176 +87,311 @@ public class GptOpsHelper {
      * @param context The Context object containing the captured data and chat history.
      */
     public static void streamResponse(TextHelper odinSays, Context context, JSONObject gptSettingsJsonObject) {
-        WellsOfWisdom customWellsOfWisdom = null;
-        // Accessing the gptProvider value from the object
-        String gptProvider = gptSettingsJsonObject.getString("gptProvider");
+        streamResponse(odinSays, context, gptSettingsJsonObject, null);
+    }
+
+    /**
+     * Streams the response from the GPT provider as part of a chat turn started by the {@code ChatEngine}.
+     * The request is tagged with the turn so that cancelling the turn cancels the HTTP call, and the progress
+     * of the answer is reported to the turn.
+     *
+     * @param odinSays The TextHelper object to write the response data to.
+     * @param context The Context object containing the captured data and chat history.
+     * @param gptSettingsJsonObject The settings for the GPT provider.
+     * @param chatTurn The turn this response belongs to, or null.
+     */
+    public static void streamResponse(TextHelper odinSays, Context context, JSONObject gptSettingsJsonObject, ChatTurn chatTurn) {
+        if (MultiProviderChat.isMultiProvider(gptSettingsJsonObject)) {
+            // Several providers answer the same prompt
+            MultiProviderChat.streamResponse(odinSays, context, gptSettingsJsonObject, chatTurn);
+            return;
+        }
+        if (ProviderRouter.hasBackups(gptSettingsJsonObject)) {
+            // Hedge slow answers and fail over to the backup providers
+            ProviderRouter.streamResponse(odinSays, context, gptSettingsJsonObject, chatTurn);
+            return;
+        }
+        WellsOfWisdom customWellsOfWisdom = wellsOfWisdomFor(gptSettingsJsonObject.getString("gptProvider"));
+
+        //RequestBuilder customRequestBuilder = new GoogleVertexAIRequestBuilder();
+
+        TranscriptMessages odinMessages = odinSays.openMessages();
+        //Request request = buildCustomRequest(openAIRequestBuilder, context, odinMessages);
+        Request request = null;
+        ProviderRouter.Attempt attempt = null;
+        odinSays.openTranscriptSession();
+        try {
+                attempt = ProviderRouter.begin(gptSettingsJsonObject, ProviderRouter.PRIMARY);
+                try {
+                    request = buildCustomRequest(customWellsOfWisdom, context, odinMessages, gptSettingsJsonObject, chatTurn);
+                } catch (Exception e) {
+                    if (chatTurn == null || !chatTurn.isCancelled()) {
+                        throw e;
+                    }
+                    // Cancelled while the history was summarized
+                }
+
+                if (chatTurn != null && chatTurn.isCancelled()) {
+                    logger.info("The chat turn was cancelled before its request was sent.");
+                    request = null;
+                }
+                if(request != null) {
+                    if (chatTurn != null) {
+                        request = request.newBuilder().tag(ChatTurn.class, chatTurn).build();
+                    }
+                    odinSays.appendStringToFile("\n");
+                    odinSays.appendOverInfo();
+
+                    String cacheKey = ResponseCache.keyFor(gptSettingsJsonObject, request);
+                    ResponseCache.Answer cachedAnswer = ResponseCache.getDefault().get(cacheKey);
+                    if (cachedAnswer != null) {
+                        // Replay the answer to the same question without asking the provider again
+                        attempt.abandon();
+                        logger.info("Answering from the response cache. " + ResponseCache.getDefault().getStatistics());
+                        TranscriptEventListener listener = new TranscriptEventListener(odinSays, chatTurn);
+                        listener.setCompaction(HistoryCompactor.describe(request));
+                        cachedAnswer.replay(listener);
+                        listener.finish();
+                    } else {
+                        try (Response response = customWellsOfWisdom.executeRequest(request)) {
+                            ResponseBody responseBody = response.body();
+                            if (responseBody != null) {
+                                // Process the response as a stream of typed events
+                                TranscriptEventListener listener = new TranscriptEventListener(odinSays, chatTurn);
+                                listener.setAttempt(attempt);
+                                listener.setCompaction(HistoryCompactor.describe(request));
+                                ResponseCache.Recorder recorder = new ResponseCache.Recorder(cacheKey, listener);
+                                customWellsOfWisdom.streamEvents(response, recorder);
+                                listener.finish();
+                                if (chatTurn != null && chatTurn.isCancelled()) {
+                                    attempt.abandon();
+                                } else if (listener.hasError()) {
+                                    attempt.fail();
+                                } else {
+                                    attempt.succeed();
+                                    recorder.store(ResponseCache.getDefault());
+                                }
+                            }
+                            logger.info(HttpTransport.getStatistics().toString());
 
+                        } catch (IOException | RuntimeException e) {
+                            if (e instanceof RuntimeException && (chatTurn == null || !chatTurn.isCancelled())) {
+                                throw (RuntimeException) e;
+                            }
+                            // HttpTransport wraps the IOException of a call cancelled before its response arrived
+                            odinSays.appendStringToFile("\n");
+                            odinSays.appendOverInfoWithError();
+                            odinSays.appendUserInfo();
+                            if (chatTurn != null && chatTurn.isCancelled()) {
+                                attempt.abandon();
+                                logger.info("The chat turn was cancelled: " + e);
+                            } else {
+                                attempt.fail();
+                                logger.log(Level.SEVERE, "An error occurred: ", e);
+                            }
+                        }
+                    }
+
+                } else {
+                    attempt.abandon();
+                }
+
+        } catch (Exception e) {
+            Date date = new Date();
+            SimpleDateFormat formatter = new SimpleDateFormat("dd/MM/yy");
+            String strDate = formatter.format(date);
+            odinSays.appendStringToFile("\n");
+            odinSays.appendOverInfo();
+            odinSays.appendOdinFirstInfo("ERROR", strDate);
+            odinSays.appendStringToFile("An error occurred: "+e+"\n");
+            odinSays.appendOverInfoWithError();
+            odinSays.appendUserInfo();
+            if (attempt != null) {
+                attempt.fail();
+            }
+            logger.log(Level.SEVERE, "An error occurred: ", e);
+        } finally {
+            // Flushes the buffered answer together with its closing markers
+            odinSays.closeTranscriptSession();
+        }
+    }
+
+    /**
+     * Returns the WellsOfWisdom implementation serving the specified GPT provider.
+     *
+     * @param gptProvider The name of the GPT provider, as shown in the settings.
+     * @return The WellsOfWisdom implementation for the provider.
+     */
+    static WellsOfWisdom wellsOfWisdomFor(String gptProvider) {
         // Switch case based on gptProvider value
         switch (gptProvider) {
             case "OpenAI (gpt-4o-mini)":
                 // Code to handle OpenAI (gpt-4o-mini) provider
-                customWellsOfWisdom = new OpenAIWellsOfWisdom();
                 logger.info("Using OpenAI (gpt-4o-mini)");
-                break;
+                return new OpenAIWellsOfWisdom();
             case "OpenAI (gpt-3.5-turbo)":
                 // Code to handle OpenAI (gpt-3.5-turbo) provider
-                customWellsOfWisdom = new OpenAIWellsOfWisdom();
                 logger.info("Using OpenAI (gpt-3.5-turbo)");
-                break;
+                return new OpenAIWellsOfWisdom();
             case "Google's VertexAI (chat-bison)":
                 // Code to handle OpenAI (gpt-3.5-turbo) provider
-                customWellsOfWisdom = new GooglePalm2WellsOfWisdomOverVertexAI();
                 logger.info("Using Google's VertexAI (chat-bison)");
-                break;
+                return new GooglePalm2WellsOfWisdomOverVertexAI();
 
              case "Google's VertexAI (gemini-pro)":
                  // Code to handle Google's VertexAI (gemini-pro)
-                 customWellsOfWisdom = new GoogleGeminiWellsOfWisdomOverVertexAI();
                  logger.info("Using Google's VertexAI (gemini-pro)");
-                 break;
-
+                 return new GoogleGeminiWellsOfWisdomOverVertexAI();
+ 
             case "Ollama":
                 // Code to handle Ollama
-                customWellsOfWisdom = new OllamaWellsOfWisdom();
                 logger.info("Using Ollama");
-                break;
+                return new OllamaWellsOfWisdom();
 
             default:
                 // Code to handle the default case (if gptProvider doesn't match any case)
-                customWellsOfWisdom = new OllamaWellsOfWisdom();
                 logger.info("Unknown provider! Defaulting to OpenAI (gpt-3.5-turbo) instead.");
-                break;
+                return new OllamaWellsOfWisdom();
         }
+    }
 
-        //RequestBuilder customRequestBuilder = new GoogleVertexAIRequestBuilder();
-
-        JSONArray odinMessages = odinSays.getMessages();
-        //Request request = buildCustomRequest(openAIRequestBuilder, context, odinMessages);
-        Request request = null;
-        try {
-                request = buildCustomRequest(customWellsOfWisdom, context, odinMessages, gptSettingsJsonObject);
-
-                String model = "";
-                boolean hasError = false;
-                boolean hasIntro = false;
-                if(request != null) {
-                    //OkHttpClient httpClient = new OkHttpClient();
-                    odinSays.appendStringToFile("\n");
-                    odinSays.appendOverInfo();
-                    String tempContent = "";
-
-                    try (Response response = customWellsOfWisdom.executeRequest(request)) {
-                        ResponseBody responseBody = response.body();
-                        if (responseBody != null) {
-
-                            // Process the response as a stream
-                            String responseChunk;
-                            boolean isDone = false;
+    /**
+     * Writes the events of a GPT provider's response stream to the conversation file as they arrive.
+     * The text is written after the Odin and Assistant headers that are written when the model is announced,
+     * and batched by the transcript session of the TextHelper. Call {@code finish} once the stream has ended
+     * to close the answer. When the answer is measured by the {@code ProviderRouter}, the routing decision and
+     * latencies are written into the Odin header, and so is the compaction boundary when older turns were summarized.
+     */
+    static class TranscriptEventListener implements WisdomEventListener {
+        private final TextHelper odinSays;
+        private final ChatTurn chatTurn;
+        private ProviderRouter.Attempt attempt;
+        private JSONObject compaction;
+        private String model = "as-specified";
+        private boolean hasIntro = false;
+        private boolean hasError = false;
+
+        TranscriptEventListener(TextHelper odinSays, ChatTurn chatTurn) {
+            this.odinSays = odinSays;
+            this.chatTurn = chatTurn;
+        }
 
-                            while ((responseChunk = customWellsOfWisdom.readFromResponseStream(response)) != null) {
-                                if (responseChunk.isEmpty()) {
-                                    continue;
-                                }
-                                // Process the partial response
-                                logger.info(responseChunk);
-                                try {
-
-                                        JSONObject jsonResponse = extractValidJson(responseChunk);
-
-
-                                        if (jsonResponse != null) {
-                                            if (jsonResponse.has("done")) {
-                                                isDone = true;
-                                                odinSays.appendStringToFile(tempContent);
-                                                tempContent = "";
-                                                break;
-                                            }
-                                            model = jsonResponse.getString("model");
-                                            if(!hasIntro){
-                                                Date date = new Date();
-                                                SimpleDateFormat formatter = new SimpleDateFormat("dd/MM/yy");
-                                                String strDate = formatter.format(date);
-                                                odinSays.appendOdinFirstInfo(model, strDate);
-                                                odinSays.appendAssistantInfo();
-                                                hasIntro = true;
-                                            }
-                                            JSONArray choices = jsonResponse.getJSONArray("choices");
-                                            JSONObject choice = choices.getJSONObject(0);
-                                            JSONObject delta = choice.getJSONObject("delta");
-                                            if (delta.has("content")) {
-                                                logger.info(delta.get("content").toString());
-                                                tempContent += delta.get("content").toString();
-                                                if (tempContent.length() > 100) {
-                                                    odinSays.appendStringToFile(tempContent);
-                                                    tempContent = "";
-                                                }
-                                            }
-                                        }
-
-                                    }catch (JSONException e){
-                                        String tempResponseChunk;
-                                        String problematicResponse = responseChunk;
-                                        hasError = true;
-
-                                        Date date = new Date();
-                                        SimpleDateFormat formatter = new SimpleDateFormat("dd/MM/yy");
-                                        String strDate = formatter.format(date);
-                                        odinSays.appendOdinFirstInfo("ERROR", strDate);
-
-                                            while ((tempResponseChunk = responseBody.source().readUtf8Line()) != null) {
-                                                logger.info(tempResponseChunk);
-                                                problematicResponse += tempResponseChunk;
-                                            }
-                                        odinSays.appendStringToFile("There was a problem processing the response from your specified GPT provider: \n"+problematicResponse);
+        @Override
+        public boolean onEvent(WisdomEvent event) {
+            logger.fine(event.toString());
+            if (chatTurn != null && chatTurn.isCancelled()) {
+                return false;
+            }
+            switch (event.getType()) {
+                case MODEL:
+                    // The header is written with the first token, once its latency is known
+                    model = event.getModel();
+                    return true;
+                case DELTA:
+                    if (event.getText().isEmpty()) {
+                        return true;
+                    }
+                    if (attempt != null) {
+                        attempt.onFirstToken();
+                    }
+                    writeIntro();
+                    odinSays.appendStringToFile(event.getText());
+                    if (chatTurn != null) {
+                        chatTurn.onTextReceived(event.getText().length());
+                    }
+                    return true;
+                case USAGE:
+                    logger.info("Token usage: " + event);
+                    return true;
+                case ERROR:
+                    hasError = true;
+                    odinSays.appendOdinFirstInfo("ERROR", currentDate());
+                    odinSays.appendStringToFile("There was a problem processing the response from your specified GPT provider: \n" + event.getText());
+                    return false;
+                case DONE:
+                default:
+                    return false;
+            }
+        }
 
+        private void writeIntro() {
+            if (!hasIntro) {
+                if (attempt != null || compaction != null) {
+                    odinSays.appendOdinFirstInfo(model, currentDate(), attempt != null ? attempt.describe() : null, compaction);
+                } else {
+                    odinSays.appendOdinFirstInfo(model, currentDate());
+                }
+                odinSays.appendAssistantInfo();
+                hasIntro = true;
+            }
+        }
 
-                                }
+        /**
+         * Sets the attempt whose routing decision and latencies go into the Odin header.
+         *
+         * @param attempt The attempt of the provider writing the answer.
+         */
+        void setAttempt(ProviderRouter.Attempt attempt) {
+            this.attempt = attempt;
+        }
 
-                                }
+        /**
+         * Sets the compaction boundary that goes into the Odin header.
+         *
+         * @param compaction The description of the compaction, or null if the history was sent as it is.
+         */
+        void setCompaction(JSONObject compaction) {
+            this.compaction = compaction;
+        }
 
-                            if(!tempContent.isEmpty()){
-                                odinSays.appendStringToFile(tempContent);
-                            }
-                            odinSays.appendStringToFile("\n");
-                                if(!hasError){
-                                    odinSays.appendOverInfo();
-                                }else{
-                                    odinSays.appendOverInfoWithError();
-                                }
-                                odinSays.appendUserInfo();
-                        }
+        boolean hasError() {
+            return hasError;
+        }
 
-                    } catch (IOException e) {
-                        odinSays.appendStringToFile("\n");
-                        odinSays.appendOverInfoWithError();
-                        odinSays.appendUserInfo();
-                        logger.log(Level.SEVERE, "An error occurred: ", e);
-                    } finally {
-                    }
+        /**
+         * Writes the markers closing the answer and opening the next user prompt.
+         */
+        void finish() {
+            closeAnswer();
+            odinSays.appendUserInfo();
+        }
 
-                }
+        /**
+         * Writes the marker closing the answer, without opening the next user prompt.
+         */
+        void closeAnswer() {
+            if (chatTurn != null && chatTurn.isCancelled()) {
+                // A cancelled answer is incomplete, so keep it out of the chat history
+                hasError = true;
+            }
+            if (!hasError) {
+                // An answer without any text still gets its header
+                writeIntro();
+            }
+            odinSays.appendStringToFile("\n");
+            if (!hasError) {
+                odinSays.appendOverInfo();
+            } else {
+                odinSays.appendOverInfoWithError();
+            }
+        }
 
-        } catch (Exception e) {
-            Date date = new Date();
+        private static String currentDate() {
             SimpleDateFormat formatter = new SimpleDateFormat("dd/MM/yy");
-            String strDate = formatter.format(date);
-            odinSays.appendStringToFile("\n");
-            odinSays.appendOverInfo();
-            odinSays.appendOdinFirstInfo("ERROR", strDate);
-            odinSays.appendStringToFile("An error occurred: "+e+"\n");
-            odinSays.appendOverInfoWithError();
-            odinSays.appendUserInfo();
-            logger.log(Level.SEVERE, "An error occurred: ", e);        }
+            return formatter.format(new Date());
+        }
     }
 
     /**
      * Extracts a valid JSON object from a response chunk string.
      * The input string is checked for the presence of valid JSON content and parsed to a JSONObject if valid.
+     * The response stream itself is decoded by {@code SseStreamDecoder}; this method is kept as the reference
+     * implementation it is benchmarked against.
      *
      * @param input The response chunk string to extract the JSON object from.
      * @return The extracted valid JSON object, or null if no valid JSON is found.
      */
-    private static JSONObject extractValidJson (String input) throws JSONException {
+    static JSONObject extractValidJson (String input) throws JSONException {
         //System.out.println("this is input:" + input);
         String jsonLine=null;
         try {
@@ -250,7 +424,9 @@ public class GptOpsHelper {
      *
      * @param messages The JSONArray containing the chat messages.
      * @return The number of words in the JSONArray.
+     * @deprecated Count tokens with {@code BpeTokenizer} instead.
      */
+    @Deprecated
     public static int countWordsInJSONArray(JSONArray messages) {
         // Convert the JSONArray to a single JSON-formatted string
         String jsonString = messages.toString();
@@ -3,11 +3,9 @@ import java.awt.Toolkit;
 import java.awt.datatransfer.Clipboard;
 import java.awt.datatransfer.DataFlavor;
 import java.awt.datatransfer.Transferable;
+import java.awt.image.BufferedImage;
 import org.sikuli.script.*;
-import net.sourceforge.tess4j.Tesseract;
 import net.sourceforge.tess4j.TesseractException;
-import org.apache.commons.text.similarity.LevenshteinDistance;
-import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -36,7 +34,6 @@ public class GraphicalInteractionsHelper  {
     private Screen screen;
     private int scrollAmount;
     private int numScreenshots;
-    private String previousExtractedText;
     private String finalText;
 
     /**
@@ -46,11 +43,12 @@ public class GraphicalInteractionsHelper  {
     public GraphicalInteractionsHelper() {
         // Initialize the region, screen, and other variables here
         screen = new Screen();
+        // Loads the OCR engine while the region is being selected
+        OcrService.getDefault().prewarm();
         logger.info("Please select a region by drawing a rectangle with your mouse.");
         selectedRegion = screen.selectRegion();
         scrollAmount = 2;
         numScreenshots = 3000;
-        previousExtractedText = "";
         finalText = "";
     }
 
@@ -80,80 +78,55 @@ public class GraphicalInteractionsHelper  {
     public String captureContextFromScrollshot() {
         int lowerRightX = selectedRegion.getX() + selectedRegion.getW();
         int lowerRightY = selectedRegion.getY() + selectedRegion.getH();
+        Mouse.move(new Location(lowerRightX, lowerRightY));
+        selectedRegion.highlight(0.1);
 
-        for (int i = 0; i < numScreenshots; i++) {
-            Mouse.move(new Location(lowerRightX, lowerRightY));
-            try {
-                selectedRegion.highlight(0.1);
-                Thread.sleep(10);
-            } catch (InterruptedException e) {
-                logger.log(Level.SEVERE, "An error occurred: ", e);
-            }
-
-            ScreenImage screenImage = screen.capture(selectedRegion);
-
-            String screenshotName = "./screenshot_" + i + ".png";
-            screenImage.save("./", screenshotName);
-            logger.info("Captured screenshot: " + screenshotName);
-
-            Tesseract tesseract = new Tesseract();
-            // Get the language from environment variable if set
-            String language = System.getenv("ODIN_RUNES_OCR_LANGUAGE");
-            if (language == null || language.isEmpty()) {
-                language="eng";
+        OcrService ocrService = OcrService.getDefault();
+        ScrollshotPipeline pipeline = new ScrollshotPipeline(ocrService, numScreenshots, scrollAmount);
+        ScrollshotPipeline.Page page = new ScrollshotPipeline.Page() {
+            public BufferedImage capture() {
+                return screen.capture(selectedRegion).getImage();
             }
-            tesseract.setLanguage(language);
-
-            LevenshteinDistance levenshteinDistance = new LevenshteinDistance();
-
-            File imageFile = new File(String.format("./%s", screenshotName));
-            try {
-                String currentExtractedText = tesseract.doOCR(imageFile);
-                int distance = levenshteinDistance.apply(currentExtractedText, previousExtractedText);
-                List<String> middle = getMiddle(currentExtractedText, 0.2F, 0.8F);
-                double similarity = getSimilarity(middle, previousExtractedText);
-
-                if (similarity > 0.7) scrollAmount++;
-                if (similarity < 0.2 && scrollAmount > 1) scrollAmount--;
-
-                logger.info("@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@: " + similarity + " " + scrollAmount);
-
-                if (distance > 5) {
-                    logger.info("Got more text");
-                    String mergedString = finalText + currentExtractedText;
-                    previousExtractedText = currentExtractedText;
-                    finalText = mergedString;
-                }
 
-                if (distance < 5 && i > 3) {
-                    break;
+            public void scroll(int steps) {
+                try {
+                    screen.wheel(selectedRegion, Button.WHEEL_DOWN, steps);
+                    // Lets the page repaint before the next capture
+                    Thread.sleep(50);
+                } catch (FindFailed e) {
+                    logger.log(Level.SEVERE, "An error occurred: ", e);
+                } catch (InterruptedException e) {
+                    logger.log(Level.SEVERE, "An error occurred: ", e);
+                    Thread.currentThread().interrupt();
                 }
-
-            } catch (TesseractException e) {
-                logger.log(Level.SEVERE, "An error occurred: ", e);
-                // Display an error message dialog
-                String errorMessage = "An error occurred:\n" + e.getMessage();
-                JOptionPane.showMessageDialog(null, errorMessage, "Error", JOptionPane.ERROR_MESSAGE);
-
-            }
-            catch (Error e) {
-                logger.log(Level.SEVERE, "An error occurred: ", e);
-                // Display an error message dialog
-                String errorMessage = "Error opening data file "+System.getenv("TESSDATA_PREFIX")+"/"+language+".traineddata\n" +
-                        "Please make sure the TESSDATA_PREFIX environment variable is set to your \"tessdata\" directory.\n" +
-                        "Failed loading language"+" '"+language+"'\n" +
-                        "Tesseract couldn't load any languages!";
-                JOptionPane.showMessageDialog(null, errorMessage, "Error", JOptionPane.ERROR_MESSAGE);
-                throw e;
             }
-
-            try {
-                screen.wheel(selectedRegion, Button.WHEEL_DOWN, scrollAmount);
-            } catch (FindFailed e) {
-                logger.log(Level.SEVERE, "An error occurred: ", e);
+        };
+        try {
+            // Set ODIN_RUNES_SCROLLSHOT_MODE to "stitched" to recognize the page as one image stitched from its frames
+            if ("stitched".equalsIgnoreCase(System.getenv("ODIN_RUNES_SCROLLSHOT_MODE"))) {
+                finalText = pipeline.captureStitched(page);
+            } else {
+                finalText = pipeline.capture(page);
             }
+        } catch (InterruptedException e) {
+            logger.log(Level.SEVERE, "An error occurred: ", e);
+            Thread.currentThread().interrupt();
+        }
+        scrollAmount = pipeline.getScrollAmount();
 
-
+        Throwable failure = pipeline.getFailure();
+        if (failure instanceof Error) {
+            // Display an error message dialog
+            String errorMessage = "Error opening data file "+System.getenv("TESSDATA_PREFIX")+"/"+ocrService.getLanguage()+".traineddata\n" +
+                    "Please make sure the TESSDATA_PREFIX environment variable is set to your \"tessdata\" directory.\n" +
+                    "Failed loading language"+" '"+ocrService.getLanguage()+"'\n" +
+                    "Tesseract couldn't load any languages!";
+            JOptionPane.showMessageDialog(null, errorMessage, "Error", JOptionPane.ERROR_MESSAGE);
+            throw (Error) failure;
+        } else if (failure != null) {
+            // Display an error message dialog
+            String errorMessage = "An error occurred:\n" + failure.getMessage();
+            JOptionPane.showMessageDialog(null, errorMessage, "Error", JOptionPane.ERROR_MESSAGE);
         }
 
         logger.info("Screenshots captured and scrolling completed!");
@@ -166,51 +139,14 @@ public class GraphicalInteractionsHelper  {
      * @return The captured text content, or an empty string if it is not available or cannot be captured.
      */
     public String captureContextFromTimeshot() {
-        int lowerRightX = selectedRegion.getX() + selectedRegion.getW();
-        int lowerRightY = selectedRegion.getY() + selectedRegion.getH();
-        Mouse.move(new Location(lowerRightX, lowerRightY));
-
-        for (int i = 0; i < numScreenshots; i++) {
-            ScreenImage screenImage = screen.capture(selectedRegion);
-
-            String screenshotName = "./screenshot_" + i + ".png";
-            screenImage.save("./", screenshotName);
-            logger.info("Captured screenshot: " + screenshotName);
-
-            Tesseract tesseract = new Tesseract();
-            LevenshteinDistance levenshteinDistance = new LevenshteinDistance();
-
-            File imageFile = new File(String.format("./%s", screenshotName));
-            try {
-                String currentExtractedText = tesseract.doOCR(imageFile);
-                int distance = levenshteinDistance.apply(currentExtractedText, previousExtractedText);
-                List<String> middle = getMiddle(currentExtractedText, 0.2F, 0.8F);
-                double similarity = getSimilarity(middle, previousExtractedText);
-
-
-                logger.info("@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@: " + similarity);
-
-                if (distance > 5 && similarity < 0.9) {
-                    logger.info("Got more text");
-                    String mergedString = finalText + "\n" +
-                            " At timestamp: " + i + " the OCR of the screen is: " + currentExtractedText;
-                    previousExtractedText = currentExtractedText;
-                    finalText = mergedString;
-                }
-
-
-            } catch (TesseractException e) {
-                logger.log(Level.SEVERE, "An error occurred: ", e);
-            }
-
-
-            try {
-                selectedRegion.highlight(0.1);
-                Thread.sleep(2000);
-            } catch (InterruptedException e) {
-                logger.log(Level.SEVERE, "An error occurred: ", e);
-            }
+        TimeshotMonitor monitor = createTimeshotMonitor();
+        try {
+            monitor.run(numScreenshots);
+        } catch (InterruptedException e) {
+            logger.log(Level.SEVERE, "An error occurred: ", e);
+            Thread.currentThread().interrupt();
         }
+        finalText = monitor.getText();
 
         logger.info("Screenshots captured.");
         logger.info("#########################################Merged String: " + finalText);
@@ -218,6 +154,29 @@ public class GraphicalInteractionsHelper  {
         return finalText;
     }
 
+    /**
+     * Starts capturing the text content of the selected region every 2 seconds, in the background.
+     * @return The running monitor, to stop and get the timestamped snapshots of the text from.
+     */
+    public TimeshotMonitor startTimeshotMonitor() {
+        TimeshotMonitor monitor = createTimeshotMonitor();
+        monitor.start();
+        return monitor;
+    }
+
+    private TimeshotMonitor createTimeshotMonitor() {
+        int lowerRightX = selectedRegion.getX() + selectedRegion.getW();
+        int lowerRightY = selectedRegion.getY() + selectedRegion.getH();
+        Mouse.move(new Location(lowerRightX, lowerRightY));
+        selectedRegion.highlight(0.1);
+
+        return new TimeshotMonitor(OcrService.getDefault(), new TimeshotMonitor.Source() {
+            public BufferedImage capture() {
+                return screen.capture(selectedRegion).getImage();
+            }
+        }, 2000, TimeshotMonitor.getDefaultCapacity());
+    }
+
     /**
      * Captures the text content from a specific region on the screen.
      * @return The captured text content, or an empty string if it is not available or cannot be captured.
@@ -228,24 +187,11 @@ public class GraphicalInteractionsHelper  {
 
         Mouse.move(new Location(lowerRightX, lowerRightY));
         ScreenImage screenImage = screen.capture(selectedRegion);
+        logger.info("Captured screenshot");
 
-        String screenshotName = "./screenshot_" + 0 + ".png";
-        screenImage.save("./", screenshotName);
-        logger.info("Captured screenshot: " + screenshotName);
-
-        Tesseract tesseract = new Tesseract();
-        // Get the language from environment variable if set
-        String language = System.getenv("ODIN_RUNES_OCR_LANGUAGE");
-        if (language == null || language.isEmpty()) {
-            language="eng";
-        }
-        tesseract.setLanguage(language);
-
-        LevenshteinDistance levenshteinDistance = new LevenshteinDistance();
-
-        File imageFile = new File(String.format("./%s", screenshotName));
+        OcrService ocrService = OcrService.getDefault();
         try {
-                finalText = tesseract.doOCR(imageFile);
+                finalText = ocrService.recognize(screenImage.getImage());
 
         } catch (TesseractException e) {
             logger.log(Level.SEVERE, "An error occurred: ", e);
@@ -257,9 +203,9 @@ public class GraphicalInteractionsHelper  {
         catch (Error e) {
             logger.log(Level.SEVERE, "An error occurred: ", e);
             // Display an error message dialog
-            String errorMessage = "Error opening data file "+System.getenv("TESSDATA_PREFIX")+"/"+language+".traineddata\n" +
+            String errorMessage = "Error opening data file "+System.getenv("TESSDATA_PREFIX")+"/"+ocrService.getLanguage()+".traineddata\n" +
                     "Please make sure the TESSDATA_PREFIX environment variable is set to your \"tessdata\" directory.\n" +
-                    "Failed loading language"+" '"+language+"'\n" +
+                    "Failed loading language"+" '"+ocrService.getLanguage()+"'\n" +
                     "Tesseract couldn't load any languages!";
             JOptionPane.showMessageDialog(null, errorMessage, "Error", JOptionPane.ERROR_MESSAGE);
             throw e;
@@ -0,0 +1,374 @@
+package org.odinware.odinrunes;
+
+import okhttp3.Request;
+import okhttp3.Response;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The HistoryCompactor class keeps long conversations affordable by replacing their older turns with a summary.
+ *
+ * <p>Compaction is opt-in. Once the history of a conversation needs more tokens than the configured threshold, the
+ * oldest turns are summarized by the GPT provider answering the conversation, and the request carries the summary
+ * instead of those turns. About half of the threshold is kept as recent history, word for word, starting with a user
+ * message. The transcript file itself is never changed; the number of summarized messages is recorded in the Odin
+ * header of the answer instead.
+ *
+ * <p>Summaries are kept on disk, keyed by a hash over the roles and contents of all the turns they cover. Since a
+ * transcript only grows, the summary of a conversation is found again on the next prompt, and a later compaction
+ * only has to summarize the turns between the last summary and the new boundary, together with that summary. A
+ * conversation is therefore summarized incrementally rather than from scratch. Concurrent requests for the same
+ * summary, for example from several providers answering the same prompt, wait for a single summarization.
+ *
+ * Basic Usage:
+ * 1. Enable compaction with the "compactAfterTokens" attribute of the GPT settings, or with the
+ * ODIN_RUNES_COMPACT_AFTER_TOKENS environment variable, for example 8000.
+ * 2. Optionally set ODIN_RUNES_SUMMARY_DIR (~/.odinrunes/summaries by default).
+ * 3. Use {@code getDefault().compact} to get the messages to send, and {@code describe} to get the compaction
+ * recorded for a request.
+ */
+public class HistoryCompactor {
+    private static final Logger logger = Logger.getLogger(HistoryCompactor.class.getName());
+
+    static final String SUMMARY_PROMPT = "Summarize the conversation below between the user and the assistant. "
+            + "Keep every fact, decision, name, number and open question that later messages may refer to. "
+            + "Answer with the summary only.";
+    static final String SUMMARY_INTRODUCTION = "Here is a summary of our earlier conversation:\n";
+    static final String SUMMARY_ACKNOWLEDGEMENT = "Thank you. I will keep this summary in mind.";
+    private static final String SUMMARY_SUFFIX = ".txt";
+
+    private static HistoryCompactor defaultCompactor;
+
+    private final File directory;
+    // Locks by summary key, so that a summary is only generated once at a time
+    private final ConcurrentHashMap<String, Object> locks = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a compactor keeping its summaries in the specified directory.
+     *
+     * @param directory The directory holding the summaries.
+     */
+    public HistoryCompactor(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the application-wide compactor, configured through the environment variables.
+     *
+     * @return The default compactor.
+     */
+    public static synchronized HistoryCompactor getDefault() {
+        if (defaultCompactor == null) {
+            String directory = System.getenv("ODIN_RUNES_SUMMARY_DIR");
+            if (directory == null || directory.trim().isEmpty()) {
+                directory = System.getProperty("user.home") + File.separator + ".odinrunes" + File.separator + "summaries";
+            }
+            defaultCompactor = new HistoryCompactor(new File(directory));
+        }
+        return defaultCompactor;
+    }
+
+    /**
+     * Returns the number of history tokens above which the history is compacted.
+     *
+     * @param gptSettingsJsonObject The settings for the GPT provider.
+     * @return The threshold in tokens, or 0 if compaction is disabled.
+     */
+    public static int thresholdFor(JSONObject gptSettingsJsonObject) {
+        if (gptSettingsJsonObject.has("compactAfterTokens")) {
+            return gptSettingsJsonObject.getInt("compactAfterTokens");
+        }
+        String value = System.getenv("ODIN_RUNES_COMPACT_AFTER_TOKENS");
+        if (value != null) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                logger.warning("Ignoring invalid value of ODIN_RUNES_COMPACT_AFTER_TOKENS: " + value);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the compaction recorded for a request built by {@code GptOpsHelper.buildCustomRequest}.
+     *
+     * @param request The request.
+     * @return The description of the compaction for the Odin header, or null if the history was sent as it is.
+     */
+    public static JSONObject describe(Request request) {
+        Compaction compaction = request.tag(Compaction.class);
+        return compaction == null ? null : compaction.describe();
+    }
+
+    /**
+     * Returns the messages to send, with the older turns replaced by a summary if the history is over the threshold.
+     *
+     * @param wellsOfWisdom The provider answering the conversation, which also writes the summaries.
+     * @param odinMessages The messages of the conversation, ending with the new prompt.
+     * @param gptSettingsJsonObject The settings for the GPT provider.
+     * @return The compaction, holding the messages to send.
+     * @throws Exception If a summary could not be generated.
+     */
+    public Compaction compact(WellsOfWisdom wellsOfWisdom, TranscriptMessages odinMessages, JSONObject gptSettingsJsonObject) throws Exception {
+        return compact(wellsOfWisdom, odinMessages, gptSettingsJsonObject, null);
+    }
+
+    /**
+     * Returns the messages to send, with the older turns replaced by a summary if the history is over the threshold.
+     * The summary requests belong to the chat turn, so that cancelling the turn also cancels them.
+     *
+     * @param wellsOfWisdom The provider answering the conversation, which also writes the summaries.
+     * @param odinMessages The messages of the conversation, ending with the new prompt.
+     * @param gptSettingsJsonObject The settings for the GPT provider.
+     * @param chatTurn The turn the messages are sent for, or null.
+     * @return The compaction, holding the messages to send.
+     * @throws Exception If a summary could not be generated, or the turn was cancelled.
+     */
+    public Compaction compact(WellsOfWisdom wellsOfWisdom, TranscriptMessages odinMessages, JSONObject gptSettingsJsonObject,
+                              ChatTurn chatTurn) throws Exception {
+        int threshold = thresholdFor(gptSettingsJsonObject);
+        if (threshold <= 0) {
+            return new Compaction(odinMessages, 0, null);
+        }
+        BpeTokenizer tokenizer = BpeTokenizer.forModel(ContextBudget.modelFor(gptSettingsJsonObject));
+
+        // The hash of the first i history messages is at index i
+        List<String> roles = new ArrayList<>();
+        List<Integer> tokens = new ArrayList<>();
+        List<String> hashes = new ArrayList<>();
+        hashes.add("");
+        long historyTokens = 0;
+        for (TranscriptMessages.Message message : odinMessages) {
+            if ("prompt".equals(message.getRole())) {
+                continue;
+            }
+            roles.add(message.getRole());
+            tokens.add(tokenizer.count(message.getContent()));
+            historyTokens += tokens.get(tokens.size() - 1);
+            hashes.add(sha256(hashes.get(hashes.size() - 1) + "\n" + message.getRole() + "\n" + message.getContent()));
+        }
+        if (historyTokens <= threshold) {
+            return new Compaction(odinMessages, 0, null);
+        }
+
+        // Keep about half of the threshold as recent history, starting with a user message
+        int boundary = roles.size();
+        long keptTokens = 0;
+        while (boundary > 0 && keptTokens + tokens.get(boundary - 1) <= threshold / 2) {
+            boundary--;
+            keptTokens += tokens.get(boundary);
+        }
+        while (boundary < roles.size() && !"user".equals(roles.get(boundary))) {
+            boundary++;
+        }
+        if (boundary == 0) {
+            return new Compaction(odinMessages, 0, null);
+        }
+
+        String summary = summaryUpTo(wellsOfWisdom, odinMessages, gptSettingsJsonObject, chatTurn, threshold, tokenizer, roles,
+                hashes, boundary);
+        JSONArray leadingMessages = new JSONArray()
+                .put(new JSONObject().put("role", "user").put("content", SUMMARY_INTRODUCTION + summary))
+                .put(new JSONObject().put("role", "assistant").put("content", SUMMARY_ACKNOWLEDGEMENT));
+        logger.info("Replacing the " + boundary + " oldest messages with a summary of " + tokenizer.count(summary) + " tokens");
+        return new Compaction(odinMessages.dropOldest(boundary).prepend(leadingMessages), boundary, hashes.get(boundary));
+    }
+
+    /**
+     * Returns the summary of the first history messages up to the boundary, continuing from the latest cached summary
+     * before the boundary, one chunk of at most the threshold at a time.
+     */
+    private String summaryUpTo(WellsOfWisdom wellsOfWisdom, TranscriptMessages odinMessages, JSONObject gptSettingsJsonObject,
+                               ChatTurn chatTurn, int threshold, BpeTokenizer tokenizer, List<String> roles, List<String> hashes, int boundary) throws Exception {
+        synchronized (locks.computeIfAbsent(hashes.get(boundary), key -> new Object())) {
+            int summarized = boundary;
+            String summary = null;
+            while (summarized > 0 && (summary = read(hashes.get(summarized))) == null) {
+                summarized--;
+            }
+            while (summarized < boundary) {
+                List<TranscriptMessages.Message> chunk = new ArrayList<>();
+                int chunkTokens = 0;
+                int index = 0;
+                for (TranscriptMessages.Message message : odinMessages) {
+                    if (index >= summarized && index < boundary) {
+                        int messageTokens = tokenizer.count(message.getContent());
+                        // A chunk ends before a user message, once it is full
+                        if (!chunk.isEmpty() && chunkTokens + messageTokens > threshold && "user".equals(message.getRole())) {
+                            break;
+                        }
+                        chunk.add(message);
+                        chunkTokens += messageTokens;
+                    }
+                    if (++index >= boundary) {
+                        break;
+                    }
+                }
+                summary = summarize(wellsOfWisdom, gptSettingsJsonObject, chatTurn, summary, chunk);
+                summarized += chunk.size();
+                write(hashes.get(summarized), summary);
+            }
+            return summary;
+        }
+    }
+
+    /**
+     * Asks the provider for a summary of the messages, continuing the previous summary. The request is tagged with
+     * the chat turn, and a summary cut short by cancelling the turn is not used.
+     */
+    private static String summarize(WellsOfWisdom wellsOfWisdom, JSONObject gptSettingsJsonObject, final ChatTurn chatTurn,
+                                    String previousSummary, List<TranscriptMessages.Message> messages) throws Exception {
+        StringBuilder prompt = new StringBuilder(SUMMARY_PROMPT).append("\n\n");
+        if (previousSummary != null) {
+            prompt.append("Summary of the conversation so far:\n").append(previousSummary).append("\n\n");
+        }
+        prompt.append("Conversation:\n");
+        for (TranscriptMessages.Message message : messages) {
+            prompt.append("user".equals(message.getRole()) ? "User: " : "Assistant: ")
+                    .append(message.getContent()).append("\n\n");
+        }
+        JSONArray summaryMessages = new JSONArray()
+                .put(new JSONObject().put("role", "prompt").put("content", prompt.toString()));
+        JSONObject summarySettings = new JSONObject(gptSettingsJsonObject.toString()).put("temperature", 0);
+        Request request = wellsOfWisdom.buildRequest(new Context(), TranscriptMessages.of(summaryMessages), summarySettings);
+        if (chatTurn != null) {
+            if (chatTurn.isCancelled()) {
+                throw new Exception("The chat turn was cancelled before the earlier conversation was summarized");
+            }
+            request = request.newBuilder().tag(ChatTurn.class, chatTurn).build();
+        }
+
+        final StringBuilder summary = new StringBuilder();
+        final StringBuilder error = new StringBuilder();
+        try (Response response = wellsOfWisdom.executeRequest(request)) {
+            wellsOfWisdom.streamEvents(response, new WisdomEventListener() {
+                @Override
+                public boolean onEvent(WisdomEvent event) {
+                    if (chatTurn != null && chatTurn.isCancelled()) {
+                        return false;
+                    }
+                    switch (event.getType()) {
+                        case DELTA:
+                            summary.append(event.getText());
+                            return true;
+                        case ERROR:
+                            error.append(event.getText());
+                            return false;
+                        case DONE:
+                            return false;
+                        default:
+                            return true;
+                    }
+                }
+            });
+        }
+        if (chatTurn != null && chatTurn.isCancelled()) {
+            throw new Exception("The chat turn was cancelled while the earlier conversation was summarized");
+        }
+        if (error.length() > 0 || summary.toString().trim().isEmpty()) {
+            throw new Exception("Could not summarize the earlier conversation: " + error);
+        }
+        return summary.toString().trim();
+    }
+
+    private File fileFor(String key) {
+        return new File(directory, key + SUMMARY_SUFFIX);
+    }
+
+    /**
+     * Returns the cached summary of the history with the specified hash.
+     *
+     * @param key The hash of the summarized history.
+     * @return The summary, or null if there is none.
+     */
+    String read(String key) {
+        File file = fileFor(key);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "An error occurred: ", e);
+            return null;
+        }
+    }
+
+    private void write(String key, String summary) {
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create the summary directory " + directory);
+            }
+            // Write to a temporary file first, so that a crash never leaves a partial summary behind
+            File temporaryFile = new File(directory, key + ".tmp");
+            Files.write(temporaryFile.toPath(), summary.getBytes(StandardCharsets.UTF_8));
+            Files.move(temporaryFile.toPath(), fileFor(key).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "An error occurred: ", e);
+        }
+    }
+
+    private static String sha256(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The messages to send, together with the part of the history they summarize.
+     */
+    public static final class Compaction {
+        private final TranscriptMessages messages;
+        private final int summarizedMessages;
+        private final String summaryKey;
+
+        Compaction(TranscriptMessages messages, int summarizedMessages, String summaryKey) {
+            this.messages = messages;
+            this.summarizedMessages = summarizedMessages;
+            this.summaryKey = summaryKey;
+        }
+
+        public TranscriptMessages getMessages() {
+            return messages;
+        }
+
+        public boolean isCompacted() {
+            return summarizedMessages > 0;
+        }
+
+        /**
+         * Returns the compaction boundary for the Odin header: the number of oldest messages of the transcript that
+         * were summarized, and the key of their summary.
+         *
+         * @return The description, or null if the history was sent as it is.
+         */
+        public JSONObject describe() {
+            if (!isCompacted()) {
+                return null;
+            }
+            return new JSONObject()
+                    .put("summarizedMessages", summarizedMessages)
+                    .put("summaryKey", summaryKey);
+        }
+    }
+}
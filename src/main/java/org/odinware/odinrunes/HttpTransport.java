@@ -0,0 +1,258 @@
+package org.odinware.odinrunes;
+
+import okhttp3.*;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The HttpTransport class provides the HTTP clients used by all GPT providers.
+ *
+ * <p>All clients are derived from one application-wide {@code OkHttpClient}, so they share a single connection pool
+ * and dispatcher. Connections are kept alive between chat turns and are reused by every provider that talks to the
+ * same host, and HTTP/2 is negotiated with endpoints that support it, so several requests to one host can share a
+ * single multiplexed connection. Each provider gets its own timeouts, since a local Ollama model may take much longer
+ * to answer than a hosted API.
+ *
+ * Basic Usage:
+ * 1. Use {@code clientFor} with one of the provider constants to get the client in {@code executeRequest}.
+ * 2. Use {@code getStatistics} to check how many calls were served by reused connections.
+ * 3. Optionally call {@code prewarm} at startup to open a connection to the configured provider ahead of the first chat.
+ * Pre-warming is only done when the ODIN_RUNES_PREWARM_CONNECTIONS environment variable is set to true.
+ */
+public final class HttpTransport {
+    private static final Logger logger = Logger.getLogger(HttpTransport.class.getName());
+
+    public static final String OPENAI = "OpenAI";
+    public static final String VERTEX_AI = "VertexAI";
+    public static final String OLLAMA = "Ollama";
+
+    private static final int MAX_IDLE_CONNECTIONS = 8;
+    private static final long KEEP_ALIVE_MINUTES = 5;
+
+    private static final AtomicLong callCount = new AtomicLong();
+    private static final AtomicLong newConnectionCount = new AtomicLong();
+    private static final AtomicLong acquiredConnectionCount = new AtomicLong();
+
+    // Calls stay here until their response body has been read or closed, unlike the dispatcher's running calls.
+    private static final Set<Call> activeCalls = Collections.newSetFromMap(new ConcurrentHashMap<Call, Boolean>());
+
+    private static final ConnectionPool connectionPool = new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES);
+
+    private static final OkHttpClient sharedClient = new OkHttpClient.Builder()
+            .connectionPool(connectionPool)
+            .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+            .retryOnConnectionFailure(true)
+            .connectTimeout(10, TimeUnit.SECONDS)
+            .eventListener(new EventListener() {
+                @Override
+                public void callStart(Call call) {
+                    callCount.incrementAndGet();
+                    activeCalls.add(call);
+                }
+
+                @Override
+                public void callEnd(Call call) {
+                    activeCalls.remove(call);
+                }
+
+                @Override
+                public void callFailed(Call call, IOException ioe) {
+                    activeCalls.remove(call);
+                }
+
+                @Override
+                public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+                    newConnectionCount.incrementAndGet();
+                }
+
+                @Override
+                public void connectionAcquired(Call call, Connection connection) {
+                    acquiredConnectionCount.incrementAndGet();
+                }
+            })
+            .build();
+
+    private static final Map<String, OkHttpClient> providerClients = new ConcurrentHashMap<>();
+
+    private HttpTransport() {
+    }
+
+    /**
+     * Returns the HTTP client for the specified provider. The client shares its connection pool and dispatcher
+     * with the clients of all other providers, and only differs in its timeouts.
+     *
+     * @param provider One of {@code OPENAI}, {@code VERTEX_AI} or {@code OLLAMA}. Other values get the default timeouts.
+     * @return The HTTP client for the provider.
+     */
+    public static OkHttpClient clientFor(String provider) {
+        return providerClients.computeIfAbsent(provider, HttpTransport::buildClient);
+    }
+
+    private static OkHttpClient buildClient(String provider) {
+        OkHttpClient.Builder builder = sharedClient.newBuilder();
+        if (OLLAMA.equals(provider)) {
+            // Local models may need to be loaded into memory before the first token arrives.
+            builder.readTimeout(5, TimeUnit.MINUTES).writeTimeout(60, TimeUnit.SECONDS);
+        } else if (OPENAI.equals(provider) || VERTEX_AI.equals(provider)) {
+            // Streamed answers can pause between tokens, and large contexts take a while to upload.
+            builder.readTimeout(2, TimeUnit.MINUTES).writeTimeout(60, TimeUnit.SECONDS);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Executes the request with the client of the specified provider.
+     *
+     * @param provider The provider of the request.
+     * @param request The HTTP request object.
+     * @return The HTTP response object.
+     */
+    public static Response execute(String provider, Request request) {
+        try {
+            return clientFor(provider).newCall(request).execute();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Cancels every call in flight whose request is tagged with the specified tag, including calls that are
+     * still streaming their response body.
+     *
+     * @param type The class the tag was registered under with {@code Request.Builder.tag}.
+     * @param tag The tag of the calls to cancel.
+     * @param <T> The type of the tag.
+     */
+    public static <T> void cancel(Class<? super T> type, T tag) {
+        for (Call call : activeCalls) {
+            if (call.request().tag(type) == tag) {
+                call.cancel();
+            }
+        }
+    }
+
+    /**
+     * Opens a connection to the endpoint of the configured GPT provider in the background, so that the first chat
+     * turn does not have to wait for the TCP and TLS handshakes. Does nothing unless the ODIN_RUNES_PREWARM_CONNECTIONS
+     * environment variable is set to true.
+     *
+     * @param gptSettingsJsonObject The GPT settings holding the configured provider.
+     */
+    public static void prewarm(JSONObject gptSettingsJsonObject) {
+        if (!Boolean.parseBoolean(System.getenv("ODIN_RUNES_PREWARM_CONNECTIONS"))) {
+            return;
+        }
+
+        String gptProvider = gptSettingsJsonObject.optString("gptProvider", "");
+        String provider;
+        String url;
+        if (gptProvider.startsWith("OpenAI")) {
+            provider = OPENAI;
+            url = "https://api.openai.com/v1/models";
+        } else if (gptProvider.startsWith("Google's VertexAI")) {
+            String apiEndpoint = System.getenv("VERTEXAI_API_ENDPOINT");
+            if (apiEndpoint == null || apiEndpoint.isEmpty()) {
+                return;
+            }
+            provider = VERTEX_AI;
+            url = "https://" + apiEndpoint + "/";
+        } else if (gptProvider.equals("Ollama")) {
+            provider = OLLAMA;
+            url = gptSettingsJsonObject.optString("backendURI", "");
+        } else {
+            return;
+        }
+
+        HttpUrl httpUrl = HttpUrl.parse(url);
+        if (httpUrl == null) {
+            return;
+        }
+        // Any response will do, the point is to leave an established connection in the pool.
+        Request request = new Request.Builder().url(httpUrl).head().build();
+        clientFor(provider).newCall(request).enqueue(new Callback() {
+            @Override
+            public void onResponse(Call call, Response response) {
+                response.close();
+                logger.info("Pre-warmed connection to " + httpUrl.host() + ". " + getStatistics());
+            }
+
+            @Override
+            public void onFailure(Call call, IOException e) {
+                logger.log(Level.WARNING, "Could not pre-warm a connection to " + httpUrl.host(), e);
+            }
+        });
+    }
+
+    /**
+     * Returns a snapshot of the connection pool and connection reuse statistics.
+     *
+     * @return The current statistics.
+     */
+    public static Statistics getStatistics() {
+        return new Statistics(connectionPool.connectionCount(), connectionPool.idleConnectionCount(),
+                callCount.get(), newConnectionCount.get(), acquiredConnectionCount.get());
+    }
+
+    /**
+     * A snapshot of the shared connection pool and of how often calls could reuse a pooled connection.
+     */
+    public static final class Statistics {
+        private final int connectionCount;
+        private final int idleConnectionCount;
+        private final long callCount;
+        private final long newConnectionCount;
+        private final long acquiredConnectionCount;
+
+        private Statistics(int connectionCount, int idleConnectionCount, long callCount, long newConnectionCount, long acquiredConnectionCount) {
+            this.connectionCount = connectionCount;
+            this.idleConnectionCount = idleConnectionCount;
+            this.callCount = callCount;
+            this.newConnectionCount = newConnectionCount;
+            this.acquiredConnectionCount = acquiredConnectionCount;
+        }
+
+        public int getConnectionCount() {
+            return connectionCount;
+        }
+
+        public int getIdleConnectionCount() {
+            return idleConnectionCount;
+        }
+
+        public long getCallCount() {
+            return callCount;
+        }
+
+        public long getNewConnectionCount() {
+            return newConnectionCount;
+        }
+
+        /**
+         * Returns how many times a call was served by a connection that was already open.
+         *
+         * @return The number of reused connections.
+         */
+        public long getReusedConnectionCount() {
+            return Math.max(0, acquiredConnectionCount - newConnectionCount);
+        }
+
+        @Override
+        public String toString() {
+            return "HTTP connection pool: " + connectionCount + " open (" + idleConnectionCount + " idle), "
+                    + callCount + " calls, " + newConnectionCount + " new connections, "
+                    + getReusedConnectionCount() + " reused connections.";
+        }
+    }
+}
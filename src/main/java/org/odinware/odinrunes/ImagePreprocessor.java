@@ -0,0 +1,432 @@
+package org.odinware.odinrunes;
+
+import org.json.JSONObject;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The ImagePreprocessor class prepares the images of the context before they are sent, so that no upload bandwidth
+ * is spent on pixels that the provider would throw away.
+ *
+ * <p>Providers scale large images down on their side anyway. An image is therefore scaled down to the largest size
+ * the model looks at, for example 2048 pixels on its longest side and 768 pixels on its shortest side for the GPT-4o
+ * family, and re-encoded as a JPEG. Images with transparency are kept as PNG. An image that is already small enough
+ * and compact is sent as it is, and so is an image the JDK cannot decode. The real type of every image is detected
+ * from its first bytes, rather than taken from its file name.
+ *
+ * <p>Processed images are written to a cache directory, keyed by a fingerprint of the source file and the processing
+ * options, so that an unchanged image is only processed once. The directory is bounded in size, deleting the least
+ * recently used images first, but never an image that was returned recently and may still be waiting to be sent.
+ *
+ * Basic Usage:
+ * 1. Use {@code forSettings} to get the preprocessor for the model in the GPT settings, and {@code process} to get
+ * the image to send together with its MIME type.
+ * 2. Optionally set the "imageMaxDimension" attribute of the GPT settings (0 sends images as they are) and the
+ * "imageQuality" attribute (0.85 by default) for the JPEG quality.
+ * 3. Optionally set ODIN_RUNES_IMAGE_DIR (~/.odinrunes/images by default) and ODIN_RUNES_IMAGE_CACHE_MB (64 by
+ * default).
+ */
+public class ImagePreprocessor {
+    private static final Logger logger = Logger.getLogger(ImagePreprocessor.class.getName());
+
+    public static final String PNG = "image/png";
+    public static final String JPEG = "image/jpeg";
+    public static final String GIF = "image/gif";
+    public static final String WEBP = "image/webp";
+    public static final String BMP = "image/bmp";
+
+    private static final float DEFAULT_QUALITY = 0.85f;
+    private static final long DEFAULT_CACHE_MEGABYTES = 64;
+    private static final int MAX_REMEMBERED_IMAGES = 256;
+
+    // The longest and the shortest side the models look at, by model name prefix
+    private static final Map<String, int[]> MODEL_LIMITS = new LinkedHashMap<>();
+
+    static {
+        MODEL_LIMITS.put("gpt-4o", new int[]{2048, 768});
+        MODEL_LIMITS.put("gemini", new int[]{3072, 3072});
+    }
+
+    private static final int[] DEFAULT_LIMITS = {2048, 2048};
+
+    // Images sent as they are and processed images, by key, so that they are not decoded again
+    private static final Map<String, Image> images = new LinkedHashMap<String, Image>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Image> eldest) {
+            return size() > MAX_REMEMBERED_IMAGES;
+        }
+    };
+    private static final AtomicLong processCount = new AtomicLong();
+
+    private final File directory;
+    private final long maxCachedBytes;
+    private final int maxDimension;
+    private final int maxShortSide;
+    private final float quality;
+
+    /**
+     * Creates a preprocessor.
+     *
+     * @param directory The directory holding the processed images.
+     * @param maxCachedBytes The maximum total size of the processed images.
+     * @param maxDimension The longest side of a sent image, or 0 to send images as they are.
+     * @param maxShortSide The shortest side of a sent image.
+     * @param quality The JPEG quality, between 0 and 1.
+     */
+    public ImagePreprocessor(File directory, long maxCachedBytes, int maxDimension, int maxShortSide, float quality) {
+        this.directory = directory;
+        this.maxCachedBytes = maxCachedBytes;
+        this.maxDimension = maxDimension;
+        this.maxShortSide = maxShortSide;
+        this.quality = quality;
+    }
+
+    /**
+     * Returns the preprocessor for the model in the GPT settings.
+     *
+     * @param gptSettingsJsonObject The settings for the GPT provider.
+     * @return The preprocessor.
+     */
+    public static ImagePreprocessor forSettings(JSONObject gptSettingsJsonObject) {
+        String directory = System.getenv("ODIN_RUNES_IMAGE_DIR");
+        if (directory == null || directory.trim().isEmpty()) {
+            directory = System.getProperty("user.home") + File.separator + ".odinrunes" + File.separator + "images";
+        }
+        long maxMegabytes = DEFAULT_CACHE_MEGABYTES;
+        String value = System.getenv("ODIN_RUNES_IMAGE_CACHE_MB");
+        if (value != null) {
+            try {
+                maxMegabytes = Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                logger.warning("Ignoring invalid value of ODIN_RUNES_IMAGE_CACHE_MB: " + value);
+            }
+        }
+        return forSettings(gptSettingsJsonObject, new File(directory), maxMegabytes * 1024 * 1024);
+    }
+
+    /**
+     * Returns the preprocessor for the model in the GPT settings, with its processed images in the given directory.
+     *
+     * @param gptSettingsJsonObject The settings for the GPT provider.
+     * @param directory The directory holding the processed images.
+     * @param maxCachedBytes The maximum total size of the processed images.
+     * @return The preprocessor.
+     */
+    static ImagePreprocessor forSettings(JSONObject gptSettingsJsonObject, File directory, long maxCachedBytes) {
+        String model = ContextBudget.modelFor(gptSettingsJsonObject);
+        int[] limits = DEFAULT_LIMITS;
+        for (Map.Entry<String, int[]> modelLimits : MODEL_LIMITS.entrySet()) {
+            if (model.startsWith(modelLimits.getKey())) {
+                limits = modelLimits.getValue();
+                break;
+            }
+        }
+        int maxDimension = gptSettingsJsonObject.optInt("imageMaxDimension", limits[0]);
+        int maxShortSide = Math.min(limits[1], maxDimension);
+        float quality = (float) gptSettingsJsonObject.optDouble("imageQuality", DEFAULT_QUALITY);
+        return new ImagePreprocessor(directory, maxCachedBytes, maxDimension, maxShortSide, quality);
+    }
+
+    /**
+     * Returns a name for the processing options, which differs for preprocessors producing different images.
+     *
+     * @return The name of the options.
+     */
+    public String getOptions() {
+        return maxDimension <= 0 ? "original" : maxDimension + "x" + maxShortSide + "q" + quality;
+    }
+
+    /**
+     * Returns the image to send in place of the source image, processing it on first use.
+     *
+     * @param source The source image file.
+     * @return The image to send, which is the source itself if it needs no processing.
+     * @throws IOException If the source cannot be read.
+     */
+    public Image process(File source) throws IOException {
+        String key = sha256(EncodedFileCache.tokenFor(source) + "\n" + getOptions());
+        synchronized (images) {
+            Image image = images.get(key);
+            if (image != null && image.file.isFile()) {
+                return image;
+            }
+        }
+        Image image = processUncached(source, key);
+        synchronized (images) {
+            images.put(key, image);
+        }
+        return image;
+    }
+
+    /**
+     * Processes the image without looking it up among the remembered images.
+     *
+     * @param source The source image file.
+     * @param key The name of the processed image in the cache directory.
+     * @return The image to send.
+     * @throws IOException If the source cannot be read.
+     */
+    Image processUncached(File source, String key) throws IOException {
+        String mimeType = detectMimeType(source);
+        for (String extension : new String[]{".jpg", ".png"}) {
+            File processedFile = new File(directory, key + extension);
+            if (processedFile.isFile()) {
+                // Processed before the last restart
+                processedFile.setLastModified(System.currentTimeMillis());
+                return new Image(processedFile, ".jpg".equals(extension) ? JPEG : PNG);
+            }
+        }
+        if (maxDimension <= 0) {
+            return new Image(source, mimeType);
+        }
+        BufferedImage image = ImageIO.read(source);
+        if (image == null) {
+            // Not decodable by the JDK, for example WebP
+            return new Image(source, mimeType);
+        }
+
+        long startTime = System.nanoTime();
+        int width = image.getWidth();
+        int height = image.getHeight();
+        double scale = Math.min(1.0, Math.min((double) maxDimension / Math.max(width, height),
+                (double) maxShortSide / Math.min(width, height)));
+        boolean hasAlpha = image.getColorModel().hasAlpha();
+        if (scale >= 1.0 && (JPEG.equals(mimeType) || (hasAlpha && PNG.equals(mimeType)))) {
+            return new Image(source, mimeType);
+        }
+
+        BufferedImage scaled = scale < 1.0
+                ? resize(image, Math.max(1, (int) Math.round(width * scale)), Math.max(1, (int) Math.round(height * scale)), hasAlpha)
+                : image;
+        byte[] encoded = hasAlpha ? encodePng(scaled) : encodeJpeg(scaled, quality);
+        if (scale >= 1.0 && encoded.length >= source.length()) {
+            return new Image(source, mimeType);
+        }
+        processCount.incrementAndGet();
+        logger.info("Processed " + source + " from " + width + "x" + height + " (" + source.length() + " bytes) to "
+                + scaled.getWidth() + "x" + scaled.getHeight() + " (" + encoded.length + " bytes) in "
+                + (System.nanoTime() - startTime) / 1_000_000 + " ms");
+        File processedFile = write(key + (hasAlpha ? ".png" : ".jpg"), encoded);
+        return processedFile == null ? new Image(source, mimeType) : new Image(processedFile, hasAlpha ? PNG : JPEG);
+    }
+
+    /**
+     * Scales the image down, halving it in steps first, so that every pixel contributes to the result.
+     */
+    static BufferedImage resize(BufferedImage image, int targetWidth, int targetHeight, boolean hasAlpha) {
+        int type = hasAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        BufferedImage current = image;
+        int width = image.getWidth();
+        int height = image.getHeight();
+        do {
+            width = Math.max(targetWidth, width / 2);
+            height = Math.max(targetHeight, height / 2);
+            BufferedImage next = new BufferedImage(width, height, type);
+            Graphics2D graphics = next.createGraphics();
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(current, 0, 0, width, height, null);
+            graphics.dispose();
+            current = next;
+        } while (width > targetWidth || height > targetHeight);
+        return current;
+    }
+
+    static byte[] encodeJpeg(BufferedImage image, float quality) throws IOException {
+        if (image.getType() != BufferedImage.TYPE_INT_RGB) {
+            // JPEG has no alpha channel, and the writer needs a plain RGB image
+            BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+            Graphics2D graphics = rgb.createGraphics();
+            graphics.drawImage(image, 0, 0, null);
+            graphics.dispose();
+            image = rgb;
+        }
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(bytes)) {
+            writer.setOutput(output);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return bytes.toByteArray();
+    }
+
+    static byte[] encodePng(BufferedImage image) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", bytes);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Returns the MIME type of the image from its first bytes.
+     *
+     * @param file The image file.
+     * @return The MIME type, PNG if it is not recognized.
+     * @throws IOException If the file cannot be read.
+     */
+    public static String detectMimeType(File file) throws IOException {
+        byte[] header = new byte[12];
+        int length = 0;
+        try (InputStream input = new FileInputStream(file)) {
+            int read;
+            while (length < header.length && (read = input.read(header, length, header.length - length)) > 0) {
+                length += read;
+            }
+        }
+        return detectMimeType(Arrays.copyOf(header, length));
+    }
+
+    static String detectMimeType(byte[] header) {
+        if (startsWith(header, 0, 0x89, 'P', 'N', 'G')) {
+            return PNG;
+        }
+        if (startsWith(header, 0, 0xFF, 0xD8, 0xFF)) {
+            return JPEG;
+        }
+        if (startsWith(header, 0, 'G', 'I', 'F', '8')) {
+            return GIF;
+        }
+        if (startsWith(header, 0, 'R', 'I', 'F', 'F') && startsWith(header, 8, 'W', 'E', 'B', 'P')) {
+            return WEBP;
+        }
+        if (startsWith(header, 0, 'B', 'M')) {
+            return BMP;
+        }
+        return PNG;
+    }
+
+    private static boolean startsWith(byte[] header, int offset, int... expected) {
+        if (header.length < offset + expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if ((header[offset + i] & 0xFF) != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private synchronized File write(String name, byte[] encoded) {
+        File file = new File(directory, name);
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create the image directory " + directory);
+            }
+            // Write to a temporary file first, so that a crash never leaves a partial image behind
+            File temporaryFile = new File(directory, name + ".tmp");
+            Files.write(temporaryFile.toPath(), encoded);
+            Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "An error occurred: ", e);
+            return null;
+        }
+        evict(file);
+        return file;
+    }
+
+    /**
+     * Deletes the least recently used images while the directory is too large. The new image and the remembered ones
+     * are kept, since a request may be about to send them: an image is remembered from the moment {@code process}
+     * returns it until many other images were processed.
+     */
+    private void evict(File newFile) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Set<File> kept = new HashSet<>();
+        kept.add(newFile);
+        synchronized (images) {
+            for (Image image : images.values()) {
+                kept.add(image.file);
+            }
+        }
+        long totalBytes = 0;
+        for (File file : files) {
+            totalBytes += file.length();
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (int i = 0; totalBytes > maxCachedBytes && i < files.length; i++) {
+            if (kept.contains(files[i])) {
+                continue;
+            }
+            totalBytes -= files[i].length();
+            if (!files[i].delete()) {
+                logger.warning("Could not delete " + files[i]);
+            }
+        }
+    }
+
+    /**
+     * Returns how many images have been processed since startup, which does not grow for unchanged images.
+     *
+     * @return The number of processed images.
+     */
+    public static long getProcessCount() {
+        return processCount.get();
+    }
+
+    private static String sha256(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(32);
+            for (int i = 0; i < 16; i++) {
+                hex.append(Character.forDigit((digest[i] >> 4) & 0xF, 16)).append(Character.forDigit(digest[i] & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * An image ready to be sent, with its real MIME type.
+     */
+    public static final class Image {
+        private final File file;
+        private final String mimeType;
+
+        Image(File file, String mimeType) {
+            this.file = file;
+            this.mimeType = mimeType;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public String getMimeType() {
+            return mimeType;
+        }
+    }
+}
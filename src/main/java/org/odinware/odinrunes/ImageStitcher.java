@@ -0,0 +1,299 @@
+package org.odinware.odinrunes;
+
+import net.sourceforge.tess4j.TesseractException;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The ImageStitcher class stitches the frames of a scrolled page into one tall image, so that the page is recognized
+ * once instead of frame by frame.
+ *
+ * <p>Each frame is reduced to a hash of each of its rows of pixels. The rows of a frame whose hash is unique within
+ * the frame vote for the shift that moves them onto the same rows of the previous frame, and the shift with the most
+ * votes is how far the page moved; the rows that changed for another reason, such as a moving scroll bar, do not
+ * agree on a shift. Only the rows below the overlap are added to the image. A frame that did not move adds nothing,
+ * and a frame that shares no rows with the previous one is added as a whole.
+ *
+ * <p>The stitched image is recognized in horizontal tiles, in parallel on the engines of the OCR service. Tiles are
+ * cut at a blank row near their end, between two lines of text, ignoring a scroll bar on the right; when there is
+ * none, consecutive tiles overlap and their texts are joined with a {@code TextStitcher}.
+ *
+ * Basic Usage:
+ * 1. Create an ImageStitcher.
+ * 2. Use {@code append} with each frame, in the order of the frames.
+ * 3. Use {@code recognize} to get the text of the stitched image, or {@code getImage} to get the image.
+ */
+public class ImageStitcher {
+    // The tiles are about this many rows high
+    static final int TILE_HEIGHT = 1200;
+    // How far back from its end a tile looks for a blank row, and how much tiles overlap without one
+    private static final int TILE_MARGIN = 120;
+    // A shift has to have the votes of this share of the voting rows it overlaps
+    private static final double MIN_VOTES = 0.25;
+    // The columns on the right of a frame that may show a scroll bar, which are ignored when looking for blank rows
+    private static final int SCROLL_BAR_MARGIN = 20;
+
+    private final List<BufferedImage> strips = new ArrayList<>();
+    private final BitSet blankRows = new BitSet();
+    private long[] previousHashes;
+    private int width = -1;
+    private int height;
+    private int frameCount;
+
+    /**
+     * Adds the rows of the frame that are below its overlap with the previous frame.
+     *
+     * @param frame The frame, as wide as the frames before it.
+     * @return The number of added rows.
+     */
+    public int append(BufferedImage frame) {
+        if (width < 0) {
+            width = frame.getWidth();
+        } else if (frame.getWidth() != width) {
+            throw new IllegalArgumentException("The frame is " + frame.getWidth() + " pixels wide instead of " + width);
+        }
+        frameCount++;
+        long[] hashes = rowHashes(frame);
+        int firstNewRow = 0;
+        if (previousHashes != null) {
+            int shift = estimateShift(previousHashes, hashes);
+            if (shift >= 0) {
+                firstNewRow = Math.max(0, hashes.length - shift);
+            }
+        }
+        previousHashes = hashes;
+
+        int rows = frame.getHeight() - firstNewRow;
+        if (rows <= 0) {
+            return 0;
+        }
+        BufferedImage strip = new BufferedImage(width, rows, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = strip.createGraphics();
+        graphics.drawImage(frame, 0, -firstNewRow, null);
+        graphics.dispose();
+        int[] pixels = new int[width];
+        for (int y = 0; y < rows; y++) {
+            strip.getRGB(0, y, width, 1, pixels, 0, width);
+            if (isBlankRow(pixels)) {
+                blankRows.set(height + y);
+            }
+        }
+        strips.add(strip);
+        height += rows;
+        return rows;
+    }
+
+    /**
+     * Returns the height of the stitched image.
+     *
+     * @return The height in rows.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the number of appended frames.
+     *
+     * @return The frame count.
+     */
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Returns the stitched image.
+     *
+     * @return The image, or null if no frame was appended.
+     */
+    public BufferedImage getImage() {
+        return height == 0 ? null : rows(0, height);
+    }
+
+    /**
+     * Recognizes the text of the stitched image, one tile per engine of the OCR service at a time.
+     *
+     * @param ocrService The OCR service.
+     * @return The text of the image.
+     * @throws TesseractException If a tile cannot be recognized.
+     * @throws InterruptedException If the thread is interrupted while waiting for the tiles.
+     */
+    public String recognize(final OcrService ocrService) throws TesseractException, InterruptedException {
+        List<int[]> tiles = tiles(TILE_HEIGHT);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(ocrService.getPoolSize(), tiles.size())),
+                new ThreadFactory() {
+                    private int count;
+
+                    public synchronized Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "odin-stitched-ocr-" + count++);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        try {
+            List<Future<String>> texts = new ArrayList<>();
+            for (final int[] tile : tiles) {
+                texts.add(executor.submit(new Callable<String>() {
+                    public String call() throws TesseractException {
+                        return ocrService.recognize(rows(tile[0], tile[1]));
+                    }
+                }));
+            }
+            TextStitcher stitcher = new TextStitcher();
+            for (Future<String> text : texts) {
+                stitcher.append(text.get());
+            }
+            return stitcher.toString();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof TesseractException) {
+                throw (TesseractException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new TesseractException(cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Splits the stitched image into tiles of about the given height, cut at blank rows where possible.
+     *
+     * @param tileHeight The height of a tile.
+     * @return The first row and the height of each tile.
+     */
+    List<int[]> tiles(int tileHeight) {
+        List<int[]> tiles = new ArrayList<>();
+        int start = 0;
+        while (start < height) {
+            int end = start + tileHeight;
+            if (end + TILE_MARGIN >= height) {
+                tiles.add(new int[]{start, height - start});
+                break;
+            }
+            int blankRow = blankRows.previousSetBit(end);
+            if (blankRow > end - TILE_MARGIN) {
+                tiles.add(new int[]{start, blankRow + 1 - start});
+                start = blankRow + 1;
+            } else {
+                tiles.add(new int[]{start, end - start});
+                start = end - TILE_MARGIN;
+            }
+        }
+        return tiles;
+    }
+
+    private BufferedImage rows(int first, int count) {
+        BufferedImage image = new BufferedImage(width, count, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        int top = 0;
+        for (BufferedImage strip : strips) {
+            if (top + strip.getHeight() > first && top < first + count) {
+                graphics.drawImage(strip, 0, top - first, null);
+            }
+            top += strip.getHeight();
+        }
+        graphics.dispose();
+        return image;
+    }
+
+    /**
+     * Hashes each row of pixels of a frame.
+     *
+     * @param frame The frame.
+     * @return The hash of each row.
+     */
+    static long[] rowHashes(BufferedImage frame) {
+        int width = frame.getWidth();
+        long[] hashes = new long[frame.getHeight()];
+        int[] pixels = new int[width];
+        for (int y = 0; y < hashes.length; y++) {
+            frame.getRGB(0, y, width, 1, pixels, 0, width);
+            long hash = 1125899906842597L;
+            for (int pixel : pixels) {
+                hash = 31 * hash + (pixel & 0xffffff);
+            }
+            hashes[y] = hash;
+        }
+        return hashes;
+    }
+
+    /**
+     * Estimates how many rows the page moved up between two frames, from the votes of the rows that are unique within
+     * the current frame.
+     *
+     * @param previous The row hashes of the previous frame.
+     * @param current The row hashes of the current frame.
+     * @return The shift in rows, 0 if the frames are the same, or -1 if they share no rows.
+     */
+    static int estimateShift(long[] previous, long[] current) {
+        if (Arrays.equals(previous, current)) {
+            return 0;
+        }
+        Map<Long, Integer> previousRows = new HashMap<>();
+        for (int y = 0; y < previous.length; y++) {
+            // Rows that repeat within a frame, such as blank ones, are marked with -1 and do not vote
+            Integer row = previousRows.get(previous[y]);
+            previousRows.put(previous[y], row == null ? y : -1);
+        }
+        Map<Long, Integer> currentCounts = new HashMap<>();
+        for (long hash : current) {
+            Integer count = currentCounts.get(hash);
+            currentCounts.put(hash, count == null ? 1 : count + 1);
+        }
+
+        int[] votes = new int[previous.length];
+        // The number of voting rows above each row of the current frame
+        int[] voters = new int[current.length + 1];
+        for (int y = 0; y < current.length; y++) {
+            boolean unique = currentCounts.get(current[y]) == 1;
+            voters[y + 1] = voters[y] + (unique ? 1 : 0);
+            Integer row = unique ? previousRows.get(current[y]) : null;
+            if (row != null && row >= y) {
+                votes[row - y]++;
+            }
+        }
+        int bestShift = -1;
+        int bestVotes = 0;
+        for (int shift = 0; shift < votes.length; shift++) {
+            // The rows that could vote for the shift are the ones it overlaps with the previous frame
+            int overlap = Math.max(0, Math.min(current.length, previous.length - shift));
+            if (votes[shift] > bestVotes && votes[shift] >= voters[overlap] * MIN_VOTES) {
+                bestVotes = votes[shift];
+                bestShift = shift;
+            }
+        }
+        return bestShift;
+    }
+
+    /**
+     * Tells whether a row of pixels has a single color, ignoring a scroll bar on the right.
+     *
+     * @param pixels The pixels of the row.
+     * @return true for a blank row.
+     */
+    static boolean isBlankRow(int[] pixels) {
+        int width = pixels.length - Math.min(SCROLL_BAR_MARGIN, pixels.length / 10);
+        for (int x = 1; x < width; x++) {
+            if ((pixels[x] & 0xffffff) != (pixels[0] & 0xffffff)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,228 @@
+package org.odinware.odinrunes;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.StreamWriteFeature;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import org.json.JSONObject;
+import org.json.JSONString;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The JsonRequestBody class sends a JSON request body that is written with a streaming generator straight into the
+ * HTTP sink when the request is sent.
+ *
+ * <p>The request builders pass a {@code Writer} holding on to what the request is made of: the rendered context
+ * segments and the messages of the transcript. The JSON of the request therefore never exists as a tree, a String or
+ * a byte array; it is generated into the sink in chunks of the generator's buffer. Context segments are written as
+ * the JSON they were serialized to once, see {@code ContextRenderer.Segment.toJson}, and embedded files, such as the
+ * images of the context, are Base64 encoded into the sink, see {@code EncodedFileCache.writeEncoded}.
+ *
+ * <p>The content length is computed by running the writer into a sink that only counts the bytes. It is known
+ * unless the body embeds a file whose encoded content is not cached; such a body is sent chunked. The writer may run
+ * several times, for counting, for the key of the {@code ResponseCache}, and for retries, so it must write the same
+ * JSON every time.
+ *
+ * Basic Usage:
+ * 1. Implement {@code Writer} to write the JSON of the request with the generator of the {@code Output}.
+ * 2. Use {@code create} with the writer to get the request body.
+ * 3. Use {@code getTemplate} to get the JSON with the tokens of the embedded files in place of their content.
+ */
+public class JsonRequestBody extends RequestBody {
+    private static final Logger logger = Logger.getLogger(JsonRequestBody.class.getName());
+
+    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+    private static final JsonFactory jsonFactory = JsonFactory.builder()
+            .disable(StreamWriteFeature.AUTO_CLOSE_TARGET)
+            .build();
+
+    private static final long UNKNOWN_LENGTH = -2;
+
+    private final Writer writer;
+    private long contentLength = UNKNOWN_LENGTH;
+    // The encoded files the content length was counted with, so that the body matches it when it is sent
+    private final Map<File, byte[]> countedFiles = new HashMap<>();
+
+    /**
+     * Writes the JSON of a request body.
+     */
+    public interface Writer {
+        /**
+         * Writes a single JSON value with the generator of the output.
+         *
+         * @param output The output of the body.
+         * @throws IOException If writing fails.
+         */
+        void write(Output output) throws IOException;
+    }
+
+    private JsonRequestBody(Writer writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * Creates a request body writing its JSON with the writer when it is sent.
+     *
+     * @param writer The writer of the JSON.
+     * @return The request body.
+     */
+    public static JsonRequestBody create(Writer writer) {
+        return new JsonRequestBody(writer);
+    }
+
+    @Override
+    public MediaType contentType() {
+        return JSON;
+    }
+
+    @Override
+    public synchronized long contentLength() throws IOException {
+        if (contentLength == UNKNOWN_LENGTH) {
+            CountingOutputStream counter = new CountingOutputStream();
+            Output output = new Output(Mode.COUNT, counter, null);
+            write(output);
+            contentLength = output.embedsUncachedFiles ? -1 : counter.count + output.embeddedBytes;
+        }
+        return contentLength;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        write(new Output(Mode.SEND, sink.outputStream(), sink));
+    }
+
+    /**
+     * Returns the JSON of the body with the tokens of the embedded files in place of their content, which identifies
+     * the body without encoding any file.
+     *
+     * @return The JSON holding the tokens, or null if the writer fails.
+     */
+    public String getTemplate() {
+        Buffer buffer = new Buffer();
+        try {
+            write(new Output(Mode.TEMPLATE, buffer.outputStream(), buffer));
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "An error occurred: ", e);
+            return null;
+        }
+        return buffer.readUtf8();
+    }
+
+    private void write(Output output) throws IOException {
+        try (JsonGenerator generator = output.generator) {
+            writer.write(output);
+        }
+    }
+
+    /**
+     * What the body is written for.
+     */
+    private enum Mode {
+        SEND, COUNT, TEMPLATE
+    }
+
+    /**
+     * The output a {@code Writer} writes the JSON of the body to.
+     */
+    public final class Output {
+        private final Mode mode;
+        private final JsonGenerator generator;
+        private final BufferedSink sink;
+        private boolean embedsUncachedFiles = false;
+        private long embeddedBytes = 0;
+
+        private Output(Mode mode, OutputStream stream, BufferedSink sink) throws IOException {
+            this.mode = mode;
+            this.generator = jsonFactory.createGenerator(stream, JsonEncoding.UTF8);
+            this.sink = sink;
+        }
+
+        /**
+         * Returns the generator writing into the body.
+         *
+         * @return The JSON generator.
+         */
+        public JsonGenerator generator() {
+            return generator;
+        }
+
+        /**
+         * Writes JSON that is already serialized, such as the memoized node of a context segment, as a value.
+         *
+         * @param json The serialized JSON.
+         * @throws IOException If writing fails.
+         */
+        public void writeJson(JSONString json) throws IOException {
+            generator.writeRawValue(json.toJSONString());
+        }
+
+        /**
+         * Writes a string value made of the prefix and the Base64 content of the file, such as the data URL of an
+         * image, without ever holding the encoded file as a String.
+         *
+         * @param prefix The text before the encoded content.
+         * @param file The embedded file.
+         * @throws IOException If writing fails or the file cannot be read.
+         */
+        public void writeEmbeddedFile(String prefix, File file) throws IOException {
+            String quotedPrefix = JSONObject.quote(prefix);
+            // The opening quote and the prefix, leaving the string open for the encoded content
+            generator.writeRawValue(quotedPrefix.substring(0, quotedPrefix.length() - 1));
+            switch (mode) {
+                case COUNT:
+                    byte[] encoded = EncodedFileCache.cachedEncoding(file);
+                    if (encoded == null) {
+                        embedsUncachedFiles = true;
+                    } else {
+                        countedFiles.put(file, encoded);
+                        embeddedBytes += encoded.length;
+                    }
+                    break;
+                case TEMPLATE:
+                    generator.writeRaw(EncodedFileCache.tokenFor(file));
+                    break;
+                default:
+                    generator.flush();
+                    byte[] counted;
+                    synchronized (JsonRequestBody.this) {
+                        counted = countedFiles.get(file);
+                    }
+                    if (counted != null) {
+                        sink.write(counted);
+                    } else {
+                        EncodedFileCache.writeEncoded(file, sink);
+                    }
+                    break;
+            }
+            generator.writeRaw('"');
+        }
+    }
+
+    /**
+     * Counts the bytes written into it, and drops them.
+     */
+    private static final class CountingOutputStream extends OutputStream {
+        private long count = 0;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            count += length;
+        }
+    }
+}
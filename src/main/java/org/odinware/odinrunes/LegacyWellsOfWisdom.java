@@ -0,0 +1,24 @@
+package org.odinware.odinrunes;
+
+import okhttp3.Response;
+
+/**
+ * The LegacyWellsOfWisdom class is a convenience base for a GPT provider that returns its answer line by line, in the
+ * "data:" format of {@code WellsOfWisdom.finalStringFormatHelper}. It declares {@code readFromResponseStream} as
+ * abstract, so that the compiler asks for it, and inherits the default {@code streamEvents} that adapts the lines.
+ *
+ * Basic Usage:
+ * 1. Extend LegacyWellsOfWisdom, or implement WellsOfWisdom with {@code readFromResponseStream} as before.
+ * 2. Implement {@code readFromResponseStream} to return the next line of the answer, or null at its end.
+ */
+public abstract class LegacyWellsOfWisdom implements WellsOfWisdom {
+
+    /**
+     * Reads from the Response object.
+     *
+     * @param response The response object.
+     * @return A string generated by the gpt provider and read from the HTTP response object, or null at the end.
+     */
+    @Override
+    public abstract String readFromResponseStream(Response response);
+}
@@ -0,0 +1,288 @@
+package org.odinware.odinrunes;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The LiveFileCache class keeps the content of the files captured as "File (Live)" and "Image File (Live)" in
+ * memory, so that they are only read from disk when they change.
+ *
+ * <p>The content of a live file is needed for every request and whenever the settings panel lists the captured
+ * context. A cached content is served until the file changes: the directories of the cached files are watched with
+ * a {@code WatchService}, whose events drop the content of the changed files, and since watch events may arrive late
+ * or not at all on some platforms, the size and modification time of the file are compared on every read as well.
+ * Text files are decoded while they are streamed from disk, and are neither kept open nor mapped, so that they can be
+ * edited or replaced at any time.
+ *
+ * <p>Text files are decoded with the default charset, with their line endings normalized to "\n", the same way
+ * {@code TextHelper.readIntoString} reads them. Image files are encoded in Base64.
+ *
+ * Basic Usage:
+ * 1. Use {@code getDefault().readText} to get the content of a live text file, or {@code readBase64} for an image.
+ * 2. Use {@code getDiskReadCount} and {@code getStatistics} to see how often the files were read from disk.
+ * 3. Use {@code close} to stop watching the directories of a cache that is no longer needed.
+ */
+public class LiveFileCache {
+    private static final Logger logger = Logger.getLogger(LiveFileCache.class.getName());
+
+    private static final int MAX_ENTRIES = 64;
+
+    private static LiveFileCache defaultCache;
+
+    // Cached contents by kind and absolute path, in least recently used order
+    private final Map<String, CachedFile> entries = new LinkedHashMap<String, CachedFile>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedFile> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private final Map<WatchKey, Path> watchedDirectories = new ConcurrentHashMap<>();
+    private WatchService watchService;
+    private Thread watchThread;
+    private boolean watchServiceFailed = false;
+    private boolean closed = false;
+    private final AtomicLong diskReadCount = new AtomicLong();
+    private final AtomicLong hitCount = new AtomicLong();
+
+    /**
+     * Returns the application-wide cache.
+     *
+     * @return The default cache.
+     */
+    public static synchronized LiveFileCache getDefault() {
+        if (defaultCache == null) {
+            defaultCache = new LiveFileCache();
+        }
+        return defaultCache;
+    }
+
+    /**
+     * Returns the content of a text file, reading it from disk only if it changed since it was last read.
+     *
+     * @param filePath The path to the file.
+     * @return The content with "\n" line endings, or null if the file could not be read.
+     */
+    public String readText(String filePath) {
+        return read(filePath, false);
+    }
+
+    /**
+     * Returns the content of a file encoded in Base64, reading it from disk only if it changed since it was last read.
+     *
+     * @param filePath The path to the file.
+     * @return The Base64 encoded content, or null if the file could not be read.
+     */
+    public String readBase64(String filePath) {
+        return read(filePath, true);
+    }
+
+    private String read(String filePath, boolean base64) {
+        File file = new File(filePath).getAbsoluteFile();
+        String key = (base64 ? "base64:" : "text:") + file.getPath();
+        long length = file.length();
+        long lastModified = file.lastModified();
+        synchronized (this) {
+            CachedFile entry = entries.get(key);
+            if (entry != null && entry.length == length && entry.lastModified == lastModified) {
+                hitCount.incrementAndGet();
+                return entry.content;
+            }
+        }
+
+        String content;
+        try {
+            content = base64 ? Base64.getEncoder().encodeToString(Files.readAllBytes(file.toPath())) : decode(file);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "An error occurred: ", e);
+            return null;
+        }
+        diskReadCount.incrementAndGet();
+        synchronized (this) {
+            entries.put(key, new CachedFile(content, length, lastModified));
+        }
+        watch(file.toPath().getParent());
+        return content;
+    }
+
+    /**
+     * Reads a text file, decoding it while it is streamed from disk.
+     */
+    private static String decode(File file) throws IOException {
+        try (Reader reader = new InputStreamReader(Files.newInputStream(file.toPath()), Charset.defaultCharset())) {
+            StringBuilder text = new StringBuilder((int) Math.min(Integer.MAX_VALUE - 1, file.length()));
+            char[] buffer = new char[64 * 1024];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                text.append(buffer, 0, read);
+            }
+            return normalizeLines(text);
+        }
+    }
+
+    /**
+     * Ends every line with "\n", as reading the file line by line and appending "\n" to each line does.
+     */
+    static String normalizeLines(CharSequence text) {
+        StringBuilder normalized = new StringBuilder(text.length() + 1);
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c == '\r') {
+                if (i + 1 < length && text.charAt(i + 1) == '\n') {
+                    i++;
+                }
+                normalized.append('\n');
+            } else {
+                normalized.append(c);
+            }
+        }
+        if (normalized.length() > 0 && normalized.charAt(normalized.length() - 1) != '\n') {
+            normalized.append('\n');
+        }
+        return normalized.toString();
+    }
+
+    /**
+     * Watches the directory for changes of the cached files in it, starting the watch thread on first use.
+     */
+    private synchronized void watch(Path directory) {
+        if (directory == null || closed || watchServiceFailed || watchedDirectories.containsValue(directory)) {
+            return;
+        }
+        try {
+            if (watchService == null) {
+                final WatchService newWatchService = FileSystems.getDefault().newWatchService();
+                watchService = newWatchService;
+                watchThread = new Thread(new Runnable() {
+                    public void run() {
+                        processEvents(newWatchService);
+                    }
+                }, "odin-live-files");
+                watchThread.setDaemon(true);
+                watchThread.start();
+            }
+            WatchKey watchKey = directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            watchedDirectories.put(watchKey, directory);
+        } catch (IOException | UnsupportedOperationException e) {
+            // The size and modification time are still compared on every read
+            logger.log(Level.WARNING, "Could not watch " + directory + " for changes: ", e);
+            watchServiceFailed = watchService == null;
+        }
+    }
+
+    private void processEvents(WatchService watchService) {
+        while (true) {
+            WatchKey watchKey;
+            try {
+                watchKey = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path directory = watchedDirectories.get(watchKey);
+            if (directory != null) {
+                for (WatchEvent<?> event : watchKey.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        invalidate(directory.toString() + File.separator, true);
+                    } else {
+                        invalidate(directory.resolve((Path) event.context()).toString(), false);
+                    }
+                }
+            }
+            if (!watchKey.reset()) {
+                watchedDirectories.remove(watchKey);
+            }
+        }
+    }
+
+    /**
+     * Stops watching the directories of the cached files and ends the watch thread. The cache can still be read
+     * afterwards, comparing the size and modification time of the files only.
+     *
+     * @throws InterruptedException If the thread is interrupted while waiting for the watch thread to end.
+     */
+    public void close() throws InterruptedException {
+        Thread thread;
+        synchronized (this) {
+            closed = true;
+            thread = watchThread;
+            if (watchService != null) {
+                try {
+                    watchService.close();
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, "An error occurred: ", e);
+                }
+            }
+            watchService = null;
+            watchThread = null;
+            watchedDirectories.clear();
+        }
+        if (thread != null) {
+            thread.interrupt();
+            thread.join();
+        }
+    }
+
+    /**
+     * Drops the cached contents of the file, or of all files under the path if it is a prefix.
+     */
+    synchronized void invalidate(String path, boolean prefix) {
+        Iterator<String> keys = entries.keySet().iterator();
+        while (keys.hasNext()) {
+            String filePath = keys.next();
+            filePath = filePath.substring(filePath.indexOf(':') + 1);
+            if (prefix ? filePath.startsWith(path) : filePath.equals(path)) {
+                keys.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns how many times a live file was read from disk since startup.
+     *
+     * @return The number of disk reads.
+     */
+    public long getDiskReadCount() {
+        return diskReadCount.get();
+    }
+
+    /**
+     * Returns the disk reads and cache hits since startup.
+     *
+     * @return A summary of the counters.
+     */
+    public String getStatistics() {
+        return "LiveFileCache{diskReads=" + diskReadCount.get() + ", hits=" + hitCount.get() + "}";
+    }
+
+    private static final class CachedFile {
+        private final String content;
+        private final long length;
+        private final long lastModified;
+
+        private CachedFile(String content, long length, long lastModified) {
+            this.content = content;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+    }
+}
@@ -1,8 +1,11 @@
 package org.odinware.odinrunes;
+import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.util.List;
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
@@ -25,6 +28,8 @@ public class Main {
     private static JPanel settingsPanel;
     private static boolean settingsVisible = false;
     private static File selectedFile;
+    // The background timeshot, between the two times "Timeshot (OCR)" is added
+    private static TimeshotMonitor timeshotMonitor;
 
     static {
         selectedFile = new File("OdinSays.txt");
@@ -49,55 +54,198 @@ public class Main {
                 createAndShowGUI();
             }
         });
+        // Optionally open a connection to the configured GPT provider ahead of the first chat
+        HttpTransport.prewarm(gptSettingsJsonObject);
     }
 
 
     /**
-     * Serializes a Context object to a file.
+     * Serializes a Context object to a file, in the format of {@code ContextFile}.
      *
      * @param context  The Context object to be serialized.
      * @param filePath The path of the file where the Context object will be serialized.
+     * @return true if the file was written.
      */
-    public static void serializeContext(Context context, String filePath) {
+    public static boolean serializeContext(Context context, String filePath) {
         try {
-            FileOutputStream fileOut = new FileOutputStream(filePath);
-            ObjectOutputStream objectOut = new ObjectOutputStream(fileOut);
-
-            objectOut.writeObject(context);
-
-            objectOut.close();
-            fileOut.close();
+            ContextFile.write(context, new File(filePath));
 
             logger.info("Context object has been serialized and saved to " + filePath);
+            return true;
         } catch (IOException e) {
             logger.log(Level.SEVERE, "An error occurred: ", e);
+            return false;
         }
     }
 
     /**
-     * Deserializes a Context object from a file.
+     * Deserializes a Context object from a file, saved either by {@code ContextFile} or with Java serialization by
+     * earlier versions. The captured texts are decoded when they are first used.
      *
      * @param filePath The path of the file from which the Context object will be deserialized.
-     * @return The deserialized Context object.
+     * @return The deserialized Context object, or null if the file is not a valid context file.
      */
     public static Context deserializeContext(String filePath) {
         Context context = null;
 
         try {
-            FileInputStream fileIn = new FileInputStream(filePath);
-            ObjectInputStream objectIn = new ObjectInputStream(fileIn);
-
-            context = (Context) objectIn.readObject();
-
-            objectIn.close();
-            fileIn.close();
-        } catch (IOException | ClassNotFoundException e) {
+            context = ContextFile.read(new File(filePath));
+        } catch (IOException e) {
             logger.log(Level.SEVERE, "An error occurred: ", e);
         }
 
         return context;
     }
 
+    /**
+     * Shows the saved contexts of the context library, to search, load or delete them, or to import or export a context
+     * file.
+     */
+    private static void showContextLibraryDialog() {
+        final ContextLibrary library = ContextLibrary.getDefault();
+        final JDialog dialog = new JDialog(frame, "Context Library", true);
+        dialog.setLayout(new BorderLayout());
+
+        final JTextField searchField = new JTextField(40);
+        final DefaultListModel<ContextLibrary.Summary> listModel = new DefaultListModel<>();
+        final JList<ContextLibrary.Summary> contextList = new JList<>(listModel);
+        contextList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        final JLabel statisticsLabel = new JLabel();
+
+        final Runnable refresh = new Runnable() {
+            public void run() {
+                listModel.clear();
+                for (ContextLibrary.Summary summary : library.search(searchField.getText())) {
+                    listModel.addElement(summary);
+                }
+                statisticsLabel.setText(library.getStatistics().toString());
+            }
+        };
+        searchField.getDocument().addDocumentListener(new DocumentListener() {
+            public void insertUpdate(DocumentEvent e) {
+                refresh.run();
+            }
+
+            public void removeUpdate(DocumentEvent e) {
+                refresh.run();
+            }
+
+            public void changedUpdate(DocumentEvent e) {
+                refresh.run();
+            }
+        });
+
+        JPanel searchPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        searchPanel.add(new JLabel("Search: "));
+        searchPanel.add(searchField);
+        dialog.add(searchPanel, BorderLayout.NORTH);
+
+        JScrollPane scrollPane = new JScrollPane(contextList);
+        scrollPane.setPreferredSize(new Dimension(560, 300));
+        dialog.add(scrollPane, BorderLayout.CENTER);
+
+        JButton loadButton = new JButton("Load");
+        loadButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                ContextLibrary.Summary summary = contextList.getSelectedValue();
+                if (summary == null) {
+                    return;
+                }
+                try {
+                    context = library.load(summary.getName());
+                    dialog.dispose();
+                    toggleSettingsPanelVisibility();
+                    toggleSettingsPanelVisibility();
+                } catch (IOException ex) {
+                    logger.log(Level.SEVERE, "An error occurred: ", ex);
+                    JOptionPane.showMessageDialog(dialog, "Something is wrong with the saved context: " + summary.getName());
+                }
+            }
+        });
+
+        JButton deleteButton = new JButton("Delete");
+        deleteButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                ContextLibrary.Summary summary = contextList.getSelectedValue();
+                if (summary != null && JOptionPane.showConfirmDialog(dialog, "Delete the context " + summary.getName() + "?", "Delete Context", JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION) {
+                    library.delete(summary.getName());
+                    refresh.run();
+                }
+            }
+        });
+
+        JButton cleanUpButton = new JButton("Clean Up");
+        cleanUpButton.setToolTipText("Deletes the stored captures no saved context refers to anymore.");
+        cleanUpButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                int deleted = library.collectGarbage();
+                refresh.run();
+                JOptionPane.showMessageDialog(dialog, "Deleted " + deleted + " unused captures.");
+            }
+        });
+
+        // Contexts saved into files by earlier versions can still be loaded, and saved into the library
+        JButton importButton = new JButton("Import File...");
+        importButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                JFileChooser fileChooser = new JFileChooser();
+                if (fileChooser.showOpenDialog(dialog) == JFileChooser.APPROVE_OPTION) {
+                    File tempFile = fileChooser.getSelectedFile();
+                    Context tempContext = deserializeContext(tempFile.getAbsolutePath());
+                    if (tempContext == null) {
+                        JOptionPane.showMessageDialog(dialog, "Something is wrong with the selected context file: " + tempFile.getAbsolutePath());
+                    } else {
+                        context = tempContext;
+                        dialog.dispose();
+                        toggleSettingsPanelVisibility();
+                        toggleSettingsPanelVisibility();
+                    }
+                }
+            }
+        });
+
+        // A context file is the way to share a context, exported from the selected saved context or the current one
+        JButton exportButton = new JButton("Export File...");
+        exportButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                ContextLibrary.Summary summary = contextList.getSelectedValue();
+                Context exportedContext = context;
+                if (summary != null) {
+                    try {
+                        exportedContext = library.load(summary.getName());
+                    } catch (IOException ex) {
+                        logger.log(Level.SEVERE, "An error occurred: ", ex);
+                        JOptionPane.showMessageDialog(dialog, "Something is wrong with the saved context: " + summary.getName());
+                        return;
+                    }
+                }
+                JFileChooser fileChooser = new JFileChooser();
+                if (fileChooser.showSaveDialog(dialog) == JFileChooser.APPROVE_OPTION) {
+                    File tempFile = fileChooser.getSelectedFile();
+                    if (!serializeContext(exportedContext, tempFile.getAbsolutePath())) {
+                        JOptionPane.showMessageDialog(dialog, "Could not export the context to: " + tempFile.getAbsolutePath());
+                    }
+                }
+            }
+        });
+
+        JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        buttonPanel.add(loadButton);
+        buttonPanel.add(deleteButton);
+        buttonPanel.add(cleanUpButton);
+        buttonPanel.add(importButton);
+        buttonPanel.add(exportButton);
+        JPanel bottomPanel = new JPanel(new BorderLayout());
+        bottomPanel.add(statisticsLabel, BorderLayout.NORTH);
+        bottomPanel.add(buttonPanel, BorderLayout.SOUTH);
+        dialog.add(bottomPanel, BorderLayout.SOUTH);
+
+        refresh.run();
+        dialog.pack();
+        dialog.setLocationRelativeTo(frame);
+        dialog.setVisible(true);
+    }
+
     /**
      * Creates and shows the main graphical user interface (GUI) of the application.
      */
@@ -114,7 +262,7 @@ public class Main {
         mainComponentsPanel.setLayout(new FlowLayout());
 
         // Create the first dropdown menu
-        String[] options = {"Clipboard", "Regionshot (OCR)", "Scrollshot (OCR)", "Text File (Live)","Image File (Live)"};
+        String[] options = {"Clipboard", "Regionshot (OCR)", "Scrollshot (OCR)", "Timeshot (OCR)", "Text File (Live)","Image File (Live)"};
         final JComboBox<String> firstDropdown = new JComboBox<>(options);
         firstDropdown.setBackground(new Color(189, 219, 225)); // RGB values for a blue-grey shade
 
@@ -145,6 +293,27 @@ public class Main {
                                 logger.info(selectedArgument);
                                 toggleSettingsPanelVisibility();
                                 if(!settingsVisible) toggleSettingsPanelVisibility();
+                            } else if (selectedFunction.equals("Timeshot (OCR)")) {
+                                if (timeshotMonitor == null) {
+                                    GraphicalInteractionsHelper giHelper = new GraphicalInteractionsHelper();
+                                    timeshotMonitor = giHelper.startTimeshotMonitor();
+                                    JOptionPane.showMessageDialog(frame, "OK: I am capturing the text of the selected region every 2 seconds in the background, keeping its last " + TimeshotMonitor.getDefaultCapacity() + " changes. \nAdd the Timeshot (OCR) context again to stop and add the timestamped snapshots to the context.");
+                                } else {
+                                    TimeshotMonitor monitor = timeshotMonitor;
+                                    timeshotMonitor = null;
+                                    try {
+                                        monitor.stop();
+                                    } catch (InterruptedException ex) {
+                                        logger.log(Level.SEVERE, "An error occurred: ", ex);
+                                    }
+                                    if (monitor.getFailure() != null) {
+                                        JOptionPane.showMessageDialog(frame, "An error occurred:\n" + monitor.getFailure().getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                                    }
+                                    context.addCapturedData(monitor.getText(),"Timeshot (OCR)");
+                                    logger.info(selectedArgument);
+                                    toggleSettingsPanelVisibility();
+                                    if(!settingsVisible) toggleSettingsPanelVisibility();
+                                }
                             } else if (selectedFunction.equals("Regionshot (OCR)")) {
                                 GraphicalInteractionsHelper giHelper = new GraphicalInteractionsHelper();
                                 context.addCapturedData(giHelper.captureContextFromRegionshot(),"Regionshot (OCR)");
@@ -161,7 +330,7 @@ public class Main {
                                 int returnValue = fileChooser.showOpenDialog(null);
                                 if (returnValue == JFileChooser.APPROVE_OPTION) {
                                     File tempFile = fileChooser.getSelectedFile();
-                                    if(TextHelper.readIntoString(tempFile.getAbsolutePath())==null) {
+                                    if(LiveFileCache.getDefault().readText(tempFile.getAbsolutePath())==null) {
                                         // Do something with the selected file, e.g., display its path
                                         JOptionPane.showMessageDialog(frame, "ERROR: Something is wrong with the selected file: " + tempFile.getAbsolutePath());
                                     }else{
@@ -191,13 +360,32 @@ public class Main {
             }
         });
 
-        // Create a listener for the chat button
+        // Create a label showing the state of the chat turn on the selected file
+        final JLabel chatStatusLabel = new JLabel(" ");
+        // Reserve room for the longest status, so the layout does not jump while an answer streams in
+        chatStatusLabel.setPreferredSize(new JLabel("Receiving: 0000000 characters").getPreferredSize());
+
+        // Create a listener for the chat button. A click starts a turn in the background, or cancels the running one.
         chatButton.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
-                TextHelper odinSays = new TextHelper(selectedFile.getAbsolutePath());
-                GptOpsHelper.streamResponse(odinSays,context,gptSettingsJsonObject);
+                ChatTurn runningTurn = ChatEngine.getActiveTurn(selectedFile.getAbsolutePath());
+                if (runningTurn != null) {
+                    runningTurn.cancel();
+                } else {
+                    TextHelper odinSays = new TextHelper(selectedFile.getAbsolutePath());
+                    ChatEngine.submit(odinSays, context, gptSettingsJsonObject);
+                }
+                refreshChatState(chatButton, chatStatusLabel);
+            }
+        });
+
+        // Keep the chat button and status label in step with the running turn
+        javax.swing.Timer chatStateTimer = new javax.swing.Timer(250, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                refreshChatState(chatButton, chatStatusLabel);
             }
         });
+        chatStateTimer.start();
 
         // Create a listener for the settings button
         settingsButton.addActionListener(new ActionListener() {
@@ -208,6 +396,7 @@ public class Main {
 
         // Add labels and components to the main components panel
         mainComponentsPanel.add(chatButton);
+        mainComponentsPanel.add(chatStatusLabel);
 
         // Add some separators
         int some=8;
@@ -290,6 +479,66 @@ public class Main {
 
 
 
+    /**
+     * Updates the chat button and status label to show whether a chat turn is running on the selected file.
+     *
+     * @param chatButton The chat button.
+     * @param chatStatusLabel The label showing the progress of the running turn.
+     */
+    private static void refreshChatState(JButton chatButton, JLabel chatStatusLabel) {
+        ChatTurn runningTurn = ChatEngine.getActiveTurn(selectedFile.getAbsolutePath());
+        String buttonText;
+        String statusText;
+        if (runningTurn == null) {
+            buttonText = "Chat";
+            ResponseCache responseCache = ResponseCache.getDefault();
+            statusText = responseCache.getHitCount() + responseCache.getMissCount() > 0 ? responseCache.getStatistics() : " ";
+        } else if (runningTurn.isCancelled()) {
+            buttonText = "Cancel";
+            statusText = "Cancelling...";
+        } else if (!runningTurn.isStarted()) {
+            buttonText = "Cancel";
+            statusText = "Queued...";
+        } else if (runningTurn.getCharactersReceived() == 0) {
+            buttonText = "Cancel";
+            statusText = "Waiting for the answer...";
+        } else {
+            buttonText = "Cancel";
+            statusText = "Receiving: " + runningTurn.getCharactersReceived() + " characters";
+        }
+        chatStatusLabel.setText(statusText);
+        if (!buttonText.equals(chatButton.getText())) {
+            chatButton.setText(buttonText);
+            frame.pack();
+        }
+    }
+
+    /**
+     * Adds the multi-provider chat mode selected in the settings panel to the GPT settings.
+     * The providers are read from the ODIN_RUNES_MULTI_PROVIDERS environment variable, and default to
+     * OpenAI (gpt-4o-mini), Google's VertexAI (gemini-pro) and Ollama.
+     *
+     * @param settings The GPT settings to add the mode to.
+     * @param chatModeIndex The index selected in the chat mode dropdown.
+     */
+    private static void putChatMode(JSONObject settings, int chatModeIndex) {
+        if (chatModeIndex == 0) {
+            return;
+        }
+        settings.put("chatMode", chatModeIndex == 1 ? MultiProviderChat.FAN_OUT : MultiProviderChat.RACE);
+        String providers = System.getenv("ODIN_RUNES_MULTI_PROVIDERS");
+        if (providers == null || providers.trim().isEmpty()) {
+            providers = "OpenAI (gpt-4o-mini);Google's VertexAI (gemini-pro);Ollama";
+        }
+        JSONArray providerArray = new JSONArray();
+        for (String provider : providers.split(";")) {
+            if (!provider.trim().isEmpty()) {
+                providerArray.put(provider.trim());
+            }
+        }
+        settings.put("providers", providerArray);
+    }
+
     /**
      * Toggles the visibility of the settings panel.
      */
@@ -334,6 +583,18 @@ public class Main {
 
             rowPanelG1.add(sliderLabel);
             rowPanelG1.add(slider);
+
+            // Let several providers answer each prompt, see MultiProviderChat
+            String[] chatModes = {"Selected provider only", "All providers (fan-out)", "Fastest provider (race)"};
+            final JComboBox<String> chatModeDropdown = new JComboBox<>(chatModes);
+            String selectedChatMode = gptSettingsJsonObject.optString("chatMode", MultiProviderChat.SINGLE);
+            if (selectedChatMode.equals(MultiProviderChat.FAN_OUT)) {
+                chatModeDropdown.setSelectedIndex(1);
+            } else if (selectedChatMode.equals(MultiProviderChat.RACE)) {
+                chatModeDropdown.setSelectedIndex(2);
+            }
+            chatModeDropdown.setToolTipText("<html>The providers asked in the fan-out and race modes can be set with the ODIN_RUNES_MULTI_PROVIDERS<br>environment variable, as a ';' separated list of the provider names shown in the first dropdown.</html>");
+            rowPanelG1.add(chatModeDropdown);
             // Create a JButton
             JButton applyGPTSettingsButton = new JButton("Apply");
 
@@ -416,6 +677,7 @@ public class Main {
                                 gptSettingsJsonObject.put("temperature", sliderValue / 100.0);
                                 gptSettingsJsonObject.put("model", model);
                                 gptSettingsJsonObject.put("backendURI", backendURI);
+                                putChatMode(gptSettingsJsonObject, chatModeDropdown.getSelectedIndex());
 
                                 // Log the JSON representation
                                 logger.info("Selected Values (JSON): " + gptSettingsJsonObject.toString());
@@ -442,6 +704,7 @@ public class Main {
                         gptSettingsJsonObject = new JSONObject();
                         gptSettingsJsonObject.put("gptProvider", selectedOption);
                         gptSettingsJsonObject.put("temperature", sliderValue / 100.0);
+                        putChatMode(gptSettingsJsonObject, chatModeDropdown.getSelectedIndex());
 
                         // Log the JSON representation
                         logger.info("Selected Values (JSON): " + gptSettingsJsonObject.toString());
@@ -475,16 +738,23 @@ public class Main {
 
                 rowPanel.add(new JLabel(capturedData.getCaptureMethod()));
                 rowPanel.add(new JLabel(" was used to load "));
-                String capturedText = capturedData.getCapturedText();
-                logger.info("captured text is: " + capturedText);
-                int tempLength=0;
-                if (capturedText != null) {
-                    tempLength=capturedText.length();
+                String capturedText;
+                int tempLength;
+                if (capturedData.isLive()) {
+                    // The content of the file, served from the LiveFileCache until the file changes
+                    String fileContent = capturedData.getCapturedText();
+                    capturedText = fileContent.substring(0, Math.min(25, fileContent.length()));
+                    tempLength = fileContent.length();
+                } else {
+                    // Shown from the preview, so that loaded captures are only decoded when they are used
+                    capturedText = capturedData.getPreview(25);
+                    tempLength = capturedData.getRawLength();
                 }
+                logger.info("captured text is: " + capturedText);
 
-                // Truncate the text to the first 15 characters followed by "..."
-                if (capturedText.length() > 25) {
-                    capturedText = capturedText.substring(0, 25) + "... ";
+                // Truncate the text to the first 25 characters followed by "..."
+                if (tempLength > 25) {
+                    capturedText = capturedText + "... ";
                 }
                 rowPanel.add(new JLabel("<html><b><font color='blue'>'" + capturedText + "'</font></b> | Size: " + tempLength + " characters.</html>"));
 
@@ -519,49 +789,38 @@ public class Main {
             JPanel rowPanelC2 = new JPanel(); // Create a separate panel for each row
             rowPanelC2.setLayout(new FlowLayout(FlowLayout.LEFT));
 
-            // Create a button to create a file
+            // Create a button to save the context into the context library
             JButton createFileButton = new JButton("Save Context");
             createFileButton.addActionListener(new ActionListener() {
                 public void actionPerformed(ActionEvent e) {
-                    JFileChooser fileChooser = new JFileChooser();
-                    int returnValue = fileChooser.showSaveDialog(null);
-                    if (returnValue == JFileChooser.APPROVE_OPTION) {
-                        File selectedContextFile = fileChooser.getSelectedFile();
-                        try {
-                            boolean fileCreated = selectedContextFile.createNewFile();
-                            if (fileCreated) {
-                                serializeContext(context,selectedContextFile.getAbsolutePath());
-                                JOptionPane.showMessageDialog(frame, "Successfully serialized the context to: " + selectedContextFile.getAbsolutePath());
-                            } else {
-                                JOptionPane.showMessageDialog(frame, "Context file with similar name already exists!");
-                            }
-                        } catch (IOException ex) {
-                            logger.log(Level.SEVERE, "Error message: ", e);
+                    String name = JOptionPane.showInputDialog(frame, "Save the context into the library as:", "Save Context", JOptionPane.PLAIN_MESSAGE);
+                    if (name == null || name.trim().isEmpty()) {
+                        return;
+                    }
+                    ContextLibrary library = ContextLibrary.getDefault();
+                    for (ContextLibrary.Summary summary : library.list()) {
+                        if (summary.getName().equals(name.trim())
+                                && JOptionPane.showConfirmDialog(frame, "A context named " + summary.getName() + " already exists. Replace it?", "Save Context", JOptionPane.YES_NO_OPTION) != JOptionPane.YES_OPTION) {
+                            return;
                         }
                     }
+                    try {
+                        library.save(name.trim(), context);
+                        JOptionPane.showMessageDialog(frame, "Successfully saved the context as: " + name.trim());
+                    } catch (IOException ex) {
+                        logger.log(Level.SEVERE, "An error occurred: ", ex);
+                        JOptionPane.showMessageDialog(frame, "Could not save the context: " + ex.getMessage());
+                    }
                 }
             });
 
             rowPanelC2.add(createFileButton);
 
-            // Create a button to open a file
+            // Create a button to open a context from the context library
             JButton openFileButton = new JButton("Load Context");
             openFileButton.addActionListener(new ActionListener() {
                 public void actionPerformed(ActionEvent e) {
-                    JFileChooser fileChooser = new JFileChooser();
-                    int returnValue = fileChooser.showOpenDialog(null);
-                    if (returnValue == JFileChooser.APPROVE_OPTION) {
-                        File tempFile = fileChooser.getSelectedFile();
-                        Context tempContext=deserializeContext(tempFile.getAbsolutePath());
-                        if(tempContext == null) {
-                            // Do something with the selected file, e.g., display its path
-                            JOptionPane.showMessageDialog(frame, "Something is wrong with the selected context file: " + selectedFile.getAbsolutePath());
-                        }else{
-                            context=tempContext;
-                            toggleSettingsPanelVisibility();
-                            toggleSettingsPanelVisibility();
-                        }
-                    }
+                    showContextLibraryDialog();
                 }
             });
             rowPanelC2.add(openFileButton);
@@ -0,0 +1,611 @@
+package org.odinware.odinrunes;
+
+import okhttp3.Request;
+import okhttp3.Response;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The MultiProviderChat class sends one prompt to several GPT providers at the same time.
+ *
+ * <p>In fan-out mode every provider answers. Each answer is streamed live into a sibling of the conversation file,
+ * named after the provider (for example {@code chat.openai-gpt-4o-mini.txt}), which holds a copy of the conversation
+ * and can be continued on its own. Once a provider is done, its answer is also appended to the conversation file as
+ * a separate Odin section, headed by the model that wrote it.
+ *
+ * <p>In race mode the providers compete for the first token. The first provider to deliver a piece of the answer is
+ * streamed into the conversation file and the calls to all other providers are cancelled.
+ *
+ * <p>Both modes use the {@code buildRequest}, {@code executeRequest} and {@code streamEvents} methods of the existing
+ * {@code WellsOfWisdom} implementations. They are selected with the "chatMode" attribute of the GPT settings, and the
+ * providers are listed in its "providers" attribute, either by name or as complete settings objects. Providers given
+ * by name inherit the remaining settings, such as the temperature, from the GPT settings.
+ *
+ * Basic Usage:
+ * 1. Set "chatMode" to {@code FAN_OUT} or {@code RACE} and list the providers in "providers".
+ * 2. Start the chat turn as usual, {@code GptOpsHelper.streamResponse} hands multi-provider settings over to this class.
+ */
+public class MultiProviderChat {
+    private static final Logger logger = Logger.getLogger(MultiProviderChat.class.getName());
+
+    public static final String SINGLE = "single";
+    public static final String FAN_OUT = "fanOut";
+    public static final String RACE = "race";
+
+    private static final String FAN_OUT_DECISION = "fan-out";
+    // The user info that TextHelper.appendUserInfo writes before each prompt
+    private static final byte[] USER_INFO = "<!-- =====[ User ]=====[ : ] -->\n".getBytes(Charset.defaultCharset());
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "odin-provider-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Returns true if the settings ask for the prompt to be answered by several providers.
+     *
+     * @param gptSettingsJsonObject The settings for the GPT provider.
+     * @return true for fan-out or race settings that list at least one provider.
+     */
+    public static boolean isMultiProvider(JSONObject gptSettingsJsonObject) {
+        String chatMode = gptSettingsJsonObject.optString("chatMode", SINGLE);
+        JSONArray providers = gptSettingsJsonObject.optJSONArray("providers");
+        return (FAN_OUT.equals(chatMode) || RACE.equals(chatMode)) && providers != null && providers.length() > 0;
+    }
+
+    /**
+     * Sends the prompt to all providers listed in the settings, in the mode given by the settings.
+     *
+     * @param odinSays The TextHelper object of the conversation file.
+     * @param context The Context object containing the captured data.
+     * @param gptSettingsJsonObject The multi-provider settings.
+     * @param chatTurn The turn this response belongs to, or null.
+     */
+    public static void streamResponse(TextHelper odinSays, Context context, JSONObject gptSettingsJsonObject, ChatTurn chatTurn) {
+        boolean race = RACE.equals(gptSettingsJsonObject.getString("chatMode"));
+        List<Contender> contenders = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        for (JSONObject providerSettings : providerSettings(gptSettingsJsonObject)) {
+            String name = slug(providerSettings);
+            String uniqueName = name;
+            for (int i = 2; !names.add(uniqueName); i++) {
+                uniqueName = name + "-" + i;
+            }
+            contenders.add(new Contender(uniqueName, providerSettings, race ? RACE : FAN_OUT_DECISION, 0));
+        }
+
+        if (race) {
+            streamRace(odinSays, context, contenders, chatTurn);
+            return;
+        }
+        TranscriptMessages odinMessages = odinSays.openMessages();
+        String prompt;
+        try {
+            prompt = readLastPrompt(odinSays.getFilePath());
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "An error occurred: ", e);
+            prompt = null;
+        }
+        odinSays.openTranscriptSession();
+        try {
+            odinSays.appendStringToFile("\n");
+            odinSays.appendOverInfo();
+            fanOut(odinSays, context, odinMessages, prompt, contenders, chatTurn);
+        } finally {
+            odinSays.closeTranscriptSession();
+        }
+    }
+
+    /**
+     * Lets the contenders race for the first token and streams the answer of the winner into the conversation file.
+     * A contender with a start delay is only asked once its delay has passed without any token, or as soon as all
+     * contenders before it have failed.
+     *
+     * @param odinSays The TextHelper object of the conversation file.
+     * @param context The Context object containing the captured data.
+     * @param contenders The contenders, in order of preference.
+     * @param chatTurn The turn this response belongs to, or null.
+     */
+    static void streamRace(TextHelper odinSays, Context context, List<Contender> contenders, ChatTurn chatTurn) {
+        TranscriptMessages odinMessages = odinSays.openMessages();
+        odinSays.openTranscriptSession();
+        try {
+            odinSays.appendStringToFile("\n");
+            odinSays.appendOverInfo();
+            race(odinSays, context, odinMessages, contenders, chatTurn);
+        } finally {
+            odinSays.closeTranscriptSession();
+        }
+    }
+
+    /**
+     * Returns the settings of each provider listed in the multi-provider settings.
+     *
+     * @param gptSettingsJsonObject The multi-provider settings.
+     * @return The settings to build the request of each provider with.
+     */
+    static List<JSONObject> providerSettings(JSONObject gptSettingsJsonObject) {
+        return providerSettings(gptSettingsJsonObject, "providers");
+    }
+
+    /**
+     * Returns the settings of each provider listed in the specified attribute of the settings.
+     *
+     * @param gptSettingsJsonObject The settings listing the providers.
+     * @param attribute The attribute holding the providers, by name or as settings objects.
+     * @return The settings to build the request of each provider with.
+     */
+    static List<JSONObject> providerSettings(JSONObject gptSettingsJsonObject, String attribute) {
+        JSONObject defaults = new JSONObject(gptSettingsJsonObject.toString());
+        defaults.remove("chatMode");
+        defaults.remove(attribute);
+
+        List<JSONObject> providerSettings = new ArrayList<>();
+        JSONArray providers = gptSettingsJsonObject.getJSONArray(attribute);
+        for (int i = 0; i < providers.length(); i++) {
+            JSONObject settings = new JSONObject(defaults.toString());
+            Object provider = providers.get(i);
+            if (provider instanceof JSONObject) {
+                JSONObject providerObject = (JSONObject) provider;
+                for (String key : providerObject.keySet()) {
+                    settings.put(key, providerObject.get(key));
+                }
+            } else {
+                settings.put("gptProvider", provider.toString());
+            }
+            providerSettings.add(settings);
+        }
+        return providerSettings;
+    }
+
+    private static void fanOut(final TextHelper odinSays, final Context context, final TranscriptMessages odinMessages,
+                               final String prompt, List<Contender> contenders, final ChatTurn chatTurn) {
+        // A new sibling starts from the conversation as it is now, prompt included
+        odinSays.flushTranscriptSession();
+        List<CompletableFuture<Void>> answers = new ArrayList<>();
+        for (final Contender contender : contenders) {
+            answers.add(CompletableFuture.runAsync(new Runnable() {
+                public void run() {
+                    String section = answerIntoSibling(odinSays, context, odinMessages, prompt, contender,
+                            chatTurn);
+                    if (section != null) {
+                        odinSays.appendStringToFile(section);
+                    }
+                }
+            }, executor));
+        }
+        CompletableFuture.allOf(answers.toArray(new CompletableFuture<?>[0])).join();
+        odinSays.appendUserInfo();
+    }
+
+    /**
+     * Streams the answer of one provider into a sibling of the conversation file. A new sibling starts as a copy of
+     * the conversation, an existing one keeps its own history and only gets the new prompt, so that it can be
+     * continued on its own between the turns.
+     *
+     * @param odinMessages The messages of the conversation, for a new sibling.
+     * @param prompt The prompt after the last user info of the conversation, or null if it has none.
+     * @return The Odin section holding the answer, or null if the sibling could not be written.
+     */
+    private static String answerIntoSibling(TextHelper odinSays, Context context, TranscriptMessages odinMessages,
+                                            String prompt, Contender contender, ChatTurn chatTurn) {
+        String siblingPath = siblingPath(odinSays.getFilePath(), contender.name);
+        File siblingFile = new File(siblingPath);
+        boolean newSibling = prompt == null || !siblingFile.exists();
+        TranscriptMessages messages = odinMessages;
+        long answerOffset;
+        try {
+            if (newSibling) {
+                Files.copy(new File(odinSays.getFilePath()).toPath(), siblingFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "An error occurred: ", e);
+            return null;
+        }
+        TextHelper sibling = new TextHelper(siblingPath);
+        try {
+            if (!newSibling) {
+                try (RandomAccessFile file = new RandomAccessFile(siblingFile, "r")) {
+                    if (lastIndexOfUserInfo(file) != file.length() - USER_INFO.length) {
+                        sibling.appendUserInfo();
+                    }
+                }
+                sibling.appendStringToFile(prompt);
+                messages = sibling.openMessages();
+                sibling.appendStringToFile("\n");
+                sibling.appendOverInfo();
+            }
+            answerOffset = siblingFile.length();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "An error occurred: ", e);
+            return null;
+        }
+
+        sibling.openTranscriptSession();
+        GptOpsHelper.TranscriptEventListener listener = new GptOpsHelper.TranscriptEventListener(sibling, chatTurn);
+        contender.attempt = ProviderRouter.begin(contender.settings, contender.decision);
+        listener.setAttempt(contender.attempt);
+        try {
+            answer(context, messages, contender, chatTurn, listener);
+        } catch (Exception e) {
+            logFailure(contender, chatTurn, e);
+            listener.onEvent(WisdomEvent.error("An error occurred: " + e));
+        }
+        listener.closeAnswer();
+        if (chatTurn != null && chatTurn.isCancelled()) {
+            contender.attempt.abandon();
+        } else if (listener.hasError()) {
+            contender.attempt.fail();
+        } else {
+            contender.attempt.succeed();
+        }
+        sibling.closeTranscriptSession();
+
+        String section = null;
+        try {
+            section = readFrom(siblingPath, answerOffset);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "An error occurred: ", e);
+        }
+        sibling.appendUserInfo();
+        logger.info("The answer of " + contender.name + " is in " + siblingPath);
+        return section;
+    }
+
+    private static void race(TextHelper odinSays, final Context context, final TranscriptMessages odinMessages,
+                             final List<Contender> contenders, final ChatTurn chatTurn) {
+        final Race race = new Race(contenders, new GptOpsHelper.TranscriptEventListener(odinSays, chatTurn));
+        final long startTime = System.currentTimeMillis();
+        List<CompletableFuture<Void>> answers = new ArrayList<>();
+        for (final Contender contender : contenders) {
+            answers.add(CompletableFuture.runAsync(new Runnable() {
+                public void run() {
+                    if (!race.awaitStart(contender, chatTurn)) {
+                        return;
+                    }
+                    contender.attempt = ProviderRouter.begin(contender.settings, contender.decision);
+                    try {
+                        answer(context, odinMessages, contender, chatTurn, new RaceEventListener(race, contender, startTime));
+                        if (race.getWinner() == contender) {
+                            if (race.transcriptListener.hasError()) {
+                                contender.attempt.fail();
+                            } else {
+                                contender.attempt.succeed();
+                            }
+                        } else {
+                            race.fail(contender, contender.failure != null ? contender.failure : "no answer", chatTurn);
+                        }
+                    } catch (Exception e) {
+                        if (race.getWinner() != contender) {
+                            race.fail(contender, e.toString(), chatTurn);
+                        } else {
+                            logFailure(contender, chatTurn, e);
+                            contender.attempt.fail();
+                            race.transcriptListener.onEvent(WisdomEvent.error("An error occurred: " + e));
+                        }
+                    }
+                }
+            }, executor));
+        }
+        CompletableFuture.allOf(answers.toArray(new CompletableFuture<?>[0])).join();
+
+        if (race.getWinner() == null) {
+            StringBuilder failures = new StringBuilder("None of the providers delivered an answer.\n");
+            for (Contender contender : contenders) {
+                failures.append(contender.name).append(": ")
+                        .append(contender.failure != null ? contender.failure : "no answer").append("\n");
+            }
+            race.transcriptListener.onEvent(WisdomEvent.error(failures.toString()));
+        }
+        race.transcriptListener.finish();
+    }
+
+    /**
+     * Builds, sends and streams the request of one provider, unless the provider has already lost a race.
+     */
+    private static void answer(Context context, TranscriptMessages odinMessages, Contender contender, ChatTurn chatTurn,
+                               WisdomEventListener listener) throws Exception {
+        WellsOfWisdom wellsOfWisdom = GptOpsHelper.wellsOfWisdomFor(contender.settings.getString("gptProvider"));
+        // The messages are read-only, so all providers share them
+        Request request = GptOpsHelper.buildCustomRequest(wellsOfWisdom, context, odinMessages, contender.settings, chatTurn);
+        if (request == null || contender.lost || (chatTurn != null && chatTurn.isCancelled())) {
+            return;
+        }
+        contender.compaction = HistoryCompactor.describe(request);
+        if (listener instanceof GptOpsHelper.TranscriptEventListener) {
+            ((GptOpsHelper.TranscriptEventListener) listener).setCompaction(contender.compaction);
+        }
+        Request.Builder builder = request.newBuilder().tag(Contender.class, contender);
+        if (chatTurn != null) {
+            builder.tag(ChatTurn.class, chatTurn);
+        }
+        try (Response response = wellsOfWisdom.executeRequest(builder.build())) {
+            if (response.body() != null) {
+                wellsOfWisdom.streamEvents(response, listener);
+            }
+        }
+    }
+
+    private static void logFailure(Contender contender, ChatTurn chatTurn, Exception e) {
+        if (chatTurn != null && chatTurn.isCancelled()) {
+            logger.info("The chat turn was cancelled while " + contender.name + " was answering: " + e);
+        } else {
+            logger.log(Level.SEVERE, "An error occurred: ", e);
+        }
+    }
+
+    /**
+     * Returns the path of the sibling file holding the answer of the named provider.
+     *
+     * @param filePath the path to the conversation file
+     * @param name the name of the provider
+     * @return the path to the sibling file
+     */
+    static String siblingPath(String filePath, String name) {
+        File file = new File(filePath);
+        String fileName = file.getName();
+        int dot = fileName.lastIndexOf('.');
+        String siblingName = dot > 0
+                ? fileName.substring(0, dot) + "." + name + fileName.substring(dot)
+                : fileName + "." + name;
+        return new File(file.getAbsoluteFile().getParentFile(), siblingName).getPath();
+    }
+
+    private static String slug(JSONObject providerSettings) {
+        String name = providerSettings.getString("gptProvider");
+        if ("Ollama".equals(name) && providerSettings.has("model")) {
+            name = name + " " + providerSettings.getString("model");
+        }
+        String slug = name.toLowerCase().replaceAll("[^a-z0-9.]+", "-").replaceAll("^-+|-+$", "");
+        return slug.isEmpty() ? "provider" : slug;
+    }
+
+    /**
+     * Reads the prompt of the conversation, which follows its last user info.
+     *
+     * @return The prompt, or null if the conversation has no user info yet.
+     */
+    private static String readLastPrompt(String filePath) throws IOException {
+        long userInfoOffset;
+        try (RandomAccessFile file = new RandomAccessFile(filePath, "r")) {
+            userInfoOffset = lastIndexOfUserInfo(file);
+        }
+        return userInfoOffset < 0 ? null : readFrom(filePath, userInfoOffset + USER_INFO.length);
+    }
+
+    /**
+     * Finds the last user info of a transcript, reading it backwards one chunk at a time.
+     *
+     * @return The offset of the last user info, or -1 if there is none.
+     */
+    private static long lastIndexOfUserInfo(RandomAccessFile file) throws IOException {
+        byte[] chunk = new byte[64 * 1024];
+        long end = file.length();
+        while (end >= USER_INFO.length) {
+            // Consecutive chunks overlap so that a user info across their border is found
+            long start = Math.max(0, end - chunk.length);
+            int length = (int) (end - start);
+            file.seek(start);
+            file.readFully(chunk, 0, length);
+            for (int i = length - USER_INFO.length; i >= 0; i--) {
+                int j = 0;
+                while (j < USER_INFO.length && chunk[i + j] == USER_INFO[j]) {
+                    j++;
+                }
+                if (j == USER_INFO.length) {
+                    return start + i;
+                }
+            }
+            if (start == 0) {
+                break;
+            }
+            end = start + USER_INFO.length - 1;
+        }
+        return -1;
+    }
+
+    private static String readFrom(String filePath, long offset) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(filePath, "r")) {
+            byte[] bytes = new byte[(int) (file.length() - offset)];
+            file.seek(offset);
+            file.readFully(bytes);
+            return new String(bytes, Charset.defaultCharset());
+        }
+    }
+
+    /**
+     * One of the providers answering the prompt.
+     */
+    static class Contender {
+        private final String name;
+        private final JSONObject settings;
+        private final long startAfterMillis;
+        private final CountDownLatch released = new CountDownLatch(1);
+        private volatile String decision;
+        private volatile ProviderRouter.Attempt attempt;
+        private volatile JSONObject compaction;
+        private volatile boolean lost = false;
+        private volatile boolean failed = false;
+        private volatile String failure;
+
+        /**
+         * Creates a contender.
+         *
+         * @param name The name of the provider.
+         * @param settings The settings to build the request of the provider with.
+         * @param decision Why the provider is asked, as reported in the Odin header of its answer.
+         * @param startAfterMillis How long to wait for a token from the other contenders before asking this one.
+         */
+        Contender(String name, JSONObject settings, String decision, long startAfterMillis) {
+            this.name = name;
+            this.settings = settings;
+            this.decision = decision;
+            this.startAfterMillis = startAfterMillis;
+        }
+    }
+
+    /**
+     * The shared state of a race. The first contender to claim the race writes to the conversation file.
+     */
+    private static class Race {
+        private final List<Contender> contenders;
+        private final GptOpsHelper.TranscriptEventListener transcriptListener;
+        private Contender winner;
+
+        Race(List<Contender> contenders, GptOpsHelper.TranscriptEventListener transcriptListener) {
+            this.contenders = contenders;
+            this.transcriptListener = transcriptListener;
+        }
+
+        synchronized Contender getWinner() {
+            return winner;
+        }
+
+        /**
+         * Makes the contender the winner if there is none yet, and cancels the calls of all other contenders.
+         *
+         * @return true if the contender won.
+         */
+        boolean claim(Contender contender) {
+            synchronized (this) {
+                if (winner != null) {
+                    return winner == contender;
+                }
+                winner = contender;
+            }
+            for (Contender other : contenders) {
+                if (other != contender) {
+                    other.lost = true;
+                    other.released.countDown();
+                    HttpTransport.cancel(Contender.class, other);
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Waits until the contender may be asked.
+         *
+         * @return false if the contender should not be asked any more.
+         */
+        boolean awaitStart(Contender contender, ChatTurn chatTurn) {
+            if (contender.startAfterMillis > 0) {
+                try {
+                    boolean othersFailed = contender.released.await(contender.startAfterMillis, TimeUnit.MILLISECONDS);
+                    contender.decision = othersFailed ? ProviderRouter.FAILOVER : ProviderRouter.HEDGE;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            if (getWinner() != null || contender.lost || (chatTurn != null && chatTurn.isCancelled())) {
+                return false;
+            }
+            if (contender.startAfterMillis > 0) {
+                logger.info("Asking " + contender.name + " (" + contender.decision + ").");
+            }
+            return true;
+        }
+
+        /**
+         * Records that the contender ended without winning. Unless it lost or the turn was cancelled, this counts
+         * as a failure of the provider, and the next contender waiting for its turn is asked right away.
+         */
+        void fail(Contender contender, String reason, ChatTurn chatTurn) {
+            if (contender.lost || (chatTurn != null && chatTurn.isCancelled())) {
+                contender.attempt.abandon();
+                return;
+            }
+            contender.failure = reason;
+            contender.attempt.fail();
+            synchronized (this) {
+                contender.failed = true;
+                // Release the first contender all of whose predecessors have failed
+                for (Contender next : contenders) {
+                    if (!next.failed) {
+                        next.released.countDown();
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Holds back the events of one contender until it delivers the first piece of an answer. If it is the first
+     * contender to do so, the held back events and the rest of its answer go to the conversation file.
+     */
+    private static class RaceEventListener implements WisdomEventListener {
+        private final Race race;
+        private final Contender contender;
+        private final long startTime;
+        private final List<WisdomEvent> heldBack = new ArrayList<>();
+        private boolean streaming = false;
+
+        RaceEventListener(Race race, Contender contender, long startTime) {
+            this.race = race;
+            this.contender = contender;
+            this.startTime = startTime;
+        }
+
+        @Override
+        public boolean onEvent(WisdomEvent event) {
+            if (streaming) {
+                return race.transcriptListener.onEvent(event);
+            }
+            if (contender.lost) {
+                return false;
+            }
+            switch (event.getType()) {
+                case MODEL:
+                case USAGE:
+                    heldBack.add(event);
+                    return true;
+                case DELTA:
+                    if (event.getText().isEmpty()) {
+                        return true;
+                    }
+                    contender.attempt.onFirstToken();
+                    if (!race.claim(contender)) {
+                        return false;
+                    }
+                    logger.info(contender.name + " won the race with its first token after "
+                            + (System.currentTimeMillis() - startTime) + " ms.");
+                    streaming = true;
+                    race.transcriptListener.setAttempt(contender.attempt);
+                    race.transcriptListener.setCompaction(contender.compaction);
+                    for (WisdomEvent heldBackEvent : heldBack) {
+                        race.transcriptListener.onEvent(heldBackEvent);
+                    }
+                    return race.transcriptListener.onEvent(event);
+                case ERROR:
+                    contender.failure = event.getText();
+                    return false;
+                case DONE:
+                default:
+                    return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package org.odinware.odinrunes;
+
+import net.sourceforge.tess4j.Tesseract;
+import net.sourceforge.tess4j.TesseractException;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The OcrService class recognizes the text of screen captures with a pool of initialized Tesseract engines per
+ * language, shared by the regionshot, scrollshot and timeshot captures.
+ *
+ * <p>A Tesseract engine loads the traineddata of its language when it is initialized, which takes longer than
+ * recognizing a typical frame. The engines of the pool are initialized once and kept for the lifetime of the
+ * application; a capture borrows an engine for each frame and gives it back. Frames are recognized straight from the
+ * captured {@code BufferedImage}, without writing them to disk. The latency of each frame is logged.
+ *
+ * Basic Usage:
+ * 1. Use {@code getDefault} to get the service for the language of ODIN_RUNES_OCR_LANGUAGE ("eng" by default).
+ * 2. Optionally use {@code prewarm} to initialize an engine in the background before the first capture.
+ * 3. Use {@code recognize} to get the text of a frame, from any thread.
+ * 4. Optionally set ODIN_RUNES_OCR_POOL_SIZE to the maximum number of engines per language.
+ */
+public class OcrService {
+    private static final Logger logger = Logger.getLogger(OcrService.class.getName());
+
+    private static OcrService defaultService;
+
+    private final String language;
+    private final int poolSize;
+    private final EngineFactory engineFactory;
+    private final Map<String, Pool> pools = new HashMap<>();
+    private final AtomicLong frameCount = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+
+    /**
+     * An initialized OCR engine, used by one thread at a time.
+     */
+    public interface Engine {
+        /**
+         * Recognizes the text of the image.
+         *
+         * @param image The image.
+         * @return The recognized text.
+         * @throws TesseractException If the recognition fails.
+         */
+        String recognize(BufferedImage image) throws TesseractException;
+
+        /**
+         * Releases the engine.
+         */
+        void close();
+    }
+
+    /**
+     * Creates initialized engines for a language.
+     */
+    public interface EngineFactory {
+        Engine create(String language) throws TesseractException;
+    }
+
+    /**
+     * Creates Tesseract engines, initialized with the traineddata of their language.
+     */
+    public static final EngineFactory TESSERACT = new EngineFactory() {
+        public Engine create(String language) {
+            return new TesseractEngine(language);
+        }
+    };
+
+    /**
+     * Creates a service.
+     *
+     * @param language The default language of the recognized text.
+     * @param poolSize The maximum number of engines per language.
+     * @param engineFactory Creates the engines.
+     */
+    public OcrService(String language, int poolSize, EngineFactory engineFactory) {
+        this.language = language;
+        this.poolSize = Math.max(1, poolSize);
+        this.engineFactory = engineFactory;
+    }
+
+    /**
+     * Returns the application-wide service, configured through the environment variables.
+     *
+     * @return The default service.
+     */
+    public static synchronized OcrService getDefault() {
+        if (defaultService == null) {
+            String language = System.getenv("ODIN_RUNES_OCR_LANGUAGE");
+            if (language == null || language.isEmpty()) {
+                language = "eng";
+            }
+            int poolSize = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+            String value = System.getenv("ODIN_RUNES_OCR_POOL_SIZE");
+            if (value != null) {
+                try {
+                    poolSize = Integer.parseInt(value.trim());
+                } catch (NumberFormatException e) {
+                    logger.warning("Ignoring invalid value of ODIN_RUNES_OCR_POOL_SIZE: " + value);
+                }
+            }
+            defaultService = new OcrService(language, poolSize, TESSERACT);
+        }
+        return defaultService;
+    }
+
+    /**
+     * Returns the default language of the service.
+     *
+     * @return The language, such as "eng".
+     */
+    public String getLanguage() {
+        return language;
+    }
+
+    /**
+     * Returns the maximum number of engines per language, which is how many frames are recognized in parallel.
+     *
+     * @return The pool size.
+     */
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    /**
+     * Initializes an engine of the default language in the background, unless there is one already.
+     */
+    public void prewarm() {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Pool pool = pool(language);
+                    pool.release(pool.acquire());
+                } catch (TesseractException | InterruptedException e) {
+                    logger.log(Level.SEVERE, "An error occurred: ", e);
+                } catch (Error e) {
+                    // Such as missing traineddata, which the capture reports when it gets there
+                    logger.log(Level.SEVERE, "An error occurred: ", e);
+                }
+            }
+        }, "odin-ocr-prewarm");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Recognizes the text of the image in the default language.
+     *
+     * @param image The image, such as {@code ScreenImage.getImage()}.
+     * @return The recognized text.
+     * @throws TesseractException If the recognition fails.
+     */
+    public String recognize(BufferedImage image) throws TesseractException {
+        return recognize(image, language);
+    }
+
+    /**
+     * Recognizes the text of the image in the language, waiting for an engine if all of them are busy.
+     *
+     * @param image The image.
+     * @param language The language of the text.
+     * @return The recognized text.
+     * @throws TesseractException If the recognition fails, or the thread is interrupted while waiting.
+     */
+    public String recognize(BufferedImage image, String language) throws TesseractException {
+        Pool pool = pool(language);
+        Engine engine;
+        try {
+            engine = pool.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TesseractException(e);
+        }
+        long start = System.nanoTime();
+        boolean healthy = false;
+        try {
+            String text = engine.recognize(image);
+            healthy = true;
+            return text;
+        } finally {
+            long nanos = System.nanoTime() - start;
+            if (healthy) {
+                pool.release(engine);
+                frameCount.incrementAndGet();
+                totalNanos.addAndGet(nanos);
+                logger.info("OCR of a " + image.getWidth() + "x" + image.getHeight() + " frame took "
+                        + nanos / 1000000 + " ms (" + language + ")");
+            } else {
+                // An engine that failed may be in any state, so it is replaced
+                pool.discard(engine);
+            }
+        }
+    }
+
+    /**
+     * Returns the recognized frames and their average latency since startup.
+     *
+     * @return A summary of the counters.
+     */
+    public String getStatistics() {
+        long frames = frameCount.get();
+        return "OCR: " + frames + " frames, " + (frames == 0 ? 0 : totalNanos.get() / frames / 1000000) + " ms per frame";
+    }
+
+    /**
+     * Releases the idle engines of every language.
+     */
+    public void shutdown() {
+        synchronized (pools) {
+            for (Pool pool : pools.values()) {
+                pool.closeIdle();
+            }
+        }
+    }
+
+    private Pool pool(String language) {
+        synchronized (pools) {
+            Pool pool = pools.get(language);
+            if (pool == null) {
+                pool = new Pool(language);
+                pools.put(language, pool);
+            }
+            return pool;
+        }
+    }
+
+    /**
+     * The engines of a language, created on demand up to the pool size.
+     */
+    private final class Pool {
+        private final String language;
+        private final LinkedBlockingDeque<Engine> idle = new LinkedBlockingDeque<>();
+        private final AtomicInteger created = new AtomicInteger();
+
+        private Pool(String language) {
+            this.language = language;
+        }
+
+        Engine acquire() throws TesseractException, InterruptedException {
+            while (true) {
+                Engine engine = idle.pollFirst();
+                if (engine != null) {
+                    return engine;
+                }
+                if (created.incrementAndGet() <= poolSize) {
+                    return create();
+                }
+                created.decrementAndGet();
+                // Checks again for room in the pool, in case a busy engine is discarded instead of released
+                engine = idle.pollFirst(100, TimeUnit.MILLISECONDS);
+                if (engine != null) {
+                    return engine;
+                }
+            }
+        }
+
+        private Engine create() throws TesseractException {
+            boolean initialized = false;
+            try {
+                long start = System.nanoTime();
+                Engine engine = engineFactory.create(language);
+                initialized = true;
+                logger.info("Initialized an OCR engine for " + language + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+                return engine;
+            } finally {
+                if (!initialized) {
+                    created.decrementAndGet();
+                }
+            }
+        }
+
+        void release(Engine engine) {
+            idle.offerFirst(engine);
+        }
+
+        void discard(Engine engine) {
+            created.decrementAndGet();
+            try {
+                engine.close();
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "An error occurred: ", e);
+            }
+        }
+
+        void closeIdle() {
+            Engine engine;
+            while ((engine = idle.pollFirst()) != null) {
+                discard(engine);
+            }
+        }
+    }
+
+    /**
+     * A Tesseract engine that stays initialized across frames, instead of loading its traineddata for each of them
+     * as {@code Tesseract.doOCR} does.
+     */
+    private static final class TesseractEngine extends Tesseract implements Engine {
+        private TesseractEngine(String language) {
+            setLanguage(language);
+            init();
+            setVariables();
+        }
+
+        @Override
+        public String recognize(BufferedImage image) throws TesseractException {
+            try {
+                setImage(image);
+                return getOCRText(null, 0);
+            } catch (IOException e) {
+                throw new TesseractException(e);
+            } finally {
+                getAPI().TessBaseAPIClear(getHandle());
+            }
+        }
+
+        @Override
+        public void close() {
+            dispose();
+        }
+    }
+}
@@ -1,11 +1,15 @@
 package org.odinware.odinrunes;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import okhttp3.*;
+import okio.BufferedSource;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONString;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Logger;
 /**
@@ -22,6 +26,20 @@ import java.util.logging.Logger;
 public class OllamaWellsOfWisdom implements WellsOfWisdom {
     private static final Logger logger = Logger.getLogger(OllamaWellsOfWisdom.class.getName());
 
+    /**
+     * Constructs an HTTP request from messages in the JSON format of {@code TextHelper.getMessages}.
+     *
+     * @param context The context containing captured data.
+     * @param odinMessages The messages exchanged between the user and the assistant.
+     * @param gptSettingsJsonObject The settings for the GPT model.
+     * @return A built HTTP request object, or null if no new prompt is present.
+     * @throws Exception If there is an error while building the request.
+     */
+    @Override
+    public Request buildRequest(Context context, JSONArray odinMessages, JSONObject gptSettingsJsonObject) throws Exception {
+        return buildRequest(context, TranscriptMessages.of(odinMessages), gptSettingsJsonObject);
+    }
+
     /**
      * Constructs an HTTP request to the Ollama API using the provided context and messages.
      *
@@ -32,88 +50,74 @@ public class OllamaWellsOfWisdom implements WellsOfWisdom {
      * @throws Exception If there is an error while building the request.
      */
     @Override
-    public Request buildRequest(Context context, JSONArray odinMessages, JSONObject gptSettingsJsonObject) throws Exception{
+    public Request buildRequest(Context context, TranscriptMessages odinMessages, JSONObject gptSettingsJsonObject) throws Exception{
 
         String apiUrl = gptSettingsJsonObject.getString("backendURI");
         /* TO DO: Read from a config file (if any) and update defaults. */
 
 
         boolean hasNewPrompt = false;
-        String model = gptSettingsJsonObject.getString("model");
-        MediaType JSON = MediaType.parse("application/json; charset=utf-8");
-
-        JSONObject jsonBody = new JSONObject();
-
-        JSONArray messages = new JSONArray();
-        messages.put(new JSONObject().put("role", "system").put("content", "You are a helpful assistant."));
-
-        // Add context
-        List<Context.CapturedData> capturedDataList = context.getCapturedDataList();
-        for (Context.CapturedData capturedData : capturedDataList) {
-            String captureMethod = capturedData.getCaptureMethod();
-            String capturedText = capturedData.getCapturedText();
-            if (captureMethod.equals("Clipboard")) {
-                messages.put(new JSONObject().put("role", "system").put("content", "The text content from a portion of the user's clipboard is as follows: " + capturedText));
-            } else if (captureMethod.equals("Regionshot (OCR)")) {
-                messages.put(new JSONObject().put("role", "system").put("content", "The text content captured by OCR from a portion of the user's screen is as follows: " + capturedText));
-            } else if (captureMethod.equals("Scrollshot (OCR)")) {
-                messages.put(new JSONObject().put("role", "system").put("content", "The text content captured by OCR from a portion of the user's screen is included below. It might have some redundant lines. \n" + capturedText));
-            } else if (captureMethod.equals("File (Live)")) {
-                messages.put(new JSONObject().put("role", "system").put("content", "The content of a file is included below: \n" + capturedText));
-            } else {
-                messages.put(new JSONObject().put("role", "system").put("content", "Some additional information labeled as "+captureMethod+" is included below: \n" + capturedText));
-            }
-        }
+        final String model = gptSettingsJsonObject.getString("model");
 
-        // Add chat history
-
-        for (int i = 0; i < odinMessages.length(); i++) {
-            JSONObject message = odinMessages.getJSONObject(i);
-            String role = message.getString("role");
-            String content = message.getString("content");
+        // Check the chat history for a new prompt; the messages are written when the request is sent
+        for (TranscriptMessages.Message message : odinMessages) {
+            String role = message.getRole();
+            String content = message.getContent();
 
             if ("user".equals(role)) {
-                // Process user messages
                 logger.info("User: " + content);
-                messages.put(new JSONObject().put("role", "user").put("content", content));
             } else if ("assistant".equals(role)) {
-                // Process assistant messages
                 logger.info("Assistant: " + content);
-                messages.put(new JSONObject().put("role", "assistant").put("content", content));
             } else if ("prompt".equals(role)) {
-                // Process the prompt message
                 logger.info("Prompt: " + content);
-                messages.put(new JSONObject().put("role", "user").put("content", content));
                 hasNewPrompt = true;
             } else {
                 // Handle other roles if needed
                 logger.info("Unknown role: " + role);
             }
-
-            // If 'jsonInfo' field is present in the message, you can extract it like this:
-            if (message.has("jsonInfo")) {
-                String jsonInfo = message.getString("jsonInfo");
-                // Process jsonInfo if needed
-            }
         }
 
         if (!hasNewPrompt) {
             return null; // No new prompt to send
         }
 
+        // Context, rendered and serialized once per capture
+        final List<JSONString> contextMessages = new ArrayList<>();
+        for (ContextRenderer.Segment segment : ContextRenderer.render(context)) {
+            contextMessages.add(segment.toJson(OpenAIWellsOfWisdom.SYSTEM_MESSAGE, OpenAIWellsOfWisdom.SYSTEM_MESSAGE_BUILDER));
+        }
 
-        jsonBody.put("model", model);
+        final TranscriptMessages history = odinMessages;
 
-        jsonBody.put("messages", messages);
+        RequestBody requestBody = JsonRequestBody.create(new JsonRequestBody.Writer() {
+            @Override
+            public void write(JsonRequestBody.Output output) throws IOException {
+                JsonGenerator generator = output.generator();
+                generator.writeStartObject();
+                generator.writeStringField("model", model);
 
-        /* TO DO: Add Temperature */
-        //double temperatureDouble = gptSettingsJsonObject.getDouble("temperature");
-        //float temperatureFloat = (float) temperatureDouble;
-        //jsonBody.put("temperature", temperatureFloat);
+                generator.writeArrayFieldStart("messages");
+                OpenAIWellsOfWisdom.writeMessage(generator, "system", "You are a helpful assistant.");
+                for (JSONString contextMessage : contextMessages) {
+                    output.writeJson(contextMessage);
+                }
+                for (TranscriptMessages.Message message : history) {
+                    String role = message.getRole();
+                    if ("user".equals(role) || "prompt".equals(role)) {
+                        OpenAIWellsOfWisdom.writeMessage(generator, "user", message.getContent());
+                    } else if ("assistant".equals(role)) {
+                        OpenAIWellsOfWisdom.writeMessage(generator, "assistant", message.getContent());
+                    }
+                }
+                generator.writeEndArray();
 
-        jsonBody.put("stream", true);
+                /* TO DO: Add Temperature */
+                //generator.writeNumberField("temperature", (float) gptSettingsJsonObject.getDouble("temperature"));
 
-        RequestBody requestBody = RequestBody.create(jsonBody.toString(), JSON);
+                generator.writeBooleanField("stream", true);
+                generator.writeEndObject();
+            }
+        });
         Request request = new Request.Builder()
                 .url(apiUrl)
                 .post(requestBody)
@@ -122,47 +126,77 @@ public class OllamaWellsOfWisdom implements WellsOfWisdom {
     }
 
 
+    /**
+     * Executes the HTTP request over the shared HTTP transport and returns the Response object.
+     *
+     * @param request The HTTP request object.
+     * @return A built HTTP response object.
+     */
     @Override
     public Response executeRequest(Request request){
-        OkHttpClient httpClient = new OkHttpClient();
-        try {
-            return httpClient.newCall(request).execute();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        } finally {
-
-        }
-
+        return HttpTransport.execute(HttpTransport.OLLAMA, request);
     }
 
+    /**
+     * Publishes the newline-delimited JSON stream of the Ollama chat API to the listener.
+     *
+     * @param response The response object.
+     * @param listener The listener receiving the events.
+     * @throws IOException If reading from the response fails.
+     */
     @Override
-    public String readFromResponseStream(Response response){
-        try{
-            int responseCode= response.code();
-            if (responseCode != 200) {
-                throw new RuntimeException("Attempts to connect to the API backend using the specified URI resulted in this response code: " + responseCode);
+    public void streamEvents(Response response, WisdomEventListener listener) throws IOException {
+        int responseCode = response.code();
+        BufferedSource source = response.body().source();
+        if (responseCode != 200) {
+            listener.onEvent(WisdomEvent.error("Attempts to connect to the API backend using the specified URI resulted in this response code: " + responseCode + "\n" + SseStreamDecoder.readRemaining("", source)));
+            return;
+        }
+
+        boolean hasModel = false;
+        String line;
+        while ((line = source.readUtf8Line()) != null) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            JSONObject jsonObject;
+            try {
+                jsonObject = new JSONObject(line);
+            } catch (JSONException e) {
+                listener.onEvent(WisdomEvent.error(SseStreamDecoder.readRemaining(line, source)));
+                return;
             }
 
-            ResponseBody responseBody = response.body();
-            // Parse the JSON string
-            JSONObject jsonObject = new JSONObject(responseBody.source().readUtf8Line());
+            if (jsonObject.has("error")) {
+                listener.onEvent(WisdomEvent.error(jsonObject.toString()));
+                return;
+            }
+            if (!hasModel && jsonObject.has("model")) {
+                hasModel = true;
+                if (!listener.onEvent(WisdomEvent.model("Ollama-" + jsonObject.getString("model")))) {
+                    return;
+                }
+            }
             // Extract the "done" field
             boolean done = jsonObject.has("done") && jsonObject.getBoolean("done");
-            if(!done) {
-                if (jsonObject.has("message")) {
-                    // Extract the "content" field from the "message" object
-                    JSONObject messageObject = jsonObject.getJSONObject("message");
-                    String content = messageObject.getString("content");
-                    return WellsOfWisdom.finalStringFormatHelper("Ollama-"+jsonObject.getString("model"), content);
-                } else {
-                    // If "message" doesn't exist, return the original JSONObject as a string
-                    return jsonObject.toString();
+            if (done) {
+                int promptTokens = jsonObject.optInt("prompt_eval_count", -1);
+                int completionTokens = jsonObject.optInt("eval_count", -1);
+                int totalTokens = promptTokens >= 0 && completionTokens >= 0 ? promptTokens + completionTokens : -1;
+                listener.onEvent(WisdomEvent.usage(promptTokens, completionTokens, totalTokens));
+                break;
+            }
+            if (jsonObject.has("message")) {
+                // Extract the "content" field from the "message" object
+                String content = jsonObject.getJSONObject("message").optString("content", "");
+                if (!content.isEmpty() && !listener.onEvent(WisdomEvent.delta(content))) {
+                    return;
                 }
-
-            } else return "data: [DONE]";
-
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            } else {
+                listener.onEvent(WisdomEvent.error(jsonObject.toString()));
+                return;
+            }
         }
+        listener.onEvent(WisdomEvent.done());
     }
 }
@@ -1,11 +1,16 @@
 package org.odinware.odinrunes;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import okhttp3.*;
 import org.json.JSONArray;
 import org.json.JSONObject;
+import org.json.JSONString;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Function;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 /**
  * The {@code OllamaWellsOfWisdom} class is responsible for constructing a valid HTTP request
@@ -21,6 +26,34 @@ import java.util.logging.Logger;
 public class OpenAIWellsOfWisdom implements WellsOfWisdom {
     private static final Logger logger = Logger.getLogger(OpenAIWellsOfWisdom.class.getName());
 
+    /**
+     * The name of the system message format, shared with the other providers that use the same message shape.
+     */
+    static final String SYSTEM_MESSAGE = "system-message";
+
+    /**
+     * Builds a system message holding the rendered text of a context segment.
+     */
+    static final Function<ContextRenderer.Segment, JSONObject> SYSTEM_MESSAGE_BUILDER = new Function<ContextRenderer.Segment, JSONObject>() {
+        public JSONObject apply(ContextRenderer.Segment segment) {
+            return new JSONObject().put("role", "system").put("content", segment.getText(ContextRenderer.Voice.ABOUT_USER));
+        }
+    };
+
+    /**
+     * Constructs an HTTP request from messages in the JSON format of {@code TextHelper.getMessages}.
+     *
+     * @param context The context containing captured data.
+     * @param odinMessages The messages exchanged between the user and the assistant.
+     * @param gptSettingsJsonObject The settings for the GPT model.
+     * @return A built HTTP request object, or null if no new prompt is present.
+     * @throws Exception If there is an error while building the request.
+     */
+    @Override
+    public Request buildRequest(Context context, JSONArray odinMessages, JSONObject gptSettingsJsonObject) throws Exception {
+        return buildRequest(context, TranscriptMessages.of(odinMessages), gptSettingsJsonObject);
+    }
+
     /**
      * Constructs an HTTP request to the OpenAI API using the provided context and OpenAI messages.
      *
@@ -31,7 +64,7 @@ public class OpenAIWellsOfWisdom implements WellsOfWisdom {
      * @throws Exception If there is an error while building the request.
      */
     @Override
-    public Request buildRequest(Context context, JSONArray odinMessages, JSONObject gptSettingsJsonObject) throws Exception{
+    public Request buildRequest(Context context, TranscriptMessages odinMessages, JSONObject gptSettingsJsonObject) throws Exception{
         // setting defaults
         String openaiApiKey = System.getenv("OPENAI_API_KEY_ODIN_FIRST");
         String apiUrl = "https://api.openai.com/v1/chat/completions";
@@ -42,79 +75,22 @@ public class OpenAIWellsOfWisdom implements WellsOfWisdom {
         String model = "gpt-4o-mini";
         if (gptSettingsJsonObject.getString("gptProvider").equals("OpenAI (gpt-3.5-turbo)")) model = "gpt-3.5-turbo";
 
-        MediaType JSON = MediaType.parse("application/json; charset=utf-8");
-
-        JSONObject jsonBody = new JSONObject();
-
-        JSONArray messages = new JSONArray();
-        messages.put(new JSONObject().put("role", "system").put("content", "You are a helpful assistant."));
-
-        // Add text context
-        List<Context.CapturedData> capturedDataList = context.getCapturedDataList();
-        for (Context.CapturedData capturedData : capturedDataList) {
-            String captureMethod = capturedData.getCaptureMethod();
-            String capturedText = capturedData.getCapturedText();
-            if (captureMethod.equals("Clipboard")) {
-                messages.put(new JSONObject().put("role", "system").put("content", "The text content from a portion of the user's clipboard is as follows: " + capturedText));
-            } else if (captureMethod.equals("Regionshot (OCR)")) {
-                messages.put(new JSONObject().put("role", "system").put("content", "The text content captured by OCR from a portion of the user's screen is as follows: " + capturedText));
-            } else if (captureMethod.equals("Scrollshot (OCR)")) {
-                messages.put(new JSONObject().put("role", "system").put("content", "The text content captured by OCR from a portion of the user's screen is included below. It might have some redundant lines. \n" + capturedText));
-            } else if (captureMethod.equals("File (Live)")) {
-                messages.put(new JSONObject().put("role", "system").put("content", "The content of a file is included below: \n" + capturedText));
-            }
-        }
-        if(model.equals("gpt-4o-mini")) {
-            //Add image context
-            for (Context.CapturedData capturedData : capturedDataList) {
-                String captureMethod = capturedData.getCaptureMethod();
-                String capturedText = capturedData.getCapturedText();
-                if (captureMethod.equals("Image File (Live)")) {
-                    messages.put(new JSONObject()
-                            .put("role", "user")
-                            .put("content", new JSONArray()
-                                    .put(new JSONObject()
-                                            .put("type", "text")
-                                            .put("text", "This is an image. "))
-                                    .put(new JSONObject()
-                                            .put("type", "image_url")
-                                            .put("image_url", new JSONObject()
-                                                    .put("url", "data:image/png;base64," + capturedText))))
-                    );
-                }
-            }
-        }
-
-        // Add chat history
-
-        for (int i = 0; i < odinMessages.length(); i++) {
-            JSONObject message = odinMessages.getJSONObject(i);
-            String role = message.getString("role");
-            String content = message.getString("content");
+        // Check the chat history for a new prompt; the messages are written when the request is sent
+        for (TranscriptMessages.Message message : odinMessages) {
+            String role = message.getRole();
+            String content = message.getContent();
 
             if ("user".equals(role)) {
-                // Process user messages
                 logger.info("User: " + content);
-                messages.put(new JSONObject().put("role", "user").put("content", content));
             } else if ("assistant".equals(role)) {
-                // Process assistant messages
                 logger.info("Assistant: " + content);
-                messages.put(new JSONObject().put("role", "assistant").put("content", content));
             } else if ("prompt".equals(role)) {
-                // Process the prompt message
                 logger.info("Prompt: " + content);
-                messages.put(new JSONObject().put("role", "user").put("content", content));
                 hasNewPrompt = true;
             } else {
                 // Handle other roles if needed
                 logger.info("Unknown role: " + role);
             }
-
-            // If 'jsonInfo' field is present in the message, you can extract it like this:
-            if (message.has("jsonInfo")) {
-                String jsonInfo = message.getString("jsonInfo");
-                // Process jsonInfo if needed
-            }
         }
 
         if (!hasNewPrompt) {
@@ -125,17 +101,80 @@ public class OpenAIWellsOfWisdom implements WellsOfWisdom {
             model = "gpt-3.5-turbo-16k";
         }
  */
-        jsonBody.put("model", model);
 
-        jsonBody.put("messages", messages);
-
-        double temperatureDouble = gptSettingsJsonObject.getDouble("temperature");
-        float temperatureFloat = (float) temperatureDouble;
-        jsonBody.put("temperature", temperatureFloat);
+        // Text context, rendered and serialized once per capture
+        final List<JSONString> contextMessages = new ArrayList<>();
+        List<ContextRenderer.Segment> segments = ContextRenderer.render(context);
+        for (ContextRenderer.Segment segment : segments) {
+            if (segment.isKnownText()) {
+                contextMessages.add(segment.toJson(SYSTEM_MESSAGE, SYSTEM_MESSAGE_BUILDER));
+            }
+        }
+        // Image context, encoded straight into the request when it is sent
+        final List<ImagePreprocessor.Image> images = new ArrayList<>();
+        if(model.equals("gpt-4o-mini")) {
+            ImagePreprocessor imagePreprocessor = ImagePreprocessor.forSettings(gptSettingsJsonObject);
+            for (ContextRenderer.Segment segment : segments) {
+                if (segment.isImage()) {
+                    // Scaled down to what the model looks at, see ImagePreprocessor
+                    try {
+                        images.add(imagePreprocessor.process(segment.getFile()));
+                    } catch (IOException e) {
+                        logger.log(Level.SEVERE, "An error occurred: ", e);
+                    }
+                }
+            }
+        }
 
-        jsonBody.put("stream", true);
+        final String finalModel = model;
+        final TranscriptMessages history = odinMessages;
+        final float temperature = (float) gptSettingsJsonObject.getDouble("temperature");
+
+        RequestBody requestBody = JsonRequestBody.create(new JsonRequestBody.Writer() {
+            @Override
+            public void write(JsonRequestBody.Output output) throws IOException {
+                JsonGenerator generator = output.generator();
+                generator.writeStartObject();
+                generator.writeStringField("model", finalModel);
+
+                generator.writeArrayFieldStart("messages");
+                writeMessage(generator, "system", "You are a helpful assistant.");
+                for (JSONString contextMessage : contextMessages) {
+                    output.writeJson(contextMessage);
+                }
+                for (ImagePreprocessor.Image image : images) {
+                    generator.writeStartObject();
+                    generator.writeStringField("role", "user");
+                    generator.writeArrayFieldStart("content");
+                    generator.writeStartObject();
+                    generator.writeStringField("type", "text");
+                    generator.writeStringField("text", "This is an image. ");
+                    generator.writeEndObject();
+                    generator.writeStartObject();
+                    generator.writeStringField("type", "image_url");
+                    generator.writeObjectFieldStart("image_url");
+                    generator.writeFieldName("url");
+                    output.writeEmbeddedFile("data:" + image.getMimeType() + ";base64,", image.getFile());
+                    generator.writeEndObject();
+                    generator.writeEndObject();
+                    generator.writeEndArray();
+                    generator.writeEndObject();
+                }
+                for (TranscriptMessages.Message message : history) {
+                    String role = message.getRole();
+                    if ("user".equals(role) || "prompt".equals(role)) {
+                        writeMessage(generator, "user", message.getContent());
+                    } else if ("assistant".equals(role)) {
+                        writeMessage(generator, "assistant", message.getContent());
+                    }
+                }
+                generator.writeEndArray();
 
-        RequestBody requestBody = RequestBody.create(jsonBody.toString(), JSON);
+                generator.writeNumberField("temperature", temperature);
+                generator.writeBooleanField("stream", true);
+                generator.writeEndObject();
+            }
+        });
         Request request = new Request.Builder()
                 .url(apiUrl)
                 .addHeader("Authorization", "Bearer " + openaiApiKey)
@@ -145,27 +184,42 @@ public class OpenAIWellsOfWisdom implements WellsOfWisdom {
     }
 
 
+    /**
+     * Writes a chat message with a role and a text content, the shape shared with the other providers that use the
+     * OpenAI message format.
+     *
+     * @param generator The generator of the request body.
+     * @param role The role of the message.
+     * @param content The text content.
+     * @throws IOException If writing fails.
+     */
+    static void writeMessage(JsonGenerator generator, String role, String content) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("role", role);
+        generator.writeStringField("content", content);
+        generator.writeEndObject();
+    }
+
+    /**
+     * Executes the HTTP request over the shared HTTP transport and returns the Response object.
+     *
+     * @param request The HTTP request object.
+     * @return A built HTTP response object.
+     */
     @Override
     public Response executeRequest(Request request){
-        OkHttpClient httpClient = new OkHttpClient();
-        try {
-            return httpClient.newCall(request).execute();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        } finally {
-
-        }
-
+        return HttpTransport.execute(HttpTransport.OPENAI, request);
     }
 
+    /**
+     * Publishes the server-sent events of the chat completion stream to the listener.
+     *
+     * @param response The response object.
+     * @param listener The listener receiving the events.
+     * @throws IOException If reading from the response fails.
+     */
     @Override
-    public String readFromResponseStream(Response response){
-        try{
-            ResponseBody responseBody = response.body();
-            return responseBody.source().readUtf8Line();
-
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+    public void streamEvents(Response response, WisdomEventListener listener) throws IOException {
+        new SseStreamDecoder().stream(response.body().source(), listener);
     }
 }
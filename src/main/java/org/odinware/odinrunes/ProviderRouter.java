@@ -0,0 +1,390 @@
+package org.odinware.odinrunes;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * The ProviderRouter class decides which GPT provider answers a prompt, based on how the providers have been doing.
+ *
+ * <p>For every provider it keeps rolling statistics over the last answers: the time to the first token and the error
+ * rate. A provider that keeps failing gets its circuit breaker opened, and is skipped until a cool-down period has
+ * passed. After that, a single trial request decides whether the breaker closes again.
+ *
+ * <p>When backup providers are configured, the prompt is sent to the first provider whose breaker is closed. If it
+ * fails before delivering its first token, the next provider is asked straight away. If it is still silent when the
+ * hedging deadline has passed, a hedged request is sent to the next provider, and whichever of them delivers its
+ * first token first gets to answer, while the other call is cancelled. The routing decision and the measured
+ * latencies are written into the Odin header of the answer.
+ *
+ * Basic Usage:
+ * 1. List the backup providers in the "backupProviders" attribute of the GPT settings, by name or as settings objects,
+ * or in the ODIN_RUNES_BACKUP_PROVIDERS environment variable as a ';' separated list of provider names.
+ * 2. Optionally set the hedging deadline with the "hedgeAfterMillis" attribute or ODIN_RUNES_HEDGE_AFTER_MS.
+ * 3. The breaker opens after ODIN_RUNES_BREAKER_FAILURES consecutive failures (3 by default), or when at least half
+ * of the recent answers failed, and stays open for ODIN_RUNES_BREAKER_COOLDOWN_MS milliseconds (30 seconds by default).
+ */
+public final class ProviderRouter {
+    private static final Logger logger = Logger.getLogger(ProviderRouter.class.getName());
+
+    public static final String PRIMARY = "primary";
+    public static final String HEDGE = "hedge";
+    public static final String FAILOVER = "failover";
+    public static final String CIRCUIT_OPEN = "circuit-open";
+
+    private static final int WINDOW_SIZE = 20;
+    private static final int MIN_SAMPLES_FOR_ERROR_RATE = 5;
+    private static final double MAX_ERROR_RATE = 0.5;
+
+    private static final long DEFAULT_HEDGE_AFTER_MILLIS = 8_000;
+    private static final int failureThreshold = envInt("ODIN_RUNES_BREAKER_FAILURES", 3);
+    private static final long cooldownMillis = envInt("ODIN_RUNES_BREAKER_COOLDOWN_MS", 30_000);
+
+    private static final Map<String, ProviderStats> statistics = new ConcurrentHashMap<>();
+
+    private ProviderRouter() {
+    }
+
+    private static int envInt(String name, int defaultValue) {
+        String value = System.getenv(name);
+        if (value != null) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                logger.warning("Ignoring invalid value of " + name + ": " + value);
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Returns true if the settings name at least one backup provider to route to.
+     *
+     * @param gptSettingsJsonObject The settings for the GPT provider.
+     * @return true if there is a backup provider.
+     */
+    public static boolean hasBackups(JSONObject gptSettingsJsonObject) {
+        return !backupSettings(gptSettingsJsonObject).isEmpty();
+    }
+
+    /**
+     * Returns the settings of the backup providers, which inherit the remaining settings of the primary provider.
+     *
+     * @param gptSettingsJsonObject The settings for the GPT provider.
+     * @return The settings of each backup provider, in order of preference.
+     */
+    static List<JSONObject> backupSettings(JSONObject gptSettingsJsonObject) {
+        JSONObject settings = new JSONObject(gptSettingsJsonObject.toString());
+        if (!settings.has("backupProviders")) {
+            String backupProviders = System.getenv("ODIN_RUNES_BACKUP_PROVIDERS");
+            if (backupProviders == null || backupProviders.trim().isEmpty()) {
+                return new ArrayList<>();
+            }
+            JSONArray backupArray = new JSONArray();
+            for (String backupProvider : backupProviders.split(";")) {
+                if (!backupProvider.trim().isEmpty()) {
+                    backupArray.put(backupProvider.trim());
+                }
+            }
+            settings.put("backupProviders", backupArray);
+        }
+
+        String primaryKey = keyFor(gptSettingsJsonObject);
+        List<JSONObject> backups = new ArrayList<>();
+        for (JSONObject backup : MultiProviderChat.providerSettings(settings, "backupProviders")) {
+            backup.remove("backupProviders");
+            if (!keyFor(backup).equals(primaryKey)) {
+                backups.add(backup);
+            }
+        }
+        return backups;
+    }
+
+    /**
+     * Returns the time to wait for the first token before sending a hedged request to the next provider.
+     *
+     * @param gptSettingsJsonObject The settings for the GPT provider.
+     * @return The hedging deadline in milliseconds.
+     */
+    static long hedgeAfterMillis(JSONObject gptSettingsJsonObject) {
+        return gptSettingsJsonObject.optLong("hedgeAfterMillis", envInt("ODIN_RUNES_HEDGE_AFTER_MS", (int) DEFAULT_HEDGE_AFTER_MILLIS));
+    }
+
+    /**
+     * Returns the name the statistics of a provider are kept under. Ollama models are kept apart, since each of
+     * them may run on a different backend.
+     *
+     * @param providerSettings The settings of the provider.
+     * @return The name of the provider.
+     */
+    static String keyFor(JSONObject providerSettings) {
+        String gptProvider = providerSettings.optString("gptProvider", "");
+        if ("Ollama".equals(gptProvider) && providerSettings.has("model")) {
+            return gptProvider + " " + providerSettings.optString("model");
+        }
+        return gptProvider;
+    }
+
+    /**
+     * Returns the statistics of the named provider.
+     *
+     * @param provider The name of the provider, as returned by {@code keyFor}.
+     * @return The statistics of the provider.
+     */
+    public static ProviderStats getStatistics(String provider) {
+        return statistics.computeIfAbsent(provider, name -> new ProviderStats());
+    }
+
+    /**
+     * Starts measuring an attempt of the provider to answer a prompt.
+     *
+     * @param providerSettings The settings of the provider.
+     * @param decision Why the provider was asked, for example {@code PRIMARY} or {@code HEDGE}.
+     * @return The attempt, to report its first token and outcome to.
+     */
+    static Attempt begin(JSONObject providerSettings, String decision) {
+        String provider = keyFor(providerSettings);
+        ProviderStats stats = getStatistics(provider);
+        stats.onAttempt();
+        return new Attempt(provider, decision, stats);
+    }
+
+    /**
+     * Sends the prompt to the primary provider and, when needed, to its backups, and streams the first answer
+     * to arrive into the conversation file.
+     *
+     * @param odinSays The TextHelper object of the conversation file.
+     * @param context The Context object containing the captured data.
+     * @param gptSettingsJsonObject The settings for the GPT provider, naming its backups.
+     * @param chatTurn The turn this response belongs to, or null.
+     */
+    public static void streamResponse(TextHelper odinSays, Context context, JSONObject gptSettingsJsonObject, ChatTurn chatTurn) {
+        JSONObject primarySettings = new JSONObject(gptSettingsJsonObject.toString());
+        primarySettings.remove("backupProviders");
+        primarySettings.remove("hedgeAfterMillis");
+        List<JSONObject> candidates = new ArrayList<>();
+        candidates.add(primarySettings);
+        candidates.addAll(backupSettings(gptSettingsJsonObject));
+
+        // Skip the providers whose circuit is open, unless that would leave none
+        List<JSONObject> available = new ArrayList<>();
+        for (JSONObject candidate : candidates) {
+            if (getStatistics(keyFor(candidate)).isAvailable()) {
+                available.add(candidate);
+            } else {
+                logger.info("Skipping " + keyFor(candidate) + ", its circuit breaker is open.");
+            }
+        }
+        if (available.isEmpty()) {
+            logger.warning("The circuit breakers of all providers are open, trying them anyway.");
+            available = candidates;
+        }
+
+        String firstDecision = available.get(0) == primarySettings ? PRIMARY : CIRCUIT_OPEN;
+        long hedgeAfterMillis = hedgeAfterMillis(gptSettingsJsonObject);
+        List<MultiProviderChat.Contender> contenders = new ArrayList<>();
+        for (int i = 0; i < available.size(); i++) {
+            // Each further provider is asked one more hedging deadline later, or as soon as all before it failed
+            contenders.add(new MultiProviderChat.Contender(keyFor(available.get(i)), available.get(i),
+                    i == 0 ? firstDecision : HEDGE, i * hedgeAfterMillis));
+        }
+        MultiProviderChat.streamRace(odinSays, context, contenders, chatTurn);
+    }
+
+    /**
+     * Rolling statistics and circuit breaker of a single provider.
+     */
+    public static final class ProviderStats {
+        private enum State {CLOSED, OPEN, HALF_OPEN}
+
+        private final long[] firstTokenMillis = new long[WINDOW_SIZE];
+        private final boolean[] failures = new boolean[WINDOW_SIZE];
+        private int firstTokenCount = 0;
+        private int outcomeCount = 0;
+        private int consecutiveFailures = 0;
+        private State state = State.CLOSED;
+        private long openedAt;
+        private boolean trialInFlight = false;
+
+        /**
+         * Returns true if the provider may be asked, that is if its breaker is closed or a trial request is due.
+         *
+         * @return true if the provider is available.
+         */
+        public synchronized boolean isAvailable() {
+            switch (state) {
+                case OPEN:
+                    return System.currentTimeMillis() - openedAt >= cooldownMillis;
+                case HALF_OPEN:
+                    return !trialInFlight;
+                case CLOSED:
+                default:
+                    return true;
+            }
+        }
+
+        synchronized void onAttempt() {
+            if (state == State.OPEN && System.currentTimeMillis() - openedAt >= cooldownMillis) {
+                state = State.HALF_OPEN;
+            }
+            if (state == State.HALF_OPEN) {
+                trialInFlight = true;
+            }
+        }
+
+        synchronized void recordSuccess(long timeToFirstTokenMillis) {
+            firstTokenMillis[firstTokenCount % WINDOW_SIZE] = timeToFirstTokenMillis;
+            firstTokenCount++;
+            failures[outcomeCount % WINDOW_SIZE] = false;
+            outcomeCount++;
+            consecutiveFailures = 0;
+            trialInFlight = false;
+            if (state != State.CLOSED) {
+                logger.info("Closing the circuit breaker after a successful trial.");
+                state = State.CLOSED;
+            }
+        }
+
+        synchronized void recordFailure() {
+            failures[outcomeCount % WINDOW_SIZE] = true;
+            outcomeCount++;
+            consecutiveFailures++;
+            trialInFlight = false;
+            boolean tooManyErrors = Math.min(outcomeCount, WINDOW_SIZE) >= MIN_SAMPLES_FOR_ERROR_RATE && getErrorRate() >= MAX_ERROR_RATE;
+            if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold || tooManyErrors) {
+                if (state != State.OPEN) {
+                    logger.warning("Opening the circuit breaker after " + consecutiveFailures + " consecutive failures.");
+                }
+                state = State.OPEN;
+                openedAt = System.currentTimeMillis();
+            }
+        }
+
+        synchronized void recordAbandoned() {
+            trialInFlight = false;
+        }
+
+        /**
+         * Returns the average time to the first token over the recent answers.
+         *
+         * @return The average in milliseconds, or -1 if there is no answer yet.
+         */
+        public synchronized long getAverageFirstTokenMillis() {
+            int samples = Math.min(firstTokenCount, WINDOW_SIZE);
+            if (samples == 0) {
+                return -1;
+            }
+            long total = 0;
+            for (int i = 0; i < samples; i++) {
+                total += firstTokenMillis[i];
+            }
+            return total / samples;
+        }
+
+        /**
+         * Returns the share of the recent attempts that failed.
+         *
+         * @return The error rate between 0 and 1.
+         */
+        public synchronized double getErrorRate() {
+            int samples = Math.min(outcomeCount, WINDOW_SIZE);
+            if (samples == 0) {
+                return 0;
+            }
+            int failed = 0;
+            for (int i = 0; i < samples; i++) {
+                if (failures[i]) {
+                    failed++;
+                }
+            }
+            return (double) failed / samples;
+        }
+
+        /**
+         * Returns the state of the circuit breaker: "closed", "open" or "half-open".
+         *
+         * @return The state of the breaker.
+         */
+        public synchronized String getCircuitState() {
+            return state.name().toLowerCase().replace('_', '-');
+        }
+    }
+
+    /**
+     * A single attempt of a provider to answer a prompt. The time to the first token is measured from the moment
+     * the attempt begins, which includes building and sending the request.
+     */
+    static final class Attempt {
+        private final String provider;
+        private final String decision;
+        private final ProviderStats stats;
+        private final long startTime = System.currentTimeMillis();
+        private volatile long timeToFirstTokenMillis = -1;
+        private boolean finished = false;
+
+        private Attempt(String provider, String decision, ProviderStats stats) {
+            this.provider = provider;
+            this.decision = decision;
+            this.stats = stats;
+        }
+
+        String getProvider() {
+            return provider;
+        }
+
+        void onFirstToken() {
+            if (timeToFirstTokenMillis < 0) {
+                timeToFirstTokenMillis = System.currentTimeMillis() - startTime;
+            }
+        }
+
+        long getTimeToFirstTokenMillis() {
+            return timeToFirstTokenMillis;
+        }
+
+        synchronized void succeed() {
+            if (!finished) {
+                finished = true;
+                onFirstToken();
+                stats.recordSuccess(timeToFirstTokenMillis);
+            }
+        }
+
+        synchronized void fail() {
+            if (!finished) {
+                finished = true;
+                stats.recordFailure();
+            }
+        }
+
+        /**
+         * Ends the attempt without counting it, because it was cancelled.
+         */
+        synchronized void abandon() {
+            if (!finished) {
+                finished = true;
+                stats.recordAbandoned();
+            }
+        }
+
+        /**
+         * Describes the routing decision and the measured latencies, for the Odin header of the answer.
+         *
+         * @return The routing information.
+         */
+        JSONObject describe() {
+            return new JSONObject()
+                    .put("provider", provider)
+                    .put("decision", decision)
+                    .put("firstTokenMs", timeToFirstTokenMillis)
+                    .put("averageFirstTokenMs", stats.getAverageFirstTokenMillis())
+                    .put("errorRate", Math.round(stats.getErrorRate() * 100) / 100.0)
+                    .put("circuit", stats.getCircuitState());
+        }
+    }
+}
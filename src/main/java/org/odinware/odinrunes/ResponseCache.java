@@ -0,0 +1,458 @@
+package org.odinware.odinrunes;
+
+import okhttp3.Request;
+import okio.Buffer;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The ResponseCache class keeps the answers of GPT providers on disk, so that asking the same question about the same
+ * context again is answered straight from the cache instead of paying for another round trip to the provider.
+ *
+ * <p>Answers are keyed by a hash of a canonical form of the built request: the provider, the endpoint and the JSON
+ * body, with the keys of every object sorted. The body holds the model, the messages with the rendered context and
+ * the temperature, so a change to any of them is a different question. A hit is replayed through the normal
+ * transcript path at full speed.
+ *
+ * <p>Caching is opt-in. Only requests whose temperature is at or below the configured threshold are cached, since
+ * at higher temperatures a repeated question is usually meant to get a different answer. The cache directory is
+ * bounded in size, evicting the least recently used answers first, and answers expire after a time to live.
+ *
+ * Basic Usage:
+ * 1. Enable the cache with the ODIN_RUNES_CACHE_MAX_TEMPERATURE environment variable, or with the
+ * "cacheMaxTemperature" attribute of the GPT settings, for example 0 to cache deterministic answers only.
+ * 2. Optionally set ODIN_RUNES_CACHE_DIR (~/.odinrunes/response-cache by default), ODIN_RUNES_CACHE_MAX_MB
+ * (64 by default) and ODIN_RUNES_CACHE_TTL_HOURS (a week by default).
+ * 3. Use {@code getDefault().getStatistics()} to see the hit and miss counters.
+ */
+public class ResponseCache {
+    private static final Logger logger = Logger.getLogger(ResponseCache.class.getName());
+
+    private static final long DEFAULT_MAX_MEGABYTES = 64;
+    private static final long DEFAULT_TTL_HOURS = 24 * 7;
+    private static final String ENTRY_SUFFIX = ".json";
+
+    private static ResponseCache defaultCache;
+
+    private final File directory;
+    private final long maxBytes;
+    private final long ttlMillis;
+    // Entry sizes in least recently used order
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes = 0;
+    private boolean loaded = false;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * Creates a cache in the specified directory.
+     *
+     * @param directory The directory holding the cached answers.
+     * @param maxBytes The maximum total size of the cached answers.
+     * @param ttlMillis How long an answer stays valid.
+     */
+    public ResponseCache(File directory, long maxBytes, long ttlMillis) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Returns the application-wide cache, configured through the environment variables.
+     *
+     * @return The default cache.
+     */
+    public static synchronized ResponseCache getDefault() {
+        if (defaultCache == null) {
+            String directory = System.getenv("ODIN_RUNES_CACHE_DIR");
+            if (directory == null || directory.trim().isEmpty()) {
+                directory = System.getProperty("user.home") + File.separator + ".odinrunes" + File.separator + "response-cache";
+            }
+            long maxMegabytes = envLong("ODIN_RUNES_CACHE_MAX_MB", DEFAULT_MAX_MEGABYTES);
+            long ttlHours = envLong("ODIN_RUNES_CACHE_TTL_HOURS", DEFAULT_TTL_HOURS);
+            defaultCache = new ResponseCache(new File(directory), maxMegabytes * 1024 * 1024, ttlHours * 60 * 60 * 1000);
+        }
+        return defaultCache;
+    }
+
+    private static long envLong(String name, long defaultValue) {
+        String value = System.getenv(name);
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                logger.warning("Ignoring invalid value of " + name + ": " + value);
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Returns the cache key of the request, or null if the settings do not allow it to be cached.
+     *
+     * @param gptSettingsJsonObject The settings the request was built with.
+     * @param request The built request.
+     * @return The cache key, or null.
+     */
+    public static String keyFor(JSONObject gptSettingsJsonObject, Request request) {
+        double maxTemperature;
+        if (gptSettingsJsonObject.has("cacheMaxTemperature")) {
+            maxTemperature = gptSettingsJsonObject.getDouble("cacheMaxTemperature");
+        } else {
+            String value = System.getenv("ODIN_RUNES_CACHE_MAX_TEMPERATURE");
+            if (value == null || value.trim().isEmpty()) {
+                return null;
+            }
+            try {
+                maxTemperature = Double.parseDouble(value.trim());
+            } catch (NumberFormatException e) {
+                logger.warning("Ignoring invalid value of ODIN_RUNES_CACHE_MAX_TEMPERATURE: " + value);
+                return null;
+            }
+        }
+        if (gptSettingsJsonObject.optDouble("temperature", 1.0) > maxTemperature
+                || request.body() == null || request.body().isOneShot()) {
+            return null;
+        }
+
+        try {
+            String body;
+            if (request.body() instanceof JsonRequestBody) {
+                // The tokens of the embedded files identify their content without encoding them
+                body = ((JsonRequestBody) request.body()).getTemplate();
+                if (body == null) {
+                    return null;
+                }
+            } else {
+                Buffer bodyBuffer = new Buffer();
+                request.body().writeTo(bodyBuffer);
+                body = bodyBuffer.readUtf8();
+            }
+            String canonicalRequest = ProviderRouter.keyFor(gptSettingsJsonObject) + "\n"
+                    + request.method() + " " + request.url() + "\n"
+                    + canonicalize(body);
+            return sha256(canonicalRequest);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "An error occurred: ", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the JSON with the keys of every object in sorted order and no insignificant whitespace.
+     * Text that is not JSON is returned as it is.
+     *
+     * @param json The JSON text.
+     * @return The canonical JSON text.
+     */
+    static String canonicalize(String json) {
+        try {
+            Object value = json.trim().startsWith("[") ? new JSONArray(json) : new JSONObject(json);
+            StringBuilder canonical = new StringBuilder(json.length());
+            appendCanonical(value, canonical);
+            return canonical.toString();
+        } catch (JSONException e) {
+            return json;
+        }
+    }
+
+    private static void appendCanonical(Object value, StringBuilder canonical) {
+        if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            canonical.append('{');
+            boolean first = true;
+            for (String key : new TreeSet<>(object.keySet())) {
+                if (!first) {
+                    canonical.append(',');
+                }
+                first = false;
+                canonical.append(JSONObject.quote(key)).append(':');
+                appendCanonical(object.get(key), canonical);
+            }
+            canonical.append('}');
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            canonical.append('[');
+            for (int i = 0; i < array.length(); i++) {
+                if (i > 0) {
+                    canonical.append(',');
+                }
+                appendCanonical(array.get(i), canonical);
+            }
+            canonical.append(']');
+        } else {
+            canonical.append(JSONObject.valueToString(value));
+        }
+    }
+
+    private static String sha256(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the cached answer for the key, counting a hit or a miss.
+     *
+     * @param key The cache key, or null for a request that may not be cached.
+     * @return The cached answer, or null if there is none.
+     */
+    public synchronized Answer get(String key) {
+        if (key == null) {
+            return null;
+        }
+        load();
+        File file = fileFor(key);
+        // Looking the entry up also marks it as the most recently used
+        if (entries.get(key) == null || !file.exists()) {
+            forget(key);
+            missCount.incrementAndGet();
+            return null;
+        }
+        try {
+            JSONObject entry = new JSONObject(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+            if (System.currentTimeMillis() - entry.getLong("created") > ttlMillis) {
+                logger.info("The cached answer " + key + " has expired.");
+                forget(key);
+                file.delete();
+                missCount.incrementAndGet();
+                return null;
+            }
+            file.setLastModified(System.currentTimeMillis());
+            hitCount.incrementAndGet();
+            return new Answer(entry.optString("model", "as-specified"), entry.getString("text"), entry.optJSONObject("usage"));
+        } catch (IOException | JSONException e) {
+            logger.log(Level.WARNING, "Dropping the unreadable cached answer " + key, e);
+            forget(key);
+            file.delete();
+            missCount.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Stores an answer under the key, evicting the least recently used answers if the cache grows too big.
+     *
+     * @param key The cache key.
+     * @param answer The complete answer.
+     */
+    public synchronized void put(String key, Answer answer) {
+        load();
+        JSONObject entry = new JSONObject()
+                .put("created", System.currentTimeMillis())
+                .put("model", answer.getModel())
+                .put("text", answer.getText());
+        if (answer.getUsage() != null) {
+            entry.put("usage", answer.getUsage());
+        }
+        byte[] bytes = entry.toString().getBytes(StandardCharsets.UTF_8);
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create the cache directory " + directory);
+            }
+            // Write to a temporary file first, so that a crash never leaves a partial answer behind
+            File temporaryFile = new File(directory, key + ".tmp");
+            Files.write(temporaryFile.toPath(), bytes);
+            Files.move(temporaryFile.toPath(), fileFor(key).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "An error occurred: ", e);
+            return;
+        }
+        forget(key);
+        entries.put(key, (long) bytes.length);
+        totalBytes += bytes.length;
+        evict();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            fileFor(eldest.getKey()).delete();
+            totalBytes -= eldest.getValue();
+            iterator.remove();
+        }
+    }
+
+    private void forget(String key) {
+        Long size = entries.remove(key);
+        if (size != null) {
+            totalBytes -= size;
+        }
+    }
+
+    /**
+     * Reads the entries already in the directory, oldest first, so that recency survives restarts.
+     */
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(ENTRY_SUFFIX));
+        if (files == null) {
+            return;
+        }
+        List<File> sortedFiles = new ArrayList<>(Arrays.asList(files));
+        sortedFiles.sort(Comparator.comparingLong(File::lastModified));
+        for (File file : sortedFiles) {
+            String name = file.getName();
+            entries.put(name.substring(0, name.length() - ENTRY_SUFFIX.length()), file.length());
+            totalBytes += file.length();
+        }
+        evict();
+    }
+
+    private File fileFor(String key) {
+        return new File(directory, key + ENTRY_SUFFIX);
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Returns a summary of the hit and miss counters, for showing to the user.
+     *
+     * @return The cache statistics.
+     */
+    public String getStatistics() {
+        return "Cache: " + hitCount.get() + " hits, " + missCount.get() + " misses";
+    }
+
+    /**
+     * A complete answer of a GPT provider, as kept in the cache.
+     */
+    public static class Answer {
+        private final String model;
+        private final String text;
+        private final JSONObject usage;
+
+        public Answer(String model, String text, JSONObject usage) {
+            this.model = model;
+            this.text = text;
+            this.usage = usage;
+        }
+
+        public String getModel() {
+            return model;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        public JSONObject getUsage() {
+            return usage;
+        }
+
+        /**
+         * Sends the answer to the listener as if it was streamed by the provider.
+         *
+         * @param listener The listener to send the events to.
+         */
+        public void replay(WisdomEventListener listener) {
+            if (listener.onEvent(WisdomEvent.model(model)) && listener.onEvent(WisdomEvent.delta(text)) && usage != null) {
+                listener.onEvent(WisdomEvent.usage(usage.optInt("prompt"), usage.optInt("completion"), usage.optInt("total")));
+            }
+            listener.onEvent(WisdomEvent.done());
+        }
+    }
+
+    /**
+     * Passes the events of a streamed answer on to another listener and collects the answer, so that it can be
+     * stored once the stream has ended well.
+     */
+    public static class Recorder implements WisdomEventListener {
+        private final String key;
+        private final WisdomEventListener listener;
+        private final StringBuilder text = new StringBuilder();
+        private String model = "as-specified";
+        private JSONObject usage;
+        private boolean done = false;
+        private boolean failed = false;
+
+        /**
+         * Creates a recorder.
+         *
+         * @param key The cache key of the request, or null if the answer may not be cached.
+         * @param listener The listener to pass the events on to.
+         */
+        public Recorder(String key, WisdomEventListener listener) {
+            this.key = key;
+            this.listener = listener;
+        }
+
+        @Override
+        public boolean onEvent(WisdomEvent event) {
+            if (key != null) {
+                switch (event.getType()) {
+                    case MODEL:
+                        model = event.getModel();
+                        break;
+                    case DELTA:
+                        text.append(event.getText());
+                        break;
+                    case USAGE:
+                        usage = new JSONObject()
+                                .put("prompt", event.getPromptTokens())
+                                .put("completion", event.getCompletionTokens())
+                                .put("total", event.getTotalTokens());
+                        break;
+                    case ERROR:
+                        failed = true;
+                        break;
+                    case DONE:
+                        done = true;
+                        break;
+                    default:
+                        break;
+                }
+            }
+            return listener.onEvent(event);
+        }
+
+        /**
+         * Stores the answer in the cache, unless it may not be cached, failed, is empty or did not end with a DONE
+         * event, as a cancelled or broken off answer does.
+         *
+         * @param cache The cache to store the answer in.
+         */
+        public void store(ResponseCache cache) {
+            if (key != null && done && !failed && text.length() > 0) {
+                cache.put(key, new Answer(model, text.toString(), usage));
+            }
+        }
+    }
+}
@@ -0,0 +1,365 @@
+package org.odinware.odinrunes;
+
+import net.sourceforge.tess4j.TesseractException;
+
+import java.awt.image.BufferedImage;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The ScrollshotPipeline class captures the text of a scrollable page by scrolling, capturing and recognizing its
+ * frames in parallel.
+ *
+ * <p>The capturing thread scrolls the page and captures a frame after each scroll, without waiting for the OCR of the
+ * frames before. The frames are put in a bounded queue, from which a worker per OCR engine recognizes them, and the
+ * recognized texts are stitched in the order of their frames, whichever worker finishes first, keeping only the
+ * lines that are new in each frame (see {@code TextStitcher}). When the queue is full, the capturing thread waits for
+ * the workers to catch up.
+ *
+ * <p>The scroll amount and the end of the page are decided from the pixels of the frames, which is much cheaper than
+ * their OCR: each frame is reduced to the average brightness of its rows, and the rows of consecutive frames are
+ * matched to tell how far the page moved. The scroll amount grows while consecutive frames overlap by more than 70%
+ * and shrinks while they overlap by less than 20%. A frame that did not move is not recognized at all, and the capture
+ * stops when the page no longer moves.
+ *
+ * <p>Alternatively, {@code captureStitched} stitches the frames into one tall image with an {@code ImageStitcher}
+ * and recognizes it once, which spends no OCR on the overlap of the frames.
+ *
+ * Basic Usage:
+ * 1. Create a ScrollshotPipeline with the OCR service and the maximum number of frames.
+ * 2. Use {@code capture} or {@code captureStitched} with the {@code Page} to scroll, such as the selected region of
+ * the screen.
+ * 3. Use {@code getFailure} to report an OCR error, as frames that cannot be recognized are skipped.
+ */
+public class ScrollshotPipeline {
+    private static final Logger logger = Logger.getLogger(ScrollshotPipeline.class.getName());
+
+    // Below this average difference of row brightness, two frames show the same pixels
+    private static final double UNCHANGED_TOLERANCE = 0.5;
+    // Below this average difference of row brightness, two rows of frames are taken to be the same rows of the page
+    private static final double MATCH_TOLERANCE = 2.0;
+    // The page has stopped moving after this many scrolls without a change
+    private static final int UNCHANGED_SCROLLS = 2;
+    private static final int COLUMN_STEP = 4;
+
+    private static final Frame END = new Frame(-1, null);
+
+    private final OcrService ocrService;
+    private final int maxFrames;
+    private final int workerCount;
+    private final BlockingQueue<Frame> frames;
+
+    // The recognized texts that wait for the texts of earlier frames, by frame index
+    private final TreeMap<Integer, String> pending = new TreeMap<>();
+    private int nextIndex;
+    private final TextStitcher stitcher = new TextStitcher();
+
+    private volatile Throwable failure;
+    private volatile boolean stopped;
+    private int scrollAmount;
+    private int capturedFrames;
+    private int recognizedFrames;
+
+    /**
+     * The page to capture.
+     */
+    public interface Page {
+        /**
+         * Captures the visible part of the page.
+         *
+         * @return The frame.
+         */
+        BufferedImage capture();
+
+        /**
+         * Scrolls the page down.
+         *
+         * @param steps The number of wheel steps.
+         */
+        void scroll(int steps);
+    }
+
+    private interface FrameSink {
+        void accept(BufferedImage image) throws InterruptedException;
+    }
+
+    private static final class Frame {
+        final int index;
+        final BufferedImage image;
+
+        Frame(int index, BufferedImage image) {
+            this.index = index;
+            this.image = image;
+        }
+    }
+
+    /**
+     * Creates a pipeline.
+     *
+     * @param ocrService The OCR service, with one worker per engine of its pool.
+     * @param maxFrames The maximum number of frames to capture.
+     * @param scrollAmount The initial number of wheel steps per scroll.
+     */
+    public ScrollshotPipeline(OcrService ocrService, int maxFrames, int scrollAmount) {
+        this.ocrService = ocrService;
+        this.maxFrames = maxFrames;
+        this.scrollAmount = Math.max(1, scrollAmount);
+        this.workerCount = ocrService.getPoolSize();
+        this.frames = new ArrayBlockingQueue<>(2 * workerCount);
+    }
+
+    /**
+     * Scrolls the page down to its end, capturing and recognizing its frames.
+     *
+     * @param page The page to capture.
+     * @return The merged text of the frames.
+     * @throws InterruptedException If the thread is interrupted while waiting for the workers.
+     */
+    public String capture(Page page) throws InterruptedException {
+        long start = System.nanoTime();
+        Thread[] workers = new Thread[workerCount];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(new Runnable() {
+                public void run() {
+                    recognizeFrames();
+                }
+            }, "odin-scrollshot-ocr-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+
+        try {
+            scrollThrough(page, new FrameSink() {
+                public void accept(BufferedImage image) throws InterruptedException {
+                    enqueue(image);
+                }
+            });
+        } finally {
+            for (int i = 0; i < workers.length; i++) {
+                frames.put(END);
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        }
+
+        synchronized (this) {
+            logger.info("Scrollshot: " + capturedFrames + " frames captured, " + recognizedFrames + " recognized in "
+                    + (System.nanoTime() - start) / 1000000 + " ms. " + stitcher.getStatistics());
+            return stitcher.toString();
+        }
+    }
+
+    /**
+     * Scrolls the page down to its end, stitching its frames into one tall image, and recognizes that image once, in
+     * parallel tiles. The overlap of the frames is found from their pixels, so the text is not recognized twice.
+     *
+     * @param page The page to capture.
+     * @return The text of the stitched image.
+     * @throws InterruptedException If the thread is interrupted while waiting for the tiles.
+     */
+    public String captureStitched(Page page) throws InterruptedException {
+        long start = System.nanoTime();
+        final ImageStitcher imageStitcher = new ImageStitcher();
+        scrollThrough(page, new FrameSink() {
+            public void accept(BufferedImage image) {
+                imageStitcher.append(image);
+            }
+        });
+        long stitched = System.nanoTime();
+
+        String text = "";
+        try {
+            text = imageStitcher.recognize(ocrService);
+        } catch (TesseractException e) {
+            logger.log(Level.SEVERE, "An error occurred: ", e);
+            fail(e);
+        } catch (Error e) {
+            logger.log(Level.SEVERE, "An error occurred: ", e);
+            fail(e);
+        }
+        logger.info("Scrollshot: " + imageStitcher.getFrameCount() + " frames stitched into " + imageStitcher.getHeight()
+                + " rows in " + (stitched - start) / 1000000 + " ms, recognized in "
+                + (System.nanoTime() - stitched) / 1000000 + " ms");
+        return text;
+    }
+
+    /**
+     * Scrolls the page down until it stops moving, adapting the scroll amount to how far the frames moved, and hands
+     * over every frame that moved.
+     */
+    private void scrollThrough(Page page, FrameSink sink) throws InterruptedException {
+        float[] previousRows = null;
+        int unchangedScrolls = 0;
+        for (int i = 0; i < maxFrames && !stopped; i++) {
+            BufferedImage image = page.capture();
+            float[] rows = rowBrightness(image);
+            if (previousRows == null) {
+                sink.accept(image);
+            } else {
+                int shift = estimateShift(previousRows, rows);
+                if (shift == 0) {
+                    if (++unchangedScrolls >= UNCHANGED_SCROLLS) {
+                        logger.info("The page stopped moving after " + i + " scrolls");
+                        break;
+                    }
+                } else {
+                    unchangedScrolls = 0;
+                    sink.accept(image);
+                    // Without a match, the page moved by more than a frame
+                    double overlap = shift < 0 ? 0 : 1 - (double) shift / rows.length;
+                    if (overlap > 0.7) scrollAmount++;
+                    if (overlap < 0.2 && scrollAmount > 1) scrollAmount--;
+                    logger.fine("Frame " + i + " moved by " + shift + " rows, scrolling by " + scrollAmount);
+                }
+            }
+            previousRows = rows;
+            page.scroll(scrollAmount);
+        }
+    }
+
+    /**
+     * Returns the first error of the OCR, if any. An {@code Error}, such as missing traineddata, stops the capture.
+     *
+     * @return The first error, or null.
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * Returns the number of wheel steps of the last scroll.
+     *
+     * @return The scroll amount.
+     */
+    public int getScrollAmount() {
+        return scrollAmount;
+    }
+
+    private void enqueue(BufferedImage image) throws InterruptedException {
+        int index;
+        synchronized (this) {
+            index = capturedFrames++;
+        }
+        frames.put(new Frame(index, image));
+    }
+
+    private void recognizeFrames() {
+        while (true) {
+            Frame frame;
+            try {
+                frame = frames.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (frame == END) {
+                return;
+            }
+            String text = null;
+            if (!stopped) {
+                try {
+                    text = ocrService.recognize(frame.image);
+                } catch (TesseractException | RuntimeException e) {
+                    // The frame is skipped, and the worker goes on with the next one
+                    logger.log(Level.SEVERE, "An error occurred: ", e);
+                    fail(e);
+                } catch (Error e) {
+                    logger.log(Level.SEVERE, "An error occurred: ", e);
+                    fail(e);
+                    stopped = true;
+                }
+            }
+            merge(frame.index, text);
+        }
+    }
+
+    private void fail(Throwable e) {
+        synchronized (this) {
+            if (failure == null) {
+                failure = e;
+            }
+        }
+    }
+
+    /**
+     * Merges the text of a frame once the texts of all the frames before it are merged.
+     */
+    private synchronized void merge(int index, String text) {
+        pending.put(index, text);
+        while (!pending.isEmpty() && pending.firstKey() == nextIndex) {
+            String currentText = pending.remove(nextIndex);
+            nextIndex++;
+            if (currentText == null) {
+                continue;
+            }
+            recognizedFrames++;
+            int newLines = stitcher.append(currentText);
+            logger.fine("Frame " + (nextIndex - 1) + " added " + newLines + " lines");
+        }
+    }
+
+    /**
+     * Reduces a frame to the average brightness of its rows, sampling every fourth column.
+     *
+     * @param image The frame.
+     * @return The brightness of each row, between 0 and 255.
+     */
+    static float[] rowBrightness(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        float[] rows = new float[height];
+        int[] pixels = new int[width];
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, pixels, 0, width);
+            long sum = 0;
+            int count = 0;
+            for (int x = 0; x < width; x += COLUMN_STEP) {
+                int rgb = pixels[x];
+                sum += (((rgb >> 16) & 0xff) * 299 + ((rgb >> 8) & 0xff) * 587 + (rgb & 0xff) * 114) / 1000;
+                count++;
+            }
+            rows[y] = count == 0 ? 0 : (float) sum / count;
+        }
+        return rows;
+    }
+
+    /**
+     * Estimates how many rows the page moved up between two frames, by finding the shift for which the rows of the
+     * frames match best. At least a quarter of the rows have to overlap.
+     *
+     * @param previous The row brightness of the previous frame.
+     * @param current The row brightness of the current frame.
+     * @return The shift in rows, 0 if the frames are the same, or -1 if no shift matches.
+     */
+    static int estimateShift(float[] previous, float[] current) {
+        int height = Math.min(previous.length, current.length);
+        if (height == 0) {
+            return 0;
+        }
+        if (difference(previous, current, 0, height) < UNCHANGED_TOLERANCE) {
+            return 0;
+        }
+        int minOverlap = Math.max(1, height / 4);
+        int bestShift = -1;
+        double bestDifference = MATCH_TOLERANCE;
+        for (int shift = 1; shift <= height - minOverlap; shift++) {
+            double difference = difference(previous, current, shift, height);
+            if (difference < bestDifference) {
+                bestDifference = difference;
+                bestShift = shift;
+            }
+        }
+        return bestShift;
+    }
+
+    private static double difference(float[] previous, float[] current, int shift, int height) {
+        double sum = 0;
+        for (int y = 0; y + shift < height; y++) {
+            sum += Math.abs(previous[y + shift] - current[y]);
+        }
+        return sum / (height - shift);
+    }
+}
@@ -0,0 +1,369 @@
+package org.odinware.odinrunes;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import okio.BufferedSource;
+import org.json.JSONException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The SseStreamDecoder class decodes the server-sent event (SSE) stream of an OpenAI style chat completion.
+ * It only pulls out the fields Odin Runes needs from each event, namely the model name, the {@code delta.content}
+ * of the first choice and the {@code [DONE]} sentinel, and skips everything else.
+ *
+ * <p>Instead of building a full JSON object graph for every streamed token, the decoder uses Jackson's streaming
+ * {@code JsonParser} and keeps its results in reusable fields. The model name is only reallocated when it changes
+ * and the content is copied into a reused {@code StringBuilder}, so decoding an event allocates next to nothing.
+ *
+ * <p>Basic Usage:
+ * 1. Call {@code stream(BufferedSource, WisdomEventListener)} to publish every event of a response body as a {@code WisdomEvent}.
+ * 2. Or call {@code next(BufferedSource)} to read and decode the next event straight from a response body, or
+ *    {@code decode(String)} for a line that was already read. Then check {@code isDone()}, and read {@code getModel()}
+ *    and, if {@code hasContent()}, {@code getContent()}, or hand the event on with {@code publish(WisdomEventListener)}.
+ *
+ * <p>An instance keeps state between events and is not thread-safe. Use one decoder per response stream.
+ */
+public class SseStreamDecoder {
+    private static final Logger logger = Logger.getLogger(SseStreamDecoder.class.getName());
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final String DATA_PREFIX = "data:";
+    private static final String DONE_SENTINEL = "[DONE]";
+    private static final byte[] DATA_PREFIX_BYTES = DATA_PREFIX.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] DONE_SENTINEL_BYTES = DONE_SENTINEL.getBytes(StandardCharsets.US_ASCII);
+
+    private final StringBuilder content = new StringBuilder();
+    private byte[] lineBuffer = new byte[1024];
+    private int lineLength;
+    private String model;
+    private String publishedModel;
+    private boolean modelSeen;
+    private boolean hasContent;
+    private boolean done;
+
+    /**
+     * Reads lines from the source until a complete event has been decoded.
+     * Empty lines and SSE comment lines are skipped.
+     *
+     * @param source The response body source to read from.
+     * @return true if an event was decoded, or false if the source is exhausted.
+     * @throws IOException If reading from the source fails.
+     * @throws JSONException If a line is not a valid data event.
+     */
+    public boolean next(BufferedSource source) throws IOException, JSONException {
+        while (true) {
+            long newline = source.indexOf((byte) '\n');
+            int length;
+            int consumed;
+            if (newline == -1) {
+                if (source.exhausted()) {
+                    return false;
+                }
+                // Last line without a trailing newline
+                length = (int) source.getBuffer().size();
+                consumed = length;
+            } else {
+                length = (int) newline;
+                consumed = length + 1;
+            }
+
+            if (lineBuffer.length < consumed) {
+                lineBuffer = new byte[Math.max(consumed, lineBuffer.length * 2)];
+            }
+            int read = 0;
+            while (read < consumed) {
+                int count = source.read(lineBuffer, read, consumed - read);
+                if (count == -1) {
+                    throw new EOFException();
+                }
+                read += count;
+            }
+            if (length > 0 && lineBuffer[length - 1] == '\r') {
+                length--;
+            }
+            lineLength = length;
+
+            if (decode(lineBuffer, length)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Decodes the whole stream and publishes its events to the listener, until the stream is done,
+     * exhausted, or the listener asks to stop. A line that cannot be decoded is published as an ERROR
+     * event holding that line and the rest of the stream.
+     *
+     * @param source The response body source to read from.
+     * @param listener The listener to publish the events to.
+     * @throws IOException If reading from the source fails.
+     */
+    public void stream(BufferedSource source, WisdomEventListener listener) throws IOException {
+        try {
+            while (next(source)) {
+                if (!publish(listener)) {
+                    return;
+                }
+            }
+        } catch (JSONException e) {
+            logger.log(Level.SEVERE, "An error occurred: ", e);
+            String problematicLine = new String(lineBuffer, 0, lineLength, StandardCharsets.UTF_8);
+            listener.onEvent(WisdomEvent.error(readRemaining(problematicLine, source)));
+            return;
+        }
+        listener.onEvent(WisdomEvent.done());
+    }
+
+    /**
+     * Publishes the last decoded event to the listener. A MODEL event is published whenever the model
+     * differs from the one published before, followed by a DELTA event if the event carried content.
+     *
+     * @param listener The listener to publish to.
+     * @return false if the stream is done or the listener asked to stop, true otherwise.
+     */
+    public boolean publish(WisdomEventListener listener) {
+        if (done) {
+            listener.onEvent(WisdomEvent.done());
+            return false;
+        }
+        if (model != null && !model.equals(publishedModel)) {
+            publishedModel = model;
+            if (!listener.onEvent(WisdomEvent.model(model))) {
+                return false;
+            }
+        }
+        if (hasContent) {
+            return listener.onEvent(WisdomEvent.delta(content.toString()));
+        }
+        return true;
+    }
+
+    /**
+     * Reads what is left of a response, so that it can be reported together with the line that could not be processed.
+     *
+     * @param firstLine The line that could not be processed.
+     * @param source The source holding the rest of the response.
+     * @return The first line followed by the remaining lines of the response.
+     * @throws IOException If reading from the source fails.
+     */
+    static String readRemaining(String firstLine, BufferedSource source) throws IOException {
+        StringBuilder problematicResponse = new StringBuilder(firstLine);
+        String line;
+        while ((line = source.readUtf8Line()) != null) {
+            logger.info(line);
+            problematicResponse.append(line);
+        }
+        return problematicResponse.toString();
+    }
+
+    /**
+     * Decodes a single line of the SSE stream.
+     *
+     * @param line The line to decode.
+     * @return true if the line contained an event, or false if it was empty or an SSE comment.
+     * @throws JSONException If the line is not a valid data event.
+     */
+    public boolean decode(String line) throws JSONException {
+        reset();
+        String trimmed = line.trim();
+        if (trimmed.isEmpty() || trimmed.charAt(0) == ':') {
+            return false;
+        }
+        if (!trimmed.startsWith(DATA_PREFIX)) {
+            throw invalidResponse(line);
+        }
+
+        int start = skipWhitespace(trimmed, DATA_PREFIX.length());
+        if (trimmed.startsWith(DONE_SENTINEL, start) && trimmed.length() == start + DONE_SENTINEL.length()) {
+            done = true;
+            return true;
+        }
+
+        try (JsonParser parser = JSON_FACTORY.createParser(trimmed.substring(start))) {
+            readEvent(parser);
+        } catch (IOException e) {
+            throw new JSONException("Invalid JSON: " + trimmed.substring(start), e);
+        }
+        if (!modelSeen) {
+            throw new JSONException("Invalid JSON: " + trimmed.substring(start));
+        }
+        return true;
+    }
+
+    private boolean decode(byte[] bytes, int length) throws JSONException {
+        reset();
+        int start = 0;
+        int end = length;
+        while (start < end && bytes[start] <= ' ') start++;
+        while (end > start && bytes[end - 1] <= ' ') end--;
+        if (start == end || bytes[start] == ':') {
+            return false;
+        }
+        if (!regionMatches(bytes, start, end, DATA_PREFIX_BYTES)) {
+            throw invalidResponse(new String(bytes, 0, length, StandardCharsets.UTF_8));
+        }
+
+        start += DATA_PREFIX_BYTES.length;
+        while (start < end && bytes[start] <= ' ') start++;
+        if (end - start == DONE_SENTINEL_BYTES.length && regionMatches(bytes, start, end, DONE_SENTINEL_BYTES)) {
+            done = true;
+            return true;
+        }
+
+        try (JsonParser parser = JSON_FACTORY.createParser(bytes, start, end - start)) {
+            readEvent(parser);
+        } catch (IOException e) {
+            throw new JSONException("Invalid JSON: " + new String(bytes, start, end - start, StandardCharsets.UTF_8), e);
+        }
+        if (!modelSeen) {
+            throw new JSONException("Invalid JSON: " + new String(bytes, start, end - start, StandardCharsets.UTF_8));
+        }
+        return true;
+    }
+
+    /**
+     * Walks a single chat completion chunk and picks out the model name and the first choice's delta content.
+     */
+    private void readEvent(JsonParser parser) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new IOException("Expected a JSON object");
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.currentName();
+            JsonToken token = parser.nextToken();
+            if ("model".equals(name) && token == JsonToken.VALUE_STRING) {
+                readModel(parser);
+            } else if ("choices".equals(name) && token == JsonToken.START_ARRAY) {
+                readChoices(parser);
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private void readChoices(JsonParser parser) throws IOException {
+        boolean first = true;
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY && token != null) {
+            if (first && token == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = parser.currentName();
+                    JsonToken valueToken = parser.nextToken();
+                    if ("delta".equals(name) && valueToken == JsonToken.START_OBJECT) {
+                        readDelta(parser);
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+            first = false;
+        }
+    }
+
+    private void readDelta(JsonParser parser) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.currentName();
+            JsonToken token = parser.nextToken();
+            if ("content".equals(name) && token == JsonToken.VALUE_STRING) {
+                content.append(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+                hasContent = true;
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private void readModel(JsonParser parser) throws IOException {
+        modelSeen = true;
+        char[] chars = parser.getTextCharacters();
+        int offset = parser.getTextOffset();
+        int length = parser.getTextLength();
+        // The model rarely changes within a stream, so only allocate a new string when it does.
+        if (model != null && model.length() == length) {
+            boolean same = true;
+            for (int i = 0; i < length; i++) {
+                if (model.charAt(i) != chars[offset + i]) {
+                    same = false;
+                    break;
+                }
+            }
+            if (same) {
+                return;
+            }
+        }
+        model = new String(chars, offset, length);
+    }
+
+    private void reset() {
+        content.setLength(0);
+        modelSeen = false;
+        hasContent = false;
+        done = false;
+    }
+
+    private static JSONException invalidResponse(String line) {
+        return new JSONException("Failed to retrieve a valid response from your specified GPT provider. Check your environment variables, particularly the API key and make sure they are set to valid values.\n" + line);
+    }
+
+    private static int skipWhitespace(String text, int index) {
+        while (index < text.length() && Character.isWhitespace(text.charAt(index))) index++;
+        return index;
+    }
+
+    private static boolean regionMatches(byte[] bytes, int start, int end, byte[] expected) {
+        if (end - start < expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (bytes[start + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the last decoded event was the {@code [DONE]} sentinel.
+     *
+     * @return true if the stream has signalled that it is done.
+     */
+    public boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Returns the model name reported by the most recent event that carried one.
+     *
+     * @return The model name, or null if no event has reported a model yet.
+     */
+    public String getModel() {
+        return model;
+    }
+
+    /**
+     * Returns true if the last decoded event carried {@code delta.content} for its first choice.
+     *
+     * @return true if there is content for the last event.
+     */
+    public boolean hasContent() {
+        return hasContent;
+    }
+
+    /**
+     * Returns the {@code delta.content} of the last decoded event.
+     * The returned sequence is reused by the next call to {@code next} or {@code decode}, so copy it if it needs to be kept.
+     *
+     * @return The content of the last event.
+     */
+    public CharSequence getContent() {
+        return content;
+    }
+
+}
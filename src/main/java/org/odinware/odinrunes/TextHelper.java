@@ -21,6 +21,7 @@ public class TextHelper {
     private static final Logger logger = Logger.getLogger(TextHelper.class.getName());
 
     private String filePath;
+    private TranscriptWriter transcriptWriter;
 
     /**
      * Constructs a TextHelper object with the specified file path.
@@ -33,6 +34,15 @@ public class TextHelper {
         openTextFile();
     }
 
+    /**
+     * Returns the path to the text file.
+     *
+     * @return the path to the text file
+     */
+    public String getFilePath() {
+        return filePath;
+    }
+
     /**
      * Checks if the file is empty, and populates it with default content if necessary.
      */
@@ -59,6 +69,7 @@ public class TextHelper {
      * @param content the string content to write
      */
     public void writeStringToFile(String content) {
+        flushTranscriptSession();
         try (BufferedWriter writer = new BufferedWriter(new FileWriter(filePath))) {
             writer.write(content);
         } catch (IOException e) {
@@ -72,6 +83,16 @@ public class TextHelper {
      * @param content the string content to append
      */
     public void appendStringToFile(String content) {
+        if (transcriptWriter != null) {
+            try {
+                transcriptWriter.append(content);
+                return;
+            } catch (IOException e) {
+                // Keep going with direct appends, so that the closing markers still reach the file.
+                logger.log(Level.SEVERE, "The transcript session failed, falling back to direct appends: ", e);
+                closeTranscriptSession();
+            }
+        }
         try (BufferedWriter writer = new BufferedWriter(new FileWriter(filePath, true))) {
             writer.write(content);
         } catch (IOException e) {
@@ -79,6 +100,50 @@ public class TextHelper {
         }
     }
 
+    /**
+     * Opens a transcript session on the file. Until the session is closed, appended text goes through a single
+     * {@code TranscriptWriter} that buffers it and writes it according to its flush policy.
+     */
+    public void openTranscriptSession() {
+        if (transcriptWriter != null) {
+            return;
+        }
+        try {
+            transcriptWriter = new TranscriptWriter(filePath);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "An error occurred: ", e);
+        }
+    }
+
+    /**
+     * Writes any text buffered by the open transcript session to the file.
+     */
+    public void flushTranscriptSession() {
+        if (transcriptWriter != null) {
+            try {
+                transcriptWriter.flush();
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "An error occurred: ", e);
+            }
+        }
+    }
+
+    /**
+     * Writes any text buffered by the open transcript session to the file and closes the session.
+     * Appended text goes straight to the file again afterwards.
+     */
+    public void closeTranscriptSession() {
+        if (transcriptWriter != null) {
+            TranscriptWriter writer = transcriptWriter;
+            transcriptWriter = null;
+            try {
+                writer.close();
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "An error occurred: ", e);
+            }
+        }
+    }
+
     /**
      * Appends the Odin first info to the file.
      *
@@ -93,6 +158,35 @@ public class TextHelper {
         appendStringToFile(odinFirstInfo);
     }
 
+    /**
+     * Appends the Odin first info to the file, together with the routing decision that picked the model.
+     *
+     * @param model the Odin model
+     * @param date  the date
+     * @param routing the routing decision and the measured latencies
+     */
+    public void appendOdinFirstInfo(String model, String date, JSONObject routing) {
+        appendOdinFirstInfo(model, date, routing, null);
+    }
+
+    /**
+     * Appends the Odin first info to the file, together with the routing decision and the compaction boundary.
+     *
+     * @param model the Odin model
+     * @param date  the date
+     * @param routing the routing decision and the measured latencies, or null
+     * @param compaction the number of oldest messages sent as a summary and the key of the summary, or null
+     */
+    public void appendOdinFirstInfo(String model, String date, JSONObject routing, JSONObject compaction) {
+        String odinFirstInfo = String.format(
+                "<!-- =====[ Odin Runes ]======[ {\"model\" : \"%s\", \"date\": \"%s\"%s%s} ]======[ + ] -->\n",
+                model, date,
+                routing != null ? ", \"routing\": " + routing : "",
+                compaction != null ? ", \"compaction\": " + compaction : ""
+        );
+        appendStringToFile(odinFirstInfo);
+    }
+
     /**
      * Appends the user info to the file.
      */
@@ -143,11 +237,34 @@ public class TextHelper {
     }
 
     /**
-     * Retrieves the messages from the text file.
+     * Retrieves the messages from the text file. Only the part of the file that changed since the previous call is
+     * parsed, see {@code TranscriptIndex}.
      *
      * @return a JSONArray containing the messages
      */
     public JSONArray getMessages() {
+        return openMessages().toJSONArray();
+    }
+
+    /**
+     * Opens the messages of the text file without decoding their content. The content of each message is read from
+     * the file when it is asked for, see {@code TranscriptMessages}.
+     *
+     * @return the messages of the text file
+     */
+    public TranscriptMessages openMessages() {
+        flushTranscriptSession();
+        return TranscriptIndex.getDefault().open(filePath);
+    }
+
+    /**
+     * Retrieves the messages from the text file by parsing all of it. This is the reference the incremental parsing
+     * of {@code TranscriptIndex} has to agree with.
+     *
+     * @return a JSONArray containing the messages
+     */
+    JSONArray getMessagesByFullScan() {
+        flushTranscriptSession();
         JSONArray messages = new JSONArray();
         boolean isUserSection = false;
         boolean isAssistantSection = false;
@@ -166,19 +283,7 @@ public class TextHelper {
                     isUserSection = false;
                     isAssistantSection = false;
                     messageBuilder.setLength(0); // Clear the message builder.
-                    // Extract JSON content from the second pair of square brackets.
-                    int startIndex = line.indexOf('[') + 1;
-                    int endIndex = line.lastIndexOf(']');
-                    if (startIndex >= 0 && endIndex > startIndex) {
-                        String jsonContent = line.substring(startIndex, endIndex);
-                        try {
-                            // Check if the JSON content is valid.
-                            new JSONObject(new JSONTokener(jsonContent));
-                            jsonTemp = jsonContent;
-                        } catch (Exception e) {
-                            jsonTemp = null; // JSON is invalid.
-                        }
-                    }
+                    jsonTemp = extractHeaderJson(line, jsonTemp);
                 } else if (line.contains("<!-- =====[ Assistant ]=====[ : ] -->")) {
                     isUserSection = false;
                     isAssistantSection = true;
@@ -228,6 +333,30 @@ public class TextHelper {
         return messages;
     }
 
+    /**
+     * Extracts the JSON content of an Odin Runes header line.
+     *
+     * @param line the header line
+     * @param jsonTemp the JSON content known so far
+     * @return the JSON content of the header, null if it is invalid, or jsonTemp if the line has no brackets
+     */
+    static String extractHeaderJson(String line, String jsonTemp) {
+        // Extract JSON content from the second pair of square brackets.
+        int startIndex = line.indexOf('[') + 1;
+        int endIndex = line.lastIndexOf(']');
+        if (startIndex >= 0 && endIndex > startIndex) {
+            String jsonContent = line.substring(startIndex, endIndex);
+            try {
+                // Check if the JSON content is valid.
+                new JSONObject(new JSONTokener(jsonContent));
+                return jsonContent;
+            } catch (Exception e) {
+                return null; // JSON is invalid.
+            }
+        }
+        return jsonTemp;
+    }
+
     /**
      * Checks if the first line of the file contains valid Odin information.
      *
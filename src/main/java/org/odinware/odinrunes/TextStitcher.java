@@ -0,0 +1,205 @@
+package org.odinware.odinrunes;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The TextStitcher class merges the OCR texts of consecutive frames of a scrolled page, keeping only the lines that
+ * are new in each frame.
+ *
+ * <p>Consecutive frames of a scrollshot overlap: the last lines of a frame are the first lines of the next one. The
+ * stitcher finds the longest run of lines that ends the previous frame and starts the next one, and appends only the
+ * lines after it. Lines are compared after collapsing their whitespace, through a rolling hash of the lines so that
+ * each candidate overlap is compared in constant time, which makes stitching linear in the length of the frames, but
+ * they are appended as they were recognized, so that the indentation of code is kept.
+ * The lines cut in half at the edges of a frame are often recognized differently, so up to two lines may be skipped
+ * at the end of the previous frame and at the start of the next one; a skipped line at the end of the previous frame
+ * is replaced by its complete version from the next one. A frame without any overlap is appended as a whole.
+ *
+ * Basic Usage:
+ * 1. Create a TextStitcher.
+ * 2. Use {@code append} with the text of each frame, in the order of the frames.
+ * 3. Use {@code toString} to get the stitched text.
+ */
+public class TextStitcher {
+    // The lines at the edges of a frame that may have been cut by the frame
+    private static final int EDGE_LINES = 2;
+    // The overlap has to have this many characters, so that a few short lines such as "}" do not make one
+    private static final int MIN_OVERLAP_CHARACTERS = 20;
+    private static final long BASE = 1000003L;
+
+    private final StringBuilder text = new StringBuilder();
+    private List<String> previousLines = Collections.emptyList();
+    private long[] previousHashes = new long[1];
+    private long[] powers = new long[]{1};
+    // The offset in the text of each line of the previous frame, or -1 for the lines that were already there
+    private int[] previousOffsets = new int[0];
+    private int frameCount;
+    private int overlappingFrames;
+
+    /**
+     * Appends the lines of the frame that are not already at the end of the text.
+     *
+     * @param frameText The OCR text of the frame.
+     * @return The number of appended lines.
+     */
+    public int append(String frameText) {
+        List<String> originalLines = originalLines(frameText);
+        List<String> lines = collapse(originalLines);
+        long[] hashes = prefixHashes(lines);
+        powers = powers(Math.max(lines.size(), previousLines.size()));
+        frameCount++;
+
+        int[] overlap = findOverlap(lines, hashes);
+        int firstNewLine = 0;
+        if (overlap != null) {
+            overlappingFrames++;
+            firstNewLine = overlap[1] + overlap[2];
+            // Replaces the cut lines at the end of the previous frame with the same lines of the frame, and skips the
+            // ones that were already in the text before the previous frame
+            for (int i = previousLines.size() - overlap[0]; i < previousLines.size(); i++) {
+                if (previousOffsets[i] >= 0) {
+                    text.setLength(previousOffsets[i]);
+                    break;
+                }
+                firstNewLine++;
+            }
+            firstNewLine = Math.min(firstNewLine, lines.size());
+        }
+
+        int[] offsets = new int[lines.size()];
+        for (int i = 0; i < lines.size(); i++) {
+            if (i < firstNewLine) {
+                offsets[i] = -1;
+            } else {
+                offsets[i] = text.length();
+                text.append(originalLines.get(i)).append('\n');
+            }
+        }
+        previousLines = lines;
+        previousHashes = hashes;
+        previousOffsets = offsets;
+        return lines.size() - firstNewLine;
+    }
+
+    /**
+     * Returns the number of appended frames, and how many of them overlapped the frame before.
+     *
+     * @return A summary of the counters.
+     */
+    public String getStatistics() {
+        return "Stitched " + frameCount + " frames, " + overlappingFrames + " overlapping, into " + text.length() + " characters";
+    }
+
+    /**
+     * Returns the stitched text.
+     *
+     * @return The text.
+     */
+    @Override
+    public String toString() {
+        return text.toString();
+    }
+
+    /**
+     * Finds the longest run of lines that ends the previous frame, but for its cut lines, and starts the frame, but
+     * for its cut lines.
+     *
+     * @return The number of skipped lines at the end of the previous frame and at the start of the frame, and the
+     * number of overlapping lines, or null if the frames do not overlap.
+     */
+    private int[] findOverlap(List<String> lines, long[] hashes) {
+        int[] best = null;
+        for (int skippedAtEnd = 0; skippedAtEnd <= EDGE_LINES; skippedAtEnd++) {
+            for (int skippedAtStart = 0; skippedAtStart <= EDGE_LINES; skippedAtStart++) {
+                int end = previousLines.size() - skippedAtEnd;
+                int maxLength = Math.min(end, lines.size() - skippedAtStart);
+                int minLength = best == null ? 1 : best[2] + 1;
+                for (int length = maxLength; length >= minLength; length--) {
+                    if (hash(previousHashes, end - length, end) == hash(hashes, skippedAtStart, skippedAtStart + length)
+                            && matches(end - length, lines, skippedAtStart, length)) {
+                        best = new int[]{skippedAtEnd, skippedAtStart, length};
+                        break;
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    private boolean matches(int previousStart, List<String> lines, int start, int length) {
+        int characters = 0;
+        for (int i = 0; i < length; i++) {
+            String line = lines.get(start + i);
+            if (!line.equals(previousLines.get(previousStart + i))) {
+                return false;
+            }
+            characters += line.length();
+        }
+        return characters >= MIN_OVERLAP_CHARACTERS;
+    }
+
+    /**
+     * Splits a frame into lines with collapsed whitespace, without the blank lines at its start and end.
+     */
+    static List<String> lines(String frameText) {
+        return collapse(originalLines(frameText));
+    }
+
+    /**
+     * Splits a frame into lines without their trailing whitespace, without the blank lines at its start and end.
+     */
+    private static List<String> originalLines(String frameText) {
+        List<String> lines = new ArrayList<>();
+        if (frameText == null) {
+            return lines;
+        }
+        for (String line : frameText.split("\r?\n")) {
+            String trimmed = line.replaceAll("\\s+$", "");
+            if (!trimmed.isEmpty() || !lines.isEmpty()) {
+                lines.add(trimmed);
+            }
+        }
+        while (!lines.isEmpty() && lines.get(lines.size() - 1).isEmpty()) {
+            lines.remove(lines.size() - 1);
+        }
+        return lines;
+    }
+
+    private static List<String> collapse(List<String> originalLines) {
+        List<String> lines = new ArrayList<>(originalLines.size());
+        for (String line : originalLines) {
+            lines.add(line.trim().replaceAll("\\s+", " "));
+        }
+        return lines;
+    }
+
+    /**
+     * Returns the polynomial hashes of the prefixes of the lines, so that the hash of any run of lines is a
+     * subtraction away.
+     */
+    private static long[] prefixHashes(List<String> lines) {
+        long[] hashes = new long[lines.size() + 1];
+        for (int i = 0; i < lines.size(); i++) {
+            hashes[i + 1] = hashes[i] * BASE + lines.get(i).hashCode();
+        }
+        return hashes;
+    }
+
+    private long[] powers(int length) {
+        if (powers.length > length) {
+            return powers;
+        }
+        long[] grown = new long[length + 1];
+        grown[0] = 1;
+        for (int i = 1; i < grown.length; i++) {
+            grown[i] = grown[i - 1] * BASE;
+        }
+        return grown;
+    }
+
+    private long hash(long[] prefixHashes, int start, int end) {
+        return prefixHashes[end] - prefixHashes[start] * powers[end - start];
+    }
+}
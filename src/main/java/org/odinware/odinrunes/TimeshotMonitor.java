@@ -0,0 +1,387 @@
+package org.odinware.odinrunes;
+
+import net.sourceforge.tess4j.TesseractException;
+
+import java.awt.image.BufferedImage;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The TimeshotMonitor class captures a region of the screen at regular intervals, in the background, and keeps the
+ * last snapshots of its text, each with the time it was captured.
+ *
+ * <p>Most frames of a monitored region are the same as the frame before, or differ in a few lines. Each frame is
+ * reduced to a hash of each of its rows of pixels, which takes a single pass over the frame, and a frame with the
+ * same rows as the frame before is skipped without any OCR. A frame that changed is cut into horizontal bands at the
+ * blank rows between lines of text, and never through a line, so a frame without blank rows is a single band. Only
+ * the bands whose pixels were not recognized before are recognized, in parallel on the engines of the OCR service;
+ * the text of the other bands is taken from a cache keyed by the hash of their rows, and the texts of the bands are
+ * spliced together in their order. Changes that do not change the text, such as a blinking cursor, therefore cost at
+ * most one OCR per band and state. Exact row hashes are used rather than
+ * a downsampled difference, which costs the same pass but misses a word replaced by another of the same size.
+ *
+ * <p>A snapshot is kept when the text of a frame differs from the text of the last snapshot. The snapshots are kept
+ * in a ring buffer, dropping the oldest ones.
+ *
+ * Basic Usage:
+ * 1. Create a TimeshotMonitor with the OCR service, the {@code Source} of the frames, the interval and the number of
+ * snapshots to keep ({@code getDefaultCapacity} reads ODIN_RUNES_TIMESHOT_SNAPSHOTS, 100 by default).
+ * 2. Use {@code start} to capture in the background, and {@code stop} to stop, or {@code run} to capture a number of
+ * frames in the calling thread.
+ * 3. Use {@code getText} to get the snapshots as text, or {@code getSnapshots} to get them one by one.
+ */
+public class TimeshotMonitor {
+    private static final Logger logger = Logger.getLogger(TimeshotMonitor.class.getName());
+
+    private static final int DEFAULT_CAPACITY = 100;
+    // A band ends at the first blank row once it is this high
+    private static final int BAND_HEIGHT = 64;
+    private static final int MAX_CACHED_BANDS = 1024;
+
+    private final OcrService ocrService;
+    private final Source source;
+    private final long intervalMillis;
+    private final int capacity;
+    private final ExecutorService executor;
+
+    // The texts of recognized bands, by the hash of their rows
+    private final Map<Long, String> bandTexts = new LinkedHashMap<Long, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+            return size() > MAX_CACHED_BANDS;
+        }
+    };
+    private final ArrayDeque<Snapshot> snapshots = new ArrayDeque<>();
+    private long[] previousHashes;
+    private Thread thread;
+    private volatile boolean running;
+    private volatile Throwable failure;
+
+    private int frameCount;
+    private int unchangedFrames;
+    private int bandCount;
+    private int recognizedBands;
+
+    /**
+     * The region to monitor.
+     */
+    public interface Source {
+        /**
+         * Captures the region.
+         *
+         * @return The frame.
+         */
+        BufferedImage capture();
+    }
+
+    /**
+     * The text of the region at a point in time.
+     */
+    public static final class Snapshot {
+        private final long timestamp;
+        private final String text;
+
+        Snapshot(long timestamp, String text) {
+            this.timestamp = timestamp;
+            this.text = text;
+        }
+
+        /**
+         * Returns when the frame of the snapshot was captured.
+         *
+         * @return The time in milliseconds since the epoch.
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public String getText() {
+            return text;
+        }
+    }
+
+    /**
+     * Creates a monitor.
+     *
+     * @param ocrService The OCR service.
+     * @param source The region to monitor.
+     * @param intervalMillis The time between two captures.
+     * @param capacity The number of snapshots to keep.
+     */
+    public TimeshotMonitor(OcrService ocrService, Source source, long intervalMillis, int capacity) {
+        this.ocrService = ocrService;
+        this.source = source;
+        this.intervalMillis = intervalMillis;
+        this.capacity = Math.max(1, capacity);
+        this.executor = Executors.newFixedThreadPool(ocrService.getPoolSize(), new ThreadFactory() {
+            private int count;
+
+            public synchronized Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "odin-timeshot-ocr-" + count++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Returns the number of snapshots to keep, from ODIN_RUNES_TIMESHOT_SNAPSHOTS.
+     *
+     * @return The capacity of the ring buffer.
+     */
+    public static int getDefaultCapacity() {
+        String value = System.getenv("ODIN_RUNES_TIMESHOT_SNAPSHOTS");
+        if (value != null) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                logger.warning("Ignoring invalid value of ODIN_RUNES_TIMESHOT_SNAPSHOTS: " + value);
+            }
+        }
+        return DEFAULT_CAPACITY;
+    }
+
+    /**
+     * Starts capturing in the background, until {@code stop} is called.
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        running = true;
+        thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (running) {
+                        captureFrame();
+                        Thread.sleep(intervalMillis);
+                    }
+                } catch (InterruptedException e) {
+                    // Stopped
+                } catch (RuntimeException e) {
+                    logger.log(Level.SEVERE, "An error occurred: ", e);
+                    failure = e;
+                    running = false;
+                }
+            }
+        }, "odin-timeshot");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops capturing, interrupting the frame being captured, and releases the OCR threads.
+     *
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public void stop() throws InterruptedException {
+        Thread thread;
+        synchronized (this) {
+            running = false;
+            thread = this.thread;
+        }
+        if (thread != null) {
+            thread.interrupt();
+            thread.join();
+        }
+        executor.shutdownNow();
+        logger.info(getStatistics());
+    }
+
+    /**
+     * Tells whether the monitor captures in the background.
+     *
+     * @return true between {@code start} and {@code stop}.
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Captures a number of frames in the calling thread, one per interval, and releases the OCR threads.
+     *
+     * @param frames The number of frames.
+     * @throws InterruptedException If the thread is interrupted.
+     */
+    public void run(int frames) throws InterruptedException {
+        try {
+            for (int i = 0; i < frames && failure == null; i++) {
+                captureFrame();
+                Thread.sleep(intervalMillis);
+            }
+        } finally {
+            stop();
+        }
+    }
+
+    /**
+     * Captures a frame, and keeps a snapshot of its text if the text changed.
+     *
+     * @return true if a snapshot was added.
+     * @throws InterruptedException If the thread is interrupted while waiting for the OCR.
+     */
+    boolean captureFrame() throws InterruptedException {
+        long timestamp = System.currentTimeMillis();
+        BufferedImage frame = source.capture();
+        int width = frame.getWidth();
+        long[] hashes = ImageStitcher.rowHashes(frame);
+        synchronized (this) {
+            frameCount++;
+            if (Arrays.equals(hashes, previousHashes)) {
+                unchangedFrames++;
+                return false;
+            }
+        }
+
+        // Cuts the frame into bands at blank rows, and recognizes the bands that were not recognized before
+        List<int[]> bands = bands(frame);
+        List<Long> keys = new ArrayList<>();
+        Map<Long, Future<String>> recognitions = new LinkedHashMap<>();
+        for (final int[] band : bands) {
+            long key = width;
+            for (int y = band[0]; y < band[0] + band[1]; y++) {
+                key = 31 * key + hashes[y];
+            }
+            keys.add(key);
+            synchronized (this) {
+                // Looking the band up keeps it in the cache while the new bands are added
+                if (bandTexts.get(key) != null || recognitions.containsKey(key)) {
+                    continue;
+                }
+            }
+            final BufferedImage image = frame.getSubimage(0, band[0], width, band[1]);
+            recognitions.put(key, executor.submit(new Callable<String>() {
+                public String call() throws TesseractException {
+                    return ocrService.recognize(image);
+                }
+            }));
+        }
+
+        StringBuilder text = new StringBuilder();
+        try {
+            for (Map.Entry<Long, Future<String>> recognition : recognitions.entrySet()) {
+                String bandText = recognition.getValue().get().trim();
+                synchronized (this) {
+                    bandTexts.put(recognition.getKey(), bandText);
+                }
+            }
+            synchronized (this) {
+                bandCount += bands.size();
+                recognizedBands += recognitions.size();
+                for (Long key : keys) {
+                    String bandText = bandTexts.get(key);
+                    if (!bandText.isEmpty()) {
+                        text.append(bandText).append('\n');
+                    }
+                }
+                previousHashes = hashes;
+                Snapshot last = snapshots.peekLast();
+                if (last != null && last.getText().equals(text.toString())) {
+                    return false;
+                }
+                if (snapshots.size() == capacity) {
+                    snapshots.removeFirst();
+                }
+                snapshots.addLast(new Snapshot(timestamp, text.toString()));
+                return true;
+            }
+        } catch (ExecutionException e) {
+            // The frame is captured again next time
+            logger.log(Level.SEVERE, "An error occurred: ", e.getCause());
+            if (e.getCause() instanceof Error) {
+                failure = e.getCause();
+                running = false;
+            } else if (failure == null) {
+                failure = e.getCause();
+            }
+            for (Future<String> recognition : recognitions.values()) {
+                recognition.cancel(false);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Cuts a frame into horizontal bands, at the first blank row once a band is high enough. A band is never cut
+     * elsewhere, since that would cut through a line of text, so a frame without blank rows is a single band.
+     *
+     * @return The first row and the height of each band.
+     */
+    static List<int[]> bands(BufferedImage frame) {
+        List<int[]> bands = new ArrayList<>();
+        int width = frame.getWidth();
+        int[] pixels = new int[width];
+        int start = 0;
+        for (int y = 0; y < frame.getHeight(); y++) {
+            int height = y + 1 - start;
+            if (height >= BAND_HEIGHT) {
+                frame.getRGB(0, y, width, 1, pixels, 0, width);
+                if (ImageStitcher.isBlankRow(pixels)) {
+                    bands.add(new int[]{start, height});
+                    start = y + 1;
+                }
+            }
+        }
+        if (start < frame.getHeight()) {
+            bands.add(new int[]{start, frame.getHeight() - start});
+        }
+        return bands;
+    }
+
+    /**
+     * Returns the first error of the OCR, if any. An {@code Error}, such as missing traineddata, stops the monitor.
+     *
+     * @return The first error, or null.
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * Returns the kept snapshots, oldest first.
+     *
+     * @return A copy of the snapshots.
+     */
+    public synchronized List<Snapshot> getSnapshots() {
+        return new ArrayList<>(snapshots);
+    }
+
+    /**
+     * Returns the kept snapshots as text, each introduced by the time it was captured.
+     *
+     * @return The text of the snapshots.
+     */
+    public synchronized String getText() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        StringBuilder text = new StringBuilder();
+        for (Snapshot snapshot : snapshots) {
+            text.append("\n At ").append(format.format(new Date(snapshot.getTimestamp())))
+                    .append(" the OCR of the screen is: ").append(snapshot.getText());
+        }
+        return text.toString();
+    }
+
+    /**
+     * Returns how many frames were captured, skipped and recognized, and how many snapshots are kept.
+     *
+     * @return A summary of the counters.
+     */
+    public synchronized String getStatistics() {
+        return "Timeshot: " + frameCount + " frames, " + unchangedFrames + " unchanged, " + recognizedBands + " of "
+                + bandCount + " bands recognized, " + snapshots.size() + " snapshots";
+    }
+}
@@ -0,0 +1,418 @@
+package org.odinware.odinrunes;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * The TranscriptIndex class parses the messages of a transcript incrementally, so that a long conversation is not
+ * parsed again from the first line on every turn.
+ *
+ * <p>For every transcript, a small index file remembers where the completed messages are: their role, the byte
+ * offsets of their content and their JSON info. It also remembers the last validated offset, which is the end of the
+ * last OVER marker line, where no section is open, the size and modification time of the transcript, and a CRC32
+ * checksum of the last bytes before the validated offset. On the next turn, a transcript with the same size and
+ * modification time is taken as it is; otherwise the checksum is verified, which costs the same however long the
+ * conversation is. The indexed messages are then read straight from their offsets, and only the bytes after the
+ * validated offset are parsed. If the user edited an earlier answer, the bytes before the validated offset moved and
+ * the checksum does not match, so the whole transcript is parsed again. An edit that keeps the length of the
+ * transcript before the checksummed bytes is not noticed.
+ *
+ * <p>The parsing follows the same rules as the full scan of {@code TextHelper}, so the messages are identical. The
+ * transcript is read with positional reads of the bytes that are needed, and is neither kept open nor mapped, so that
+ * the user can edit or truncate it in another program at any time. The content of an indexed message is only read and
+ * decoded when it is first asked for, and is then kept with the message, see {@code TranscriptMessages}.
+ *
+ * Basic Usage:
+ * 1. Use {@code getDefault().open(filePath)} to get the messages of a transcript.
+ * 2. Optionally set ODIN_RUNES_INDEX_DIR to keep the index files somewhere else than ~/.odinrunes/transcript-index.
+ * 3. Use {@code getParsedBytes} to see how many transcript bytes were actually parsed.
+ */
+public class TranscriptIndex {
+    private static final Logger logger = Logger.getLogger(TranscriptIndex.class.getName());
+
+    private static final int VERSION = 2;
+    // The number of bytes before the validated offset that are checksummed
+    private static final int CHECKSUM_WINDOW = 16 * 1024;
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final byte[] MARKER_PREFIX = "<!-- =====[".getBytes(StandardCharsets.US_ASCII);
+
+    private static TranscriptIndex defaultIndex;
+
+    private final File directory;
+    private final AtomicLong parsedBytes = new AtomicLong();
+
+    /**
+     * Creates an index keeping its files in the specified directory.
+     *
+     * @param directory The directory holding the index files.
+     */
+    public TranscriptIndex(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the application-wide index, configured through the environment variables.
+     *
+     * @return The default index.
+     */
+    public static synchronized TranscriptIndex getDefault() {
+        if (defaultIndex == null) {
+            String directory = System.getenv("ODIN_RUNES_INDEX_DIR");
+            if (directory == null || directory.trim().isEmpty()) {
+                directory = System.getProperty("user.home") + File.separator + ".odinrunes" + File.separator + "transcript-index";
+            }
+            defaultIndex = new TranscriptIndex(new File(directory));
+        }
+        return defaultIndex;
+    }
+
+    /**
+     * Returns how many transcript bytes have been parsed since this index was created.
+     *
+     * @return The number of parsed bytes.
+     */
+    public long getParsedBytes() {
+        return parsedBytes.get();
+    }
+
+    /**
+     * Opens the messages of the transcript, parsing only what changed since the previous call.
+     *
+     * @param filePath The path to the transcript.
+     * @return The messages, whose content is read lazily from the transcript.
+     */
+    public synchronized TranscriptMessages open(String filePath) {
+        try (FileChannel channel = FileChannel.open(new File(filePath).toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("The transcript " + filePath + " is too large to be indexed");
+            }
+            return new TranscriptMessages(update(filePath, channel, (int) size), filePath);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "An error occurred: ", e);
+            return TranscriptMessages.of(new JSONArray());
+        }
+    }
+
+    /**
+     * Returns the message entries of the transcript content, bringing its index file up to date.
+     */
+    private List<Entry> update(String filePath, FileChannel channel, int size) throws IOException {
+        File indexFile = indexFileFor(filePath);
+        long modified = new File(filePath).lastModified();
+        List<Entry> entries = new ArrayList<>();
+        int validatedOffset = load(indexFile, channel, size, modified, entries);
+
+        // Only the bytes after the validated offset are read
+        ByteBuffer data = read(channel, validatedOffset, size);
+        Scan scan = new Scan(data, validatedOffset, entries);
+        scan.run();
+        parsedBytes.addAndGet(data.limit());
+
+        if (scan.checkpoint != validatedOffset) {
+            save(indexFile, scan.checkpoint, size, modified, checksum(channel, scan.checkpoint),
+                    entries.subList(0, scan.checkpointEntries));
+        }
+        return entries;
+    }
+
+    /**
+     * Loads the indexed entries if the index still describes the transcript, and returns the validated offset to
+     * continue parsing from, or 0 to parse the whole transcript.
+     */
+    private int load(File indexFile, FileChannel channel, int size, long modified, List<Entry> entries) {
+        if (!indexFile.isFile()) {
+            return 0;
+        }
+        try {
+            JSONObject index = new JSONObject(new String(Files.readAllBytes(indexFile.toPath()), StandardCharsets.UTF_8));
+            int validatedOffset = index.getInt("validatedOffset");
+            if (index.getInt("version") != VERSION || validatedOffset > size) {
+                return 0;
+            }
+            boolean unchanged = index.getLong("size") == size && index.getLong("modified") == modified;
+            if (!unchanged && checksum(channel, validatedOffset) != index.getLong("checksum")) {
+                logger.fine("The transcript changed before offset " + validatedOffset + ", parsing it again");
+                return 0;
+            }
+            JSONArray indexedEntries = index.getJSONArray("messages");
+            for (int i = 0; i < indexedEntries.length(); i++) {
+                JSONArray indexedEntry = indexedEntries.getJSONArray(i);
+                entries.add(new Entry(indexedEntry.getString(0), indexedEntry.getInt(1), indexedEntry.getInt(2),
+                        indexedEntry.isNull(3) ? null : indexedEntry.getString(3)));
+            }
+            return validatedOffset;
+        } catch (IOException | JSONException e) {
+            logger.log(Level.WARNING, "Ignoring an unreadable transcript index: ", e);
+            entries.clear();
+            return 0;
+        }
+    }
+
+    /**
+     * Checksums the last bytes before an offset.
+     */
+    private static long checksum(FileChannel channel, int offset) throws IOException {
+        CRC32 checksum = new CRC32();
+        checksum.update(read(channel, Math.max(0, offset - CHECKSUM_WINDOW), offset));
+        return checksum.getValue();
+    }
+
+    /**
+     * Reads the bytes between two offsets onto the heap, with positional reads that leave the channel where it is.
+     * The returned buffer is shorter if the file was truncated in the meantime.
+     */
+    private static ByteBuffer read(FileChannel channel, int start, int end) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(Math.max(0, end - start));
+        while (data.hasRemaining()) {
+            if (channel.read(data, start + data.position()) < 0) {
+                break;
+            }
+        }
+        // Through Buffer, since ByteBuffer only overrides flip from Java 9 on
+        ((Buffer) data).flip();
+        return data;
+    }
+
+    private void save(File indexFile, int validatedOffset, long size, long modified, long checksum, List<Entry> entries) {
+        JSONArray indexedEntries = new JSONArray();
+        for (Entry entry : entries) {
+            indexedEntries.put(new JSONArray()
+                    .put(entry.role)
+                    .put(entry.start)
+                    .put(entry.end)
+                    .put(entry.jsonInfo == null ? JSONObject.NULL : entry.jsonInfo));
+        }
+        JSONObject index = new JSONObject()
+                .put("version", VERSION)
+                .put("validatedOffset", validatedOffset)
+                .put("size", size)
+                .put("modified", modified)
+                .put("checksum", checksum)
+                .put("messages", indexedEntries);
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create the index directory " + directory);
+            }
+            // Write to a temporary file first, so that a crash never leaves a partial index behind
+            File temporaryFile = new File(directory, indexFile.getName() + ".tmp");
+            Files.write(temporaryFile.toPath(), index.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(temporaryFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "An error occurred: ", e);
+        }
+    }
+
+    File indexFileFor(String filePath) {
+        String path = new File(filePath).getAbsolutePath();
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(path.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return new File(directory, hex + INDEX_SUFFIX);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A message of the transcript: its role, the byte offsets of its content and its JSON info.
+     */
+    static final class Entry {
+        final String role;
+        final int start;
+        final int end;
+        final String jsonInfo;
+        // The decoded content, once it was parsed or read
+        private volatile String content;
+
+        Entry(String role, int start, int end, String jsonInfo) {
+            this(role, start, end, jsonInfo, null);
+        }
+
+        Entry(String role, int start, int end, String jsonInfo, String content) {
+            this.role = role;
+            this.start = start;
+            this.end = end;
+            this.jsonInfo = jsonInfo;
+            this.content = content;
+        }
+
+        /**
+         * Returns the content of the message, reading it from the transcript the first time.
+         *
+         * @param filePath The path to the transcript.
+         * @return The trimmed content, or an empty string if the transcript cannot be read.
+         */
+        String getContent(String filePath) {
+            String decoded = content;
+            if (decoded == null) {
+                try (FileChannel channel = FileChannel.open(new File(filePath).toPath(), StandardOpenOption.READ)) {
+                    ByteBuffer data = read(channel, start, end);
+                    decoded = content(data, 0, data.limit());
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, "An error occurred: ", e);
+                    return "";
+                }
+                content = decoded;
+            }
+            return decoded;
+        }
+    }
+
+    /**
+     * Decodes the lines between two offsets the way the full scan joins them: every line break becomes "\n" and the
+     * result is trimmed.
+     */
+    static String content(ByteBuffer data, int start, int end) {
+        String text = decode(data, start, end);
+        if (text.indexOf('\r') >= 0) {
+            text = text.replace("\r\n", "\n").replace('\r', '\n');
+        }
+        return text.trim();
+    }
+
+    private static String decode(ByteBuffer data, int start, int end) {
+        ByteBuffer slice = data.duplicate();
+        ((Buffer) slice).limit(end).position(start);
+        return Charset.defaultCharset().decode(slice).toString();
+    }
+
+    /**
+     * Parses the transcript from a validated offset, where no section is open, to its end. The offsets are the ones
+     * of the transcript, and the data holds the bytes from the validated offset on.
+     */
+    private static final class Scan {
+        private final ByteBuffer data;
+        private final int base;
+        private final List<Entry> entries;
+        private int position;
+        private int checkpoint;
+        private int checkpointEntries;
+
+        Scan(ByteBuffer data, int from, List<Entry> entries) {
+            this.data = data;
+            this.base = from;
+            this.entries = entries;
+            this.position = from;
+            this.checkpoint = from;
+            this.checkpointEntries = entries.size();
+        }
+
+        private byte get(int offset) {
+            return data.get(offset - base);
+        }
+
+        void run() {
+            boolean isUserSection = false;
+            boolean isAssistantSection = false;
+            int sectionStart = position;
+            String jsonTemp = null;
+
+            int length = base + data.limit();
+            while (position < length) {
+                int lineStart = position;
+                int lineEnd = lineStart;
+                while (lineEnd < length && get(lineEnd) != '\n' && get(lineEnd) != '\r') {
+                    lineEnd++;
+                }
+                int next = lineEnd;
+                if (next < length) {
+                    next += get(next) == '\r' && next + 1 < length && get(next + 1) == '\n' ? 2 : 1;
+                }
+                position = next;
+                // Only lines holding a marker need decoding, the rest is content or ignored
+                if (!containsMarkerPrefix(lineStart, lineEnd)) {
+                    continue;
+                }
+                String line = decode(data, lineStart - base, lineEnd - base);
+                // A marker line that is not terminated yet may still grow, so it never validates an offset
+                boolean terminated = next > lineEnd && get(next - 1) == '\n';
+
+                if (line.contains("<!-- =====[ User ]=====[ : ] -->")) {
+                    isUserSection = true;
+                    isAssistantSection = false;
+                    sectionStart = next;
+                } else if (line.contains("<!-- =====[ Odin Runes ]======[") && line.contains("]======[ + ] -->")) {
+                    isUserSection = false;
+                    isAssistantSection = false;
+                    sectionStart = next;
+                    jsonTemp = TextHelper.extractHeaderJson(line, jsonTemp);
+                } else if (line.contains("<!-- =====[ Assistant ]=====[ : ] -->")) {
+                    isUserSection = false;
+                    isAssistantSection = true;
+                    sectionStart = next;
+                } else if (line.contains("<!-- =====[ OVER ]=====[ # ] -->")) {
+                    if (isUserSection || isAssistantSection) {
+                        String content = content(data, sectionStart - base, lineStart - base);
+                        if (!content.isEmpty()) {
+                            entries.add(new Entry(isUserSection ? "user" : "assistant", sectionStart, lineStart, jsonTemp,
+                                    content));
+                        }
+                    }
+                    isUserSection = false;
+                    isAssistantSection = false;
+                    jsonTemp = null;
+                    validate(terminated);
+                } else if (line.contains("<!-- =====[ OVER ]=====[ ! ] -->")) {
+                    isUserSection = false;
+                    isAssistantSection = false;
+                    jsonTemp = null;
+                    validate(terminated);
+                }
+            }
+            // Last prompt if any
+            if (isUserSection) {
+                String content = content(data, sectionStart - base, length - base);
+                if (!content.isEmpty()) {
+                    entries.add(new Entry("prompt", sectionStart, length, null, content));
+                }
+            }
+        }
+
+        private void validate(boolean terminated) {
+            if (terminated) {
+                checkpoint = position;
+                checkpointEntries = entries.size();
+            }
+        }
+
+        private boolean containsMarkerPrefix(int from, int to) {
+            for (int i = from; i <= to - MARKER_PREFIX.length; i++) {
+                if (get(i) != MARKER_PREFIX[0]) {
+                    continue;
+                }
+                int j = 1;
+                while (j < MARKER_PREFIX.length && get(i + j) == MARKER_PREFIX[j]) {
+                    j++;
+                }
+                if (j == MARKER_PREFIX.length) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
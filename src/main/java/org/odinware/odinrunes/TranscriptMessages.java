@@ -0,0 +1,207 @@
+package org.odinware.odinrunes;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The TranscriptMessages class gives the messages of a conversation one at a time, without parsing the whole
+ * transcript again.
+ *
+ * <p>The messages of a transcript opened by {@code TextHelper.openMessages} are read lazily from the transcript: the
+ * index gives their roles, byte offsets and JSON info, and the content of an indexed message is read and decoded the
+ * first time it is asked for, and kept for the next iterations over the messages. The messages are read-only, and
+ * every iterator is independent, so that several providers may build their requests from the same messages at the
+ * same time.
+ *
+ * Basic Usage:
+ * 1. Use {@code TextHelper.openMessages} to open the messages of a transcript, or {@code of} to wrap a JSONArray.
+ * 2. Iterate over the messages and use {@code getRole}, {@code getContent} and {@code getJsonInfo}.
+ * 3. Use {@code toJSONArray} where all the messages are needed at once.
+ */
+public class TranscriptMessages implements Iterable<TranscriptMessages.Message> {
+    private final List<TranscriptIndex.Entry> entries;
+    private final String filePath;
+    private final JSONArray array;
+    // Messages put before the messages of the transcript or array, or null
+    private final JSONArray leading;
+    // The number of oldest leading messages left out
+    private final int leadingOffset;
+    // The number of oldest messages of the transcript or array left out
+    private final int offset;
+
+    TranscriptMessages(List<TranscriptIndex.Entry> entries, String filePath) {
+        this(entries, filePath, null, null, 0, 0);
+    }
+
+    private TranscriptMessages(List<TranscriptIndex.Entry> entries, String filePath, JSONArray array,
+                               JSONArray leading, int leadingOffset, int offset) {
+        this.entries = entries;
+        this.filePath = filePath;
+        this.array = array;
+        this.leading = leading;
+        this.leadingOffset = leadingOffset;
+        this.offset = offset;
+    }
+
+    /**
+     * Wraps messages in the JSON format of {@code TextHelper.getMessages}.
+     *
+     * @param odinMessages The messages, each with a role, a content and an optional jsonInfo.
+     * @return The wrapped messages.
+     */
+    public static TranscriptMessages of(JSONArray odinMessages) {
+        return new TranscriptMessages(null, null, odinMessages, null, 0, 0);
+    }
+
+    /**
+     * Returns the same messages without the oldest ones.
+     *
+     * @param count The number of oldest messages to leave out.
+     * @return The remaining messages.
+     */
+    public TranscriptMessages dropOldest(int count) {
+        int droppedLeading = Math.min(count, leadingSize());
+        int droppedOthers = Math.min(count - droppedLeading, othersSize());
+        return new TranscriptMessages(entries, filePath, array, leading,
+                leadingOffset + droppedLeading, offset + droppedOthers);
+    }
+
+    /**
+     * Returns the same messages preceded by other messages, for example a summary of the left out history.
+     *
+     * @param leadingMessages The messages to put first, in the JSON format of {@code TextHelper.getMessages}.
+     * @return The messages.
+     */
+    public TranscriptMessages prepend(JSONArray leadingMessages) {
+        JSONArray combined = new JSONArray();
+        for (int i = 0; i < leadingMessages.length(); i++) {
+            combined.put(leadingMessages.getJSONObject(i));
+        }
+        for (int i = leadingOffset; leading != null && i < leading.length(); i++) {
+            combined.put(leading.getJSONObject(i));
+        }
+        return new TranscriptMessages(entries, filePath, array, combined, 0, offset);
+    }
+
+    private int leadingSize() {
+        return leading == null ? 0 : leading.length() - leadingOffset;
+    }
+
+    private int othersSize() {
+        return (array != null ? array.length() : entries.size()) - offset;
+    }
+
+    /**
+     * Returns the number of messages.
+     *
+     * @return The number of messages.
+     */
+    public int size() {
+        return leadingSize() + othersSize();
+    }
+
+    @Override
+    public Iterator<Message> iterator() {
+        return new Iterator<Message>() {
+            private int index = 0;
+
+            @Override
+            public boolean hasNext() {
+                return index < size();
+            }
+
+            @Override
+            public Message next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int i = index++;
+                if (i < leadingSize()) {
+                    return of(leading.getJSONObject(leadingOffset + i));
+                }
+                i = offset + i - leadingSize();
+                if (array != null) {
+                    return of(array.getJSONObject(i));
+                }
+                TranscriptIndex.Entry entry = entries.get(i);
+                return new Message(entry.role, null, entry.jsonInfo, entry, filePath);
+            }
+
+            private Message of(JSONObject message) {
+                return new Message(message.getString("role"), message.getString("content"),
+                        message.has("jsonInfo") ? message.getString("jsonInfo") : null, null, null);
+            }
+        };
+    }
+
+    /**
+     * Returns all the messages in the JSON format of {@code TextHelper.getMessages}.
+     *
+     * @return a JSONArray containing the messages
+     */
+    public JSONArray toJSONArray() {
+        JSONArray messages = new JSONArray();
+        for (Message message : this) {
+            JSONObject jsonMessage = new JSONObject()
+                    .put("role", message.getRole())
+                    .put("content", message.getContent());
+            if (message.hasJsonInfo()) {
+                jsonMessage.put("jsonInfo", message.getJsonInfo());
+            }
+            messages.put(jsonMessage);
+        }
+        return messages;
+    }
+
+    /**
+     * A single message: "user", "assistant", or "prompt" for the new prompt at the end of the conversation.
+     */
+    public static final class Message {
+        private final String role;
+        private String content;
+        private final String jsonInfo;
+        private final TranscriptIndex.Entry entry;
+        private final String filePath;
+
+        private Message(String role, String content, String jsonInfo, TranscriptIndex.Entry entry, String filePath) {
+            this.role = role;
+            this.content = content;
+            this.jsonInfo = jsonInfo;
+            this.entry = entry;
+            this.filePath = filePath;
+        }
+
+        public String getRole() {
+            return role;
+        }
+
+        /**
+         * Returns the content of the message, reading it from the transcript on first use.
+         *
+         * @return The trimmed content.
+         */
+        public String getContent() {
+            if (content == null) {
+                content = entry.getContent(filePath);
+            }
+            return content;
+        }
+
+        public boolean hasJsonInfo() {
+            return jsonInfo != null;
+        }
+
+        /**
+         * Returns the JSON info of the Odin Runes header the message belongs to.
+         *
+         * @return The JSON info, or null if there is none.
+         */
+        public String getJsonInfo() {
+            return jsonInfo;
+        }
+    }
+}
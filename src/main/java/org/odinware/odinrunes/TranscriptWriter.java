@@ -0,0 +1,235 @@
+package org.odinware.odinrunes;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The TranscriptWriter class appends text to a conversation file through a single {@code FileChannel} that stays
+ * open for a whole chat turn, instead of opening and closing a writer for every piece of text.
+ *
+ * <p>Text is encoded into a reusable buffer and written to the file according to a flush policy: pending text is
+ * flushed once it reaches a byte threshold, or once the oldest pending text has waited for the flush interval,
+ * whichever comes first. A shared background timer enforces the interval while the stream is stalled, so text
+ * becomes visible in the editor quickly without a write for every token.
+ *
+ * <p>The flush policy defaults to {@value #DEFAULT_FLUSH_INTERVAL_MILLIS} ms and {@value #DEFAULT_FLUSH_THRESHOLD_BYTES}
+ * bytes, and can be changed with the ODIN_RUNES_TRANSCRIPT_FLUSH_MS and ODIN_RUNES_TRANSCRIPT_FLUSH_BYTES
+ * environment variables. The file is written in the platform's default charset, like the rest of TextHelper.
+ */
+public class TranscriptWriter implements Closeable {
+    private static final Logger logger = Logger.getLogger(TranscriptWriter.class.getName());
+
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 100;
+    public static final int DEFAULT_FLUSH_THRESHOLD_BYTES = 8192;
+
+    private static final ScheduledExecutorService flushTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "odin-transcript-flush");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String filePath;
+    private final FileChannel channel;
+    private final CharsetEncoder encoder;
+    private final CharBuffer chars;
+    private final ByteBuffer bytes;
+    private final long flushIntervalMillis;
+    private final int flushThresholdBytes;
+    private final ScheduledFuture<?> scheduledFlush;
+    private long firstPendingTime;
+    private long charCount;
+    private long writeCount;
+    private boolean closed;
+
+    /**
+     * Opens a transcript writer on the specified file using the flush policy from the environment, or the defaults.
+     *
+     * @param filePath the path to the conversation file
+     * @throws IOException if the file cannot be opened for appending
+     */
+    public TranscriptWriter(String filePath) throws IOException {
+        this(filePath,
+                readPositiveLongFromEnv("ODIN_RUNES_TRANSCRIPT_FLUSH_MS", DEFAULT_FLUSH_INTERVAL_MILLIS),
+                (int) readPositiveLongFromEnv("ODIN_RUNES_TRANSCRIPT_FLUSH_BYTES", DEFAULT_FLUSH_THRESHOLD_BYTES));
+    }
+
+    /**
+     * Opens a transcript writer on the specified file with the given flush policy.
+     *
+     * @param filePath the path to the conversation file
+     * @param flushIntervalMillis the longest time pending text may wait before it is written, or 0 to only flush by size
+     * @param flushThresholdBytes the number of pending bytes that triggers a write
+     * @throws IOException if the file cannot be opened for appending
+     */
+    public TranscriptWriter(String filePath, long flushIntervalMillis, int flushThresholdBytes) throws IOException {
+        if (flushThresholdBytes <= 0) {
+            throw new IllegalArgumentException("flushThresholdBytes must be positive: " + flushThresholdBytes);
+        }
+        this.filePath = filePath;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.flushThresholdBytes = flushThresholdBytes;
+        this.channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.encoder = Charset.defaultCharset().newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.chars = CharBuffer.allocate(1024);
+        this.bytes = ByteBuffer.allocate(Math.max(flushThresholdBytes, (int) Math.ceil(encoder.maxBytesPerChar() * chars.capacity())));
+
+        if (flushIntervalMillis > 0) {
+            scheduledFlush = flushTimer.scheduleWithFixedDelay(this::flushIfDue, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            scheduledFlush = null;
+        }
+    }
+
+    /**
+     * Appends text to the transcript. The text is written to the file when the flush policy says so.
+     *
+     * @param text the text to append
+     * @throws IOException if writing to the file fails
+     */
+    public synchronized void append(CharSequence text) throws IOException {
+        if (closed) {
+            throw new IOException("Transcript writer for " + filePath + " is closed.");
+        }
+        if (text.length() == 0) {
+            return;
+        }
+        if (!hasPendingBytes()) {
+            firstPendingTime = System.currentTimeMillis();
+        }
+
+        int index = 0;
+        while (index < text.length()) {
+            int count = Math.min(chars.remaining(), text.length() - index);
+            for (int i = 0; i < count; i++) {
+                chars.put(text.charAt(index + i));
+            }
+            index += count;
+            encodePendingChars();
+        }
+        charCount += text.length();
+
+        if (bytes.position() >= flushThresholdBytes
+                || (flushIntervalMillis > 0 && System.currentTimeMillis() - firstPendingTime >= flushIntervalMillis)) {
+            writePendingBytes();
+        }
+    }
+
+    /**
+     * Writes all pending text to the file.
+     *
+     * @throws IOException if writing to the file fails
+     */
+    public synchronized void flush() throws IOException {
+        if (!closed) {
+            writePendingBytes();
+        }
+    }
+
+    /**
+     * Writes all pending text and closes the file. Closing an already closed writer has no effect.
+     *
+     * @throws IOException if writing to or closing the file fails
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+        }
+        try {
+            writePendingBytes();
+        } finally {
+            channel.close();
+            logger.info("Transcript session wrote " + charCount + " characters in " + writeCount + " writes to " + filePath);
+        }
+    }
+
+    /**
+     * Returns the number of write calls made to the file so far.
+     *
+     * @return the number of writes
+     */
+    public synchronized long getWriteCount() {
+        return writeCount;
+    }
+
+    private void flushIfDue() {
+        synchronized (this) {
+            if (closed || !hasPendingBytes() || System.currentTimeMillis() - firstPendingTime < flushIntervalMillis) {
+                return;
+            }
+            try {
+                writePendingBytes();
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "An error occurred: ", e);
+            }
+        }
+    }
+
+    private boolean hasPendingBytes() {
+        return bytes.position() > 0 || chars.position() > 0;
+    }
+
+    private void encodePendingChars() throws IOException {
+        chars.flip();
+        while (true) {
+            CoderResult result = encoder.encode(chars, bytes, false);
+            if (result.isOverflow()) {
+                writePendingBytes();
+            } else {
+                break;
+            }
+        }
+        // Keeps a dangling high surrogate until its low surrogate arrives with the next append
+        chars.compact();
+    }
+
+    private void writePendingBytes() throws IOException {
+        if (bytes.position() == 0) {
+            return;
+        }
+        bytes.flip();
+        try {
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+                writeCount++;
+            }
+        } finally {
+            bytes.compact();
+        }
+    }
+
+    private static long readPositiveLongFromEnv(String name, long defaultValue) {
+        String value = System.getenv(name);
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            long parsed = Long.parseLong(value.trim());
+            return parsed > 0 ? parsed : defaultValue;
+        } catch (NumberFormatException e) {
+            logger.warning("Ignoring invalid value for " + name + ": " + value);
+            return defaultValue;
+        }
+    }
+}
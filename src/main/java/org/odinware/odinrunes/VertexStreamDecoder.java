@@ -0,0 +1,151 @@
+package org.odinware.odinrunes;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import okio.BufferedSource;
+
+import java.io.IOException;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The VertexStreamDecoder class decodes the streamed responses of Vertex AI, which arrive as a single JSON array
+ * whose elements are sent one after the other while the answer is generated.
+ *
+ * <p>The decoder reads the response body with Jackson's streaming {@code JsonParser}, so every byte is parsed once,
+ * and publishes the content of each element as soon as its closing brace arrives. Each element is read into a small
+ * tree, from which the provider specific extractor picks the generated text. The {@code usageMetadata} that Gemini
+ * sends with its elements is published as a USAGE event at the end of the stream.
+ *
+ * <p>An element holding an {@code error}, a response that is not JSON, and a response without any recognizable
+ * element are published as an ERROR event holding the response.
+ *
+ * Basic Usage:
+ * 1. Create a decoder with the model name to publish and the extractor of the generated text of an element.
+ * 2. Call {@code stream(BufferedSource, WisdomEventListener)} to publish the events of a response body.
+ *
+ * <p>An instance keeps state between elements and is not thread-safe. Use one decoder per response stream.
+ */
+public class VertexStreamDecoder {
+    private static final Logger logger = Logger.getLogger(VertexStreamDecoder.class.getName());
+    // Keep the source open, so that the rest of a broken response can still be read for the error event
+    private static final JsonFactory JSON_FACTORY = new JsonFactory().disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper(JSON_FACTORY);
+
+    private final String model;
+    private final Function<JsonNode, String> contentExtractor;
+    private boolean modelPublished;
+    private JsonNode usageMetadata;
+    private JsonNode unrecognizedElement;
+    private boolean hasContent;
+
+    /**
+     * Creates a decoder for one response stream.
+     *
+     * @param model The model name published before the first content.
+     * @param contentExtractor Returns the generated text of an element, or null if it holds none.
+     */
+    public VertexStreamDecoder(String model, Function<JsonNode, String> contentExtractor) {
+        this.model = model;
+        this.contentExtractor = contentExtractor;
+    }
+
+    /**
+     * Decodes the whole stream and publishes its events to the listener, until the stream is exhausted,
+     * or the listener asks to stop.
+     *
+     * @param source The response body source to read from.
+     * @param listener The listener to publish the events to.
+     * @throws IOException If reading from the source fails.
+     */
+    public void stream(BufferedSource source, WisdomEventListener listener) throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(source.inputStream())) {
+            JsonToken token = parser.nextToken();
+            if (token == JsonToken.START_OBJECT) {
+                // Some errors are sent as a single object rather than an array
+                if (!publish(OBJECT_MAPPER.readTree(parser), listener)) {
+                    return;
+                }
+            } else if (token == JsonToken.START_ARRAY) {
+                while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                    if (token == null) {
+                        throw new JsonParseException(parser, "The response ended inside its array");
+                    }
+                    if (token != JsonToken.START_OBJECT) {
+                        parser.skipChildren();
+                        continue;
+                    }
+                    if (!publish(OBJECT_MAPPER.readTree(parser), listener)) {
+                        return;
+                    }
+                }
+            } else if (token != null) {
+                throw new JsonParseException(parser, "Expected a JSON array");
+            }
+        } catch (JsonProcessingException e) {
+            logger.log(Level.SEVERE, "An error occurred: ", e);
+            listener.onEvent(WisdomEvent.error(SseStreamDecoder.readRemaining(e.getOriginalMessage() + "\n", source)));
+            return;
+        }
+
+        if (!hasContent && unrecognizedElement != null) {
+            listener.onEvent(WisdomEvent.error(unrecognizedElement.toString()));
+            return;
+        }
+        if (usageMetadata != null) {
+            if (!listener.onEvent(WisdomEvent.usage(usageMetadata.path("promptTokenCount").asInt(),
+                    usageMetadata.path("candidatesTokenCount").asInt(),
+                    usageMetadata.path("totalTokenCount").asInt()))) {
+                return;
+            }
+        }
+        listener.onEvent(WisdomEvent.done());
+    }
+
+    /**
+     * Publishes the content of a single element of the streamed array.
+     *
+     * @return false if the listener asked to stop, or the element was an error.
+     */
+    private boolean publish(JsonNode element, WisdomEventListener listener) {
+        if (element.has("error")) {
+            listener.onEvent(WisdomEvent.error(element.toString()));
+            return false;
+        }
+        if (element.has("usageMetadata")) {
+            // The counts of the last element cover the whole answer
+            usageMetadata = element.get("usageMetadata");
+        }
+        String content = contentExtractor.apply(element);
+        if (content == null) {
+            if (!element.has("usageMetadata")) {
+                unrecognizedElement = element;
+            }
+            return true;
+        }
+        hasContent = true;
+        if (!modelPublished) {
+            modelPublished = true;
+            if (!listener.onEvent(WisdomEvent.model(model))) {
+                return false;
+            }
+        }
+        return listener.onEvent(WisdomEvent.delta(content));
+    }
+
+    /**
+     * Returns the text of a node, or null if the node is missing or not a string.
+     *
+     * @param node The node, as returned by {@code JsonNode.path}.
+     * @return The text of the node, or null.
+     */
+    static String textOf(JsonNode node) {
+        return node.isTextual() ? node.asText() : null;
+    }
+}
@@ -1,11 +1,18 @@
 package org.odinware.odinrunes;
 import okhttp3.*;
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+
 /**
  * The WellsOfWisdom interface represents a builder for creating a HTTP request object
  * used for making API requests.
+ *
+ * <p>Implementations publish the answer of their GPT provider as typed {@code WisdomEvent}s through
+ * {@code streamEvents}. Older implementations that only provide {@code readFromResponseStream} keep working,
+ * since the default {@code streamEvents} decodes the lines they return.
  */
 public interface WellsOfWisdom {
 
@@ -18,6 +25,21 @@ public interface WellsOfWisdom {
      */
     Request buildRequest(Context context, JSONArray odinMessages, JSONObject gptSettingsJsonObject) throws Exception;
 
+    /**
+     * Builds a HTTP request based on the provided context and Odin messages, taking the messages one at a time.
+     *
+     * <p>The default implementation collects the messages into a JSONArray for {@code buildRequest}. Implementations
+     * that put each message straight into their request should override it, so that the history is not held in
+     * memory twice.
+     *
+     * @param context The context containing captured data and user options.
+     * @param odinMessages The messages exchanged between the user and the assistant.
+     * @return A built HTTP request object, or null if no new prompt is present.
+     */
+    default Request buildRequest(Context context, TranscriptMessages odinMessages, JSONObject gptSettingsJsonObject) throws Exception {
+        return buildRequest(context, odinMessages.toJSONArray(), gptSettingsJsonObject);
+    }
+
     /**
      * Executes a HTTP request and returns the Response object.
      *
@@ -26,13 +48,50 @@ public interface WellsOfWisdom {
      */
     Response executeRequest(Request request);
 
+    /**
+     * Reads the response stream and publishes its content to the listener as typed events.
+     * Implementations publish a MODEL event before the first DELTA event, and finish with a DONE event,
+     * or an ERROR event if the response could not be processed. They stop reading as soon as the listener
+     * returns false.
+     *
+     * <p>The default implementation adapts {@code readFromResponseStream}, decoding each returned
+     * "data:" line with a {@code SseStreamDecoder}.
+     *
+     * @param response The response object.
+     * @param listener The listener receiving the events.
+     * @throws IOException If reading from the response fails.
+     */
+    default void streamEvents(Response response, WisdomEventListener listener) throws IOException {
+        SseStreamDecoder decoder = new SseStreamDecoder();
+        String responseChunk;
+        while ((responseChunk = readFromResponseStream(response)) != null) {
+            try {
+                if (!decoder.decode(responseChunk)) {
+                    continue;
+                }
+            } catch (JSONException e) {
+                listener.onEvent(WisdomEvent.error(SseStreamDecoder.readRemaining(responseChunk, response.body().source())));
+                return;
+            }
+            if (!decoder.publish(listener)) {
+                return;
+            }
+        }
+        listener.onEvent(WisdomEvent.done());
+    }
+
     /**
      * Reads from the Response object.
      *
      * @param response The response object.
-     * @return A string generated by the gpt provider and read from the HTTP response object.
+     * @return A string generated by the gpt provider and read from the HTTP response object, or null at the end.
+     * @deprecated Implement {@code streamEvents} instead. Only called by the default {@code streamEvents}, so an
+     * implementation has to provide one of the two.
      */
-    String readFromResponseStream(Response response);
+    @Deprecated
+    default String readFromResponseStream(Response response) {
+        throw new UnsupportedOperationException(getClass().getName() + " implements neither streamEvents nor readFromResponseStream.");
+    }
 
     /**
      * A utility function designed to facilitate compliance with the expected return format in the readFromResponseStream method.
@@ -40,7 +99,9 @@ public interface WellsOfWisdom {
      * @param model The GPT model name.
      * @param contentStr A partial response string from the GPT provider.
      * @return A string formatted appropriately for use as a return value in implementations of the readFromResponseStream method.
+     * @deprecated Implement {@code streamEvents} and publish {@code WisdomEvent.delta} events instead.
      */
+    @Deprecated
     static String finalStringFormatHelper(String model, String contentStr) {
 
         // Escape special characters in contentStr
@@ -49,12 +110,9 @@ public interface WellsOfWisdom {
                         .replace("\n", "\\n")
                         .replace("\r", "\\r")
                         .replace("\t", "\\t");
-        //String temp = "data: { \"model\":\"gemini-pro\", \"choices\": [{\"delta\":{\"content\":\""+escapeSpecialCharacters(contentStr)+"\"} }]}";
 
         // Build the final string in this format
-        String result = "data: { \"model\":\"" + model + "\", \"choices\": [{\"delta\":{\"content\":\"" + contentStr + "\"} }]}";
-        System.out.println(result);
-        return result;
+        return "data: { \"model\":\"" + model + "\", \"choices\": [{\"delta\":{\"content\":\"" + contentStr + "\"} }]}";
     }
 
 }
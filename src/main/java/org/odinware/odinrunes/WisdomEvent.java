@@ -0,0 +1,140 @@
+package org.odinware.odinrunes;
+
+/**
+ * The WisdomEvent class represents a single typed event in the response stream of a GPT provider.
+ * Implementations of the {@code WellsOfWisdom} interface publish these events to a {@code WisdomEventListener}
+ * instead of formatting the decoded text back into an OpenAI style "data:" line.
+ *
+ * <p>The event types are:
+ * - {@code MODEL}: the id of the model that answers, published before its first delta.
+ * - {@code DELTA}: the next piece of generated text.
+ * - {@code USAGE}: token usage reported by the provider, if any.
+ * - {@code DONE}: the provider has finished the answer.
+ * - {@code ERROR}: the provider returned something that could not be processed; the text holds the raw response.
+ */
+public final class WisdomEvent {
+
+    /**
+     * The type of a WisdomEvent.
+     */
+    public enum Type {
+        MODEL, DELTA, USAGE, DONE, ERROR
+    }
+
+    private static final WisdomEvent DONE_EVENT = new WisdomEvent(Type.DONE, null, null, -1, -1, -1);
+
+    private final Type type;
+    private final String text;
+    private final String model;
+    private final int promptTokens;
+    private final int completionTokens;
+    private final int totalTokens;
+
+    private WisdomEvent(Type type, String text, String model, int promptTokens, int completionTokens, int totalTokens) {
+        this.type = type;
+        this.text = text;
+        this.model = model;
+        this.promptTokens = promptTokens;
+        this.completionTokens = completionTokens;
+        this.totalTokens = totalTokens;
+    }
+
+    /**
+     * Creates an event announcing the model that answers.
+     *
+     * @param model The model id.
+     * @return The model event.
+     */
+    public static WisdomEvent model(String model) {
+        return new WisdomEvent(Type.MODEL, null, model, -1, -1, -1);
+    }
+
+    /**
+     * Creates an event holding a piece of generated text.
+     *
+     * @param text The generated text.
+     * @return The delta event.
+     */
+    public static WisdomEvent delta(String text) {
+        return new WisdomEvent(Type.DELTA, text, null, -1, -1, -1);
+    }
+
+    /**
+     * Creates an event holding the token usage reported by the provider. Unknown counts are passed as -1.
+     *
+     * @param promptTokens The number of tokens in the prompt.
+     * @param completionTokens The number of generated tokens.
+     * @param totalTokens The total number of tokens.
+     * @return The usage event.
+     */
+    public static WisdomEvent usage(int promptTokens, int completionTokens, int totalTokens) {
+        return new WisdomEvent(Type.USAGE, null, null, promptTokens, completionTokens, totalTokens);
+    }
+
+    /**
+     * Returns the event signalling that the provider has finished the answer.
+     *
+     * @return The done event.
+     */
+    public static WisdomEvent done() {
+        return DONE_EVENT;
+    }
+
+    /**
+     * Creates an event for a response that could not be processed.
+     *
+     * @param message The raw response or a description of the problem.
+     * @return The error event.
+     */
+    public static WisdomEvent error(String message) {
+        return new WisdomEvent(Type.ERROR, message, null, -1, -1, -1);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Returns the generated text of a DELTA event, or the message of an ERROR event.
+     *
+     * @return The text of the event, or null for other event types.
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Returns the model id of a MODEL event.
+     *
+     * @return The model id, or null for other event types.
+     */
+    public String getModel() {
+        return model;
+    }
+
+    public int getPromptTokens() {
+        return promptTokens;
+    }
+
+    public int getCompletionTokens() {
+        return completionTokens;
+    }
+
+    public int getTotalTokens() {
+        return totalTokens;
+    }
+
+    @Override
+    public String toString() {
+        switch (type) {
+            case MODEL:
+                return "MODEL " + model;
+            case USAGE:
+                return "USAGE prompt=" + promptTokens + " completion=" + completionTokens + " total=" + totalTokens;
+            case DONE:
+                return "DONE";
+            default:
+                return type + " " + text;
+        }
+    }
+}
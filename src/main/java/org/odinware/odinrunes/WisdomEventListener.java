@@ -0,0 +1,20 @@
+package org.odinware.odinrunes;
+
+/**
+ * The WisdomEventListener interface receives the typed events of a GPT provider's response stream.
+ *
+ * <p>Events are delivered synchronously on the thread that reads the response. A provider does not read
+ * the next part of the response until {@code onEvent} has returned, so a slow listener naturally slows
+ * down reading instead of letting events pile up in memory. Returning false asks the provider to stop
+ * reading the stream.
+ */
+public interface WisdomEventListener {
+
+    /**
+     * Handles the next event of the response stream.
+     *
+     * @param event The event.
+     * @return true to keep receiving events, or false to stop reading the stream.
+     */
+    boolean onEvent(WisdomEvent event);
+}
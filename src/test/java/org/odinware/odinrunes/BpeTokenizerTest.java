@@ -0,0 +1,66 @@
+package org.odinware.odinrunes;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BpeTokenizerTest {
+    private File rankFile;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        // Every single byte, followed by a few merges
+        StringBuilder ranks = new StringBuilder();
+        for (int i = 0; i < 256; i++) {
+            ranks.append(Base64.getEncoder().encodeToString(new byte[]{(byte) i})).append(' ').append(i).append('\n');
+        }
+        String[] merges = {"ab", "cd", "abcd", " O", "di", " Odi", " Odin"};
+        for (int i = 0; i < merges.length; i++) {
+            ranks.append(Base64.getEncoder().encodeToString(merges[i].getBytes(StandardCharsets.UTF_8)))
+                    .append(' ').append(256 + i).append('\n');
+        }
+        rankFile = Files.createTempFile("odin-ranks", ".tiktoken").toFile();
+        Files.write(rankFile.toPath(), ranks.toString().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @AfterEach
+    public void cleanup() {
+        rankFile.delete();
+    }
+
+    @Test
+    public void testMergesPairsByRank() {
+        BpeTokenizer tokenizer = BpeTokenizer.load(BpeTokenizer.CL100K_BASE, rankFile);
+        assertTrue(tokenizer.isExact());
+        assertEquals(1, tokenizer.count("abcd"));
+        // " abce" has no merge beyond "ab"
+        assertEquals(1 + 4, tokenizer.count("abcd abce"));
+        // " Odin" is merged step by step through " O", "di" and " Odi"
+        assertEquals(4 + 1, tokenizer.count("Hail Odin"));
+        assertEquals(0, tokenizer.count(""));
+
+        // Texts of the same length and hash do not share a cached count
+        assertEquals("ab".hashCode(), "bC".hashCode());
+        assertEquals(1, tokenizer.count("ab"));
+        assertEquals(2, tokenizer.count("bC"));
+    }
+
+    @Test
+    public void testEstimatesWithoutRanks() {
+        BpeTokenizer tokenizer = BpeTokenizer.load(BpeTokenizer.O200K_BASE, new File(rankFile.getPath() + ".missing"));
+        assertFalse(tokenizer.isExact());
+        assertEquals(3, tokenizer.count("Hail to Odin"));
+        assertEquals(3, tokenizer.count("Hail to Odin"));
+        assertTrue(tokenizer.count("Yggdrasil connects the nine worlds of Norse cosmology.") >= 9);
+        assertEquals(BpeTokenizer.O200K_BASE, BpeTokenizer.forModel("gpt-4o-mini").getEncoding());
+        assertEquals(BpeTokenizer.CL100K_BASE, BpeTokenizer.forModel("gemini-pro").getEncoding());
+    }
+}
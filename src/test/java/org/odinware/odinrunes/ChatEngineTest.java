@@ -0,0 +1,143 @@
+package org.odinware.odinrunes;
+
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ChatEngineTest {
+    private final String testFilePath = "chatEngineTestFile.txt";
+    private HttpServer server;
+    private volatile long pauseBetweenTokensMillis;
+    private final CountDownLatch firstTokenSent = new CountDownLatch(1);
+    private final CountDownLatch slowRequestReceived = new CountDownLatch(1);
+    private final CountDownLatch releaseSlowResponse = new CountDownLatch(1);
+
+    @BeforeEach
+    public void setup() throws IOException {
+        new File(testFilePath).delete();
+        new File(testFilePath).createNewFile();
+
+        // A fake Ollama chat backend streaming three tokens
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/chat", exchange -> {
+            exchange.getRequestBody().close();
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream body = exchange.getResponseBody()) {
+                String[] tokens = {"Hail", " to", " Odin"};
+                for (String token : tokens) {
+                    body.write(("{\"model\":\"llama2\",\"message\":{\"role\":\"assistant\",\"content\":\"" + token + "\"},\"done\":false}\n").getBytes(StandardCharsets.UTF_8));
+                    body.flush();
+                    firstTokenSent.countDown();
+                    Thread.sleep(pauseBetweenTokensMillis);
+                }
+                body.write("{\"model\":\"llama2\",\"done\":true,\"prompt_eval_count\":5,\"eval_count\":3}\n".getBytes(StandardCharsets.UTF_8));
+            } catch (IOException | InterruptedException e) {
+                // The client went away
+            }
+        });
+        // A backend that does not send the response headers until the test ends
+        server.createContext("/api/slow", exchange -> {
+            exchange.getRequestBody().close();
+            slowRequestReceived.countDown();
+            try {
+                releaseSlowResponse.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @AfterEach
+    public void cleanup() {
+        releaseSlowResponse.countDown();
+        server.stop(0);
+        new File(testFilePath).delete();
+    }
+
+    private TextHelper newConversation() {
+        TextHelper odinSays = new TextHelper(testFilePath);
+        odinSays.appendStringToFile("What is the name of the all-father?\n");
+        return odinSays;
+    }
+
+    private JSONObject ollamaSettings() {
+        return new JSONObject()
+                .put("gptProvider", "Ollama")
+                .put("temperature", 0.8)
+                .put("model", "llama2")
+                .put("backendURI", "http://127.0.0.1:" + server.getAddress().getPort() + "/api/chat");
+    }
+
+    private String readFile() throws IOException {
+        return new String(Files.readAllBytes(new File(testFilePath).toPath()));
+    }
+
+    @Test
+    public void testTurnRunsInBackgroundWithoutDuplicates() throws Exception {
+        pauseBetweenTokensMillis = 100;
+        TextHelper odinSays = newConversation();
+
+        ChatTurn chatTurn = ChatEngine.submit(odinSays, new Context(), ollamaSettings());
+        assertSame(chatTurn, ChatEngine.submit(new TextHelper(testFilePath), new Context(), ollamaSettings()));
+        assertSame(chatTurn, ChatEngine.getActiveTurn(testFilePath));
+
+        chatTurn.getCompletionFuture().get(10, TimeUnit.SECONDS);
+
+        assertNull(ChatEngine.getActiveTurn(testFilePath));
+        assertEquals("Hail to Odin".length(), chatTurn.getCharactersReceived());
+        String transcript = readFile();
+        assertTrue(transcript.contains("Hail to Odin\n<!-- =====[ OVER ]=====[ # ] -->\n<!-- =====[ User ]=====[ : ] -->\n"), transcript);
+    }
+
+    @Test
+    public void testCancelMarksTheAnswerAsFailed() throws Exception {
+        pauseBetweenTokensMillis = 10_000;
+        TextHelper odinSays = newConversation();
+
+        ChatTurn chatTurn = ChatEngine.submit(odinSays, new Context(), ollamaSettings());
+        chatTurn.getFirstTokenFuture().get(10, TimeUnit.SECONDS);
+        assertTrue(firstTokenSent.await(1, TimeUnit.SECONDS));
+        assertTrue(chatTurn.cancel());
+
+        assertThrows(CancellationException.class, () -> chatTurn.getCompletionFuture().get(10, TimeUnit.SECONDS));
+        assertNull(ChatEngine.getActiveTurn(testFilePath));
+        String transcript = readFile();
+        assertTrue(transcript.endsWith("<!-- =====[ OVER ]=====[ ! ] -->\n<!-- =====[ User ]=====[ : ] -->\n"), transcript);
+        assertFalse(chatTurn.cancel());
+    }
+
+    @Test
+    public void testCancelBeforeTheResponseHeadersIsNotAnError() throws Exception {
+        TextHelper odinSays = newConversation();
+        JSONObject settings = ollamaSettings()
+                .put("model", "llama2-cancelled")
+                .put("backendURI", "http://127.0.0.1:" + server.getAddress().getPort() + "/api/slow");
+
+        ChatTurn chatTurn = ChatEngine.submit(odinSays, new Context(), settings);
+        assertTrue(slowRequestReceived.await(10, TimeUnit.SECONDS));
+        assertTrue(chatTurn.cancel());
+
+        assertThrows(CancellationException.class, () -> chatTurn.getCompletionFuture().get(10, TimeUnit.SECONDS));
+        String transcript = readFile();
+        assertTrue(transcript.endsWith("\n<!-- =====[ OVER ]=====[ ! ] -->\n<!-- =====[ User ]=====[ : ] -->\n"), transcript);
+        assertFalse(transcript.contains("ERROR"), transcript);
+        // A cancelled turn does not count against the provider
+        assertEquals(0.0, ProviderRouter.getStatistics(ProviderRouter.keyFor(settings)).getErrorRate());
+    }
+}
@@ -0,0 +1,66 @@
+package org.odinware.odinrunes;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ContextBudgetTest {
+
+    private static String words(int count) {
+        StringBuilder text = new StringBuilder("word");
+        for (int i = 1; i < count; i++) {
+            text.append(" word");
+        }
+        return text.toString();
+    }
+
+    private static TranscriptMessages conversation(int turns, String prompt) {
+        JSONArray messages = new JSONArray();
+        for (int i = 0; i < turns; i++) {
+            messages.put(new JSONObject().put("role", i % 2 == 0 ? "user" : "assistant").put("content", words(20)));
+        }
+        messages.put(new JSONObject().put("role", "prompt").put("content", prompt));
+        return TranscriptMessages.of(messages);
+    }
+
+    private static JSONObject ollama() {
+        return new JSONObject()
+                .put("gptProvider", "Ollama")
+                .put("temperature", 0.5)
+                .put("model", "llama2")
+                .put("backendURI", "http://localhost:11434/api/chat");
+    }
+
+    @Test
+    public void testLeavesOutTheOldestHistory() throws Exception {
+        JSONObject settings = ollama().put("contextWindow", 200).put("maxOutputTokens", 50);
+        // Estimated without rank files, every message costs 24 tokens and the budget has room for five of them
+        TranscriptMessages fitted = ContextBudget.fit(new Context(), conversation(6, "Who rules Asgard?"), settings);
+
+        assertEquals(5, fitted.size());
+        TranscriptMessages.Message first = fitted.iterator().next();
+        // The kept history starts with a user message
+        assertEquals("user", first.getRole());
+        assertEquals("prompt", fitted.toJSONArray().getJSONObject(4).getString("role"));
+    }
+
+    @Test
+    public void testKeepsEverythingWithoutAKnownContextWindow() throws Exception {
+        TranscriptMessages messages = conversation(6, "Who rules Asgard?");
+        assertSame(messages, ContextBudget.fit(new Context(), messages, ollama()));
+        assertEquals(16_385, ContextBudget.contextWindowFor(new JSONObject().put("gptProvider", "OpenAI (gpt-3.5-turbo)"), "gpt-3.5-turbo"));
+        assertEquals("gpt-4o-mini", ContextBudget.modelFor(new JSONObject().put("gptProvider", "OpenAI (gpt-4o-mini)")));
+    }
+
+    @Test
+    public void testRefusesAPromptThatCannotFit() {
+        JSONObject settings = ollama().put("contextWindow", 200).put("maxOutputTokens", 50);
+        Context context = new Context();
+        context.addCapturedData(words(100), ContextRenderer.CLIPBOARD);
+        Exception e = assertThrows(Exception.class,
+                () -> ContextBudget.fit(context, conversation(2, words(100)), settings));
+        assertTrue(e.getMessage().contains("llama2"), e.getMessage());
+    }
+}
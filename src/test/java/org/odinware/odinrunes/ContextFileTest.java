@@ -0,0 +1,140 @@
+package org.odinware.odinrunes;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ContextFileTest {
+
+    @TempDir
+    Path directory;
+
+    private static String ocrText() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            text.append("Line ").append(i).append(" of a long scrollshot captured by OCR.\n");
+        }
+        return text.toString();
+    }
+
+    private static void assertUnreadable(File file) {
+        try {
+            ContextFile.read(file);
+            fail("Read " + file);
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testEntriesAreDecodedWhenTheyAreUsed() throws Exception {
+        String ocrText = ocrText();
+        Context context = new Context();
+        context.setUserProfile("Odin");
+        context.addCapturedData("Hugin and Munin", ContextRenderer.CLIPBOARD);
+        context.addCapturedData(ocrText, ContextRenderer.SCROLLSHOT);
+        context.addCapturedData(null, "Unknown");
+        File file = directory.resolve("ravens.ctx").toFile();
+        ContextFile.write(context, file);
+        // Long captures are compressed
+        assertTrue(file.length() < ocrText.length() / 4);
+
+        long decodeCount = ContextFile.getDecodeCount();
+        Context loaded = ContextFile.read(file);
+        assertEquals("Odin", loaded.getUserProfile());
+        List<Context.CapturedData> capturedDataList = loaded.getCapturedDataList();
+        assertEquals(3, capturedDataList.size());
+        Context.CapturedData scrollshot = capturedDataList.get(1);
+        assertEquals(ContextRenderer.SCROLLSHOT, scrollshot.getCaptureMethod());
+        assertEquals(ocrText.length(), scrollshot.getRawLength());
+        assertEquals(ocrText.substring(0, 25), scrollshot.getPreview(25));
+        assertEquals(decodeCount, ContextFile.getDecodeCount());
+
+        assertEquals(ocrText, scrollshot.getCapturedText());
+        assertEquals("Hugin and Munin", capturedDataList.get(0).getCapturedText());
+        assertNull(capturedDataList.get(2).getRawCapturedText());
+        assertEquals(decodeCount + 2, ContextFile.getDecodeCount());
+    }
+
+    @Test
+    public void testUnusedEntriesAreCopiedWhenSavedAgain() throws Exception {
+        Context context = new Context();
+        context.addCapturedData(ocrText(), ContextRenderer.REGIONSHOT);
+        context.addCapturedData("Sleipnir", ContextRenderer.CLIPBOARD);
+        File file = directory.resolve("first.ctx").toFile();
+        ContextFile.write(context, file);
+
+        long decodeCount = ContextFile.getDecodeCount();
+        Context loaded = ContextFile.read(file);
+        loaded.addCapturedData("Gungnir", ContextRenderer.CLIPBOARD);
+        File copy = directory.resolve("second.ctx").toFile();
+        ContextFile.write(loaded, copy);
+        assertEquals(decodeCount, ContextFile.getDecodeCount());
+
+        List<Context.CapturedData> capturedDataList = ContextFile.read(copy).getCapturedDataList();
+        assertEquals(3, capturedDataList.size());
+        assertEquals(ocrText(), capturedDataList.get(0).getCapturedText());
+        assertEquals("Sleipnir", capturedDataList.get(1).getCapturedText());
+        assertEquals("Gungnir", capturedDataList.get(2).getCapturedText());
+    }
+
+    @Test
+    public void testLoadedContextsDoNotHoldTheirFile() throws Exception {
+        Context context = new Context();
+        context.addCapturedData(ocrText(), ContextRenderer.SCROLLSHOT);
+        context.addCapturedData("Mjolnir", ContextRenderer.CLIPBOARD);
+        File file = directory.resolve("hammer.ctx").toFile();
+        ContextFile.write(context, file);
+
+        // Saved again into the same file, with the entries in other places
+        Context loaded = ContextFile.read(file);
+        loaded.deleteCapturedData(loaded.getCapturedDataList().get(0));
+        loaded.addCapturedData("Thor", ContextRenderer.CLIPBOARD);
+        ContextFile.write(loaded, file);
+        assertEquals("Mjolnir", loaded.getCapturedDataList().get(0).getCapturedText());
+        assertEquals("Thor", ContextFile.read(file).getCapturedDataList().get(1).getCapturedText());
+
+        // A truncated file makes an entry unreadable, and nothing worse
+        Context truncated = ContextFile.read(file);
+        Files.write(file.toPath(), new byte[0]);
+        assertEquals("ERROR READING FROM CONTEXT FILE", truncated.getCapturedDataList().get(0).getCapturedText());
+    }
+
+    @Test
+    public void testReadsSerializedContextsAndRejectsOtherFiles() throws Exception {
+        Context context = new Context();
+        context.addCapturedData("Saved by an earlier version", ContextRenderer.CLIPBOARD);
+        File serialized = directory.resolve("old.ser").toFile();
+        try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(serialized))) {
+            out.writeObject(context);
+        }
+        assertEquals("Saved by an earlier version", ContextFile.read(serialized)
+                .getCapturedDataList().get(0).getCapturedText());
+
+        // Only the classes of a context are deserialized
+        File unsafe = directory.resolve("unsafe.ser").toFile();
+        try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(unsafe))) {
+            out.writeObject(new ArrayList<Object>(Collections.singletonList(new Date())));
+        }
+        assertUnreadable(unsafe);
+
+        File newer = directory.resolve("newer.ctx").toFile();
+        Files.write(newer.toPath(), new byte[]{'O', 'D', 'N', 'C', 0, 2, 0, 0, 0, 0, 0, 0});
+        assertUnreadable(newer);
+        File truncated = directory.resolve("truncated.ctx").toFile();
+        Files.write(truncated.toPath(), new byte[]{'O', 'D', 'N', 'C', 0, 1});
+        assertUnreadable(truncated);
+    }
+}
@@ -0,0 +1,110 @@
+package org.odinware.odinrunes;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ContextLibraryTest {
+
+    @TempDir
+    Path directory;
+
+    private static String ocrText(String subject) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            text.append("Line ").append(i).append(" of a long scrollshot about ").append(subject).append(".\n");
+        }
+        return text.toString();
+    }
+
+    private static Context context(String... texts) {
+        Context context = new Context();
+        for (String text : texts) {
+            context.addCapturedData(text, ContextRenderer.SCROLLSHOT);
+        }
+        return context;
+    }
+
+    @Test
+    public void testSharedCapturesAreStoredOnce() throws Exception {
+        ContextLibrary library = new ContextLibrary(directory.toFile());
+        String sharedText = ocrText("Yggdrasil");
+        library.save("Ash tree", context(sharedText, "First notes"));
+        library.save("World tree", context(sharedText, "Second notes"));
+
+        ContextLibrary.Statistics statistics = library.getStatistics();
+        assertEquals(2, statistics.getContextCount());
+        assertEquals(3, statistics.getBlobCount());
+        assertTrue(statistics.getStoredBytes() < statistics.getReferencedBytes());
+
+        long decodeCount = ContextFile.getDecodeCount();
+        Context loaded = library.load("World tree");
+        assertEquals(2, loaded.getCapturedDataList().size());
+        assertEquals(sharedText.length(), loaded.getCapturedDataList().get(0).getRawLength());
+        assertEquals(decodeCount, ContextFile.getDecodeCount());
+        assertEquals(sharedText, loaded.getCapturedDataList().get(0).getCapturedText());
+        assertEquals("Second notes", loaded.getCapturedDataList().get(1).getCapturedText());
+
+        // Saving a loaded context again neither decodes nor copies its captures
+        library.save("World tree, again", library.load("Ash tree"));
+        assertEquals(3, library.getStatistics().getBlobCount());
+        assertEquals(decodeCount + 2, ContextFile.getDecodeCount());
+        assertEquals("First notes", library.load("World tree, again").getCapturedDataList().get(1).getCapturedText());
+    }
+
+    @Test
+    public void testListsAndSearchesNewestFirst() throws Exception {
+        ContextLibrary library = new ContextLibrary(directory.toFile());
+        library.save("Ravens", context("Hugin and Munin fly over Midgard"));
+        Thread.sleep(5);
+        library.save("Wolves", context("Geri and Freki"));
+        Thread.sleep(5);
+        library.save("Ravens", context("Hugin, Munin and the news of the world"));
+
+        List<ContextLibrary.Summary> summaries = library.list();
+        assertEquals(2, summaries.size());
+        assertEquals("Ravens", summaries.get(0).getName());
+        assertEquals("Wolves", summaries.get(1).getName());
+
+        assertEquals(1, library.search("munin WORLD").size());
+        assertEquals("Wolves", library.search("freki").get(0).getName());
+        assertEquals(2, library.search("scrollshot").size());
+        assertTrue(library.search("Midgard").isEmpty());
+        assertEquals(2, library.search("").size());
+    }
+
+    @Test
+    public void testGarbageCollectionKeepsReferencedBlobs() throws Exception {
+        ContextLibrary library = new ContextLibrary(directory.toFile());
+        String sharedText = ocrText("Bifrost");
+        library.save("Bridge", context(sharedText, "Heimdall"));
+        library.save("Rainbow", context(sharedText));
+        assertEquals(0, library.collectGarbage());
+
+        assertTrue(library.delete("Bridge"));
+        assertEquals(1, library.collectGarbage());
+        assertEquals(1, library.getStatistics().getBlobCount());
+        assertEquals(sharedText, library.load("Rainbow").getCapturedDataList().get(0).getCapturedText());
+        assertFalse(library.delete("Bridge"));
+    }
+
+    @Test
+    public void testGarbageCollectionKeepsTheBlobsOfLoadedContexts() throws Exception {
+        ContextLibrary library = new ContextLibrary(directory.toFile());
+        String text = ocrText("Sleipnir");
+        library.save("Horse", context(text, "Eight legs"));
+
+        Context loaded = library.load("Horse");
+        assertTrue(library.delete("Horse"));
+        assertEquals(0, library.collectGarbage());
+        assertEquals(text, loaded.getCapturedDataList().get(0).getCapturedText());
+
+        // Saved again, with the text of the capture that was not used yet
+        library.save("Horse, again", loaded);
+        assertEquals("Eight legs", library.load("Horse, again").getCapturedDataList().get(1).getCapturedText());
+    }
+}
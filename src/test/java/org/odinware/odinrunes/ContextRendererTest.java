@@ -0,0 +1,95 @@
+package org.odinware.odinrunes;
+
+import okio.Buffer;
+import okhttp3.Request;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONString;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ContextRendererTest {
+    private final String testFilePath = "contextRendererTestFile.txt";
+
+    @AfterEach
+    public void cleanup() {
+        new File(testFilePath).delete();
+    }
+
+    @Test
+    public void testUnchangedCapturesAreRenderedOnce() {
+        Context context = new Context();
+        context.addCapturedData("Odin rides Sleipnir", ContextRenderer.CLIPBOARD);
+        context.addCapturedData("Ravens: Huginn and Muninn", ContextRenderer.REGIONSHOT);
+
+        long renderCount = ContextRenderer.getRenderCount();
+        List<ContextRenderer.Segment> first = ContextRenderer.render(context);
+        List<ContextRenderer.Segment> second = ContextRenderer.render(context);
+        assertEquals(renderCount + 2, ContextRenderer.getRenderCount());
+        assertSame(first.get(0), second.get(0));
+        assertSame(first.get(1), second.get(1));
+
+        ContextRenderer.Segment clipboard = first.get(0);
+        assertEquals("The text content from a portion of the user's clipboard is as follows: Odin rides Sleipnir",
+                clipboard.getText(ContextRenderer.Voice.ABOUT_USER));
+        assertEquals("The text content from a portion of my clipboard is as follows: Odin rides Sleipnir",
+                clipboard.getText(ContextRenderer.Voice.AS_USER));
+
+        JSONString node = clipboard.toJson(OpenAIWellsOfWisdom.SYSTEM_MESSAGE, OpenAIWellsOfWisdom.SYSTEM_MESSAGE_BUILDER);
+        assertSame(node, clipboard.toJson(OpenAIWellsOfWisdom.SYSTEM_MESSAGE, segment -> {
+            throw new AssertionError("The node should not be built twice");
+        }));
+        JSONObject message = new JSONArray(new JSONArray().put(node).toString()).getJSONObject(0);
+        assertEquals("system", message.getString("role"));
+        assertEquals(clipboard.getText(ContextRenderer.Voice.ABOUT_USER), message.getString("content"));
+    }
+
+    @Test
+    public void testLiveFilesAreRenderedAgainWhenTheyChange() throws IOException {
+        Files.write(new File(testFilePath).toPath(), "Yggdrasil\n".getBytes());
+        Context context = new Context();
+        context.addCapturedData(testFilePath, ContextRenderer.FILE);
+
+        ContextRenderer.Segment before = ContextRenderer.render(context).get(0);
+        assertEquals("Yggdrasil\n", before.getContent());
+        assertSame(before, ContextRenderer.render(context).get(0));
+
+        Files.write(new File(testFilePath).toPath(), "Yggdrasil, the world tree\n".getBytes());
+        ContextRenderer.Segment after = ContextRenderer.render(context).get(0);
+        assertNotSame(before, after);
+        assertEquals("The content of a file is included below: \nYggdrasil, the world tree\n",
+                after.getText(ContextRenderer.Voice.ABOUT_USER));
+    }
+
+    @Test
+    public void testProvidersSendTheRenderedSegments() throws Exception {
+        Context context = new Context();
+        context.addCapturedData("Bifrost", ContextRenderer.CLIPBOARD);
+        context.addCapturedData("Mjolnir", "Custom note");
+        JSONArray odinMessages = new JSONArray().put(new JSONObject().put("role", "prompt").put("content", "Where does it lead?"));
+        JSONObject ollamaSettings = new JSONObject()
+                .put("gptProvider", "Ollama")
+                .put("temperature", 0.5)
+                .put("model", "llama2")
+                .put("backendURI", "http://localhost:11434/api/chat");
+
+        Request request = new OllamaWellsOfWisdom().buildRequest(context, odinMessages, ollamaSettings);
+        Buffer body = new Buffer();
+        request.body().writeTo(body);
+        JSONArray messages = new JSONObject(body.readUtf8()).getJSONArray("messages");
+
+        assertEquals("You are a helpful assistant.", messages.getJSONObject(0).getString("content"));
+        assertEquals("The text content from a portion of the user's clipboard is as follows: Bifrost",
+                messages.getJSONObject(1).getString("content"));
+        assertEquals("Some additional information labeled as Custom note is included below: \nMjolnir",
+                messages.getJSONObject(2).getString("content"));
+        assertEquals("Where does it lead?", messages.getJSONObject(3).getString("content"));
+    }
+}
@@ -0,0 +1,73 @@
+package org.odinware.odinrunes;
+
+import okhttp3.Request;
+import okio.Buffer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EncodedFileCacheTest {
+    @TempDir
+    Path directory;
+
+    private File image(String name, int size) throws Exception {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return Files.write(directory.resolve(name), bytes).toFile();
+    }
+
+    @Test
+    public void testCachesTheEncodedFile() throws Exception {
+        File image = image("raven.png", 1000);
+        String expected = Base64.getEncoder().encodeToString(Files.readAllBytes(image.toPath()));
+        assertNull(EncodedFileCache.cachedEncoding(image));
+
+        Buffer written = new Buffer();
+        EncodedFileCache.writeEncoded(image, written);
+        assertEquals(expected, written.readUtf8());
+
+        // The encoded file is cached, so the length of the next body is known
+        assertEquals(expected, new String(EncodedFileCache.cachedEncoding(image), StandardCharsets.US_ASCII));
+        written = new Buffer();
+        EncodedFileCache.writeEncoded(image, written);
+        assertEquals(expected, written.readUtf8());
+
+        assertNotEquals(EncodedFileCache.tokenFor(image), EncodedFileCache.tokenFor(image("odin.png", 1000)));
+    }
+
+    @Test
+    public void testEncodesLargeFilesInAStream() throws Exception {
+        File image = image("yggdrasil.png", 3 * 1024 * 1024 + 1);
+        Buffer written = new Buffer();
+        EncodedFileCache.writeBase64(image, written);
+        written.writeUtf8("\"");
+        assertEquals(Base64.getEncoder().encodeToString(Files.readAllBytes(image.toPath())) + "\"", written.readUtf8());
+    }
+
+    @Test
+    public void testOpenAIEmbedsImagesWhenTheRequestIsSent() throws Exception {
+        File image = image("frame.png", 5000);
+        Context context = new Context();
+        context.addCapturedData(image.getPath(), "Image File (Live)");
+        JSONArray messages = new JSONArray().put(new JSONObject().put("role", "prompt").put("content", "What is this?"));
+
+        Request request = new OpenAIWellsOfWisdom().buildRequest(context, messages,
+                new JSONObject().put("gptProvider", "OpenAI (gpt-4o-mini)").put("temperature", 0.5));
+        Buffer written = new Buffer();
+        request.body().writeTo(written);
+        JSONObject body = new JSONObject(written.readUtf8());
+        String url = body.getJSONArray("messages").getJSONObject(1).getJSONArray("content")
+                .getJSONObject(1).getJSONObject("image_url").getString("url");
+        assertEquals("data:image/png;base64," + Base64.getEncoder().encodeToString(Files.readAllBytes(image.toPath())), url);
+    }
+}
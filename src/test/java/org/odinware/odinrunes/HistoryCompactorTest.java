@@ -0,0 +1,205 @@
+package org.odinware.odinrunes;
+
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HistoryCompactorTest {
+    private HttpServer server;
+    private final List<String> summaryRequests = Collections.synchronizedList(new ArrayList<String>());
+    private final CountDownLatch hangingRequests = new CountDownLatch(1);
+
+    @TempDir
+    Path summaryDirectory;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        // A fake Ollama chat backend answering every request with a numbered summary
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/chat", exchange -> {
+            String requestBody;
+            try (InputStream body = exchange.getRequestBody()) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = body.read(buffer)) != -1) {
+                    bytes.write(buffer, 0, read);
+                }
+                requestBody = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+            }
+            summaryRequests.add(requestBody);
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(("{\"model\":\"m\",\"message\":{\"role\":\"assistant\",\"content\":\"Summary "
+                        + summaryRequests.size() + "\"},\"done\":false}\n").getBytes(StandardCharsets.UTF_8));
+                body.write("{\"model\":\"m\",\"done\":true}\n".getBytes(StandardCharsets.UTF_8));
+            }
+        });
+        // A backend that takes its time to answer
+        server.createContext("/hang", exchange -> {
+            exchange.getRequestBody().close();
+            hangingRequests.countDown();
+            try {
+                Thread.sleep(10_000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.sendResponseHeaders(500, -1);
+            exchange.close();
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    @AfterEach
+    public void cleanup() {
+        server.stop(0);
+    }
+
+    private JSONObject settings(int compactAfterTokens) {
+        return new JSONObject()
+                .put("gptProvider", "Ollama")
+                .put("model", "m")
+                .put("backendURI", "http://127.0.0.1:" + server.getAddress().getPort() + "/chat")
+                .put("compactAfterTokens", compactAfterTokens);
+    }
+
+    /**
+     * Returns a conversation of turns with about a hundred tokens per message, followed by a new prompt.
+     */
+    private static TranscriptMessages conversation(int turns) {
+        JSONArray messages = new JSONArray();
+        for (int turn = 0; turn < turns; turn++) {
+            StringBuilder question = new StringBuilder("Question " + turn);
+            StringBuilder answer = new StringBuilder("Answer " + turn);
+            for (int i = 0; i < 99; i++) {
+                question.append(" rune");
+                answer.append(" raven");
+            }
+            messages.put(new JSONObject().put("role", "user").put("content", question.toString()));
+            messages.put(new JSONObject().put("role", "assistant").put("content", answer.toString()));
+        }
+        messages.put(new JSONObject().put("role", "prompt").put("content", "Who rules Asgard?"));
+        return TranscriptMessages.of(messages);
+    }
+
+    @Test
+    public void testShortHistoryIsSentAsItIs() throws Exception {
+        HistoryCompactor compactor = new HistoryCompactor(summaryDirectory.toFile());
+        TranscriptMessages messages = conversation(4);
+
+        HistoryCompactor.Compaction compaction = compactor.compact(new OllamaWellsOfWisdom(), messages, settings(0));
+        assertFalse(compaction.isCompacted());
+        assertSame(messages, compaction.getMessages());
+        assertNull(compaction.describe());
+
+        compaction = compactor.compact(new OllamaWellsOfWisdom(), messages, settings(100_000));
+        assertFalse(compaction.isCompacted());
+        assertTrue(summaryRequests.isEmpty());
+    }
+
+    @Test
+    public void testOlderTurnsAreSummarizedIncrementally() throws Exception {
+        HistoryCompactor compactor = new HistoryCompactor(summaryDirectory.toFile());
+        int threshold = BpeTokenizer.forModel("m").count(conversation(1).toJSONArray().getJSONObject(0).getString("content")) * 9 / 2;
+
+        HistoryCompactor.Compaction compaction = compactor.compact(new OllamaWellsOfWisdom(), conversation(4), settings(threshold));
+        assertTrue(compaction.isCompacted());
+        assertEquals(6, compaction.describe().getInt("summarizedMessages"));
+        // Chunks of at most the threshold, each ending before a user message
+        assertEquals(2, summaryRequests.size());
+        assertTrue(summaryRequests.get(1).contains("Summary 1"));
+
+        JSONArray sent = compaction.getMessages().toJSONArray();
+        assertEquals(5, sent.length());
+        assertEquals(HistoryCompactor.SUMMARY_INTRODUCTION + "Summary 2", sent.getJSONObject(0).getString("content"));
+        assertEquals("assistant", sent.getJSONObject(1).getString("role"));
+        assertTrue(sent.getJSONObject(2).getString("content").startsWith("Question 3"));
+        assertEquals("prompt", sent.getJSONObject(4).getString("role"));
+
+        // The same conversation is answered from the cached summary
+        compaction = compactor.compact(new OllamaWellsOfWisdom(), conversation(4), settings(threshold));
+        assertEquals(2, summaryRequests.size());
+        assertEquals(HistoryCompactor.SUMMARY_INTRODUCTION + "Summary 2", compaction.getMessages().toJSONArray().getJSONObject(0).getString("content"));
+
+        // A longer conversation only summarizes the turns after the cached summary
+        compaction = compactor.compact(new OllamaWellsOfWisdom(), conversation(5), settings(threshold));
+        assertEquals(8, compaction.describe().getInt("summarizedMessages"));
+        assertEquals(3, summaryRequests.size());
+        assertTrue(summaryRequests.get(2).contains("Summary 2"));
+        assertTrue(summaryRequests.get(2).contains("Question 3"));
+        assertFalse(summaryRequests.get(2).contains("Question 2"));
+    }
+
+    @Test
+    public void testCompactionIsRecordedInTheOdinHeader() throws Exception {
+        HistoryCompactor compactor = new HistoryCompactor(summaryDirectory.toFile());
+        int threshold = BpeTokenizer.forModel("m").count(conversation(1).toJSONArray().getJSONObject(0).getString("content")) * 9 / 2;
+        HistoryCompactor.Compaction compaction = compactor.compact(new OllamaWellsOfWisdom(), conversation(4), settings(threshold));
+
+        Path transcript = Files.createFile(summaryDirectory.resolve("transcript.txt"));
+        TextHelper odinSays = new TextHelper(transcript.toString());
+        odinSays.appendOdinFirstInfo("m", "17/10/26", null, compaction.describe());
+        String header = new String(Files.readAllBytes(transcript), StandardCharsets.UTF_8);
+        // The last header is the one just written, after the header of the new transcript
+        header = header.substring(header.lastIndexOf("<!--"));
+        String json = header.substring(header.indexOf('{'), header.lastIndexOf('}') + 1);
+        assertEquals(6, new JSONObject(json).getJSONObject("compaction").getInt("summarizedMessages"));
+        assertFalse(new JSONObject(json).has("routing"));
+    }
+
+    @Test
+    public void testSummaryRequestsBelongToTheChatTurn() throws Exception {
+        final HistoryCompactor compactor = new HistoryCompactor(summaryDirectory.toFile());
+        final int threshold = BpeTokenizer.forModel("m").count(conversation(1).toJSONArray().getJSONObject(0).getString("content")) * 9 / 2;
+
+        // A cancelled turn does not ask for a summary
+        ChatTurn cancelled = new ChatTurn("transcript.txt");
+        cancelled.cancel();
+        assertThrows(Exception.class, () -> compactor.compact(new OllamaWellsOfWisdom(), conversation(4), settings(threshold), cancelled));
+        assertTrue(summaryRequests.isEmpty());
+
+        // Cancelling the turn cancels the summary request in flight
+        final ChatTurn chatTurn = new ChatTurn("transcript.txt");
+        final JSONObject hanging = settings(threshold).put("backendURI", "http://127.0.0.1:" + server.getAddress().getPort() + "/hang");
+        CompletableFuture<HistoryCompactor.Compaction> compaction = CompletableFuture.supplyAsync(() -> {
+            try {
+                return compactor.compact(new OllamaWellsOfWisdom(), conversation(4), hanging, chatTurn);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        assertTrue(hangingRequests.await(5, TimeUnit.SECONDS));
+        long startTime = System.currentTimeMillis();
+        chatTurn.cancel();
+        assertThrows(ExecutionException.class, () -> compaction.get(5, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - startTime < 3_000, "The summary request should have been cancelled");
+
+        // Nothing was cached for the cancelled turns
+        assertTrue(compactor.compact(new OllamaWellsOfWisdom(), conversation(4), settings(threshold)).isCompacted());
+        assertEquals(2, summaryRequests.size());
+    }
+}
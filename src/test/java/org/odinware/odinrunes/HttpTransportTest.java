@@ -0,0 +1,34 @@
+package org.odinware.odinrunes;
+
+import okhttp3.OkHttpClient;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HttpTransportTest {
+
+    @Test
+    public void testProvidersShareOneConnectionPool() {
+        OkHttpClient openAI = HttpTransport.clientFor(HttpTransport.OPENAI);
+        OkHttpClient vertexAI = HttpTransport.clientFor(HttpTransport.VERTEX_AI);
+        OkHttpClient ollama = HttpTransport.clientFor(HttpTransport.OLLAMA);
+
+        assertSame(openAI, HttpTransport.clientFor(HttpTransport.OPENAI));
+        assertSame(openAI.connectionPool(), vertexAI.connectionPool());
+        assertSame(openAI.connectionPool(), ollama.connectionPool());
+        assertSame(openAI.dispatcher(), ollama.dispatcher());
+    }
+
+    @Test
+    public void testProviderTimeouts() {
+        assertEquals(120_000, HttpTransport.clientFor(HttpTransport.OPENAI).readTimeoutMillis());
+        assertEquals(300_000, HttpTransport.clientFor(HttpTransport.OLLAMA).readTimeoutMillis());
+    }
+
+    @Test
+    public void testStatistics() {
+        HttpTransport.Statistics statistics = HttpTransport.getStatistics();
+        assertTrue(statistics.getReusedConnectionCount() >= 0);
+        assertTrue(statistics.toString().startsWith("HTTP connection pool: "));
+    }
+}
@@ -0,0 +1,127 @@
+package org.odinware.odinrunes;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the payload size and the CPU time of sending a screenshot as it is, Base64 encoded, against scaling it
+ * down and re-encoding it as a JPEG first with the ImagePreprocessor of GPT-4o mini, as it does when the image is not
+ * in its cache yet.
+ *
+ * <p>Run it from the test classpath, for example: {@code java -cp <test classpath> org.odinware.odinrunes.ImagePreprocessorBenchmark}.
+ * The payload sizes of both are printed when a trial starts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImagePreprocessorBenchmark {
+
+    @Param({"1920x1080", "3840x2160"})
+    public String resolution;
+
+    private File source;
+    private File directory;
+    private ImagePreprocessor preprocessor;
+    private int processCount;
+
+    @Setup
+    public void setup() throws Exception {
+        int width = Integer.parseInt(resolution.substring(0, resolution.indexOf('x')));
+        int height = Integer.parseInt(resolution.substring(resolution.indexOf('x') + 1));
+        // A screenshot like image: a gradient background with text and some noise
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setPaint(new GradientPaint(0, 0, Color.WHITE, width, height, new Color(200, 210, 230)));
+        graphics.fillRect(0, 0, width, height);
+        graphics.setColor(Color.DARK_GRAY);
+        graphics.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, 18));
+        for (int y = 30; y < height; y += 24) {
+            graphics.drawString("Odin Runes captures the context of the conversation, line " + y, 20, y);
+        }
+        graphics.dispose();
+        Random random = new Random(42);
+        for (int i = 0; i < width * height / 50; i++) {
+            image.setRGB(random.nextInt(width), random.nextInt(height), random.nextInt());
+        }
+        source = File.createTempFile("odin-benchmark", ".png");
+        ImageIO.write(image, "png", source);
+        directory = Files.createTempDirectory("odin-benchmark-images").toFile();
+        preprocessor = ImagePreprocessor.forSettings(new JSONObject().put("gptProvider", "OpenAI (gpt-4o-mini)"),
+                directory, 16 * 1024 * 1024);
+
+        System.out.println("\nPayload of " + resolution + ": " + encodeAsItIs().length + " bytes as it is, "
+                + encodeScaledDown().length + " bytes scaled down and re-encoded");
+    }
+
+    private byte[] encodeAsItIs() throws Exception {
+        return Base64.getEncoder().encode(Files.readAllBytes(source.toPath()));
+    }
+
+    private byte[] encodeScaledDown() throws Exception {
+        // A new key every time, so that the image is processed rather than found in the cache
+        ImagePreprocessor.Image image = preprocessor.processUncached(source, "benchmark-" + processCount++);
+        return Base64.getEncoder().encode(Files.readAllBytes(image.getFile().toPath()));
+    }
+
+    @Benchmark
+    public void sendAsItIs(Blackhole blackhole) throws Exception {
+        blackhole.consume(encodeAsItIs());
+    }
+
+    @Benchmark
+    public void scaleDownAndReencode(Blackhole blackhole) throws Exception {
+        blackhole.consume(encodeScaledDown());
+    }
+
+    @TearDown
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+        if (!source.delete()) {
+            source.deleteOnExit();
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(ImagePreprocessorBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,107 @@
+package org.odinware.odinrunes;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ImagePreprocessorTest {
+
+    @TempDir
+    Path directory;
+
+    private File image(String name, String format, int width, int height, boolean alpha) throws Exception {
+        BufferedImage image = new BufferedImage(width, height, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setPaint(new GradientPaint(0, 0, new Color(20, 40, 200, alpha ? 128 : 255), width, height, Color.ORANGE));
+        graphics.fillRect(0, 0, width, height);
+        graphics.dispose();
+        File file = directory.resolve(name).toFile();
+        assertTrue(ImageIO.write(image, format, file));
+        return file;
+    }
+
+    private ImagePreprocessor preprocessor() {
+        return new ImagePreprocessor(directory.resolve("processed").toFile(), 1024 * 1024, 2048, 768, 0.85f);
+    }
+
+    @Test
+    public void testLargeImagesAreScaledDownToJpeg() throws Exception {
+        File source = image("frame.png", "png", 3000, 1500, false);
+        long processCount = ImagePreprocessor.getProcessCount();
+
+        ImagePreprocessor.Image image = preprocessor().process(source);
+        assertEquals(ImagePreprocessor.JPEG, image.getMimeType());
+        assertEquals(ImagePreprocessor.JPEG, ImagePreprocessor.detectMimeType(image.getFile()));
+        BufferedImage scaled = ImageIO.read(image.getFile());
+        assertEquals(1536, scaled.getWidth());
+        assertEquals(768, scaled.getHeight());
+        assertTrue(image.getFile().length() < source.length());
+
+        // Processed once per source and options
+        assertSame(image, preprocessor().process(source));
+        assertEquals(processCount + 1, ImagePreprocessor.getProcessCount());
+    }
+
+    @Test
+    public void testCompactImagesAreSentAsTheyAre() throws Exception {
+        // A JPEG named like a PNG
+        File jpeg = image("photo.png", "jpeg", 400, 300, false);
+        ImagePreprocessor.Image image = preprocessor().process(jpeg);
+        assertSame(jpeg, image.getFile());
+        assertEquals(ImagePreprocessor.JPEG, image.getMimeType());
+
+        File transparent = image("icon.png", "png", 64, 64, true);
+        image = preprocessor().process(transparent);
+        assertSame(transparent, image.getFile());
+        assertEquals(ImagePreprocessor.PNG, image.getMimeType());
+
+        File large = image("large.png", "png", 3000, 3000, false);
+        ImagePreprocessor original = new ImagePreprocessor(directory.resolve("processed").toFile(), 1024 * 1024, 0, 0, 0.85f);
+        assertSame(large, original.process(large).getFile());
+    }
+
+    @Test
+    public void testTransparentImagesStayPngAndModelsHaveTheirOwnLimits() throws Exception {
+        File source = image("overlay.png", "png", 1000, 4000, true);
+        ImagePreprocessor.Image image = preprocessor().process(source);
+        assertEquals(ImagePreprocessor.PNG, image.getMimeType());
+        BufferedImage scaled = ImageIO.read(image.getFile());
+        assertEquals(512, scaled.getWidth());
+        assertEquals(2048, scaled.getHeight());
+        assertTrue(scaled.getColorModel().hasAlpha());
+
+        assertEquals("2048x768q0.85", ImagePreprocessor.forSettings(new JSONObject().put("gptProvider", "OpenAI (gpt-4o-mini)")).getOptions());
+        assertEquals("1024x1024q0.5", ImagePreprocessor.forSettings(new JSONObject().put("gptProvider", "Ollama")
+                .put("model", "llava").put("imageMaxDimension", 1024).put("imageQuality", 0.5)).getOptions());
+        assertEquals(ImagePreprocessor.WEBP, ImagePreprocessor.detectMimeType("RIFF\0\0\0\0WEBPVP8 ".getBytes("US-ASCII")));
+    }
+
+    @Test
+    public void testKeepsTheImagesThatMayStillBeSent() throws Exception {
+        File first = image("first.png", "png", 3000, 1500, false);
+        File second = image("second.png", "png", 1500, 3000, false);
+        // Too small for even one image
+        ImagePreprocessor preprocessor = new ImagePreprocessor(directory.resolve("small").toFile(), 1, 2048, 768, 0.85f);
+
+        ImagePreprocessor.Image firstImage = preprocessor.process(first);
+        ImagePreprocessor.Image secondImage = preprocessor.process(second);
+        assertTrue(firstImage.getFile().isFile());
+        assertTrue(secondImage.getFile().isFile());
+        assertNotEquals(first, firstImage.getFile());
+
+        // Images that were not returned by process are evicted
+        ImagePreprocessor.Image unremembered = preprocessor.processUncached(first, "unremembered");
+        preprocessor.processUncached(second, "other");
+        assertFalse(unremembered.getFile().isFile());
+    }
+}
@@ -0,0 +1,139 @@
+package org.odinware.odinrunes;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ImageStitcherTest {
+
+    private static final int WIDTH = 80;
+    private static final int SCROLL_BAR = 6;
+
+    /**
+     * Draws a page of textured lines separated by blank rows, where the red component of the first column of a line
+     * is its number.
+     */
+    private static BufferedImage page(int lines) {
+        BufferedImage image = new BufferedImage(WIDTH, lines * 20, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(0, 0, WIDTH, image.getHeight());
+        graphics.dispose();
+        Random random = new Random(7);
+        for (int line = 0; line < lines; line++) {
+            for (int y = line * 20; y < line * 20 + 16; y++) {
+                image.setRGB(0, y, new Color(line, 0, 0).getRGB());
+                for (int x = 1; x < WIDTH; x++) {
+                    image.setRGB(x, y, random.nextInt(0x1000000));
+                }
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Cuts the frame of a page at a row, with a scroll bar thumb that moves with the row.
+     */
+    private static BufferedImage frame(BufferedImage page, int top, int height) {
+        BufferedImage frame = new BufferedImage(WIDTH, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = frame.createGraphics();
+        graphics.drawImage(page.getSubimage(0, top, WIDTH, height), 0, 0, null);
+        graphics.setColor(Color.GRAY);
+        graphics.fillRect(WIDTH - SCROLL_BAR, top * height / page.getHeight(), SCROLL_BAR, height / 4);
+        graphics.dispose();
+        return frame;
+    }
+
+    @Test
+    public void testStitchesTheFramesOfAScrolledPage() {
+        BufferedImage page = page(100);
+        ImageStitcher stitcher = new ImageStitcher();
+        int top = 0;
+        int[] scrolls = {37, 37, 150, 0, 0, 299, 1, 12};
+        assertEquals(300, stitcher.append(frame(page, top, 300)));
+        for (int scroll : scrolls) {
+            top = Math.min(page.getHeight() - 300, top + scroll);
+            stitcher.append(frame(page, top, 300));
+        }
+        while (top < page.getHeight() - 300) {
+            top = Math.min(page.getHeight() - 300, top + 250);
+            stitcher.append(frame(page, top, 300));
+        }
+
+        assertEquals(page.getHeight(), stitcher.getHeight());
+        BufferedImage image = stitcher.getImage();
+        for (int y = 0; y < page.getHeight(); y++) {
+            for (int x = 0; x < WIDTH - SCROLL_BAR; x++) {
+                assertEquals(page.getRGB(x, y), image.getRGB(x, y), "Pixel " + x + "," + y);
+            }
+        }
+    }
+
+    @Test
+    public void testEstimatesTheShiftFromTheRowsOfTheFrames() {
+        BufferedImage page = page(40);
+        long[] first = ImageStitcher.rowHashes(frame(page, 0, 300));
+        long[] second = ImageStitcher.rowHashes(frame(page, 123, 300));
+
+        assertEquals(0, ImageStitcher.estimateShift(first, first));
+        assertEquals(123, ImageStitcher.estimateShift(first, second));
+        assertEquals(-1, ImageStitcher.estimateShift(second, first));
+        assertEquals(-1, ImageStitcher.estimateShift(first, ImageStitcher.rowHashes(frame(page, 400, 300))));
+    }
+
+    @Test
+    public void testRecognizesTheImageInTilesCutBetweenLines() throws Exception {
+        BufferedImage page = page(200);
+        ImageStitcher stitcher = new ImageStitcher();
+        for (int top = 0; top <= page.getHeight() - 500; top += 250) {
+            stitcher.append(frame(page, top, 500));
+        }
+        List<int[]> tiles = stitcher.tiles(ImageStitcher.TILE_HEIGHT);
+        assertEquals(4, tiles.size());
+        int end = 0;
+        for (int[] tile : tiles) {
+            assertEquals(end, tile[0]);
+            end = tile[0] + tile[1];
+            // Tiles end with the blank rows between two lines
+            assertTrue(end == page.getHeight() || end % 20 > 16 || end % 20 == 0, "Tile ends at " + end);
+        }
+
+        final AtomicInteger tileCount = new AtomicInteger();
+        OcrService service = new OcrService("eng", 2, new OcrService.EngineFactory() {
+            public OcrService.Engine create(String language) {
+                return new OcrService.Engine() {
+                    public String recognize(BufferedImage image) {
+                        tileCount.incrementAndGet();
+                        StringBuilder text = new StringBuilder();
+                        int previousLine = -1;
+                        for (int y = 0; y < image.getHeight(); y++) {
+                            int rgb = image.getRGB(0, y) & 0xffffff;
+                            int line = rgb >> 16;
+                            if (rgb != 0xffffff && line != previousLine) {
+                                text.append("The text of line ").append(line).append('\n');
+                                previousLine = line;
+                            }
+                        }
+                        return text.toString();
+                    }
+
+                    public void close() {
+                    }
+                };
+            }
+        });
+        StringBuilder expected = new StringBuilder();
+        for (int line = 0; line < 200; line++) {
+            expected.append("The text of line ").append(line).append('\n');
+        }
+        assertEquals(expected.toString(), stitcher.recognize(service));
+        assertEquals(4, tileCount.get());
+    }
+}
@@ -0,0 +1,120 @@
+package org.odinware.odinrunes;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import okhttp3.Request;
+import okio.Buffer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONString;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class JsonRequestBodyTest {
+
+    @TempDir
+    Path directory;
+
+    private static String written(JsonRequestBody body) throws IOException {
+        Buffer buffer = new Buffer();
+        body.writeTo(buffer);
+        assertEquals(buffer.size(), body.contentLength());
+        return buffer.readUtf8();
+    }
+
+    @Test
+    public void testWritesTheJsonAndCountsItsLength() throws Exception {
+        final JSONString segment = new JSONString() {
+            public String toJSONString() {
+                return new JSONObject().put("role", "system").put("content", "Runes \u16a0\u16a2 and \"quotes\"").toString();
+            }
+        };
+        JsonRequestBody body = JsonRequestBody.create(new JsonRequestBody.Writer() {
+            @Override
+            public void write(JsonRequestBody.Output output) throws IOException {
+                JsonGenerator generator = output.generator();
+                generator.writeStartObject();
+                generator.writeArrayFieldStart("messages");
+                output.writeJson(segment);
+                OpenAIWellsOfWisdom.writeMessage(generator, "user", "Caf\u00e9\nline two");
+                generator.writeEndArray();
+                generator.writeNumberField("temperature", 0.7f);
+                generator.writeEndObject();
+            }
+        });
+
+        JSONObject expected = new JSONObject()
+                .put("messages", new JSONArray()
+                        .put(new JSONObject(segment.toJSONString()))
+                        .put(new JSONObject().put("role", "user").put("content", "Caf\u00e9\nline two")))
+                .put("temperature", 0.7f);
+        String json = written(body);
+        assertTrue(expected.similar(new JSONObject(json)));
+        // Written the same way every time
+        assertEquals(json, written(body));
+        assertEquals(json, body.getTemplate());
+    }
+
+    @Test
+    public void testEmbedsFilesWhenTheBodyIsSent() throws Exception {
+        byte[] bytes = new byte[4000];
+        new Random(7).nextBytes(bytes);
+        final File image = Files.write(directory.resolve("rune.png"), bytes).toFile();
+        JsonRequestBody.Writer writer = new JsonRequestBody.Writer() {
+            @Override
+            public void write(JsonRequestBody.Output output) throws IOException {
+                output.generator().writeStartObject();
+                output.generator().writeFieldName("url");
+                output.writeEmbeddedFile("data:image/png;base64,", image);
+                output.generator().writeEndObject();
+            }
+        };
+        String url = "data:image/png;base64," + Base64.getEncoder().encodeToString(bytes);
+
+        // Sent chunked until the encoded file is cached
+        JsonRequestBody body = JsonRequestBody.create(writer);
+        assertEquals(-1, body.contentLength());
+        Buffer buffer = new Buffer();
+        body.writeTo(buffer);
+        assertEquals(url, new JSONObject(buffer.readUtf8()).getString("url"));
+
+        body = JsonRequestBody.create(writer);
+        assertEquals(url, new JSONObject(written(body)).getString("url"));
+        assertEquals("data:image/png;base64," + EncodedFileCache.tokenFor(image),
+                new JSONObject(body.getTemplate()).getString("url"));
+    }
+
+    @Test
+    public void testOllamaStreamsTheContextAndHistory() throws Exception {
+        Context context = new Context();
+        context.addCapturedData("Odin has two ravens.", ContextRenderer.CLIPBOARD);
+        JSONArray messages = new JSONArray()
+                .put(new JSONObject().put("role", "user").put("content", "Who is Odin?"))
+                .put(new JSONObject().put("role", "assistant").put("content", "The Allfather."))
+                .put(new JSONObject().put("role", "prompt").put("content", "Name his ravens."));
+        JSONObject settings = new JSONObject().put("gptProvider", "Ollama").put("model", "llama3")
+                .put("backendURI", "http://localhost:11434/api/chat");
+
+        Request request = new OllamaWellsOfWisdom().buildRequest(context, messages, settings);
+        JSONObject body = new JSONObject(written((JsonRequestBody) request.body()));
+        assertEquals("llama3", body.getString("model"));
+        assertTrue(body.getBoolean("stream"));
+        JSONArray sent = body.getJSONArray("messages");
+        assertEquals(5, sent.length());
+        assertTrue(sent.getJSONObject(1).getString("content").endsWith("Odin has two ravens."));
+        assertEquals("assistant", sent.getJSONObject(3).getString("role"));
+        assertEquals("user", sent.getJSONObject(4).getString("role"));
+        assertEquals("Name his ravens.", sent.getJSONObject(4).getString("content"));
+
+        messages.remove(2);
+        assertNull(new OllamaWellsOfWisdom().buildRequest(context, messages, settings));
+    }
+}
@@ -0,0 +1,104 @@
+package org.odinware.odinrunes;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LiveFileCacheTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void testReadsAFileOnlyWhenItChanges() throws Exception {
+        File file = directory.resolve("runes.txt").toFile();
+        Files.write(file.toPath(), "Hail\r\nto Odin".getBytes(StandardCharsets.US_ASCII));
+        LiveFileCache cache = new LiveFileCache();
+
+        assertEquals("Hail\nto Odin\n", cache.readText(file.getPath()));
+        assertEquals(TextHelper.readIntoString(file.getPath()), cache.readText(file.getPath()));
+        assertEquals(1, cache.getDiskReadCount());
+
+        // A different size
+        Files.write(file.toPath(), "Hail to Thor".getBytes(StandardCharsets.US_ASCII));
+        assertEquals("Hail to Thor\n", cache.readText(file.getPath()));
+        // The same size with a later modification time
+        Files.write(file.toPath(), "Hail to Frey".getBytes(StandardCharsets.US_ASCII));
+        assertTrue(file.setLastModified(file.lastModified() + 2_000));
+        assertEquals("Hail to Frey\n", cache.readText(file.getPath()));
+        assertEquals(3, cache.getDiskReadCount());
+
+        assertEquals(Base64.getEncoder().encodeToString("Hail to Frey".getBytes(StandardCharsets.US_ASCII)), cache.readBase64(file.getPath()));
+        assertNull(cache.readText(directory.resolve("missing.txt").toString()));
+        cache.close();
+    }
+
+    @Test
+    public void testDecodesLargeFiles() throws Exception {
+        File file = directory.resolve("saga.txt").toFile();
+        StringBuilder saga = new StringBuilder();
+        while (saga.length() < 2 * 1024 * 1024) {
+            saga.append("The ravens fly over Midgard.\r\n");
+        }
+        Files.write(file.toPath(), saga.toString().getBytes(StandardCharsets.US_ASCII));
+
+        LiveFileCache cache = new LiveFileCache();
+        String content = cache.readText(file.getPath());
+        assertEquals(TextHelper.readIntoString(file.getPath()), content);
+        assertSame(content, cache.readText(file.getPath()));
+        assertEquals(1, cache.getDiskReadCount());
+        // The file is not held open or mapped
+        assertTrue(file.delete());
+        cache.close();
+    }
+
+    @Test
+    public void testInvalidatedFilesAreReadAgain() throws Exception {
+        File file = directory.resolve("runes.txt").toFile();
+        Files.write(file.toPath(), "Hail".getBytes(StandardCharsets.US_ASCII));
+        LiveFileCache cache = new LiveFileCache();
+
+        cache.readText(file.getPath());
+        cache.invalidate(file.getAbsolutePath(), false);
+        cache.readText(file.getPath());
+        cache.invalidate(directory.toAbsolutePath().toString() + File.separator, true);
+        cache.readText(file.getPath());
+        assertEquals(3, cache.getDiskReadCount());
+        cache.close();
+    }
+
+    @Test
+    public void testCloseEndsTheWatchThread() throws Exception {
+        File file = directory.resolve("runes.txt").toFile();
+        Files.write(file.toPath(), "Hail".getBytes(StandardCharsets.US_ASCII));
+        LiveFileCache cache = new LiveFileCache();
+        int threads = countWatchThreads();
+        cache.readText(file.getPath());
+        assertEquals(threads + 1, countWatchThreads());
+
+        cache.close();
+        assertEquals(threads, countWatchThreads());
+        // Still served, and read again when it changes
+        assertEquals("Hail\n", cache.readText(file.getPath()));
+        Files.write(file.toPath(), "Hail to Odin".getBytes(StandardCharsets.US_ASCII));
+        assertEquals("Hail to Odin\n", cache.readText(file.getPath()));
+        assertEquals(threads, countWatchThreads());
+    }
+
+    private static int countWatchThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("odin-live-files") && thread.isAlive()) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,175 @@
+package org.odinware.odinrunes;
+
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MultiProviderChatTest {
+    private final String testFilePath = "multiProviderTestFile.txt";
+    private HttpServer server;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        new File(testFilePath).delete();
+        new File(testFilePath).createNewFile();
+
+        // Two fake Ollama chat backends, one of them slow to start answering
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        createBackend("/fast", "fast", "Hail to Odin", 0);
+        createBackend("/slow", "slow", "Hail to Thor", 2_000);
+        server.start();
+    }
+
+    private void createBackend(String path, final String model, final String answer, final long delayBeforeFirstTokenMillis) {
+        server.createContext(path, exchange -> {
+            exchange.getRequestBody().close();
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream body = exchange.getResponseBody()) {
+                Thread.sleep(delayBeforeFirstTokenMillis);
+                for (String token : answer.split("(?= )")) {
+                    body.write(("{\"model\":\"" + model + "\",\"message\":{\"role\":\"assistant\",\"content\":\"" + token + "\"},\"done\":false}\n").getBytes(StandardCharsets.UTF_8));
+                    body.flush();
+                }
+                body.write(("{\"model\":\"" + model + "\",\"done\":true,\"prompt_eval_count\":5,\"eval_count\":3}\n").getBytes(StandardCharsets.UTF_8));
+            } catch (IOException | InterruptedException e) {
+                // The client went away
+            }
+        });
+    }
+
+    @AfterEach
+    public void cleanup() {
+        server.stop(0);
+        new File(testFilePath).delete();
+        new File(MultiProviderChat.siblingPath(testFilePath, "ollama-fast")).delete();
+        new File(MultiProviderChat.siblingPath(testFilePath, "ollama-slow")).delete();
+    }
+
+    private JSONObject multiProviderSettings(String chatMode) {
+        String backend = "http://127.0.0.1:" + server.getAddress().getPort();
+        return new JSONObject()
+                .put("gptProvider", "Ollama")
+                .put("temperature", 0.8)
+                .put("chatMode", chatMode)
+                .put("providers", new JSONArray()
+                        .put(new JSONObject().put("gptProvider", "Ollama").put("model", "slow").put("backendURI", backend + "/slow"))
+                        .put(new JSONObject().put("gptProvider", "Ollama").put("model", "fast").put("backendURI", backend + "/fast")));
+    }
+
+    private TextHelper newConversation() {
+        TextHelper odinSays = new TextHelper(testFilePath);
+        odinSays.appendStringToFile("Who rules Asgard?\n");
+        return odinSays;
+    }
+
+    private static String readFile(String filePath) throws IOException {
+        return new String(Files.readAllBytes(new File(filePath).toPath()));
+    }
+
+    @Test
+    public void testProviderSettingsInheritDefaults() {
+        JSONObject settings = new JSONObject()
+                .put("gptProvider", "Ollama")
+                .put("temperature", 0.3)
+                .put("model", "llama2")
+                .put("chatMode", MultiProviderChat.FAN_OUT)
+                .put("providers", new JSONArray().put("OpenAI (gpt-4o-mini)").put(new JSONObject().put("gptProvider", "Ollama").put("model", "mistral")));
+
+        assertTrue(MultiProviderChat.isMultiProvider(settings));
+        assertFalse(MultiProviderChat.isMultiProvider(new JSONObject().put("gptProvider", "Ollama").put("chatMode", MultiProviderChat.RACE)));
+
+        List<JSONObject> providerSettings = MultiProviderChat.providerSettings(settings);
+        assertEquals(2, providerSettings.size());
+        assertEquals("OpenAI (gpt-4o-mini)", providerSettings.get(0).getString("gptProvider"));
+        assertEquals(0.3, providerSettings.get(0).getDouble("temperature"));
+        assertEquals("mistral", providerSettings.get(1).getString("model"));
+        assertFalse(providerSettings.get(1).has("chatMode"));
+        assertFalse(providerSettings.get(1).has("providers"));
+    }
+
+    @Test
+    public void testRaceStreamsTheFastestProviderOnly() throws IOException {
+        TextHelper odinSays = newConversation();
+
+        long startTime = System.currentTimeMillis();
+        GptOpsHelper.streamResponse(odinSays, new Context(), multiProviderSettings(MultiProviderChat.RACE));
+        assertTrue(System.currentTimeMillis() - startTime < 1_500, "The slow provider should have been cancelled");
+
+        String transcript = readFile(testFilePath);
+        assertTrue(transcript.contains("\"model\" : \"Ollama-fast\""), transcript);
+        assertTrue(transcript.contains("Hail to Odin\n<!-- =====[ OVER ]=====[ # ] -->\n<!-- =====[ User ]=====[ : ] -->\n"), transcript);
+        assertFalse(transcript.contains("Thor"), transcript);
+
+        JSONArray messages = odinSays.getMessages();
+        assertEquals(2, messages.length());
+        assertEquals("Hail to Odin", messages.getJSONObject(1).getString("content"));
+    }
+
+    @Test
+    public void testFanOutWritesOneSectionAndOneSiblingPerProvider() throws IOException {
+        TextHelper odinSays = newConversation();
+
+        GptOpsHelper.streamResponse(odinSays, new Context(), multiProviderSettings(MultiProviderChat.FAN_OUT));
+
+        String transcript = readFile(testFilePath);
+        assertTrue(transcript.contains("Hail to Odin\n<!-- =====[ OVER ]=====[ # ] -->\n"), transcript);
+        assertTrue(transcript.contains("Hail to Thor\n<!-- =====[ OVER ]=====[ # ] -->\n"), transcript);
+        assertTrue(transcript.endsWith("<!-- =====[ OVER ]=====[ # ] -->\n<!-- =====[ User ]=====[ : ] -->\n"), transcript);
+        // The fast answer is done first
+        assertTrue(transcript.indexOf("Hail to Odin") < transcript.indexOf("Hail to Thor"), transcript);
+
+        String fastSibling = readFile(MultiProviderChat.siblingPath(testFilePath, "ollama-fast"));
+        assertTrue(fastSibling.contains("Who rules Asgard?\n"), fastSibling);
+        assertTrue(fastSibling.endsWith("Hail to Odin\n<!-- =====[ OVER ]=====[ # ] -->\n<!-- =====[ User ]=====[ : ] -->\n"), fastSibling);
+        assertFalse(fastSibling.contains("Thor"), fastSibling);
+
+        String slowSibling = readFile(MultiProviderChat.siblingPath(testFilePath, "ollama-slow"));
+        assertTrue(slowSibling.contains("Hail to Thor\n"), slowSibling);
+        assertFalse(slowSibling.contains("Hail to Odin"), slowSibling);
+    }
+
+    @Test
+    public void testFanOutContinuesTheSiblingsOnTheirOwn() throws IOException {
+        TextHelper odinSays = newConversation();
+        GptOpsHelper.streamResponse(odinSays, new Context(), multiProviderSettings(MultiProviderChat.FAN_OUT));
+
+        // The sibling is continued on its own between the turns
+        TextHelper fast = new TextHelper(MultiProviderChat.siblingPath(testFilePath, "ollama-fast"));
+        fast.appendStringToFile("And who guards the bridge?\n\n<!-- =====[ OVER ]=====[ # ] -->\n");
+        fast.appendOdinFirstInfo("fast", "01/01/24");
+        fast.appendStringToFile("Heimdall\n<!-- =====[ OVER ]=====[ # ] -->\n");
+        fast.appendUserInfo();
+
+        odinSays.appendStringToFile("Who rules Vanaheim?\n");
+        GptOpsHelper.streamResponse(odinSays, new Context(), multiProviderSettings(MultiProviderChat.FAN_OUT));
+
+        String fastSibling = readFile(MultiProviderChat.siblingPath(testFilePath, "ollama-fast"));
+        assertTrue(fastSibling.contains("Heimdall\n"), fastSibling);
+        assertEquals(1, fastSibling.split("Who rules Vanaheim\\?", -1).length - 1, fastSibling);
+        assertTrue(fastSibling.indexOf("Heimdall") < fastSibling.indexOf("Who rules Vanaheim?"), fastSibling);
+        assertTrue(fastSibling.endsWith("Hail to Odin\n<!-- =====[ OVER ]=====[ # ] -->\n<!-- =====[ User ]=====[ : ] -->\n"), fastSibling);
+        assertFalse(fastSibling.contains("Thor"), fastSibling);
+
+        JSONArray messages = fast.getMessages();
+        assertEquals("Who rules Vanaheim?", messages.getJSONObject(messages.length() - 2).getString("content"));
+        assertEquals("And who guards the bridge?", messages.getJSONObject(messages.length() - 3).getString("content"));
+
+        String transcript = readFile(testFilePath);
+        assertFalse(transcript.contains("Heimdall"), transcript);
+    }
+}
@@ -0,0 +1,121 @@
+package org.odinware.odinrunes;
+
+import net.sourceforge.tess4j.TesseractException;
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class OcrServiceTest {
+
+    /**
+     * Creates engines that recognize the width of the image, counting how many were created and are busy.
+     */
+    private static final class FakeEngines implements OcrService.EngineFactory {
+        final AtomicInteger created = new AtomicInteger();
+        final AtomicInteger busy = new AtomicInteger();
+        final AtomicInteger maxBusy = new AtomicInteger();
+        final AtomicInteger closed = new AtomicInteger();
+
+        public OcrService.Engine create(final String language) {
+            created.incrementAndGet();
+            return new OcrService.Engine() {
+                public String recognize(BufferedImage image) throws TesseractException {
+                    int now = busy.incrementAndGet();
+                    int max;
+                    while ((max = maxBusy.get()) < now && !maxBusy.compareAndSet(max, now)) {
+                        // Retry
+                    }
+                    try {
+                        Thread.sleep(20);
+                        if (image.getWidth() == 13) {
+                            throw new TesseractException("Unlucky frame");
+                        }
+                        return language + ":" + image.getWidth();
+                    } catch (InterruptedException e) {
+                        throw new TesseractException(e);
+                    } finally {
+                        busy.decrementAndGet();
+                    }
+                }
+
+                public void close() {
+                    closed.incrementAndGet();
+                }
+            };
+        }
+    }
+
+    @Test
+    public void testEnginesAreCreatedOnceAndShared() throws Exception {
+        FakeEngines engines = new FakeEngines();
+        final OcrService service = new OcrService("eng", 3, engines);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<String>> results = new ArrayList<>();
+        for (int i = 1; i <= 40; i++) {
+            final int width = i;
+            results.add(executor.submit(new Callable<String>() {
+                public String call() throws Exception {
+                    return service.recognize(new BufferedImage(width + 20, 10, BufferedImage.TYPE_INT_RGB));
+                }
+            }));
+        }
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals("eng:" + (i + 21), results.get(i).get());
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+
+        assertEquals(3, engines.created.get());
+        assertTrue(engines.maxBusy.get() <= 3);
+        assertEquals("deu:5", service.recognize(new BufferedImage(5, 5, BufferedImage.TYPE_INT_RGB), "deu"));
+        assertEquals(4, engines.created.get());
+        assertTrue(service.getStatistics().startsWith("OCR: 41 frames"));
+    }
+
+    @Test
+    public void testFailedEnginesAreReplaced() throws Exception {
+        FakeEngines engines = new FakeEngines();
+        OcrService service = new OcrService("eng", 1, engines);
+        try {
+            service.recognize(new BufferedImage(13, 10, BufferedImage.TYPE_INT_RGB));
+            fail("Recognized an unlucky frame");
+        } catch (TesseractException e) {
+            // Expected
+        }
+        assertEquals(1, engines.closed.get());
+        assertEquals("eng:14", service.recognize(new BufferedImage(14, 10, BufferedImage.TYPE_INT_RGB)));
+        assertEquals(2, engines.created.get());
+
+        service.shutdown();
+        assertEquals(2, engines.closed.get());
+    }
+
+    @Test
+    public void testPrewarmInitializesAnEngineInTheBackground() throws Exception {
+        final CountDownLatch initialized = new CountDownLatch(1);
+        final FakeEngines engines = new FakeEngines();
+        OcrService service = new OcrService("eng", 2, new OcrService.EngineFactory() {
+            public OcrService.Engine create(String language) {
+                OcrService.Engine engine = engines.create(language);
+                initialized.countDown();
+                return engine;
+            }
+        });
+        service.prewarm();
+        assertTrue(initialized.await(5, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        assertEquals("eng:7", service.recognize(new BufferedImage(7, 7, BufferedImage.TYPE_INT_RGB)));
+        assertEquals(1, engines.created.get());
+    }
+}
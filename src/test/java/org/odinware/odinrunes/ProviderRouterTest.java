@@ -0,0 +1,162 @@
+package org.odinware.odinrunes;
+
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ProviderRouterTest {
+    private final String testFilePath = "providerRouterTestFile.txt";
+    private HttpServer server;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        new File(testFilePath).delete();
+        new File(testFilePath).createNewFile();
+
+        // Fake Ollama chat backends: a slow one, a fast one and a broken one
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        createBackend("/slow", "Hail to Thor", 2_000, 200);
+        createBackend("/fast", "Hail to Odin", 0, 200);
+        createBackend("/broken", "Service Unavailable", 0, 503);
+        server.start();
+    }
+
+    private void createBackend(String path, final String answer, final long delayBeforeFirstTokenMillis, final int status) {
+        server.createContext(path, exchange -> {
+            exchange.getRequestBody().close();
+            exchange.sendResponseHeaders(status, 0);
+            try (OutputStream body = exchange.getResponseBody()) {
+                if (status != 200) {
+                    body.write(answer.getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+                Thread.sleep(delayBeforeFirstTokenMillis);
+                for (String token : answer.split("(?= )")) {
+                    body.write(("{\"model\":\"m\",\"message\":{\"role\":\"assistant\",\"content\":\"" + token + "\"},\"done\":false}\n").getBytes(StandardCharsets.UTF_8));
+                    body.flush();
+                }
+                body.write("{\"model\":\"m\",\"done\":true}\n".getBytes(StandardCharsets.UTF_8));
+            } catch (IOException | InterruptedException e) {
+                // The client went away
+            }
+        });
+    }
+
+    @AfterEach
+    public void cleanup() {
+        server.stop(0);
+        new File(testFilePath).delete();
+    }
+
+    private JSONObject ollama(String model, String path) {
+        return new JSONObject()
+                .put("gptProvider", "Ollama")
+                .put("temperature", 0.8)
+                .put("model", model)
+                .put("backendURI", "http://127.0.0.1:" + server.getAddress().getPort() + path);
+    }
+
+    private String chat(JSONObject gptSettings) throws IOException {
+        TextHelper odinSays = new TextHelper(testFilePath);
+        odinSays.appendStringToFile("Who rules Asgard?\n");
+        GptOpsHelper.streamResponse(odinSays, new Context(), gptSettings);
+        return new String(Files.readAllBytes(new File(testFilePath).toPath()));
+    }
+
+    @Test
+    public void testBreakerOpensAfterConsecutiveFailures() {
+        JSONObject settings = new JSONObject().put("gptProvider", "Ollama").put("model", "breaker-test");
+        ProviderRouter.ProviderStats stats = ProviderRouter.getStatistics(ProviderRouter.keyFor(settings));
+
+        ProviderRouter.begin(settings, ProviderRouter.PRIMARY).succeed();
+        ProviderRouter.begin(settings, ProviderRouter.PRIMARY).fail();
+        ProviderRouter.begin(settings, ProviderRouter.PRIMARY).fail();
+        assertTrue(stats.isAvailable());
+        assertEquals("closed", stats.getCircuitState());
+
+        ProviderRouter.begin(settings, ProviderRouter.PRIMARY).fail();
+        assertFalse(stats.isAvailable());
+        assertEquals("open", stats.getCircuitState());
+        assertEquals(0.75, stats.getErrorRate(), 0.001);
+    }
+
+    @Test
+    public void testHedgesASlowPrimary() throws IOException {
+        JSONObject settings = ollama("hedge-slow", "/slow")
+                .put("hedgeAfterMillis", 300)
+                .put("backupProviders", new JSONArray().put(ollama("hedge-fast", "/fast")));
+
+        long startTime = System.currentTimeMillis();
+        String transcript = chat(settings);
+        assertTrue(System.currentTimeMillis() - startTime < 1_500, "The hedged request should have answered first");
+
+        assertTrue(transcript.contains("Hail to Odin\n<!-- =====[ OVER ]=====[ # ] -->\n<!-- =====[ User ]=====[ : ] -->\n"), transcript);
+        assertFalse(transcript.contains("Thor"), transcript);
+        JSONObject routing = routingOf(transcript);
+        assertEquals("Ollama hedge-fast", routing.getString("provider"));
+        assertEquals(ProviderRouter.HEDGE, routing.getString("decision"));
+        assertTrue(routing.getLong("firstTokenMs") >= 0);
+        assertEquals("closed", routing.getString("circuit"));
+    }
+
+    @Test
+    public void testFailsOverAndSkipsAnOpenCircuit() throws IOException {
+        JSONObject settings = ollama("failover-broken", "/broken")
+                .put("hedgeAfterMillis", 10_000)
+                .put("backupProviders", new JSONArray().put(ollama("failover-fast", "/fast")));
+
+        long startTime = System.currentTimeMillis();
+        String transcript = chat(settings);
+        assertTrue(System.currentTimeMillis() - startTime < 5_000, "The backup should not wait for the hedging deadline");
+        assertTrue(transcript.contains("Hail to Odin\n<!-- =====[ OVER ]=====[ # ] -->\n"), transcript);
+        assertEquals(ProviderRouter.FAILOVER, routingOf(transcript).getString("decision"));
+
+        chat(settings);
+        transcript = chat(settings);
+        // After three failures the broken provider is not asked any more
+        assertEquals("open", ProviderRouter.getStatistics("Ollama failover-broken").getCircuitState());
+        transcript = chat(settings);
+        assertEquals(ProviderRouter.CIRCUIT_OPEN, routingOf(transcript).getString("decision"));
+        assertEquals(0.0, routingOf(transcript).getDouble("errorRate"));
+    }
+
+    @Test
+    public void testHeaderHasTheLatencyOfTheFirstToken() throws Exception {
+        TextHelper odinSays = new TextHelper(testFilePath);
+        GptOpsHelper.TranscriptEventListener listener = new GptOpsHelper.TranscriptEventListener(odinSays, null);
+        listener.setAttempt(ProviderRouter.begin(ollama("header", "/fast"), ProviderRouter.PRIMARY));
+
+        // The model is known before the first token
+        listener.onEvent(WisdomEvent.model("m"));
+        Thread.sleep(20);
+        listener.onEvent(WisdomEvent.delta(""));
+        listener.onEvent(WisdomEvent.delta("Hail to Odin"));
+        listener.onEvent(WisdomEvent.done());
+        listener.finish();
+
+        String transcript = new String(Files.readAllBytes(new File(testFilePath).toPath()), StandardCharsets.UTF_8);
+        assertTrue(transcript.contains("\"model\" : \"m\""), transcript);
+        assertTrue(transcript.contains("<!-- =====[ Assistant ]=====[ : ] -->\nHail to Odin\n"), transcript);
+        assertTrue(routingOf(transcript).getLong("firstTokenMs") >= 20, transcript);
+    }
+
+    private static JSONObject routingOf(String transcript) {
+        int start = transcript.lastIndexOf("\"routing\": ") + "\"routing\": ".length();
+        int end = transcript.indexOf("} ]======[ + ] -->", start);
+        return new JSONObject(transcript.substring(start, end));
+    }
+}
@@ -0,0 +1,136 @@
+package org.odinware.odinrunes;
+
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ResponseCacheTest {
+    private File cacheDirectory;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        cacheDirectory = Files.createTempDirectory("odin-response-cache").toFile();
+    }
+
+    @AfterEach
+    public void cleanup() {
+        File[] files = cacheDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        cacheDirectory.delete();
+    }
+
+    private static Request request(String body) {
+        return new Request.Builder()
+                .url("https://api.openai.com/v1/chat/completions")
+                .post(RequestBody.create(body, MediaType.get("application/json")))
+                .build();
+    }
+
+    private static JSONObject settings(double temperature) {
+        return new JSONObject()
+                .put("gptProvider", "OpenAI (gpt-4o-mini)")
+                .put("temperature", temperature)
+                .put("cacheMaxTemperature", 0.2);
+    }
+
+    @Test
+    public void testKeyIgnoresKeyOrderButNotContent() {
+        String key = ResponseCache.keyFor(settings(0),
+                request("{\"model\":\"gpt-4o-mini\",\"temperature\":0,\"messages\":[{\"role\":\"user\",\"content\":\"Hi\"}]}"));
+        assertNotNull(key);
+        assertEquals(key, ResponseCache.keyFor(settings(0),
+                request("{ \"messages\": [{\"content\":\"Hi\", \"role\":\"user\"}], \"temperature\":0, \"model\":\"gpt-4o-mini\" }")));
+        assertNotEquals(key, ResponseCache.keyFor(settings(0),
+                request("{\"model\":\"gpt-4o-mini\",\"temperature\":0,\"messages\":[{\"role\":\"user\",\"content\":\"Hello\"}]}")));
+
+        // Too creative to cache
+        assertNull(ResponseCache.keyFor(settings(0.8), request("{\"temperature\":0.8}")));
+    }
+
+    @Test
+    public void testRecordsAndReplaysAnAnswer() {
+        ResponseCache cache = new ResponseCache(cacheDirectory, 1024 * 1024, 60_000);
+        assertNull(cache.get("a"));
+
+        List<WisdomEvent> streamed = new ArrayList<>();
+        ResponseCache.Recorder recorder = new ResponseCache.Recorder("a", streamed::add);
+        recorder.onEvent(WisdomEvent.model("gpt-4o-mini"));
+        recorder.onEvent(WisdomEvent.delta("Hail "));
+        recorder.onEvent(WisdomEvent.delta("to Odin"));
+        recorder.onEvent(WisdomEvent.usage(5, 3, 8));
+        recorder.onEvent(WisdomEvent.done());
+        recorder.store(cache);
+        assertEquals(5, streamed.size());
+
+        // A fresh instance finds the answer on disk
+        ResponseCache reopened = new ResponseCache(cacheDirectory, 1024 * 1024, 60_000);
+        ResponseCache.Answer answer = reopened.get("a");
+        assertNotNull(answer);
+        List<WisdomEvent> replayed = new ArrayList<>();
+        answer.replay(event -> replayed.add(event));
+        assertEquals(WisdomEvent.Type.MODEL, replayed.get(0).getType());
+        assertEquals("gpt-4o-mini", replayed.get(0).getModel());
+        assertEquals("Hail to Odin", replayed.get(1).getText());
+        assertEquals(8, replayed.get(2).getTotalTokens());
+        assertEquals(WisdomEvent.Type.DONE, replayed.get(3).getType());
+        assertEquals(1, reopened.getHitCount());
+        assertEquals(0, reopened.getMissCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testFailedAnswersAreNotStored() {
+        ResponseCache cache = new ResponseCache(cacheDirectory, 1024 * 1024, 60_000);
+        ResponseCache.Recorder recorder = new ResponseCache.Recorder("a", event -> true);
+        recorder.onEvent(WisdomEvent.delta("Hail"));
+        recorder.onEvent(WisdomEvent.error("Rate limited"));
+        recorder.onEvent(WisdomEvent.done());
+        recorder.store(cache);
+        assertNull(cache.get("a"));
+
+        // An answer that was cancelled or broke off has no DONE event
+        recorder = new ResponseCache.Recorder("b", event -> true);
+        recorder.onEvent(WisdomEvent.model("gpt-4o-mini"));
+        recorder.onEvent(WisdomEvent.delta("Hail"));
+        recorder.store(cache);
+        assertNull(cache.get("b"));
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsedAndExpiredAnswers() throws InterruptedException {
+        String text = new String(new char[100]).replace('\0', 'x');
+        ResponseCache cache = new ResponseCache(cacheDirectory, 450, 60_000);
+        cache.put("a", new ResponseCache.Answer("m", text, null));
+        cache.put("b", new ResponseCache.Answer("m", text, null));
+        cache.put("c", new ResponseCache.Answer("m", text, null));
+        assertNotNull(cache.get("a"));
+        cache.put("d", new ResponseCache.Answer("m", text, null));
+
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("a"));
+        assertNotNull(cache.get("c"));
+        assertNotNull(cache.get("d"));
+        assertEquals(3, cacheDirectory.listFiles().length);
+
+        ResponseCache shortLived = new ResponseCache(cacheDirectory, 450, 1);
+        Thread.sleep(10);
+        assertNull(shortLived.get("a"));
+        assertFalse(new File(cacheDirectory, "a.json").exists());
+    }
+}
@@ -0,0 +1,156 @@
+package org.odinware.odinrunes;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares recognizing every frame of a scrollshot and stitching their texts, as {@code ScrollshotPipeline.capture}
+ * does, against stitching the frames into one image and recognizing it once, as {@code captureStitched} does.
+ *
+ * <p>Both run offline on the frames of a rendered page, with the Tesseract engines of the OCR service, so
+ * TESSDATA_PREFIX has to point to a "tessdata" directory with eng.traineddata. Run it from the test classpath, for
+ * example: {@code java -cp <test classpath> org.odinware.odinrunes.ScrollshotBenchmark}. The CPU time of the process
+ * per operation, which includes the OCR threads, and the accuracy of both are printed when a trial ends: the share of
+ * the lines of the page found in the text, and how many lines the text has for each line of the page.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+public class ScrollshotBenchmark {
+
+    @Param({"120", "400"})
+    public int lines;
+
+    private static final int FRAME_HEIGHT = 600;
+    // The frames overlap by a third, like scrolling by two thirds of the region
+    private static final int SCROLL = 400;
+
+    private final List<String> pageLines = new ArrayList<>();
+    private final List<BufferedImage> frames = new ArrayList<>();
+    private OcrService ocrService;
+    private String lastText;
+    private long cpuNanos;
+    private long operations;
+
+    @Setup
+    public void setup() throws Exception {
+        BufferedImage page = new BufferedImage(900, 40 + lines * 24, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = page.createGraphics();
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(0, 0, page.getWidth(), page.getHeight());
+        graphics.setColor(Color.BLACK);
+        graphics.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        graphics.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, 16));
+        for (int i = 0; i < lines; i++) {
+            String line = "Line " + i + ": Odin Runes captures the context of the conversation from the screen";
+            pageLines.add(line);
+            graphics.drawString(line, 20, 30 + i * 24);
+        }
+        graphics.dispose();
+        for (int top = 0; ; top = Math.min(top + SCROLL, page.getHeight() - FRAME_HEIGHT)) {
+            frames.add(page.getSubimage(0, top, page.getWidth(), FRAME_HEIGHT));
+            if (top == page.getHeight() - FRAME_HEIGHT) {
+                break;
+            }
+        }
+
+        ocrService = new OcrService("eng", Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)),
+                OcrService.TESSERACT);
+        // Initializes the engines before measuring
+        ocrService.recognize(frames.get(0));
+        System.out.println("\n" + frames.size() + " frames of " + lines + " lines");
+    }
+
+    /**
+     * Shows the frames one after the other, whatever the scroll amount.
+     */
+    private final class FramePage implements ScrollshotPipeline.Page {
+        private int index;
+
+        public BufferedImage capture() {
+            return frames.get(Math.min(index, frames.size() - 1));
+        }
+
+        public void scroll(int steps) {
+            index++;
+        }
+    }
+
+    private static long processCpuTime() {
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+    }
+
+    @Benchmark
+    public void recognizeEveryFrame(Blackhole blackhole) throws Exception {
+        long start = processCpuTime();
+        lastText = new ScrollshotPipeline(ocrService, frames.size(), 1).capture(new FramePage());
+        cpuNanos += processCpuTime() - start;
+        operations++;
+        blackhole.consume(lastText);
+    }
+
+    @Benchmark
+    public void recognizeStitchedFrames(Blackhole blackhole) throws Exception {
+        long start = processCpuTime();
+        lastText = new ScrollshotPipeline(ocrService, frames.size(), 1).captureStitched(new FramePage());
+        cpuNanos += processCpuTime() - start;
+        operations++;
+        blackhole.consume(lastText);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (operations > 0) {
+            Set<String> recognized = new HashSet<>(TextStitcher.lines(lastText));
+            int found = 0;
+            for (String line : pageLines) {
+                if (recognized.contains(line)) {
+                    found++;
+                }
+            }
+            System.out.println("\nCPU time: " + cpuNanos / operations / 1000000 + " ms per operation, accuracy: "
+                    + 100 * found / pageLines.size() + "% of the lines found, "
+                    + String.format("%.2f", (double) TextStitcher.lines(lastText).size() / pageLines.size())
+                    + " lines of text per line of the page");
+        }
+        ocrService.shutdown();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(ScrollshotBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
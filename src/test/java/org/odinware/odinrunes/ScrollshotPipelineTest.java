@@ -0,0 +1,206 @@
+package org.odinware.odinrunes;
+
+import net.sourceforge.tess4j.TesseractException;
+import org.junit.jupiter.api.Test;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ScrollshotPipelineTest {
+
+    private static final int LINE_HEIGHT = 20;
+
+    /**
+     * Draws a page of colored lines, where the red component of a line is its number.
+     */
+    private static BufferedImage page(int lines, int width) {
+        BufferedImage image = new BufferedImage(width, lines * LINE_HEIGHT, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        for (int i = 0; i < lines; i++) {
+            graphics.setColor(new Color(i, (i * 53) & 0xff, (i * 97) & 0xff));
+            graphics.fillRect(0, i * LINE_HEIGHT, width, LINE_HEIGHT);
+        }
+        graphics.dispose();
+        return image;
+    }
+
+    /**
+     * Shows a window of a page, scrolled by a number of pixels per wheel step.
+     */
+    private static final class FakePage implements ScrollshotPipeline.Page {
+        final BufferedImage page;
+        final int height;
+        final int pixelsPerStep;
+        int top;
+        int captures;
+
+        FakePage(BufferedImage page, int height, int pixelsPerStep) {
+            this.page = page;
+            this.height = height;
+            this.pixelsPerStep = pixelsPerStep;
+        }
+
+        public BufferedImage capture() {
+            captures++;
+            BufferedImage frame = new BufferedImage(page.getWidth(), height, BufferedImage.TYPE_INT_RGB);
+            Graphics2D graphics = frame.createGraphics();
+            graphics.drawImage(page.getSubimage(0, top, page.getWidth(), height), 0, 0, null);
+            graphics.dispose();
+            return frame;
+        }
+
+        public void scroll(int steps) {
+            top = Math.min(page.getHeight() - height, top + steps * pixelsPerStep);
+        }
+    }
+
+    /**
+     * Creates engines that read the numbers of the lines of a frame, slowly.
+     */
+    private static final class LineReaders implements OcrService.EngineFactory {
+        final AtomicInteger busy = new AtomicInteger();
+        final AtomicInteger maxBusy = new AtomicInteger();
+        final AtomicInteger frames = new AtomicInteger();
+
+        public OcrService.Engine create(String language) {
+            return new OcrService.Engine() {
+                public String recognize(BufferedImage image) {
+                    int now = busy.incrementAndGet();
+                    int max;
+                    while ((max = maxBusy.get()) < now && !maxBusy.compareAndSet(max, now)) {
+                        // Retry
+                    }
+                    try {
+                        Thread.sleep(30);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    StringBuilder text = new StringBuilder();
+                    int previousLine = -1;
+                    for (int y = 0; y < image.getHeight(); y++) {
+                        int line = (image.getRGB(0, y) >> 16) & 0xff;
+                        if (line != previousLine) {
+                            text.append("Line number ").append(line).append('\n');
+                            previousLine = line;
+                        }
+                    }
+                    frames.incrementAndGet();
+                    busy.decrementAndGet();
+                    return text.toString();
+                }
+
+                public void close() {
+                }
+            };
+        }
+    }
+
+    private static int indexOfLine(String text, int line) {
+        return text.indexOf("Line number " + line + "\n");
+    }
+
+    @Test
+    public void testRecognizesFramesInParallelAndStitchesThemInOrder() throws Exception {
+        LineReaders readers = new LineReaders();
+        OcrService service = new OcrService("eng", 3, readers);
+        FakePage page = new FakePage(page(200, 64), 200, 30);
+        ScrollshotPipeline pipeline = new ScrollshotPipeline(service, 3000, 2);
+
+        String text = pipeline.capture(page);
+
+        assertNull(pipeline.getFailure());
+        assertEquals(page.page.getHeight() - page.height, page.top);
+        assertTrue(readers.maxBusy.get() > 1);
+        int previousIndex = -1;
+        for (int line = 0; line < 200; line++) {
+            int index = indexOfLine(text, line);
+            assertTrue(index > previousIndex, "Line " + line + " is out of order");
+            assertEquals(index, text.lastIndexOf("Line number " + line + "\n"), "Line " + line + " is repeated");
+            previousIndex = index;
+        }
+        // The frames that did not move are neither recognized nor merged
+        assertEquals(readers.frames.get() + 2, page.captures);
+    }
+
+    @Test
+    public void testRecognizesTheStitchedPageOnce() throws Exception {
+        LineReaders readers = new LineReaders();
+        OcrService service = new OcrService("eng", 2, readers);
+        BufferedImage image = page(50, 64);
+        // Adds a texture to the lines, so that their rows can be told apart
+        for (int y = 0; y < image.getHeight(); y++) {
+            image.setRGB(1 + y % 63, y, 0xffffff);
+        }
+        FakePage page = new FakePage(image, 200, 30);
+        ScrollshotPipeline pipeline = new ScrollshotPipeline(service, 3000, 2);
+
+        String text = pipeline.captureStitched(page);
+
+        assertNull(pipeline.getFailure());
+        assertEquals(1, readers.frames.get());
+        for (int line = 0; line < 50; line++) {
+            assertEquals(text.indexOf("Line number " + line + "\n"), text.lastIndexOf("Line number " + line + "\n"));
+            assertTrue(text.contains("Line number " + line + "\n"));
+        }
+    }
+
+    @Test
+    public void testGoesOnAfterAnEngineThrows() throws Exception {
+        final LineReaders readers = new LineReaders();
+        final AtomicInteger calls = new AtomicInteger();
+        OcrService service = new OcrService("eng", 2, new OcrService.EngineFactory() {
+            public OcrService.Engine create(String language) {
+                final OcrService.Engine engine = readers.create(language);
+                return new OcrService.Engine() {
+                    public String recognize(BufferedImage image) throws TesseractException {
+                        if (calls.incrementAndGet() == 1) {
+                            throw new IllegalStateException("Broken engine");
+                        }
+                        return engine.recognize(image);
+                    }
+
+                    public void close() {
+                    }
+                };
+            }
+        });
+        FakePage page = new FakePage(page(200, 64), 200, 30);
+        ScrollshotPipeline pipeline = new ScrollshotPipeline(service, 3000, 2);
+
+        String text = pipeline.capture(page);
+
+        assertTrue(pipeline.getFailure() instanceof IllegalStateException);
+        assertEquals(page.page.getHeight() - page.height, page.top);
+        // The frames after the one that failed are merged
+        assertTrue(indexOfLine(text, 199) > 0);
+    }
+
+    @Test
+    public void testScrollsFurtherWhileFramesOverlap() throws Exception {
+        OcrService service = new OcrService("eng", 2, new LineReaders());
+        FakePage page = new FakePage(page(250, 64), 400, 10);
+        ScrollshotPipeline pipeline = new ScrollshotPipeline(service, 3000, 2);
+
+        pipeline.capture(page);
+
+        // Two steps move a 400 pixel frame by 20 pixels, which overlaps by 95%
+        assertTrue(pipeline.getScrollAmount() > 10);
+        assertTrue(page.captures < 60);
+    }
+
+    @Test
+    public void testEstimatesTheShiftOfFramesFromTheirPixels() {
+        BufferedImage image = page(60, 64);
+        float[] top = ScrollshotPipeline.rowBrightness(image.getSubimage(0, 0, 64, 400));
+        float[] lower = ScrollshotPipeline.rowBrightness(image.getSubimage(0, 130, 64, 400));
+        float[] unrelated = ScrollshotPipeline.rowBrightness(page(20, 64).getSubimage(0, 0, 64, 400));
+
+        assertEquals(0, ScrollshotPipeline.estimateShift(top, top));
+        assertEquals(130, ScrollshotPipeline.estimateShift(top, lower));
+        assertEquals(-1, ScrollshotPipeline.estimateShift(lower, unrelated));
+    }
+}
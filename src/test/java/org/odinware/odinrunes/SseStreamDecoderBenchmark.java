@@ -0,0 +1,122 @@
+package org.odinware.odinrunes;
+
+import okio.Buffer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares decoding a recorded gpt-4o-mini stream with the old JSONObject based path in GptOpsHelper
+ * against SseStreamDecoder, both from already read lines and straight from an okio source.
+ *
+ * <p>Run it from the test classpath, for example: {@code java -cp <test classpath> org.odinware.odinrunes.SseStreamDecoderBenchmark}.
+ * Adding {@code -prof gc} to the JMH options shows the allocation rate per stream.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SseStreamDecoderBenchmark {
+
+    @Param({"1000"})
+    public int events;
+
+    private List<String> lines;
+    private String stream;
+
+    @Setup
+    public void setup() {
+        lines = new ArrayList<>();
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < events; i++) {
+            String line = "data: {\"id\":\"chatcmpl-9nD7vDq4\",\"object\":\"chat.completion.chunk\",\"created\":1721491234,"
+                    + "\"model\":\"gpt-4o-mini-2024-07-18\",\"system_fingerprint\":\"fp_611b667b19\","
+                    + "\"choices\":[{\"index\":0,\"delta\":{\"content\":\" token" + i + "\"},\"logprobs\":null,\"finish_reason\":null}]}";
+            lines.add(line);
+            lines.add("");
+            builder.append(line).append("\n\n");
+        }
+        lines.add("data: [DONE]");
+        builder.append("data: [DONE]\n\n");
+        stream = builder.toString();
+    }
+
+    @Benchmark
+    public void jsonObjectPerChunk(Blackhole blackhole) {
+        for (String line : lines) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            JSONObject jsonResponse = GptOpsHelper.extractValidJson(line);
+            if (jsonResponse.has("done")) {
+                break;
+            }
+            blackhole.consume(jsonResponse.getString("model"));
+            JSONArray choices = jsonResponse.getJSONArray("choices");
+            JSONObject delta = choices.getJSONObject(0).getJSONObject("delta");
+            if (delta.has("content")) {
+                blackhole.consume(delta.get("content").toString());
+            }
+        }
+    }
+
+    @Benchmark
+    public void decoderFromLines(Blackhole blackhole) {
+        SseStreamDecoder decoder = new SseStreamDecoder();
+        for (String line : lines) {
+            if (!decoder.decode(line)) {
+                continue;
+            }
+            if (decoder.isDone()) {
+                break;
+            }
+            blackhole.consume(decoder.getModel());
+            if (decoder.hasContent()) {
+                blackhole.consume(decoder.getContent().length());
+            }
+        }
+    }
+
+    @Benchmark
+    public void decoderFromSource(Blackhole blackhole) throws Exception {
+        SseStreamDecoder decoder = new SseStreamDecoder();
+        Buffer source = new Buffer().writeUtf8(stream);
+        while (decoder.next(source)) {
+            if (decoder.isDone()) {
+                break;
+            }
+            blackhole.consume(decoder.getModel());
+            if (decoder.hasContent()) {
+                blackhole.consume(decoder.getContent().length());
+            }
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(SseStreamDecoderBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,157 @@
+package org.odinware.odinrunes;
+
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SseStreamDecoderTest {
+
+    private SseStreamDecoder decoder;
+
+    @BeforeEach
+    public void setUp() {
+        decoder = new SseStreamDecoder();
+    }
+
+    @Test
+    public void testDecodeContentChunk() {
+        String line = "data: {\"id\":\"chatcmpl-1\",\"model\":\"gpt-4o-mini\",\"choices\":[{\"index\":0,\"delta\":{\"content\":\"Hello \\\"Odin\\\"\\n\"},\"finish_reason\":null}]}";
+
+        assertTrue(decoder.decode(line));
+        assertFalse(decoder.isDone());
+        assertEquals("gpt-4o-mini", decoder.getModel());
+        assertTrue(decoder.hasContent());
+        assertEquals("Hello \"Odin\"\n", decoder.getContent().toString());
+    }
+
+    @Test
+    public void testDecodeChunkWithoutContent() {
+        String line = "data: {\"model\":\"gpt-4o-mini\",\"choices\":[{\"index\":0,\"delta\":{},\"finish_reason\":\"stop\"}]}";
+
+        assertTrue(decoder.decode(line));
+        assertEquals("gpt-4o-mini", decoder.getModel());
+        assertFalse(decoder.hasContent());
+    }
+
+    @Test
+    public void testDecodeDoneAndSkippedLines() {
+        assertFalse(decoder.decode(""));
+        assertFalse(decoder.decode(": keep-alive"));
+        assertTrue(decoder.decode("data: [DONE]"));
+        assertTrue(decoder.isDone());
+    }
+
+    @Test
+    public void testDecodeInvalidInput() {
+        assertThrows(JSONException.class, () -> decoder.decode("data: invalid-json"));
+        assertThrows(JSONException.class, () -> decoder.decode("{"));
+        assertThrows(JSONException.class, () -> decoder.decode("data: {\"error\":{\"message\":\"Incorrect API key provided\"}}"));
+    }
+
+    @Test
+    public void testNextFromSource() throws Exception {
+        Buffer source = new Buffer().writeUtf8(
+                "data: {\"model\":\"gpt-4o-mini\",\"choices\":[{\"delta\":{\"role\":\"assistant\",\"content\":\"\"}}]}\r\n\r\n"
+                        + "data: {\"model\":\"gpt-4o-mini\",\"choices\":[{\"delta\":{\"content\":\"Sk\u00e5l \"}}]}\n\n"
+                        + "data: {\"model\":\"gpt-4o-mini\",\"choices\":[{\"delta\":{\"content\":\"world\"}}]}\n\n"
+                        + "data: [DONE]");
+
+        StringBuilder content = new StringBuilder();
+        boolean done = false;
+        while (decoder.next(source)) {
+            if (decoder.isDone()) {
+                done = true;
+                break;
+            }
+            assertEquals("gpt-4o-mini", decoder.getModel());
+            content.append(decoder.getContent());
+        }
+
+        assertTrue(done);
+        assertEquals("Sk\u00e5l world", content.toString());
+        assertFalse(decoder.next(source));
+    }
+
+    @Test
+    public void testStreamPublishesTypedEvents() throws Exception {
+        Buffer source = new Buffer().writeUtf8(
+                "data: {\"model\":\"gpt-4o-mini\",\"choices\":[{\"delta\":{\"content\":\"Hi\"}}]}\n\n"
+                        + "data: {\"model\":\"gpt-4o-mini\",\"choices\":[{\"delta\":{\"content\":\" there\"}}]}\n\n"
+                        + "data: [DONE]\n\n");
+
+        List<WisdomEvent> events = new ArrayList<>();
+        decoder.stream(source, event -> events.add(event));
+
+        assertEquals(4, events.size());
+        assertEquals(WisdomEvent.Type.MODEL, events.get(0).getType());
+        assertEquals("gpt-4o-mini", events.get(0).getModel());
+        assertEquals("Hi", events.get(1).getText());
+        assertEquals(" there", events.get(2).getText());
+        assertEquals(WisdomEvent.Type.DONE, events.get(3).getType());
+    }
+
+    @Test
+    public void testStreamPublishesErrorWithRestOfResponse() throws Exception {
+        Buffer source = new Buffer().writeUtf8("{\n  \"error\": {\n    \"code\": \"invalid_api_key\"\n  }\n}\n");
+
+        List<WisdomEvent> events = new ArrayList<>();
+        decoder.stream(source, event -> events.add(event));
+
+        assertEquals(1, events.size());
+        assertEquals(WisdomEvent.Type.ERROR, events.get(0).getType());
+        assertEquals("{  \"error\": {    \"code\": \"invalid_api_key\"  }}", events.get(0).getText());
+    }
+
+    @Test
+    public void testDefaultStreamEventsAdaptsLegacyProviders() throws Exception {
+        final List<String> lines = new ArrayList<>();
+        lines.add(WellsOfWisdom.finalStringFormatHelper("legacy-model", "Line one\n"));
+        lines.add(WellsOfWisdom.finalStringFormatHelper("legacy-model", "\"quoted\""));
+        // Implements the interface as before streamEvents existed
+        WellsOfWisdom legacy = new WellsOfWisdom() {
+            @Override
+            public Request buildRequest(Context context, JSONArray odinMessages, JSONObject gptSettingsJsonObject) {
+                return null;
+            }
+
+            @Override
+            public Response executeRequest(Request request) {
+                return null;
+            }
+
+            @Override
+            public String readFromResponseStream(Response response) {
+                return lines.isEmpty() ? null : lines.remove(0);
+            }
+        };
+        Response response = new Response.Builder()
+                .request(new Request.Builder().url("https://example.com/api").build())
+                .protocol(Protocol.HTTP_1_1)
+                .code(200)
+                .message("OK")
+                .body(ResponseBody.create("", MediaType.parse("text/event-stream")))
+                .build();
+
+        List<WisdomEvent> events = new ArrayList<>();
+        legacy.streamEvents(response, event -> events.add(event));
+
+        assertEquals(4, events.size());
+        assertEquals("legacy-model", events.get(0).getModel());
+        assertEquals("Line one\n", events.get(1).getText());
+        assertEquals("\"quoted\"", events.get(2).getText());
+        assertEquals(WisdomEvent.Type.DONE, events.get(3).getType());
+    }
+}
@@ -0,0 +1,54 @@
+package org.odinware.odinrunes;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TextStitcherTest {
+
+    private static String lines(int from, int to) {
+        StringBuilder text = new StringBuilder();
+        for (int i = from; i < to; i++) {
+            text.append("Verse ").append(i).append(" of the song of the Aesir\n");
+        }
+        return text.toString();
+    }
+
+    @Test
+    public void testAppendsOnlyTheNewLinesOfOverlappingFrames() {
+        TextStitcher stitcher = new TextStitcher();
+        assertEquals(30, stitcher.append(lines(0, 30)));
+        assertEquals(10, stitcher.append(lines(10, 40)));
+        assertEquals(0, stitcher.append(lines(10, 40)));
+        assertEquals(20, stitcher.append("\n\n" + lines(30, 60).replace(" of ", "   of ") + "\n"));
+
+        // The overlap is found despite the whitespace, and the new lines are appended as they are
+        String expected = lines(0, 40) + lines(40, 60).replace(" of ", "   of ");
+        assertEquals(expected, stitcher.toString());
+        assertEquals("Stitched 4 frames, 3 overlapping, into " + expected.length() + " characters",
+                stitcher.getStatistics());
+    }
+
+    @Test
+    public void testReplacesTheLinesCutByTheEdgesOfTheFrames() {
+        TextStitcher stitcher = new TextStitcher();
+        // The last line of the first frame and the first line of the second one are cut in half
+        stitcher.append(lines(0, 20) + "Vcrse 20 of the s");
+        stitcher.append("ong of the Aesir\n" + lines(15, 40));
+        stitcher.append(lines(35, 50) + "V");
+
+        assertEquals(lines(0, 50) + "V\n", stitcher.toString());
+    }
+
+    @Test
+    public void testAppendsFramesWithoutOverlapAsAWhole() {
+        TextStitcher stitcher = new TextStitcher();
+        stitcher.append("public void run() {\n    work();\n}\n}");
+        // Short lines alone do not make an overlap
+        stitcher.append("}\n}\nprivate void work() {\n\n    rest();\n}");
+        stitcher.append(null);
+
+        assertEquals("public void run() {\n    work();\n}\n}\n}\n}\nprivate void work() {\n\n    rest();\n}\n",
+                stitcher.toString());
+    }
+}
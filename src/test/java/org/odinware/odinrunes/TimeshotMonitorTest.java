@@ -0,0 +1,183 @@
+package org.odinware.odinrunes;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TimeshotMonitorTest {
+
+    private static final int WIDTH = 80;
+
+    /**
+     * Draws textured lines separated by blank rows, where the red component of the first column of a line is its
+     * number.
+     */
+    private static BufferedImage frame(int[] lines, long seed) {
+        BufferedImage image = new BufferedImage(WIDTH, lines.length * 20, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(0, 0, WIDTH, image.getHeight());
+        graphics.dispose();
+        Random random = new Random(seed);
+        for (int i = 0; i < lines.length; i++) {
+            for (int y = i * 20; y < i * 20 + 16; y++) {
+                image.setRGB(0, y, new Color(lines[i], 0, 0).getRGB());
+                for (int x = 1; x < WIDTH; x++) {
+                    image.setRGB(x, y, random.nextInt(0x1000000));
+                }
+            }
+        }
+        return image;
+    }
+
+    private static int[] lines(int count) {
+        int[] lines = new int[count];
+        for (int i = 0; i < count; i++) {
+            lines[i] = i;
+        }
+        return lines;
+    }
+
+    /**
+     * Shows the frames one after the other.
+     */
+    private static final class Frames implements TimeshotMonitor.Source {
+        final List<BufferedImage> frames = new ArrayList<>();
+        int index;
+
+        public BufferedImage capture() {
+            return frames.get(Math.min(index++, frames.size() - 1));
+        }
+    }
+
+    /**
+     * Creates an OCR service whose engines read the numbers of the lines of an image, counting the images.
+     */
+    private static OcrService lineReaders(final AtomicInteger images) {
+        return new OcrService("eng", 2, new OcrService.EngineFactory() {
+            public OcrService.Engine create(String language) {
+                return new OcrService.Engine() {
+                    public String recognize(BufferedImage image) {
+                        images.incrementAndGet();
+                        StringBuilder text = new StringBuilder();
+                        int previousLine = -1;
+                        for (int y = 0; y < image.getHeight(); y++) {
+                            int rgb = image.getRGB(0, y) & 0xffffff;
+                            if (rgb != 0xffffff && rgb >> 16 != previousLine) {
+                                previousLine = rgb >> 16;
+                                text.append("Line ").append(previousLine).append('\n');
+                            }
+                        }
+                        return text.toString();
+                    }
+
+                    public void close() {
+                    }
+                };
+            }
+        });
+    }
+
+    @Test
+    public void testRecognizesOnlyTheBandsThatChanged() throws Exception {
+        AtomicInteger images = new AtomicInteger();
+        Frames frames = new Frames();
+        int[] changedLine = lines(20);
+        changedLine[15] = 99;
+        frames.frames.add(frame(lines(20), 1));
+        frames.frames.add(frame(lines(20), 1));
+        // The same text with other pixels in the last band
+        BufferedImage cursor = frame(lines(20), 1);
+        cursor.setRGB(40, 390, 0);
+        frames.frames.add(cursor);
+        frames.frames.add(frame(changedLine, 1));
+        TimeshotMonitor monitor = new TimeshotMonitor(lineReaders(images), frames, 0, 10);
+
+        assertTrue(monitor.captureFrame());
+        int bands = images.get();
+        assertEquals(TimeshotMonitor.bands(frames.frames.get(0)).size(), bands);
+        assertTrue(bands > 3);
+        assertFalse(monitor.captureFrame());
+        assertEquals(bands, images.get());
+        assertFalse(monitor.captureFrame());
+        assertEquals(bands + 1, images.get());
+        assertTrue(monitor.captureFrame());
+        assertEquals(bands + 2, images.get());
+        monitor.stop();
+
+        List<TimeshotMonitor.Snapshot> snapshots = monitor.getSnapshots();
+        assertEquals(2, snapshots.size());
+        StringBuilder expected = new StringBuilder();
+        for (int line : changedLine) {
+            expected.append("Line ").append(line).append('\n');
+        }
+        assertEquals(expected.toString(), snapshots.get(1).getText());
+        assertTrue(monitor.getText().contains(" the OCR of the screen is: Line 0\n"));
+        assertTrue(monitor.getStatistics().startsWith("Timeshot: 4 frames, 1 unchanged"));
+    }
+
+    @Test
+    public void testKeepsTheLastSnapshotsInTheBackground() throws Exception {
+        AtomicInteger images = new AtomicInteger();
+        Frames frames = new Frames();
+        for (int i = 0; i < 8; i++) {
+            int[] lines = lines(4);
+            lines[0] = 100 + i;
+            frames.frames.add(frame(lines, i));
+        }
+        TimeshotMonitor monitor = new TimeshotMonitor(lineReaders(images), frames, 1, 3);
+        monitor.start();
+        assertTrue(monitor.isRunning());
+        long deadline = System.currentTimeMillis() + 5000;
+        while (frames.index < 12 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        monitor.stop();
+        assertFalse(monitor.isRunning());
+
+        List<TimeshotMonitor.Snapshot> snapshots = monitor.getSnapshots();
+        assertEquals(3, snapshots.size());
+        assertTrue(snapshots.get(0).getText().startsWith("Line 105\n"));
+        assertTrue(snapshots.get(2).getText().startsWith("Line 107\n"));
+        assertTrue(snapshots.get(0).getTimestamp() <= snapshots.get(2).getTimestamp());
+        assertNull(monitor.getFailure());
+    }
+
+    @Test
+    public void testCutsBandsAtBlankRows() {
+        BufferedImage frame = frame(lines(10), 3);
+        List<int[]> bands = TimeshotMonitor.bands(frame);
+        int end = 0;
+        for (int[] band : bands) {
+            assertEquals(end, band[0]);
+            end = band[0] + band[1];
+            assertTrue(end == frame.getHeight() || end % 20 > 16 || end % 20 == 0, "Band ends at " + end);
+        }
+        assertEquals(frame.getHeight(), end);
+
+        // Without blank rows, the frame is recognized as a whole rather than cut through its lines
+        BufferedImage noise = new BufferedImage(WIDTH, 300, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < 300; y++) {
+            noise.setRGB(3, y, 0xffffff);
+        }
+        assertEquals(Arrays.asList(0), starts(TimeshotMonitor.bands(noise)));
+        assertEquals(300, TimeshotMonitor.bands(noise).get(0)[1]);
+    }
+
+    private static List<Integer> starts(List<int[]> bands) {
+        List<Integer> starts = new ArrayList<>();
+        for (int[] band : bands) {
+            starts.add(band[0]);
+        }
+        return starts;
+    }
+}
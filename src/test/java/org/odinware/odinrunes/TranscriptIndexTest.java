@@ -0,0 +1,145 @@
+package org.odinware.odinrunes;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TranscriptIndexTest {
+    private static final String HEADER = "<!-- =====[ Odin Runes ]======[ {\"model\" : \"as-specified\", \"date\": \"01/01/24\"} ]======[ + ] -->\n";
+    private static final String USER = "<!-- =====[ User ]=====[ : ] -->\n";
+    private static final String ASSISTANT = "<!-- =====[ Assistant ]=====[ : ] -->\n";
+    private static final String OVER = "<!-- =====[ OVER ]=====[ # ] -->\n";
+    private static final String ERROR = "<!-- =====[ OVER ]=====[ ! ] -->\n";
+
+    private final String testFilePath = "transcriptIndexTestFile.txt";
+    private File indexDirectory;
+    private TranscriptIndex index;
+    private TextHelper textHelper;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        indexDirectory = Files.createTempDirectory("odin-transcript-index").toFile();
+        index = new TranscriptIndex(indexDirectory);
+        write("");
+        textHelper = new TextHelper(testFilePath);
+        write("");
+    }
+
+    @AfterEach
+    public void cleanup() {
+        new File(testFilePath).delete();
+        File[] files = indexDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        indexDirectory.delete();
+    }
+
+    private void write(String content) throws IOException {
+        Files.write(new File(testFilePath).toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void append(String content) throws IOException {
+        Files.write(new File(testFilePath).toPath(), content.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+    }
+
+    private void assertSameAsFullScan() {
+        assertEquals(textHelper.getMessagesByFullScan().toString(), index.open(testFilePath).toJSONArray().toString());
+    }
+
+    @Test
+    public void testParsesOnlyWhatWasAppended() throws IOException {
+        write(HEADER + "Welcome\n" + USER + "Who rules Asgard?\n" + OVER + HEADER + ASSISTANT + "Odin\n" + OVER + USER);
+        assertSameAsFullScan();
+        assertEquals(2, index.open(testFilePath).toJSONArray().length());
+        long parsedBytes = index.getParsedBytes();
+
+        append("And Midgard?\n");
+        assertSameAsFullScan();
+        assertEquals("prompt", index.open(testFilePath).toJSONArray().getJSONObject(2).getString("role"));
+        // Only the open prompt after the last OVER marker is parsed again
+        assertTrue(index.getParsedBytes() - parsedBytes < 3 * (USER.length() + "And Midgard?\n".length()));
+
+        append(OVER + HEADER + ASSISTANT + "Nobody, the answer was cut\n" + ERROR + HEADER + ASSISTANT + "  The humans\r\n\r\n" + OVER + USER);
+        assertSameAsFullScan();
+        assertEquals(4, index.open(testFilePath).toJSONArray().length());
+        assertEquals("The humans", index.open(testFilePath).toJSONArray().getJSONObject(3).getString("content"));
+    }
+
+    @Test
+    public void testParsesEverythingAgainAfterAnEarlierEdit() throws IOException {
+        write(HEADER + USER + "Who rules Asgard?\n" + OVER + HEADER + ASSISTANT + "Odin\n" + OVER + USER);
+        assertSameAsFullScan();
+
+        // Same length, different content before the validated offset
+        write(HEADER + USER + "Who rules Vanahe?\n" + OVER + HEADER + ASSISTANT + "Odin\n" + OVER + USER + "Thanks\n");
+        long parsedBytes = index.getParsedBytes();
+        assertSameAsFullScan();
+        assertEquals(new File(testFilePath).length(), index.getParsedBytes() - parsedBytes);
+        assertEquals("Who rules Vanahe?", index.open(testFilePath).toJSONArray().getJSONObject(0).getString("content"));
+
+        // Shorter than the validated offset
+        write(USER + "Hi\n");
+        assertSameAsFullScan();
+    }
+
+    @Test
+    public void testNoticesAnEarlierEditOfALongTranscript() throws IOException {
+        StringBuilder transcript = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            transcript.append(USER).append("Question ").append(i).append('\n').append(OVER)
+                    .append(HEADER).append(ASSISTANT).append("Answer ").append(i).append('\n').append(OVER);
+        }
+        write(transcript.toString());
+        assertSameAsFullScan();
+        long parsedBytes = index.getParsedBytes();
+        assertSameAsFullScan();
+        assertEquals(0, index.getParsedBytes() - parsedBytes);
+
+        // The first question is edited, far before the checksummed bytes
+        write(transcript.toString().replace("Question 0\n", "Question zero\n"));
+        assertSameAsFullScan();
+        assertEquals("Question zero", index.open(testFilePath).toJSONArray().getJSONObject(0).getString("content"));
+    }
+
+    @Test
+    public void testKeepsTheContentOnceItWasRead() throws IOException {
+        write(USER + "Who rules Asgard?\n" + OVER + HEADER + ASSISTANT + "Odin\n" + OVER + USER);
+        assertSameAsFullScan();
+
+        // The indexed messages are read from the transcript on first use only
+        TranscriptMessages messages = index.open(testFilePath);
+        String expected = messages.toJSONArray().toString();
+        write("");
+        assertEquals(expected, messages.toJSONArray().toString());
+        assertTrue(new File(testFilePath).delete());
+        assertEquals(expected, messages.toJSONArray().toString());
+    }
+
+    @Test
+    public void testUnterminatedMarkerIsNotValidated() throws IOException {
+        write(USER + "Who rules Asgard?\n<!-- =====[ OVER ]=====[ # ] -->");
+        assertSameAsFullScan();
+        assertEquals(1, index.open(testFilePath).toJSONArray().length());
+
+        append(" and more\n" + ASSISTANT + "Odin\n" + OVER);
+        assertSameAsFullScan();
+        assertEquals(2, index.open(testFilePath).toJSONArray().length());
+
+        // A corrupt index is ignored
+        File[] indexFiles = indexDirectory.listFiles();
+        assertEquals(1, indexFiles.length);
+        Files.write(indexFiles[0].toPath(), "{ not an index".getBytes(StandardCharsets.UTF_8));
+        assertSameAsFullScan();
+    }
+}
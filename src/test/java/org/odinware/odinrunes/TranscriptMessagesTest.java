@@ -0,0 +1,78 @@
+package org.odinware.odinrunes;
+
+import okhttp3.Request;
+import okio.Buffer;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Iterator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TranscriptMessagesTest {
+    private final String testFilePath = "transcriptMessagesTestFile.txt";
+    private TextHelper textHelper;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        new File(testFilePath).delete();
+        new File(testFilePath).createNewFile();
+        textHelper = new TextHelper(testFilePath);
+        String transcript = "<!-- =====[ User ]=====[ : ] -->\nWho rules Asgard?\n<!-- =====[ OVER ]=====[ # ] -->\n"
+                + "<!-- =====[ Assistant ]=====[ : ] -->\nOdin, the Asgard king\n<!-- =====[ OVER ]=====[ # ] -->\n"
+                + "<!-- =====[ User ]=====[ : ] -->\nAnd Midgard?\n";
+        Files.write(new File(testFilePath).toPath(), transcript.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @AfterEach
+    public void cleanup() {
+        new File(testFilePath).delete();
+    }
+
+    @Test
+    public void testIteratesTheMessagesOfTheTranscript() {
+        TranscriptMessages messages = textHelper.openMessages();
+        assertEquals(3, messages.size());
+        assertEquals(textHelper.getMessagesByFullScan().toString(), messages.toJSONArray().toString());
+
+        // Iterators are independent of each other
+        Iterator<TranscriptMessages.Message> first = messages.iterator();
+        Iterator<TranscriptMessages.Message> second = messages.iterator();
+        assertEquals("user", first.next().getRole());
+        assertEquals("assistant", first.next().getRole());
+        TranscriptMessages.Message user = second.next();
+        assertEquals("Who rules Asgard?", user.getContent());
+        assertFalse(user.hasJsonInfo());
+        TranscriptMessages.Message prompt = first.next();
+        assertEquals("prompt", prompt.getRole());
+        assertEquals("And Midgard?", prompt.getContent());
+        assertFalse(first.hasNext());
+    }
+
+    @Test
+    public void testBuildsTheSameRequestAsFromAJSONArray() throws Exception {
+        JSONObject ollamaSettings = new JSONObject()
+                .put("gptProvider", "Ollama")
+                .put("temperature", 0.5)
+                .put("model", "llama2")
+                .put("backendURI", "http://localhost:11434/api/chat");
+        OllamaWellsOfWisdom ollama = new OllamaWellsOfWisdom();
+
+        Request streamed = ollama.buildRequest(new Context(), textHelper.openMessages(), ollamaSettings);
+        Request materialized = ollama.buildRequest(new Context(), textHelper.getMessagesByFullScan(), ollamaSettings);
+        assertEquals(bodyOf(materialized), bodyOf(streamed));
+        assertTrue(bodyOf(streamed).contains("Odin, the Asgard king"));
+    }
+
+    private static String bodyOf(Request request) throws IOException {
+        Buffer body = new Buffer();
+        request.body().writeTo(body);
+        return body.readUtf8();
+    }
+}
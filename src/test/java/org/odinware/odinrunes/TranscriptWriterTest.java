@@ -0,0 +1,97 @@
+package org.odinware.odinrunes;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TranscriptWriterTest {
+    private final String testFilePath = "transcriptTestFile.txt";
+
+    @BeforeEach
+    public void setup() throws IOException {
+        File file = new File(testFilePath);
+        file.delete();
+        file.createNewFile();
+    }
+
+    @AfterEach
+    public void cleanup() {
+        new File(testFilePath).delete();
+    }
+
+    private String readFile() throws IOException {
+        return new String(Files.readAllBytes(new File(testFilePath).toPath()), Charset.defaultCharset());
+    }
+
+    @Test
+    public void testBuffersUntilThresholdAndFlushesOnClose() throws IOException {
+        TranscriptWriter writer = new TranscriptWriter(testFilePath, 0, 16);
+
+        writer.append("Hello ");
+        assertEquals("", readFile());
+
+        writer.append("there, this is long enough");
+        assertEquals("Hello there, this is long enough", readFile());
+
+        writer.append("<!-- =====[ OVER ]=====[ # ] -->\n");
+        writer.close();
+        assertEquals("Hello there, this is long enough<!-- =====[ OVER ]=====[ # ] -->\n", readFile());
+    }
+
+    @Test
+    public void testAppendsToExistingContent() throws IOException {
+        TextHelper textHelper = new TextHelper(testFilePath);
+        textHelper.writeStringToFile("First line\n");
+
+        try (TranscriptWriter writer = new TranscriptWriter(testFilePath, 0, 1024)) {
+            for (int i = 0; i < 100; i++) {
+                writer.append("token ");
+            }
+            assertEquals("First line\n", readFile());
+        }
+
+        StringBuilder expected = new StringBuilder("First line\n");
+        for (int i = 0; i < 100; i++) {
+            expected.append("token ");
+        }
+        assertEquals(expected.toString(), readFile());
+    }
+
+    @Test
+    public void testFlushesAfterInterval() throws Exception {
+        try (TranscriptWriter writer = new TranscriptWriter(testFilePath, 20, 4096)) {
+            writer.append("slow token");
+            long deadline = System.currentTimeMillis() + 2000;
+            while (readFile().isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals("slow token", readFile());
+            assertEquals(1, writer.getWriteCount());
+        }
+    }
+
+    @Test
+    public void testKeepsSurrogatePairsTogether() throws IOException {
+        try (TranscriptWriter writer = new TranscriptWriter(testFilePath, 0, 4096)) {
+            String rune = "\uD800\uDF40";
+            writer.append(rune.substring(0, 1));
+            writer.append(rune.substring(1));
+        }
+        String expected = new String("\uD800\uDF40".getBytes(Charset.defaultCharset()), Charset.defaultCharset());
+        assertEquals(expected, readFile());
+    }
+
+    @Test
+    public void testAppendAfterCloseFails() throws IOException {
+        TranscriptWriter writer = new TranscriptWriter(testFilePath, 0, 16);
+        writer.close();
+        assertThrows(IOException.class, () -> writer.append("late"));
+    }
+}
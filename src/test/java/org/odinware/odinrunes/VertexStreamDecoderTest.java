@@ -0,0 +1,127 @@
+package org.odinware.odinrunes;
+
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.Okio;
+import okio.Pipe;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class VertexStreamDecoderTest {
+
+    private static String geminiElement(String text) {
+        return "{\"candidates\": [{\"content\": {\"role\": \"model\", \"parts\": [{\"text\": \"" + text + "\"}]}}]}";
+    }
+
+    private static Response response(String body) {
+        return new Response.Builder()
+                .request(new Request.Builder().url("https://example.com/api").build())
+                .protocol(Protocol.HTTP_1_1)
+                .code(200)
+                .message("OK")
+                .body(ResponseBody.create(body, MediaType.parse("application/json")))
+                .build();
+    }
+
+    @Test
+    public void testGeminiPublishesTextAndUsage() throws Exception {
+        String body = "[" + geminiElement("Hail ") + "\n,\r\n" + geminiElement("to \\\"Odin\\\"\\n")
+                + ",\n{\"candidates\": [{\"finishReason\": \"STOP\"}],"
+                + " \"usageMetadata\": {\"promptTokenCount\": 7, \"candidatesTokenCount\": 4, \"totalTokenCount\": 11}}\n]";
+
+        List<WisdomEvent> events = new ArrayList<>();
+        new GoogleGeminiWellsOfWisdomOverVertexAI().streamEvents(response(body), event -> events.add(event));
+
+        assertEquals(5, events.size());
+        assertEquals("gemini-pro", events.get(0).getModel());
+        assertEquals("Hail ", events.get(1).getText());
+        assertEquals("to \"Odin\"\n", events.get(2).getText());
+        assertEquals(WisdomEvent.Type.USAGE, events.get(3).getType());
+        assertEquals(7, events.get(3).getPromptTokens());
+        assertEquals(4, events.get(3).getCompletionTokens());
+        assertEquals(11, events.get(3).getTotalTokens());
+        assertEquals(WisdomEvent.Type.DONE, events.get(4).getType());
+    }
+
+    @Test
+    public void testPalm2PublishesText() throws Exception {
+        String element = "{\"outputs\": [{\"structVal\": {\"candidates\": {\"listVal\": [{\"structVal\": {\"content\": {\"stringVal\": [\"Yggdrasil\"]}}}]}}}]}";
+
+        List<WisdomEvent> events = new ArrayList<>();
+        new GooglePalm2WellsOfWisdomOverVertexAI().streamEvents(response("[" + element + "]"), event -> events.add(event));
+
+        assertEquals(3, events.size());
+        assertEquals("chat-bison", events.get(0).getModel());
+        assertEquals("Yggdrasil", events.get(1).getText());
+        assertEquals(WisdomEvent.Type.DONE, events.get(2).getType());
+    }
+
+    @Test
+    public void testPublishesEachElementBeforeTheArrayIsComplete() throws Exception {
+        Pipe pipe = new Pipe(64 * 1024);
+        final BufferedSink sink = Okio.buffer(pipe.sink());
+        final CountDownLatch firstDelta = new CountDownLatch(1);
+        List<WisdomEvent> events = new ArrayList<>();
+
+        Thread server = new Thread(() -> {
+            try {
+                sink.writeUtf8("[" + geminiElement("Hail")).flush();
+                // The rest of the answer only comes once the first part was published
+                if (firstDelta.await(5, TimeUnit.SECONDS)) {
+                    sink.writeUtf8("," + geminiElement(" to Odin") + "]");
+                }
+                sink.close();
+            } catch (Exception e) {
+                fail(e);
+            }
+        });
+        server.start();
+        new VertexStreamDecoder("gemini-pro", element -> VertexStreamDecoder.textOf(element.path("candidates").path(0)
+                .path("content").path("parts").path(0).path("text")))
+                .stream(Okio.buffer(pipe.source()), event -> {
+                    events.add(event);
+                    if (event.getType() == WisdomEvent.Type.DELTA) {
+                        firstDelta.countDown();
+                    }
+                    return true;
+                });
+        server.join();
+
+        assertEquals(4, events.size());
+        assertEquals(" to Odin", events.get(2).getText());
+        assertEquals(WisdomEvent.Type.DONE, events.get(3).getType());
+    }
+
+    @Test
+    public void testPublishesErrors() throws Exception {
+        List<WisdomEvent> events = new ArrayList<>();
+        new GoogleGeminiWellsOfWisdomOverVertexAI().streamEvents(
+                response("[{\"error\": {\"code\": 429, \"message\": \"Quota exceeded\"}}]"), event -> events.add(event));
+        assertEquals(1, events.size());
+        assertEquals(WisdomEvent.Type.ERROR, events.get(0).getType());
+        assertTrue(events.get(0).getText().contains("Quota exceeded"));
+
+        events.clear();
+        new GoogleGeminiWellsOfWisdomOverVertexAI().streamEvents(
+                response("<html>Bad Gateway</html>"), event -> events.add(event));
+        assertEquals(1, events.size());
+        assertEquals(WisdomEvent.Type.ERROR, events.get(0).getType());
+
+        events.clear();
+        new VertexStreamDecoder("gemini-pro", element -> null)
+                .stream(new Buffer().writeUtf8("[{\"unexpected\": true}]"), event -> events.add(event));
+        assertEquals(1, events.size());
+        assertEquals("{\"unexpected\":true}", events.get(0).getText());
+    }
+}